@@ -0,0 +1,263 @@
+package main;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Settings of a single compilation.
+ */
+public class CompilerOptions {
+
+    /**
+     * The set of enabled optional optimizations.
+     */
+    private final Set<Optimization> optimizations = EnumSet.noneOf(Optimization.class);
+
+    /**
+     * Whether the optimization report is printed after compilation.
+     */
+    private boolean printReport;
+
+    /**
+     * The maximum amount of instructions of a procedure to inline.
+     */
+    private int inlineBudget = 40;
+
+    /**
+     * The maximum amount of instructions of all specialized procedures.
+     */
+    private int specializeBudget = 200;
+
+    /**
+     * The maximum amount of instructions executed by compile-time evaluation.
+     */
+    private int evaluationSteps = 1000000;
+
+    /**
+     * The maximum amount of bytes allocated by compile-time evaluation.
+     */
+    private int evaluationMemory = 1 << 20;
+
+    /**
+     * The amount of iterations run at once by partially unrolled loops.
+     */
+    private int unrollFactor = 4;
+
+    /**
+     * The file an instrumented program writes its call site profile to, or
+     * null to not instrument method calls.
+     */
+    private String profileGenerate;
+
+    /**
+     * The call site profile guiding devirtualization, or null.
+     */
+    private String profileUse;
+
+    /**
+     * Creates compiler options with all optimizations enabled, apart from
+     * compile-time evaluation, which replaces the whole program and has to
+     * be enabled explicitly.
+     *
+     * @return  Compiler options with all optimizations enabled.
+     */
+    public static CompilerOptions optimizeAll() {
+        final CompilerOptions options = new CompilerOptions();
+        options.optimizations.addAll(EnumSet.complementOf(EnumSet.of(Optimization.EVALUATE)));
+        return options;
+    }
+
+    /**
+     * Enables an optimization.
+     *
+     * @param optimization  The optimization to enable.
+     *
+     * @return  These options, for chaining.
+     */
+    public CompilerOptions enable(Optimization optimization) {
+        optimizations.add(optimization);
+        return this;
+    }
+
+    /**
+     * Disables an optimization.
+     *
+     * @param optimization  The optimization to disable.
+     *
+     * @return  These options, for chaining.
+     */
+    public CompilerOptions disable(Optimization optimization) {
+        optimizations.remove(optimization);
+        return this;
+    }
+
+    public boolean isEnabled(Optimization optimization) {
+        return optimizations.contains(optimization);
+    }
+
+    public boolean isPrintReport() {
+        return printReport;
+    }
+
+    public CompilerOptions setPrintReport(boolean printReport) {
+        this.printReport = printReport;
+        return this;
+    }
+
+    public int getInlineBudget() {
+        return inlineBudget;
+    }
+
+    public CompilerOptions setInlineBudget(int inlineBudget) {
+        this.inlineBudget = inlineBudget;
+        return this;
+    }
+
+    public int getSpecializeBudget() {
+        return specializeBudget;
+    }
+
+    public CompilerOptions setSpecializeBudget(int specializeBudget) {
+        this.specializeBudget = specializeBudget;
+        return this;
+    }
+
+    public int getEvaluationSteps() {
+        return evaluationSteps;
+    }
+
+    public CompilerOptions setEvaluationSteps(int evaluationSteps) {
+        this.evaluationSteps = evaluationSteps;
+        return this;
+    }
+
+    public int getEvaluationMemory() {
+        return evaluationMemory;
+    }
+
+    public CompilerOptions setEvaluationMemory(int evaluationMemory) {
+        this.evaluationMemory = evaluationMemory;
+        return this;
+    }
+
+    public int getUnrollFactor() {
+        return unrollFactor;
+    }
+
+    public CompilerOptions setUnrollFactor(int unrollFactor) {
+        this.unrollFactor = unrollFactor;
+        return this;
+    }
+
+    public String getProfileGenerate() {
+        return profileGenerate;
+    }
+
+    public CompilerOptions setProfileGenerate(String profileGenerate) {
+        this.profileGenerate = profileGenerate;
+        return this;
+    }
+
+    public String getProfileUse() {
+        return profileUse;
+    }
+
+    public CompilerOptions setProfileUse(String profileUse) {
+        this.profileUse = profileUse;
+        return this;
+    }
+
+    /**
+     * Applies a command line flag. "-O" enables the optimizations of
+     * {@link #optimizeAll()}, "-f&lt;name&gt;" and "-fno-&lt;name&gt;" enable
+     * and disable a single one, "-inline-budget=&lt;n&gt;" sets the size
+     * budget of inlined procedures,
+     * "-specialize-budget=&lt;n&gt;" the one of all specialized procedures,
+     * "-eval-steps=&lt;n&gt;" and "-eval-memory=&lt;n&gt;" the instructions and
+     * bytes of compile-time evaluation, "-unroll-factor=&lt;n&gt;" the
+     * iterations run at once by partially unrolled loops,
+     * "-profile-generate=&lt;file&gt;" instruments method calls to write a
+     * call site profile to the file, "-profile-use=&lt;file&gt;" guards calls
+     * by the receiver classes dominating the profile, and "-report" prints
+     * the optimization report.
+     *
+     * @param flag  The command line flag to apply.
+     *
+     * @return  Whether the flag is known.
+     */
+    public boolean parseFlag(String flag) {
+        if (flag.equals("-O")) {
+            optimizations.addAll(optimizeAll().optimizations);
+            return true;
+        }
+
+        if (flag.equals("-report")) {
+            printReport = true;
+            return true;
+        }
+
+        if (flag.startsWith("-inline-budget=")) {
+            inlineBudget = parseBudget(flag);
+            return inlineBudget >= 0;
+        }
+
+        if (flag.startsWith("-specialize-budget=")) {
+            specializeBudget = parseBudget(flag);
+            return specializeBudget >= 0;
+        }
+
+        if (flag.startsWith("-eval-steps=")) {
+            evaluationSteps = parseBudget(flag);
+            return evaluationSteps >= 0;
+        }
+
+        if (flag.startsWith("-eval-memory=")) {
+            evaluationMemory = parseBudget(flag);
+            return evaluationMemory >= 0;
+        }
+
+        if (flag.startsWith("-unroll-factor=")) {
+            unrollFactor = parseBudget(flag);
+            return unrollFactor >= 1;
+        }
+
+        if (flag.startsWith("-profile-generate=")) {
+            profileGenerate = flag.substring(flag.indexOf('=') + 1);
+            return !profileGenerate.isEmpty();
+        }
+
+        if (flag.startsWith("-profile-use=")) {
+            profileUse = flag.substring(flag.indexOf('=') + 1);
+            return !profileUse.isEmpty();
+        }
+
+        if (flag.startsWith("-fno-")) {
+            final Optimization optimization = Optimization.fromFlag(flag.substring(5));
+            if (optimization != null) {
+                disable(optimization);
+                return true;
+            }
+        } else if (flag.startsWith("-f")) {
+            final Optimization optimization = Optimization.fromFlag(flag.substring(2));
+            if (optimization != null) {
+                enable(optimization);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Parses the value of a "-&lt;name&gt;=&lt;n&gt;" flag.
+     *
+     * @return  -1, or the value, if it is a non-negative number.
+     */
+    private static int parseBudget(String flag) {
+        try {
+            return Math.max(Integer.parseInt(flag.substring(flag.indexOf('=') + 1)), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
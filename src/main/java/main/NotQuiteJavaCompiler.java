@@ -4,8 +4,28 @@ import analysis.Analysis;
 import analysis.TypeError;
 import frontend.NQJFrontend;
 import frontend.SyntaxError;
+import minillvm.ast.Proc;
 import minillvm.ast.Prog;
+import minillvm.optimization.BoundsCheckElimination;
+import minillvm.optimization.CompileTimeEvaluation;
+import minillvm.optimization.ConstantPropagation;
+import minillvm.optimization.DeadCodeElimination;
+import minillvm.optimization.DeadStoreElimination;
+import minillvm.optimization.EscapeAnalysis;
+import minillvm.optimization.GlobalValueNumbering;
+import minillvm.optimization.Inliner;
+import minillvm.optimization.InterproceduralConstantPropagation;
+import minillvm.optimization.LoopIdiomRecognition;
+import minillvm.optimization.LoopInvariantCodeMotion;
+import minillvm.optimization.LoopUnrolling;
+import minillvm.optimization.LoopVersioning;
+import minillvm.optimization.Mem2Reg;
+import minillvm.optimization.Memoization;
+import minillvm.optimization.NullCheckElimination;
+import minillvm.optimization.StrengthReduction;
+import minillvm.optimization.TailRecursionElimination;
 import notquitejava.ast.NQJProgram;
+import translation.CallSiteProfile;
 import translation.Translator;
 
 import java.io.*;
@@ -24,19 +44,37 @@ public class NotQuiteJavaCompiler {
     private Prog llvmProg;
     private Analysis analysis;
     private NQJFrontend frontend;
+    private final CompilerOptions options;
+    private final OptimizationReport report = new OptimizationReport();
+
+    public NotQuiteJavaCompiler() {
+        this(new CompilerOptions());
+    }
+
+    public NotQuiteJavaCompiler(CompilerOptions options) {
+        this.options = options;
+    }
 
     /**
      * Entry main function.
+     * Command line flags preceding the file name select optimizations.
      */
     public static void main(String[] args) throws Exception {
-        String fileName;
-        if (args.length > 0) {
-            fileName = args[0];
-        } else {
+        String fileName = null;
+        CompilerOptions options = new CompilerOptions();
+        for (String arg : args) {
+            if (!arg.startsWith("-")) {
+                fileName = arg;
+            } else if (!options.parseFlag(arg)) {
+                System.err.println("Unknown option " + arg);
+                System.exit(2);
+            }
+        }
+        if (fileName == null) {
             System.out.println("Enter a filename: ");
             fileName = new Scanner(System.in).nextLine();
         }
-        NotQuiteJavaCompiler compiler = new NotQuiteJavaCompiler();
+        NotQuiteJavaCompiler compiler = new NotQuiteJavaCompiler(options);
         File inputFile = new File(fileName);
         compiler.compileFile(inputFile);
 
@@ -46,6 +84,10 @@ public class NotQuiteJavaCompiler {
             System.exit(7);
         }
 
+        if (options.isPrintReport()) {
+            compiler.getReport().print(System.out);
+        }
+
         compiler.compileLlvmCode(inputFile.getName());
     }
 
@@ -84,8 +126,184 @@ public class NotQuiteJavaCompiler {
         }
 
         // translate
-        Translator translator = new Translator(javaProgram);
+        CallSiteProfile profile = null;
+        if (options.getProfileUse() != null) {
+            profile = CallSiteProfile.read(new File(options.getProfileUse()));
+        }
+        Translator translator = new Translator(javaProgram, options, report, profile);
         llvmProg = translator.translate();
+
+        optimize();
+    }
+
+    /**
+     * Runs all enabled optimizations on the translated program.
+     */
+    private void optimize() {
+        if (options.isEnabled(Optimization.EVALUATE)) {
+            final CompileTimeEvaluation pass = new CompileTimeEvaluation(
+                    options.getEvaluationSteps(), options.getEvaluationMemory());
+            if (pass.run(llvmProg)) {
+                report.add(Optimization.EVALUATE, "main: evaluated in " + pass.getSteps()
+                        + " steps, replaced by " + pass.getPrints() + " prints");
+            } else {
+                report.add(Optimization.EVALUATE, "main: not evaluated, " + pass.getFailure());
+            }
+        }
+        if (options.isEnabled(Optimization.MEM2REG)) {
+            for (Proc proc : llvmProg.getProcedures()) {
+                new Mem2Reg().run(proc);
+            }
+        }
+        if (options.isEnabled(Optimization.IPCP)) {
+            final InterproceduralConstantPropagation pass =
+                    new InterproceduralConstantPropagation(options.getSpecializeBudget());
+            pass.run(llvmProg);
+            for (Proc proc : llvmProg.getProcedures()) {
+                if (pass.getPropagated(proc) > 0) {
+                    report.add(Optimization.IPCP, proc.getName() + ": replaced "
+                            + pass.getPropagated(proc) + " parameters by constants");
+                }
+                if (pass.getSpecializedCalls(proc) > 0) {
+                    report.add(Optimization.IPCP, proc.getName() + ": specialized for "
+                            + pass.getSpecializedCalls(proc) + " calls");
+                }
+            }
+        }
+        if (options.isEnabled(Optimization.TAIL_RECURSION)) {
+            final TailRecursionElimination pass = new TailRecursionElimination();
+            for (Proc proc : llvmProg.getProcedures()) {
+                final int replaced = pass.run(proc);
+                if (replaced > 0) {
+                    report.add(Optimization.TAIL_RECURSION, proc.getName() + ": replaced "
+                            + replaced + " recursive calls by jumps");
+                }
+            }
+        }
+        if (options.isEnabled(Optimization.MEMOIZE)) {
+            final Memoization memoization = new Memoization(llvmProg);
+            for (Proc proc : llvmProg.getProcedures()) {
+                if (memoization.run(proc, llvmProg)) {
+                    report.add(Optimization.MEMOIZE, proc.getName() + ": memoized in a table of "
+                            + Memoization.TABLE_SIZE + " entries");
+                }
+            }
+        }
+        if (options.isEnabled(Optimization.INLINE)) {
+            final Inliner inliner = new Inliner(options.getInlineBudget());
+            for (Proc proc : Inliner.getBottomUpOrder(llvmProg)) {
+                final int inlined = inliner.run(proc);
+                if (inlined > 0) {
+                    report.add(Optimization.INLINE,
+                            proc.getName() + ": inlined " + inlined + " calls");
+                }
+            }
+        }
+
+        final GlobalValueNumbering gvn = new GlobalValueNumbering(llvmProg);
+        final NullCheckElimination nullChecks = new NullCheckElimination();
+        final LoopInvariantCodeMotion licm = new LoopInvariantCodeMotion(llvmProg, nullChecks);
+        final DeadStoreElimination dse = new DeadStoreElimination(llvmProg);
+        for (Proc proc : llvmProg.getProcedures()) {
+            if (options.isEnabled(Optimization.SCCP)) {
+                final ConstantPropagation pass = new ConstantPropagation();
+                if (pass.run(proc)) {
+                    report.add(Optimization.SCCP, proc.getName() + ": folded "
+                            + pass.getFoldedInstructions() + " instructions and "
+                            + pass.getFoldedBranches() + " branches");
+                }
+            }
+            if (options.isEnabled(Optimization.ESCAPE_ANALYSIS)) {
+                final EscapeAnalysis pass = new EscapeAnalysis();
+                if (pass.run(proc)) {
+                    report.add(Optimization.ESCAPE_ANALYSIS, proc.getName() + ": allocated "
+                            + pass.getStackAllocated() + " objects on the stack, replaced "
+                            + pass.getScalarReplaced() + " objects by their fields");
+                }
+            }
+            if (options.isEnabled(Optimization.GVN) && gvn.run(proc)) {
+                report.add(Optimization.GVN, proc.getName() + ": removed "
+                        + gvn.getRemoved() + " redundant instructions, of which "
+                        + gvn.getRemovedLoads() + " loads, and "
+                        + gvn.getRemovedBranches() + " branches");
+            }
+            if (options.isEnabled(Optimization.NULL_CHECKS)) {
+                final int removed = nullChecks.run(proc);
+                if (nullChecks.getCheckCount() > 0) {
+                    report.add(Optimization.NULL_CHECKS, proc.getName() + ": removed "
+                            + removed + " of " + nullChecks.getCheckCount() + " null checks");
+                }
+            }
+            if (options.isEnabled(Optimization.BOUNDS_CHECKS)) {
+                final BoundsCheckElimination pass = new BoundsCheckElimination();
+                final int removed = pass.run(proc);
+                if (pass.getCheckCount() > 0) {
+                    report.add(Optimization.BOUNDS_CHECKS, proc.getName() + ": removed "
+                            + removed + " of " + pass.getCheckCount() + " bounds checks");
+                }
+            }
+            if (options.isEnabled(Optimization.LICM)) {
+                licm.run(proc);
+                if (licm.getHoisted() > 0) {
+                    report.add(Optimization.LICM, proc.getName() + ": hoisted "
+                            + licm.getHoisted() + " instructions, of which "
+                            + licm.getHoistedLoads() + " loads");
+                }
+            }
+            if (options.isEnabled(Optimization.LOOP_VERSIONING)) {
+                final LoopVersioning pass = new LoopVersioning();
+                if (pass.run(proc)) {
+                    report.add(Optimization.LOOP_VERSIONING, proc.getName() + ": versioned "
+                            + pass.getVersionedLoops() + " loops, removing "
+                            + pass.getRemovedChecks() + " checks from the copies");
+                }
+            }
+            if (options.isEnabled(Optimization.LOOP_IDIOMS)) {
+                final LoopIdiomRecognition pass = new LoopIdiomRecognition();
+                if (pass.run(proc)) {
+                    report.add(Optimization.LOOP_IDIOMS, proc.getName() + ": replaced "
+                            + pass.getFills() + " fill loops by memset and "
+                            + pass.getCopies() + " copy loops by memcpy");
+                }
+            }
+            if (options.isEnabled(Optimization.UNROLL)) {
+                final LoopUnrolling pass = new LoopUnrolling(options.getUnrollFactor());
+                if (pass.run(proc)) {
+                    report.add(Optimization.UNROLL, proc.getName() + ": fully unrolled "
+                            + pass.getFullyUnrolled() + " loops, partially unrolled "
+                            + pass.getPartiallyUnrolled() + " loops");
+                }
+            }
+            if (options.isEnabled(Optimization.STRENGTH_REDUCTION)) {
+                final StrengthReduction pass = new StrengthReduction();
+                if (pass.run(proc)) {
+                    report.add(Optimization.STRENGTH_REDUCTION, proc.getName() + ": reduced "
+                            + pass.getReducedAddresses() + " addresses to pointers, replaced "
+                            + pass.getReplacedTests() + " loop tests");
+                }
+            }
+            if (options.isEnabled(Optimization.DSE) && dse.run(proc)) {
+                report.add(Optimization.DSE, proc.getName() + ": removed "
+                        + dse.getRemovedStores() + " stores and "
+                        + dse.getRemovedFills() + " fills overwritten before being read");
+            }
+            if (options.isEnabled(Optimization.DCE)) {
+                final DeadCodeElimination pass = new DeadCodeElimination();
+                if (pass.run(proc)) {
+                    report.add(Optimization.DCE, proc.getName() + ": reduced "
+                            + pass.getBlocksBefore() + " blocks to " + pass.getBlocksAfter()
+                            + ", " + pass.getInstructionsBefore() + " instructions to "
+                            + pass.getInstructionsAfter());
+                }
+            }
+            if (options.isEnabled(Optimization.TAIL_RECURSION)) {
+                final int marked = TailRecursionElimination.markTailCalls(proc);
+                if (marked > 0) {
+                    report.add(Optimization.TAIL_RECURSION,
+                            proc.getName() + ": marked " + marked + " tail calls");
+                }
+            }
+        }
     }
 
     public NQJProgram getJavaProgram() {
@@ -96,6 +314,14 @@ public class NotQuiteJavaCompiler {
         return llvmProg;
     }
 
+    public CompilerOptions getOptions() {
+        return options;
+    }
+
+    public OptimizationReport getReport() {
+        return report;
+    }
+
     public List<SyntaxError> getSyntaxErrors() {
         return frontend.getSyntaxErrors();
     }
@@ -0,0 +1,148 @@
+package main;
+
+/**
+ * Optional optimizations that can be enabled per compilation.
+ */
+public enum Optimization {
+    /**
+     * Runs the program at compile time, within the budget set by
+     * "-eval-steps=&lt;n&gt;" and "-eval-memory=&lt;n&gt;", and replaces main by
+     * its output. Not enabled by "-O".
+     */
+    EVALUATE("evaluate"),
+    /**
+     * Promotes non-escaping stack slots of locals and parameters to SSA
+     * registers.
+     */
+    MEM2REG("mem2reg"),
+    /**
+     * Calls methods directly when class hierarchy analysis shows that only a
+     * single implementation can be called.
+     */
+    DEVIRTUALIZE("devirtualize"),
+    /**
+     * Removes classes, methods and procedures that are unreachable from main
+     * by rapid type analysis.
+     */
+    RTA("rta"),
+    /**
+     * Orders the own fields of each class by alignment after those of its
+     * superclass, packing booleans into the gaps and the tail of objects.
+     */
+    FIELD_LAYOUT("field-layout"),
+    /**
+     * Removes array bounds checks of indices that are provably in range, e.g.
+     * induction variables bounded by the array length.
+     */
+    BOUNDS_CHECKS("bounds-checks"),
+    /**
+     * Removes null checks of values that are known to be non-null, e.g.
+     * 'this', new objects and values that were checked before.
+     */
+    NULL_CHECKS("null-checks"),
+    /**
+     * Folds constants by sparse conditional constant propagation, replaces
+     * branches on constants by jumps and removes unreachable blocks.
+     */
+    SCCP("sccp"),
+    /**
+     * Replaces parameters by the constant passed by all calls, and
+     * specializes procedures for constant arguments passed by several calls
+     * within the size budget set by "-specialize-budget=&lt;n&gt;".
+     */
+    IPCP("ipcp"),
+    /**
+     * Replaces self-recursive calls in tail position by jumps and marks the
+     * remaining calls in tail position as tail calls.
+     */
+    TAIL_RECURSION("tail-recursion"),
+    /**
+     * Caches the results of recursive procedures over integers without side
+     * effects in a table of fixed size per procedure.
+     */
+    MEMOIZE("memoize"),
+    /**
+     * Inlines direct calls to procedures within the size budget set by
+     * "-inline-budget=&lt;n&gt;".
+     */
+    INLINE("inline"),
+    /**
+     * Allocates objects and constant size arrays that do not escape their
+     * procedure on the stack, or replaces objects by their fields.
+     */
+    ESCAPE_ANALYSIS("escape-analysis"),
+    /**
+     * Global value numbering, removing recomputed operations, addresses and
+     * loads, and branches on conditions already tested.
+     */
+    GVN("gvn"),
+    /**
+     * Hoists loop invariant computations, including loads of array lengths,
+     * Virtual Method Tables and fields, out of loops.
+     */
+    LICM("licm"),
+    /**
+     * Versions loops over arrays by one guard testing their null and bounds
+     * checks in front of them, entering a copy of the loop without the checks
+     * if they hold.
+     */
+    LOOP_VERSIONING("loop-versioning"),
+    /**
+     * Replaces loops filling arrays with a constant or copying arrays by
+     * calls to the memset and memcpy intrinsics.
+     */
+    LOOP_IDIOMS("loop-idioms"),
+    /**
+     * Unrolls innermost loops with constant trip counts, fully if they are
+     * small enough, or else by the factor set by "-unroll-factor=&lt;n&gt;".
+     */
+    UNROLL("unroll"),
+    /**
+     * Replaces the addresses of array elements at induction variables by
+     * pointers incremented along with them, and tests of the variables by
+     * tests of the pointers.
+     */
+    STRENGTH_REDUCTION("strength-reduction"),
+    /**
+     * Removes stores and fills that are overwritten before they are read,
+     * e.g. the default values stored into the fields of new objects.
+     */
+    DSE("dse"),
+    /**
+     * Removes comments, unused instructions and unreachable blocks, and
+     * merges blocks connected by jumps.
+     */
+    DCE("dce");
+
+    private final String flag;
+
+    Optimization(String flag) {
+        this.flag = flag;
+    }
+
+    /**
+     * Gets the name of the optimization used by the command line flag
+     * "-f&lt;name&gt;".
+     *
+     * @return  The flag name of the optimization.
+     */
+    public String getFlag() {
+        return flag;
+    }
+
+    /**
+     * Looks up an optimization by its flag name.
+     *
+     * @param flag  The flag name to look up.
+     *
+     * @return null, or the optimization with the given flag name, if existent.
+     */
+    public static Optimization fromFlag(String flag) {
+        for (Optimization optimization : values()) {
+            if (optimization.flag.equals(flag)) {
+                return optimization;
+            }
+        }
+        return null;
+    }
+}
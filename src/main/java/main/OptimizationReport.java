@@ -0,0 +1,82 @@
+package main;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages of the optimizations applied during a single compilation, in the
+ * order they were recorded.
+ */
+public class OptimizationReport {
+
+    /**
+     * A single report message.
+     */
+    public static class Entry {
+        private final Optimization optimization;
+        private final String message;
+
+        Entry(Optimization optimization, String message) {
+            this.optimization = optimization;
+            this.message = message;
+        }
+
+        public Optimization getOptimization() {
+            return optimization;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + optimization.getFlag() + "] " + message;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Records a message of an optimization.
+     *
+     * @param optimization  The optimization reporting the message.
+     * @param message       The message to record.
+     */
+    public void add(Optimization optimization, String message) {
+        entries.add(new Entry(optimization, message));
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Gets all messages of a single optimization.
+     *
+     * @param optimization  The optimization to filter by.
+     *
+     * @return  The messages of the optimization, in recording order.
+     */
+    public List<String> getMessages(Optimization optimization) {
+        final List<String> messages = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.optimization == optimization) {
+                messages.add(entry.message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Prints all messages, one per line.
+     *
+     * @param out  The stream to print to.
+     */
+    public void print(PrintStream out) {
+        for (Entry entry : entries) {
+            out.println(entry);
+        }
+    }
+}
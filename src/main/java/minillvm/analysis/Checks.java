@@ -292,6 +292,25 @@ public class Checks {
                 expectType(print.getE(), Ast.TypeInt());
             }
 
+            @Override
+            public void case_MemSet(MemSet memSet) {
+                expectType(memSet.getAddress(), Ast.TypePointer(Ast.TypeByte()));
+                expectType(memSet.getSizeInBytes(), Ast.TypeInt());
+            }
+
+            @Override
+            public void case_MemCopy(MemCopy memCopy) {
+                expectType(memCopy.getDestination(), Ast.TypePointer(Ast.TypeByte()));
+                expectType(memCopy.getSource(), Ast.TypePointer(Ast.TypeByte()));
+                expectType(memCopy.getSizeInBytes(), Ast.TypeInt());
+            }
+
+            @Override
+            public void case_WriteFile(WriteFile writeFile) {
+                expectType(writeFile.getData(), Ast.TypePointer(Ast.TypeByte()));
+                expectType(writeFile.getSizeInBytes(), Ast.TypeInt());
+            }
+
             @Override
             public void case_PhiNode(PhiNode phiNode) {
                 List<BasicBlock> predecessors =
@@ -0,0 +1,189 @@
+package minillvm.analysis;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+
+/**
+ * Control flow graph of a procedure.
+ *
+ * <p>Basic blocks are lists and thus may compare equal structurally, hence all
+ * indices are keyed by identity. The graph is a snapshot and must be rebuilt
+ * after the control flow of the procedure has been changed.
+ */
+public class ControlFlowGraph {
+
+    private final Proc proc;
+
+    private final Map<BasicBlock, List<BasicBlock>> successors = new IdentityHashMap<>();
+
+    private final Map<BasicBlock, List<BasicBlock>> predecessors = new IdentityHashMap<>();
+
+    /**
+     * All blocks reachable from the entry block in reverse post-order.
+     */
+    private final List<BasicBlock> reversePostOrder = new ArrayList<>();
+
+    /**
+     * An index of reverse post-order positions by basic block.
+     */
+    private final Map<BasicBlock, Integer> reversePostOrderIndex = new IdentityHashMap<>();
+
+    /**
+     * Builds the control flow graph of a procedure.
+     *
+     * @param proc  The procedure to build the control flow graph of.
+     */
+    public ControlFlowGraph(Proc proc) {
+        this.proc = proc;
+
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            successors.put(block, successorsOf(block));
+            predecessors.put(block, new ArrayList<>());
+        }
+        //
+        // Branches with identical targets add the edge twice, which matches
+        // the phi node choices required by Checks.
+        //
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (BasicBlock successor : successors.get(block)) {
+                final List<BasicBlock> preds = predecessors.get(successor);
+                if (preds != null) {
+                    preds.add(block);
+                }
+            }
+        }
+
+        computeReversePostOrder();
+    }
+
+    /**
+     * Gets the successors of a basic block from its terminating instruction.
+     *
+     * @param block  The basic block to inspect.
+     *
+     * @return  The jump targets of the block, in branch order.
+     */
+    public static List<BasicBlock> successorsOf(BasicBlock block) {
+        final Optional<TerminatingInstruction> terminator = block.getTerminatingInstruction();
+        if (terminator.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final TerminatingInstruction instr = terminator.get();
+        if (instr instanceof Jump) {
+            return List.of(((Jump) instr).getLabel());
+        } else if (instr instanceof Branch) {
+            final Branch branch = (Branch) instr;
+            return List.of(branch.getIfTrueLabel(), branch.getIfFalseLabel());
+        }
+
+        return Collections.emptyList();
+    }
+
+    private void computeReversePostOrder() {
+        if (proc.getBasicBlocks().isEmpty()) {
+            return;
+        }
+        //
+        // Iterative depth-first search, so that long chains of blocks cannot
+        // overflow the Java stack.
+        //
+        final BasicBlock entry = proc.getBasicBlocks().get(0);
+        final Set<BasicBlock> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<BasicBlock> stack = new ArrayDeque<>();
+        final Deque<Iterator<BasicBlock>> pending = new ArrayDeque<>();
+        final List<BasicBlock> postOrder = new ArrayList<>();
+
+        visited.add(entry);
+        stack.push(entry);
+        pending.push(successors.get(entry).iterator());
+
+        while (!stack.isEmpty()) {
+            final Iterator<BasicBlock> it = pending.peek();
+            if (it.hasNext()) {
+                final BasicBlock next = it.next();
+                if (successors.containsKey(next) && visited.add(next)) {
+                    stack.push(next);
+                    pending.push(successors.get(next).iterator());
+                }
+            } else {
+                postOrder.add(stack.pop());
+                pending.pop();
+            }
+        }
+
+        for (int i = postOrder.size() - 1; i >= 0; --i) {
+            reversePostOrderIndex.put(postOrder.get(i), reversePostOrder.size());
+            reversePostOrder.add(postOrder.get(i));
+        }
+    }
+
+    public Proc getProc() {
+        return proc;
+    }
+
+    /**
+     * Gets the entry block of the procedure.
+     *
+     * @return null, or the entry block, if the procedure has any blocks.
+     */
+    public BasicBlock getEntry() {
+        return reversePostOrder.isEmpty() ? null : reversePostOrder.get(0);
+    }
+
+    /**
+     * Gets the successors of a block of the procedure.
+     *
+     * @param block  The basic block to inspect.
+     *
+     * @return  The successors of the block, in branch order.
+     */
+    public List<BasicBlock> getSuccessors(BasicBlock block) {
+        return successors.getOrDefault(block, Collections.emptyList());
+    }
+
+    /**
+     * Gets the predecessors of a block of the procedure, including such that
+     * are unreachable.
+     *
+     * @param block  The basic block to inspect.
+     *
+     * @return  The predecessors of the block, once per incoming edge.
+     */
+    public List<BasicBlock> getPredecessors(BasicBlock block) {
+        return predecessors.getOrDefault(block, Collections.emptyList());
+    }
+
+    /**
+     * Gets all blocks reachable from the entry block in reverse post-order.
+     *
+     * @return  The reachable blocks in reverse post-order.
+     */
+    public List<BasicBlock> getReversePostOrder() {
+        return reversePostOrder;
+    }
+
+    /**
+     * Checks whether a block is reachable from the entry block.
+     *
+     * @param block  The basic block to inspect.
+     *
+     * @return  Whether the block is reachable.
+     */
+    public boolean isReachable(BasicBlock block) {
+        return reversePostOrderIndex.containsKey(block);
+    }
+
+    /**
+     * Gets the reverse post-order position of a reachable block.
+     *
+     * @param block  The reachable basic block to inspect.
+     *
+     * @return  The position of the block in reverse post-order.
+     */
+    public int getReversePostOrderIndex(BasicBlock block) {
+        return reversePostOrderIndex.get(block);
+    }
+}
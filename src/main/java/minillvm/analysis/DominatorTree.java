@@ -0,0 +1,230 @@
+package minillvm.analysis;
+
+import minillvm.ast.BasicBlock;
+
+import java.util.*;
+
+
+/**
+ * Dominator tree of the reachable blocks of a control flow graph.
+ *
+ * <p>Immediate dominators are computed with the iterative algorithm by Cooper,
+ * Harvey and Kennedy. Dominance frontiers are computed on first request.
+ */
+public class DominatorTree {
+
+    private final ControlFlowGraph cfg;
+
+    private final Map<BasicBlock, BasicBlock> immediateDominator = new IdentityHashMap<>();
+
+    private final Map<BasicBlock, List<BasicBlock>> children = new IdentityHashMap<>();
+
+    /**
+     * All reachable blocks in dominator tree pre-order.
+     */
+    private final List<BasicBlock> preorder = new ArrayList<>();
+
+    /**
+     * Dominator tree pre-order and post-order numbers for constant-time
+     * dominance queries.
+     */
+    private final Map<BasicBlock, Integer> preorderNumber = new IdentityHashMap<>();
+    private final Map<BasicBlock, Integer> postorderNumber = new IdentityHashMap<>();
+
+    private Map<BasicBlock, List<BasicBlock>> dominanceFrontier;
+
+    /**
+     * Computes the dominator tree of a control flow graph.
+     *
+     * @param cfg  The control flow graph to compute the dominators of.
+     */
+    public DominatorTree(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+
+        final List<BasicBlock> rpo = cfg.getReversePostOrder();
+        if (rpo.isEmpty()) {
+            return;
+        }
+
+        final BasicBlock entry = rpo.get(0);
+        immediateDominator.put(entry, entry);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < rpo.size(); ++i) {
+                final BasicBlock block = rpo.get(i);
+                BasicBlock newIdom = null;
+                for (BasicBlock pred : cfg.getPredecessors(block)) {
+                    //
+                    // Skip predecessors that have not been processed yet, as
+                    // well as unreachable ones.
+                    //
+                    if (!immediateDominator.containsKey(pred)) {
+                        continue;
+                    }
+
+                    newIdom = newIdom == null ? pred : intersect(pred, newIdom);
+                }
+
+                if (immediateDominator.get(block) != newIdom) {
+                    immediateDominator.put(block, newIdom);
+                    changed = true;
+                }
+            }
+        }
+        //
+        // The entry block has no immediate dominator. This is only fixed up
+        // now, as the fixpoint iteration relies on it being its own.
+        //
+        immediateDominator.put(entry, null);
+
+        for (BasicBlock block : rpo) {
+            children.put(block, new ArrayList<>());
+        }
+        for (int i = 1; i < rpo.size(); ++i) {
+            children.get(immediateDominator.get(rpo.get(i))).add(rpo.get(i));
+        }
+
+        numberTree(entry);
+    }
+
+    private BasicBlock intersect(BasicBlock first, BasicBlock second) {
+        BasicBlock finger1 = first;
+        BasicBlock finger2 = second;
+        while (finger1 != finger2) {
+            while (cfg.getReversePostOrderIndex(finger1) > cfg.getReversePostOrderIndex(finger2)) {
+                finger1 = immediateDominator.get(finger1);
+            }
+            while (cfg.getReversePostOrderIndex(finger2) > cfg.getReversePostOrderIndex(finger1)) {
+                finger2 = immediateDominator.get(finger2);
+            }
+        }
+        return finger1;
+    }
+
+    private void numberTree(BasicBlock entry) {
+        final Deque<BasicBlock> stack = new ArrayDeque<>();
+        final Deque<Iterator<BasicBlock>> pending = new ArrayDeque<>();
+        int counter = 0;
+
+        preorderNumber.put(entry, counter++);
+        preorder.add(entry);
+        stack.push(entry);
+        pending.push(children.get(entry).iterator());
+
+        while (!stack.isEmpty()) {
+            final Iterator<BasicBlock> it = pending.peek();
+            if (it.hasNext()) {
+                final BasicBlock child = it.next();
+                preorderNumber.put(child, counter++);
+                preorder.add(child);
+                stack.push(child);
+                pending.push(children.get(child).iterator());
+            } else {
+                postorderNumber.put(stack.pop(), counter++);
+                pending.pop();
+            }
+        }
+    }
+
+    public ControlFlowGraph getControlFlowGraph() {
+        return cfg;
+    }
+
+    /**
+     * Gets the immediate dominator of a reachable block.
+     *
+     * @param block  The basic block to inspect.
+     *
+     * @return null, or the immediate dominator, if the block is not the entry.
+     */
+    public BasicBlock getImmediateDominator(BasicBlock block) {
+        return immediateDominator.get(block);
+    }
+
+    /**
+     * Gets the blocks immediately dominated by a reachable block.
+     *
+     * @param block  The basic block to inspect.
+     *
+     * @return  The children of the block in the dominator tree.
+     */
+    public List<BasicBlock> getChildren(BasicBlock block) {
+        return children.getOrDefault(block, Collections.emptyList());
+    }
+
+    /**
+     * Gets all reachable blocks in dominator tree pre-order, i.e. every block
+     * is preceded by all of its dominators.
+     *
+     * @return  The reachable blocks in dominator tree pre-order.
+     */
+    public List<BasicBlock> getPreorder() {
+        return preorder;
+    }
+
+    /**
+     * Checks whether a block dominates another block. Every block dominates
+     * itself. Unreachable blocks neither dominate nor are dominated.
+     *
+     * @param dominator  The potentially dominating block.
+     * @param block      The potentially dominated block.
+     *
+     * @return  Whether dominator dominates block.
+     */
+    public boolean dominates(BasicBlock dominator, BasicBlock block) {
+        final Integer domPre = preorderNumber.get(dominator);
+        final Integer blockPre = preorderNumber.get(block);
+        if (domPre == null || blockPre == null) {
+            return false;
+        }
+
+        return domPre <= blockPre && postorderNumber.get(block) <= postorderNumber.get(dominator);
+    }
+
+    /**
+     * Gets the dominance frontier of a reachable block.
+     *
+     * @param block  The basic block to inspect.
+     *
+     * @return  The blocks in the dominance frontier of the block.
+     */
+    public List<BasicBlock> getDominanceFrontier(BasicBlock block) {
+        if (dominanceFrontier == null) {
+            computeDominanceFrontiers();
+        }
+
+        return dominanceFrontier.getOrDefault(block, Collections.emptyList());
+    }
+
+    private void computeDominanceFrontiers() {
+        dominanceFrontier = new IdentityHashMap<>();
+        for (BasicBlock block : cfg.getReversePostOrder()) {
+            final BasicBlock idom = immediateDominator.get(block);
+            for (BasicBlock pred : cfg.getPredecessors(block)) {
+                if (!cfg.isReachable(pred)) {
+                    continue;
+                }
+
+                BasicBlock runner = pred;
+                while (runner != null && runner != idom) {
+                    final List<BasicBlock> frontier =
+                            dominanceFrontier.computeIfAbsent(runner, b -> new ArrayList<>());
+                    if (!containsIdentity(frontier, block)) {
+                        frontier.add(block);
+                    }
+                    runner = immediateDominator.get(runner);
+                }
+            }
+        }
+    }
+
+    private static boolean containsIdentity(List<BasicBlock> blocks, BasicBlock block) {
+        for (BasicBlock b : blocks) {
+            if (b == block) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
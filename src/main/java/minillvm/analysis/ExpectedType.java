@@ -15,6 +15,15 @@ public class ExpectedType {
         if (parent instanceof PhiNodeChoice) {
             PhiNode phiNode = getParent(PhiNode.class, parent);
             return phiNode.getType();
+        } else if (parent instanceof ConstList && parent.getParent() instanceof ConstStruct) {
+            ConstStruct struct = (ConstStruct) parent.getParent();
+            ConstList values = (ConstList) parent;
+            for (int i = 0; i < values.size(); i++) {
+                if (values.get(i) == operand) {
+                    return struct.getStructType().getFields().get(i).getType();
+                }
+            }
+            throw new RuntimeException();
         } else if (parent instanceof OperandList) {
             if (parent.getParent() instanceof Call) {
                 Call call = (Call) parent.getParent();
@@ -89,6 +98,30 @@ public class ExpectedType {
                     return Ast.TypeInt();
                 }
 
+                @Override
+                public Type case_MemSet(MemSet memSet) {
+                    if (operand == memSet.getSizeInBytes()) {
+                        return Ast.TypeInt();
+                    }
+                    return Ast.TypePointer(Ast.TypeByte());
+                }
+
+                @Override
+                public Type case_MemCopy(MemCopy memCopy) {
+                    if (operand == memCopy.getSizeInBytes()) {
+                        return Ast.TypeInt();
+                    }
+                    return Ast.TypePointer(Ast.TypeByte());
+                }
+
+                @Override
+                public Type case_WriteFile(WriteFile writeFile) {
+                    if (operand == writeFile.getSizeInBytes()) {
+                        return Ast.TypeInt();
+                    }
+                    return Ast.TypePointer(Ast.TypeByte());
+                }
+
                 @Override
                 public Type case_PhiNode(PhiNode phiNode) {
                     throw new RuntimeException();
@@ -0,0 +1,173 @@
+package minillvm.analysis;
+
+import minillvm.ast.BasicBlock;
+
+import java.util.*;
+
+
+/**
+ * The natural loops of a control flow graph and their nesting.
+ *
+ * <p>An edge whose target dominates its source is a back edge, and the loop
+ * of a back edge consists of its target, the header, and all blocks that can
+ * reach the source without passing the header. Loops sharing a header are
+ * merged. A loop is nested in another one if its header is part of it.
+ */
+public class LoopNest {
+
+    /**
+     * A natural loop.
+     */
+    public static class Loop {
+        private final BasicBlock header;
+        private final Set<BasicBlock> blocks = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final List<BasicBlock> latches = new ArrayList<>();
+        private Loop parent;
+        private final List<Loop> children = new ArrayList<>();
+
+        Loop(BasicBlock header) {
+            this.header = header;
+            blocks.add(header);
+        }
+
+        public BasicBlock getHeader() {
+            return header;
+        }
+
+        /**
+         * Gets the blocks with a back edge to the header.
+         *
+         * @return  The sources of the back edges of the loop.
+         */
+        public List<BasicBlock> getLatches() {
+            return latches;
+        }
+
+        /**
+         * Checks whether a block is part of the loop, including nested loops.
+         *
+         * @param block  The block to check.
+         *
+         * @return  Whether the block is part of the loop.
+         */
+        public boolean contains(BasicBlock block) {
+            return blocks.contains(block);
+        }
+
+        /**
+         * Gets the blocks of the loop, including those of nested loops.
+         *
+         * @return  The blocks of the loop, in no particular order.
+         */
+        public Set<BasicBlock> getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * Gets the innermost loop containing this loop.
+         *
+         * @return null, or the parent loop, if this loop is nested.
+         */
+        public Loop getParent() {
+            return parent;
+        }
+
+        public List<Loop> getChildren() {
+            return children;
+        }
+    }
+
+    private final List<Loop> loops = new ArrayList<>();
+    private final List<Loop> topLevel = new ArrayList<>();
+    private final Map<BasicBlock, Loop> innermost = new IdentityHashMap<>();
+
+    /**
+     * Finds the loops of a control flow graph.
+     *
+     * @param domTree  The dominator tree of the control flow graph.
+     */
+    public LoopNest(DominatorTree domTree) {
+        final ControlFlowGraph cfg = domTree.getControlFlowGraph();
+        final Map<BasicBlock, Loop> loopByHeader = new IdentityHashMap<>();
+        for (BasicBlock block : cfg.getReversePostOrder()) {
+            for (BasicBlock successor : cfg.getSuccessors(block)) {
+                if (!domTree.dominates(successor, block)) {
+                    continue;
+                }
+                final Loop loop = loopByHeader.computeIfAbsent(successor, h -> {
+                    final Loop l = new Loop(h);
+                    loops.add(l);
+                    return l;
+                });
+                loop.latches.add(block);
+                addBody(loop, block, cfg);
+            }
+        }
+        //
+        // Larger loops first, so every loop is nested in the smallest loop
+        // containing its header that was processed before it.
+        //
+        loops.sort(Comparator.comparingInt((Loop l) -> -l.blocks.size()));
+        for (Loop loop : loops) {
+            final Loop parent = innermost.get(loop.header);
+            if (parent == null) {
+                topLevel.add(loop);
+            } else {
+                loop.parent = parent;
+                parent.children.add(loop);
+            }
+            for (BasicBlock block : loop.blocks) {
+                innermost.put(block, loop);
+            }
+        }
+    }
+
+    private static void addBody(Loop loop, BasicBlock latch, ControlFlowGraph cfg) {
+        final Deque<BasicBlock> worklist = new ArrayDeque<>();
+        if (loop.blocks.add(latch)) {
+            worklist.push(latch);
+        }
+        while (!worklist.isEmpty()) {
+            for (BasicBlock pred : cfg.getPredecessors(worklist.pop())) {
+                if (cfg.isReachable(pred) && loop.blocks.add(pred)) {
+                    worklist.push(pred);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets all loops, outer loops before the loops nested in them.
+     *
+     * @return  All loops of the control flow graph.
+     */
+    public List<Loop> getLoops() {
+        return loops;
+    }
+
+    /**
+     * Gets all loops, loops nested in another loop before the outer loop.
+     *
+     * @return  All loops of the control flow graph, innermost first.
+     */
+    public List<Loop> getLoopsInnermostFirst() {
+        final List<Loop> result = new ArrayList<>(loops);
+        Collections.reverse(result);
+        return result;
+    }
+
+    public List<Loop> getTopLevelLoops() {
+        return topLevel;
+    }
+
+    /**
+     * Gets the innermost loop containing a block.
+     *
+     * @param block  The block to look up.
+     *
+     * @return null, or the innermost loop, if the block is part of a loop.
+     */
+    public Loop getLoop(BasicBlock block) {
+        return innermost.get(block);
+    }
+}
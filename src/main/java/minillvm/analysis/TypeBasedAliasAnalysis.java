@@ -0,0 +1,302 @@
+package minillvm.analysis;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+
+/**
+ * Type-based alias analysis of the memory accesses of a program.
+ *
+ * <p>Every access is assigned an access type in a tree rooted at the scalar
+ * types int, bool and pointer. Accesses to a field of a class structure get
+ * the field of the topmost class declaring it as access type, accesses to
+ * array lengths and elements get "array length" and e.g. "int element", and
+ * the Virtual Method Table pointer of objects and the Virtual Method Table
+ * entries get their own access types. Other accesses, e.g. of stack slots,
+ * only get their scalar type. Addresses incremented as pointers or merged by
+ * phi nodes keep the access type of the addresses they are derived from, if
+ * these agree.
+ *
+ * <p>NQJ programs are type safe, so two accesses may only alias if the
+ * access type of one is an ancestor of, or equal to, the one of the other.
+ * Classes are related by their structures: a subclass structure repeats the
+ * fields of its superclass, so a field is declared by the smallest class
+ * structure with the same fields up to it. Unrelated classes with equal
+ * leading fields share access types, which is imprecise, but safe.
+ *
+ * <p>The access types are printed as LLVM TBAA metadata, see
+ * https://llvm.org/docs/LangRef.html#tbaa-metadata.
+ */
+public class TypeBasedAliasAnalysis {
+
+    /**
+     * A node of the access type tree.
+     */
+    public static class AccessType {
+        private final String name;
+        private final AccessType parent;
+
+        AccessType(String name, AccessType parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the more general access type aliasing this one.
+         *
+         * @return null, or the parent, if this is not a scalar type.
+         */
+        public AccessType getParent() {
+            return parent;
+        }
+
+        /**
+         * Checks whether this access type is equal to or an ancestor of
+         * another one.
+         *
+         * @param other  The access type to check.
+         *
+         * @return  Whether accesses of the types may alias.
+         */
+        public boolean contains(AccessType other) {
+            for (AccessType t = other; t != null; t = t.parent) {
+                if (t == this) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final List<TypeStruct> classStructs = new ArrayList<>();
+
+    /**
+     * All access types by name, parents before their children.
+     */
+    private final Map<String, AccessType> accessTypes = new LinkedHashMap<>();
+
+    /**
+     * Analyzes the structures of a program.
+     *
+     * @param prog  The program whose accesses to analyze.
+     */
+    public TypeBasedAliasAnalysis(Prog prog) {
+        for (TypeStruct struct : prog.getStructTypes()) {
+            if (isClassStruct(struct)) {
+                classStructs.add(struct);
+            }
+        }
+    }
+
+    /**
+     * Gets all access types requested so far.
+     *
+     * @return  The access types, parents before their children.
+     */
+    public Collection<AccessType> getAccessTypes() {
+        return accessTypes.values();
+    }
+
+    /**
+     * Checks whether two addresses may refer to the same memory.
+     *
+     * @param a  The address of one access.
+     * @param b  The address of another access.
+     *
+     * @return  Whether the accesses may alias.
+     */
+    public boolean mayAlias(Operand a, Operand b) {
+        final AccessType typeA = getAccessType(a);
+        final AccessType typeB = getAccessType(b);
+        return typeA == null || typeB == null || typeA.contains(typeB) || typeB.contains(typeA);
+    }
+
+    /**
+     * Gets the access type of a load or store.
+     *
+     * @param address  The address accessed.
+     *
+     * @return null, or the access type, if the accessed value is a scalar.
+     */
+    public AccessType getAccessType(Operand address) {
+        final Type addressType = address.calculateType();
+        if (!(addressType instanceof TypePointer)) {
+            return null;
+        }
+        final String scalar = getScalarName(((TypePointer) addressType).getTo());
+        if (scalar == null) {
+            return null;
+        }
+        final AccessType scalarType = getOrCreate(scalar, null);
+
+        final List<GetElementPtr> computations = new ArrayList<>();
+        if (!collectAddressComputations(address,
+                Collections.newSetFromMap(new IdentityHashMap<>()), computations)
+                || computations.isEmpty()) {
+            return scalarType;
+        }
+        AccessType result = null;
+        for (GetElementPtr gep : computations) {
+            final AccessType accessType = getAccessType(gep, scalar, scalarType);
+            if (result != null && accessType != result) {
+                return scalarType;
+            }
+            result = accessType;
+        }
+        return result;
+    }
+
+    /**
+     * Collects the address computations an address is derived from, following
+     * pointer increments "getelementptr p, k" and phi nodes, e.g. of strength
+     * reduced loops.
+     *
+     * @return  Whether the address is only derived from address computations
+     *          with struct indices.
+     */
+    private static boolean collectAddressComputations(Operand address, Set<Variable> visited,
+                                                      List<GetElementPtr> computations) {
+        if (!(address instanceof VarRef)) {
+            return false;
+        }
+        final Variable var = ((VarRef) address).getVariable();
+        if (!visited.add(var)) {
+            return true;
+        }
+        if (var.getParent() instanceof GetElementPtr) {
+            final GetElementPtr gep = (GetElementPtr) var.getParent();
+            if (gep.getIndices().size() != 1) {
+                computations.add(gep);
+                return true;
+            }
+            return collectAddressComputations(gep.getBaseAddress(), visited, computations);
+        }
+        if (!(var.getParent() instanceof PhiNode)) {
+            return false;
+        }
+        for (PhiNodeChoice choice : ((PhiNode) var.getParent()).getChoices()) {
+            if (!collectAddressComputations(choice.getValue(), visited, computations)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private AccessType getAccessType(GetElementPtr gep, String scalar, AccessType scalarType) {
+        final Type baseType = gep.getBaseAddress().calculateType();
+        final OperandList indices = gep.getIndices();
+        if (!(baseType instanceof TypePointer)
+                || !(((TypePointer) baseType).getTo() instanceof TypeStruct)
+                || indices.size() < 2 || !(indices.get(1) instanceof ConstInt)) {
+            return scalarType;
+        }
+        final TypeStruct struct = (TypeStruct) ((TypePointer) baseType).getTo();
+        final int index = ((ConstInt) indices.get(1)).getIntVal();
+
+        if (isArrayStruct(struct)) {
+            return index == 0
+                    ? getOrCreate("array length", scalarType)
+                    : getOrCreate(scalar + " element", scalarType);
+        } else if (isVtableStruct(struct)) {
+            return getOrCreate("vtable entry", scalarType);
+        } else if (!isClassStruct(struct) || indices.size() != 2) {
+            return scalarType;
+        } else if (index == 0) {
+            return getOrCreate("vtable pointer", scalarType);
+        }
+        final TypeStruct declaring = getDeclaringStruct(struct, index);
+        return getOrCreate(declaring.getName() + "." + declaring.getFields().get(index).getName(),
+                scalarType);
+    }
+
+    private AccessType getOrCreate(String name, AccessType parent) {
+        return accessTypes.computeIfAbsent(name, n -> new AccessType(n, parent));
+    }
+
+    private static String getScalarName(Type type) {
+        if (type instanceof TypeInt) {
+            return "int";
+        } else if (type instanceof TypeBool) {
+            return "bool";
+        } else if (type instanceof TypePointer || type instanceof TypeNullpointer) {
+            return "pointer";
+        }
+        return null;
+    }
+
+    /**
+     * Gets the smallest class structure with the same fields as a structure
+     * up to a field.
+     */
+    private TypeStruct getDeclaringStruct(TypeStruct struct, int index) {
+        TypeStruct result = struct;
+        for (TypeStruct candidate : classStructs) {
+            final int size = candidate.getFields().size();
+            final int resultSize = result.getFields().size();
+            if (size > index && hasEqualFields(candidate, struct, index)
+                    && (size < resultSize || size == resultSize
+                            && candidate.getName().compareTo(result.getName()) < 0)) {
+                result = candidate;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether two class structures have the same fields from the
+     * first field after the Virtual Method Table pointer up to a field.
+     */
+    private static boolean hasEqualFields(TypeStruct a, TypeStruct b, int last) {
+        for (int i = 1; i <= last; ++i) {
+            final StructField fieldA = a.getFields().get(i);
+            final StructField fieldB = b.getFields().get(i);
+            if (!fieldA.getName().equals(fieldB.getName())
+                    || !fieldA.getType().equalsType(fieldB.getType())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a structure is the structure "{i32, [0 x T]}" of an
+     * array.
+     */
+    private static boolean isArrayStruct(TypeStruct struct) {
+        final StructFieldList fields = struct.getFields();
+        return fields.size() == 2 && fields.get(0).getType() instanceof TypeInt
+                && fields.get(1).getType() instanceof TypeArray
+                && ((TypeArray) fields.get(1).getType()).getSize() == 0;
+    }
+
+    /**
+     * Checks whether a structure only contains procedures, as Virtual Method
+     * Tables do.
+     */
+    private static boolean isVtableStruct(TypeStruct struct) {
+        for (StructField field : struct.getFields()) {
+            final Type type = field.getType();
+            if (!(type instanceof TypeProc || type instanceof TypePointer
+                    && ((TypePointer) type).getTo() instanceof TypeProc)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a structure starts with a pointer to a Virtual Method
+     * Table, as class structures do.
+     */
+    private static boolean isClassStruct(TypeStruct struct) {
+        final StructFieldList fields = struct.getFields();
+        return !fields.isEmpty() && fields.get(0).getType() instanceof TypePointer
+                && ((TypePointer) fields.get(0).getType()).getTo() instanceof TypeStruct
+                && isVtableStruct((TypeStruct) ((TypePointer) fields.get(0).getType()).getTo());
+    }
+}
@@ -35,6 +35,11 @@ public class Typechecker {
                 return o.getStructType();
             }
 
+            @Override
+            public Type case_ConstZero(ConstZero o) {
+                return o.getType();
+            }
+
             @Override
             public Type case_Nullpointer(Nullpointer o) {
                 return Ast.TypeNullpointer();
@@ -0,0 +1,171 @@
+package minillvm.optimization;
+
+import minillvm.analysis.TypeBasedAliasAnalysis;
+import minillvm.ast.*;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+
+/**
+ * Answers whether memory accesses of a program may interfere.
+ *
+ * <p>Aliasing is decided by the access types of the type-based alias
+ * analysis, and by the objects addresses are derived from: distinct
+ * allocations and globals never overlap, and neither do parameters and
+ * objects allocated by the procedure. In addition, some memory is known to be
+ * immutable after its object was created.
+ */
+class AliasAnalysis {
+
+    /**
+     * The structures of constant globals, which are never written to.
+     */
+    private final Set<TypeStruct> constantStructs =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final TypeBasedAliasAnalysis typeBasedAliasAnalysis;
+
+    AliasAnalysis(Prog prog) {
+        for (Global global : prog.getGlobals()) {
+            if (global.getIsConstant() && global.getType() instanceof TypeStruct) {
+                constantStructs.add((TypeStruct) global.getType());
+            }
+        }
+        typeBasedAliasAnalysis = new TypeBasedAliasAnalysis(prog);
+    }
+
+    /**
+     * Checks whether two addresses may refer to the same memory.
+     */
+    boolean mayAlias(Operand a, Operand b) {
+        return typeBasedAliasAnalysis.mayAlias(a, b)
+                && !isDistinctObject(getObject(a), getObject(b));
+    }
+
+    /**
+     * Gets the operand an address is computed from by address computations
+     * and casts.
+     */
+    private static Operand getObject(Operand address) {
+        while (address instanceof VarRef) {
+            final Element def = ((VarRef) address).getVariable().getParent();
+            if (def instanceof GetElementPtr) {
+                address = ((GetElementPtr) def).getBaseAddress();
+            } else if (def instanceof Bitcast) {
+                address = ((Bitcast) def).getExpr();
+            } else {
+                break;
+            }
+        }
+        return address;
+    }
+
+    /**
+     * Checks whether two objects are known to be different. An allocation
+     * only refers to the object it created last, so different allocations
+     * never refer to the same object.
+     */
+    private static boolean isDistinctObject(Operand a, Operand b) {
+        if (isAllocation(a) || isAllocation(b)) {
+            return (isAllocation(a) || isArgument(a)) && (isAllocation(b) || isArgument(b))
+                    && !isSameVariable(a, b);
+        }
+        return a instanceof GlobalRef && b instanceof GlobalRef
+                && ((GlobalRef) a).getGlobal() != ((GlobalRef) b).getGlobal();
+    }
+
+    private static boolean isAllocation(Operand operand) {
+        return operand instanceof VarRef
+                && (((VarRef) operand).getVariable().getParent() instanceof Alloc
+                        || ((VarRef) operand).getVariable().getParent() instanceof Alloca);
+    }
+
+    /**
+     * Checks whether an operand existed before the procedure was called.
+     */
+    private static boolean isArgument(Operand operand) {
+        return operand instanceof GlobalRef
+                || operand instanceof VarRef
+                        && ((VarRef) operand).getVariable() instanceof Parameter;
+    }
+
+    private static boolean isSameVariable(Operand a, Operand b) {
+        return a instanceof VarRef && b instanceof VarRef
+                && ((VarRef) a).getVariable() == ((VarRef) b).getVariable();
+    }
+
+    /**
+     * Gets the index of the structure field an address points into.
+     *
+     * @return -1, or the field index, if the address is a field or an element
+     *         of an array field.
+     */
+    private static int getFieldIndex(Operand address) {
+        if (!(address instanceof VarRef)
+                || !(((VarRef) address).getVariable().getParent() instanceof GetElementPtr)) {
+            return -1;
+        }
+        final OperandList indices =
+                ((GetElementPtr) ((VarRef) address).getVariable().getParent()).getIndices();
+        if (indices.size() < 2 || !(indices.get(1) instanceof ConstInt)) {
+            return -1;
+        }
+        return ((ConstInt) indices.get(1)).getIntVal();
+    }
+
+    /**
+     * Checks whether an address is only written when its object is created:
+     * Virtual Method Tables, the Virtual Method Table pointer of objects and
+     * the length of arrays.
+     */
+    boolean isImmutable(Operand address) {
+        if (!(address instanceof VarRef)
+                || !(((VarRef) address).getVariable().getParent() instanceof GetElementPtr)) {
+            return false;
+        }
+        final GetElementPtr gep = (GetElementPtr) ((VarRef) address).getVariable().getParent();
+        final Type baseType = gep.getBaseAddress().calculateType();
+        if (!(baseType instanceof TypePointer)
+                || !(((TypePointer) baseType).getTo() instanceof TypeStruct)) {
+            return false;
+        }
+        final TypeStruct struct = (TypeStruct) ((TypePointer) baseType).getTo();
+        if (isConstantStruct(struct)) {
+            return true;
+        }
+        if (getFieldIndex(address) != 0 || gep.getIndices().size() != 2) {
+            return false;
+        }
+        final StructFieldList fields = struct.getFields();
+        final Type first = fields.get(0).getType();
+        final Type last = fields.get(fields.size() - 1).getType();
+        return first instanceof TypePointer
+                        && isConstantStruct(((TypePointer) first).getTo())
+                || fields.size() == 2 && first instanceof TypeInt
+                        && last instanceof TypeArray && ((TypeArray) last).getSize() == 0;
+    }
+
+    /**
+     * Checks whether a type is the structure of constant globals. Structures
+     * of procedures only are Virtual Method Tables, even if their global was
+     * removed as the class is never instantiated.
+     */
+    boolean isConstantStruct(Type type) {
+        if (!(type instanceof TypeStruct)) {
+            return false;
+        }
+        if (constantStructs.contains(type)) {
+            return true;
+        }
+        for (StructField field : ((TypeStruct) type).getFields()) {
+            final Type fieldType = field.getType();
+            if (!(fieldType instanceof TypeProc || fieldType instanceof TypePointer
+                    && ((TypePointer) fieldType).getTo() instanceof TypeProc)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,482 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.analysis.DominatorTree;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Removes array bounds checks that are provably redundant.
+ *
+ * <p>The translation checks every array access with a branch to a block
+ * halting with an error. The index is known to be in range if a lower bound of
+ * at least 0 and an upper bound below the array length can be derived from
+ * the branch conditions dominating the check, including earlier bounds checks,
+ * and from the structure of the index value. Induction variables are phi nodes:
+ * their bounds are derived inductively, assuming the bound of a phi node while
+ * analyzing the values flowing into it. Increments and decrements only keep a
+ * bound if they provably do not overflow.
+ *
+ * <p>Index values have to be in SSA form, so the pass is only effective after
+ * Mem2Reg.
+ */
+public class BoundsCheckElimination {
+
+    /**
+     * A relation "left &lt; right", or "left &lt;= right" if not strict.
+     */
+    private static class Fact {
+        private final Operand left;
+        private final Operand right;
+        private final boolean strict;
+
+        Fact(Operand left, Operand right, boolean strict) {
+            this.left = left;
+            this.right = right;
+            this.strict = strict;
+        }
+    }
+
+    /**
+     * The bound of a phi node that is currently being analyzed.
+     */
+    private static final long ASSUMED = Long.MAX_VALUE;
+
+    /**
+     * Limits the recursion through the definitions of values.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    private ControlFlowGraph cfg;
+    private DominatorTree domTree;
+
+    private final Map<BasicBlock, List<Fact>> blockFacts = new IdentityHashMap<>();
+    private final Set<PhiNode> lowerInProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<PhiNode> upperInProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private int checkCount;
+
+    /**
+     * Removes all redundant bounds checks of a procedure.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  The amount of removed bounds checks.
+     */
+    public int run(Proc proc) {
+        if (proc.getBasicBlocks().isEmpty()) {
+            return 0;
+        }
+        cfg = new ControlFlowGraph(proc);
+        domTree = new DominatorTree(cfg);
+
+        final Uses uses = new Uses(proc);
+        int removed = 0;
+        for (BasicBlock block : domTree.getPreorder()) {
+            final Optional<TerminatingInstruction> terminator = block.getTerminatingInstruction();
+            if (!terminator.isPresent() || !(terminator.get() instanceof Branch)) {
+                continue;
+            }
+
+            final Branch branch = (Branch) terminator.get();
+            final Operand[] check = matchBoundsCheck(branch);
+            if (check == null) {
+                continue;
+            }
+
+            ++checkCount;
+            final Operand index = check[0];
+            final Operand array = check[1];
+            final Long lower = lowerBound(index, block, 0);
+            final Long margin = lengthMargin(index, array, block, 0);
+            if (lower != null && lower >= 0 && margin != null && margin >= 1) {
+                uses.forget(branch);
+                branch.replaceBy(Jump(branch.getIfFalseLabel()));
+                Instructions.removeIfUnused(branch.getCondition(), uses);
+                ++removed;
+            }
+        }
+
+        if (removed > 0) {
+            Instructions.removeUnreachableBlocks(proc);
+        }
+        return removed;
+    }
+
+    /**
+     * Gets the amount of bounds checks found by the last run.
+     *
+     * @return  The amount of bounds checks, including the removed ones.
+     */
+    public int getCheckCount() {
+        return checkCount;
+    }
+
+    /**
+     * Matches the bounds check emitted for array accesses:
+     * "branch (index &lt; 0) or (length - 1 &lt; index), halt, continue".
+     *
+     * @return null, or the index and the array of the check, if matched.
+     */
+    private Operand[] matchBoundsCheck(Branch branch) {
+        if (!isHalting(branch.getIfTrueLabel()) || isHalting(branch.getIfFalseLabel())) {
+            return null;
+        }
+
+        final BinaryOperation outOfBounds = getBinaryOperation(branch.getCondition());
+        if (outOfBounds == null || !(outOfBounds.getOperator() instanceof Or)) {
+            return null;
+        }
+        final BinaryOperation smallerZero = getBinaryOperation(outOfBounds.getLeft());
+        final BinaryOperation greaterEqualLen = getBinaryOperation(outOfBounds.getRight());
+        if (smallerZero == null || !(smallerZero.getOperator() instanceof Slt)
+                || !isConstInt(smallerZero.getRight(), 0)
+                || greaterEqualLen == null || !(greaterEqualLen.getOperator() instanceof Slt)
+                || !sameValue(smallerZero.getLeft(), greaterEqualLen.getRight())) {
+            return null;
+        }
+        final BinaryOperation lenMinusOne = getBinaryOperation(greaterEqualLen.getLeft());
+        if (lenMinusOne == null || !(lenMinusOne.getOperator() instanceof Sub)
+                || !isConstInt(lenMinusOne.getRight(), 1)) {
+            return null;
+        }
+        final Operand array = getArrayOfLength(lenMinusOne.getLeft());
+        if (array == null) {
+            return null;
+        }
+        return new Operand[] {smallerZero.getLeft(), array};
+    }
+
+    private static boolean isHalting(BasicBlock block) {
+        for (Instruction instr : block) {
+            if (instr instanceof HaltWithError) {
+                return true;
+            }
+            if (!(instr instanceof CommentInstr)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Derives a lower bound of a value in a block.
+     *
+     * @return null, or the lower bound, if known. ASSUMED if the bound
+     *         depends on a phi node being analyzed only.
+     */
+    private Long lowerBound(Operand value, BasicBlock block, int depth) {
+        if (value instanceof ConstInt) {
+            return (long) ((ConstInt) value).getIntVal();
+        }
+        if (depth > MAX_DEPTH || !(value instanceof VarRef)) {
+            return null;
+        }
+        if (getArrayOfLength(value) != null) {
+            return 0L;
+        }
+
+        Long result = null;
+        final Element def = ((VarRef) value).getVariable().getParent();
+        if (def instanceof BinaryOperation) {
+            final BinaryOperation op = (BinaryOperation) def;
+            final Integer constant = getConstInt(op.getRight());
+            if (op.getOperator() instanceof Add && constant != null && constant >= 0
+                    && cannotOverflow(op.getLeft(), constant, block)) {
+                result = plus(lowerBound(op.getLeft(), block, depth + 1), constant);
+            } else if (op.getOperator() instanceof Sub && constant != null && constant >= 0) {
+                //
+                // Subtracting a negative constant adds, which may overflow.
+                //
+                Long bound = lowerBound(op.getLeft(), block, depth + 1);
+                if (bound != null && bound == ASSUMED) {
+                    bound = factLowerBound(op.getLeft(), block);
+                }
+                if (bound != null && bound - constant >= Integer.MIN_VALUE) {
+                    result = bound - constant;
+                }
+            }
+        } else if (def instanceof PhiNode) {
+            final PhiNode phi = (PhiNode) def;
+            if (!lowerInProgress.add(phi)) {
+                return ASSUMED;
+            }
+            result = ASSUMED;
+            for (PhiNodeChoice choice : phi.getChoices()) {
+                result = min(result, lowerBound(choice.getValue(), choice.getLabel(), depth + 1));
+            }
+            lowerInProgress.remove(phi);
+        }
+
+        return max(result, factLowerBound(value, block));
+    }
+
+    /**
+     * Derives a lower bound of a value from the facts of a block only.
+     */
+    private Long factLowerBound(Operand value, BasicBlock block) {
+        Long result = null;
+        for (Fact fact : getFacts(block)) {
+            if (!sameValue(fact.right, value)) {
+                continue;
+            }
+            final Integer constant = getConstInt(fact.left);
+            if (constant != null) {
+                result = max(result, (long) constant + (fact.strict ? 1 : 0));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether adding a non-negative constant to a value cannot
+     * overflow. Incrementing is safe if the value is known to be less than
+     * any other value.
+     */
+    private boolean cannotOverflow(Operand value, int constant, BasicBlock block) {
+        if (constant == 0) {
+            return true;
+        }
+        if (constant != 1) {
+            return false;
+        }
+        for (Fact fact : getFacts(block)) {
+            if (fact.strict && sameValue(fact.left, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Derives how much a value is at least less than or equal to the length
+     * of an array in a block, i.e. a margin m with value &lt;= length - m.
+     *
+     * @return null, or the margin, if known. ASSUMED if the margin depends on
+     *         a phi node being analyzed only.
+     */
+    private Long lengthMargin(Operand value, Operand array, BasicBlock block, int depth) {
+        if (value instanceof ConstInt && ((ConstInt) value).getIntVal() <= 0) {
+            //
+            // Array lengths are never negative.
+            //
+            return -(long) ((ConstInt) value).getIntVal();
+        }
+        if (depth > MAX_DEPTH || !(value instanceof VarRef)) {
+            return null;
+        }
+        final Operand valueArray = getArrayOfLength(value);
+        if (valueArray != null && sameValue(valueArray, array)) {
+            return 0L;
+        }
+
+        Long result = null;
+        final Element def = ((VarRef) value).getVariable().getParent();
+        if (def instanceof BinaryOperation) {
+            final BinaryOperation op = (BinaryOperation) def;
+            final Integer constant = getConstInt(op.getRight());
+            if (op.getOperator() instanceof Sub && constant != null && constant >= 0) {
+                //
+                // Subtracting must not underflow.
+                //
+                final Long bound = lowerBound(op.getLeft(), block, 0);
+                if (bound != null && bound - constant >= Integer.MIN_VALUE) {
+                    result = plus(lengthMargin(op.getLeft(), array, block, depth + 1), constant);
+                }
+            } else if (op.getOperator() instanceof Add && constant != null && constant >= 0) {
+                //
+                // A value at least the constant below the length cannot
+                // overflow when adding the constant.
+                //
+                Long margin = lengthMargin(op.getLeft(), array, block, depth + 1);
+                if (margin != null && margin == ASSUMED) {
+                    margin = factLengthMargin(op.getLeft(), array, block, depth + 1);
+                }
+                if (margin != null && margin >= constant) {
+                    result = margin - constant;
+                }
+            }
+        } else if (def instanceof PhiNode) {
+            final PhiNode phi = (PhiNode) def;
+            if (!upperInProgress.add(phi)) {
+                return ASSUMED;
+            }
+            result = ASSUMED;
+            for (PhiNodeChoice choice : phi.getChoices()) {
+                result = min(result,
+                        lengthMargin(choice.getValue(), array, choice.getLabel(), depth + 1));
+            }
+            upperInProgress.remove(phi);
+        }
+
+        return max(result, factLengthMargin(value, array, block, depth));
+    }
+
+    /**
+     * Derives the margin of a value to the length of an array from the facts
+     * of a block only.
+     */
+    private Long factLengthMargin(Operand value, Operand array, BasicBlock block, int depth) {
+        Long result = null;
+        for (Fact fact : getFacts(block)) {
+            if (sameValue(fact.left, value)) {
+                result = max(result, plus(lengthMargin(fact.right, array, block, depth + 1),
+                        fact.strict ? 1 : 0));
+            }
+        }
+        return result;
+    }
+
+    private static Long plus(Long bound, long constant) {
+        if (bound == null || bound == ASSUMED) {
+            return bound;
+        }
+        return bound + constant;
+    }
+
+    private static Long min(Long a, Long b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        return Math.min(a, b);
+    }
+
+    private static Long max(Long a, Long b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return Math.max(a, b);
+    }
+
+    /**
+     * Gets the relations known to hold in a block because of the branch
+     * conditions on the way from the entry block. Every dominator with a
+     * single predecessor can only be entered by a single branch edge.
+     */
+    private List<Fact> getFacts(BasicBlock block) {
+        final List<Fact> cached = blockFacts.get(block);
+        if (cached != null) {
+            return cached;
+        }
+
+        final List<Fact> facts = new ArrayList<>();
+        for (BasicBlock b = block; b != null; b = domTree.getImmediateDominator(b)) {
+            final List<BasicBlock> preds = cfg.getPredecessors(b);
+            if (preds.size() != 1) {
+                continue;
+            }
+            final Optional<TerminatingInstruction> terminator =
+                    preds.get(0).getTerminatingInstruction();
+            if (!terminator.isPresent() || !(terminator.get() instanceof Branch)) {
+                continue;
+            }
+            final Branch branch = (Branch) terminator.get();
+            if (branch.getIfTrueLabel() != branch.getIfFalseLabel()) {
+                addFacts(facts, branch.getCondition(), branch.getIfTrueLabel() == b);
+            }
+        }
+        blockFacts.put(block, facts);
+        return facts;
+    }
+
+    private void addFacts(List<Fact> facts, Operand condition, boolean holds) {
+        final BinaryOperation op = getBinaryOperation(condition);
+        if (op == null) {
+            return;
+        }
+
+        final Operator operator = op.getOperator();
+        if (operator instanceof Slt) {
+            facts.add(holds
+                    ? new Fact(op.getLeft(), op.getRight(), true)
+                    : new Fact(op.getRight(), op.getLeft(), false));
+        } else if (operator instanceof Eq && holds) {
+            facts.add(new Fact(op.getLeft(), op.getRight(), false));
+            facts.add(new Fact(op.getRight(), op.getLeft(), false));
+        } else if (operator instanceof Or && !holds || operator instanceof And && holds) {
+            addFacts(facts, op.getLeft(), holds);
+            addFacts(facts, op.getRight(), holds);
+        } else if (operator instanceof Xor && op.getRight() instanceof ConstBool
+                && ((ConstBool) op.getRight()).getBoolVal()) {
+            addFacts(facts, op.getLeft(), !holds);
+        }
+    }
+
+    /**
+     * Checks whether two operands always have the same value. Lengths of the
+     * same array are equal, as arrays cannot be resized.
+     */
+    private static boolean sameValue(Operand a, Operand b) {
+        if (a instanceof ConstInt && b instanceof ConstInt) {
+            return ((ConstInt) a).getIntVal() == ((ConstInt) b).getIntVal();
+        }
+        if (!(a instanceof VarRef) || !(b instanceof VarRef)) {
+            return false;
+        }
+        if (((VarRef) a).getVariable() == ((VarRef) b).getVariable()) {
+            return true;
+        }
+        final Operand arrayA = getArrayOfLength(a);
+        final Operand arrayB = getArrayOfLength(b);
+        return arrayA != null && arrayB != null && sameValue(arrayA, arrayB);
+    }
+
+    /**
+     * Gets the array whose length is loaded into a value.
+     *
+     * @return null, or the array, if the value is an array length.
+     */
+    private static Operand getArrayOfLength(Operand value) {
+        if (!(value instanceof VarRef)
+                || !(((VarRef) value).getVariable().getParent() instanceof Load)) {
+            return null;
+        }
+        final Load load = (Load) ((VarRef) value).getVariable().getParent();
+        if (!(load.getAddress() instanceof VarRef)
+                || !(((VarRef) load.getAddress()).getVariable().getParent()
+                        instanceof GetElementPtr)) {
+            return null;
+        }
+        final GetElementPtr gep =
+                (GetElementPtr) ((VarRef) load.getAddress()).getVariable().getParent();
+        if (gep.getIndices().size() != 2
+                || !isConstInt(gep.getIndices().get(0), 0)
+                || !isConstInt(gep.getIndices().get(1), 0)) {
+            return null;
+        }
+        final Type baseType = gep.getBaseAddress().calculateType();
+        if (!(baseType instanceof TypePointer)
+                || !(((TypePointer) baseType).getTo() instanceof TypeStruct)) {
+            return null;
+        }
+        final TypeStruct struct = (TypeStruct) ((TypePointer) baseType).getTo();
+        if (struct.getFields().isEmpty()
+                || !struct.getFields().get(0).getName().equals("length")) {
+            return null;
+        }
+        return gep.getBaseAddress();
+    }
+
+    private static BinaryOperation getBinaryOperation(Operand operand) {
+        if (!(operand instanceof VarRef)) {
+            return null;
+        }
+        final Element def = ((VarRef) operand).getVariable().getParent();
+        return def instanceof BinaryOperation ? (BinaryOperation) def : null;
+    }
+
+    private static Integer getConstInt(Operand operand) {
+        return operand instanceof ConstInt ? ((ConstInt) operand).getIntVal() : null;
+    }
+
+    private static boolean isConstInt(Operand operand, int value) {
+        return operand instanceof ConstInt && ((ConstInt) operand).getIntVal() == value;
+    }
+}
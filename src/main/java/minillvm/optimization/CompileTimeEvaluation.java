@@ -0,0 +1,568 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Evaluates a program at compile time and replaces main by its output.
+ *
+ * <p>NQJ programs read no input, so running main always prints the same
+ * values and ends the same way. This pass interprets the program on a model
+ * of its memory, within a budget of executed instructions and allocated
+ * bytes. If main returns or stops with an error within the budget, its body
+ * is replaced by the printed values followed by the same return or error.
+ * Otherwise, e.g. if the program runs too long or reads uninitialized
+ * memory, the program is left unchanged.
+ *
+ * <p>Memory is modeled as blocks of cells, one per stored value, at the
+ * offsets computed from the sizes of the translation: 4 bytes for integers,
+ * 1 for booleans and 8 for pointers, without padding. Stack slots are
+ * released when their procedure returns, and every printed value counts as
+ * 4 bytes, since it becomes an instruction of main.
+ */
+public class CompileTimeEvaluation {
+
+    /**
+     * The reason why a program cannot be evaluated.
+     */
+    private static class EvaluationFailure extends RuntimeException {
+        EvaluationFailure(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A block of memory, i.e. a global, a stack slot or a heap allocation.
+     */
+    private static class Memory {
+        final int size;
+        final Map<Integer, Object> cells = new HashMap<>();
+
+        Memory(int size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * The address of a byte in a block of memory, or the null pointer.
+     */
+    private static class Pointer {
+        final Memory memory;
+        final int offset;
+
+        Pointer(Memory memory, int offset) {
+            this.memory = memory;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Pointer && ((Pointer) o).memory == memory
+                    && ((Pointer) o).offset == offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(memory) * 31 + offset;
+        }
+    }
+
+    /**
+     * A byte written by a memset.
+     */
+    private static class Fill {
+        final int byteValue;
+
+        Fill(int byteValue) {
+            this.byteValue = byteValue;
+        }
+    }
+
+    /**
+     * The state of a running procedure.
+     */
+    private static class Frame {
+        final Map<Variable, Object> values = new IdentityHashMap<>();
+        BasicBlock block;
+        int index;
+        Call pendingCall;
+        int stackBytes;
+    }
+
+    private static final Pointer NULL = new Pointer(null, 0);
+
+    private final int maxSteps;
+    private final int maxMemory;
+    private final Map<Global, Pointer> globals = new IdentityHashMap<>();
+    private final List<Integer> output = new ArrayList<>();
+    private int steps;
+    private int memory;
+    private Integer exitStatus;
+    private String errorMessage;
+    private String failure;
+
+    /**
+     * Creates the pass.
+     *
+     * @param maxSteps   The maximum amount of instructions to execute.
+     * @param maxMemory  The maximum amount of bytes allocated at once.
+     */
+    public CompileTimeEvaluation(int maxSteps, int maxMemory) {
+        this.maxSteps = maxSteps;
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Evaluates a program and replaces its main procedure by the output if
+     * the evaluation ends within the budget.
+     *
+     * @param prog  The program to evaluate.
+     *
+     * @return  Whether main was replaced.
+     */
+    public boolean run(Prog prog) {
+        steps = 0;
+        memory = 0;
+        output.clear();
+        globals.clear();
+        exitStatus = null;
+        errorMessage = null;
+        failure = null;
+
+        Proc main = null;
+        for (Proc proc : prog.getProcedures()) {
+            if (proc.getName().equals("main") && !proc.getBasicBlocks().isEmpty()) {
+                main = proc;
+            }
+        }
+        if (main == null) {
+            failure = "no main procedure";
+            return false;
+        }
+        try {
+            initializeGlobals(prog);
+            evaluate(main);
+        } catch (EvaluationFailure e) {
+            failure = e.getMessage();
+            return false;
+        }
+
+        final BasicBlock block = BasicBlock();
+        block.setName("evaluated");
+        for (int value : output) {
+            block.add(Print(ConstInt(value)));
+        }
+        block.add(errorMessage != null
+                ? HaltWithError(errorMessage)
+                : ReturnExpr(ConstInt(exitStatus)));
+        main.getBasicBlocks().clear();
+        main.getBasicBlocks().add(block);
+        return true;
+    }
+
+    /**
+     * Gets the amount of instructions executed in the last run.
+     *
+     * @return  The amount of executed instructions.
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * Gets the amount of values printed in the last run.
+     *
+     * @return  The amount of printed values.
+     */
+    public int getPrints() {
+        return output.size();
+    }
+
+    /**
+     * Gets the reason why the last run did not replace main.
+     *
+     * @return null, or the reason, if main was not replaced.
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    private void initializeGlobals(Prog prog) {
+        for (Global global : prog.getGlobals()) {
+            globals.put(global, new Pointer(allocate(sizeOf(global.getType())), 0));
+        }
+        for (Global global : prog.getGlobals()) {
+            storeConst(globals.get(global), global.getType(), global.getInitialValue());
+        }
+    }
+
+    private void storeConst(Pointer address, Type type, Const value) {
+        if (value instanceof ConstZero) {
+            fill(address, 0, sizeOf(type));
+        } else if (value instanceof ConstStruct) {
+            final StructFieldList fields = ((TypeStruct) type).getFields();
+            int offset = address.offset;
+            for (int i = 0; i < fields.size(); ++i) {
+                final Type fieldType = fields.get(i).getType();
+                storeConst(new Pointer(address.memory, offset), fieldType,
+                        ((ConstStruct) value).getValues().get(i));
+                offset += sizeOf(fieldType);
+            }
+        } else {
+            store(address, type, evaluate(value, null));
+        }
+    }
+
+    /**
+     * Runs a procedure without parameters until it returns or stops with an
+     * error.
+     */
+    private void evaluate(Proc main) {
+        final Deque<Frame> stack = new ArrayDeque<>();
+        final Frame entry = new Frame();
+        enterBlock(entry, main.getBasicBlocks().get(0), null);
+        stack.push(entry);
+
+        while (true) {
+            final Frame frame = stack.peek();
+            if (frame.index >= frame.block.size()) {
+                throw new EvaluationFailure("block without terminator");
+            }
+            final Instruction instr = frame.block.get(frame.index++);
+            if (++steps > maxSteps) {
+                throw new EvaluationFailure("out of steps");
+            }
+
+            if (instr instanceof Call) {
+                final Call call = (Call) instr;
+                final Object function = evaluate(call.getFunction(), frame);
+                if (!(function instanceof Proc) || ((Proc) function).getBasicBlocks().isEmpty()) {
+                    throw new EvaluationFailure("call of an external procedure");
+                }
+                final Proc callee = (Proc) function;
+                final Frame calleeFrame = new Frame();
+                for (int i = 0; i < callee.getParameters().size(); ++i) {
+                    calleeFrame.values.put(callee.getParameters().get(i),
+                            evaluate(call.getArguments().get(i), frame));
+                }
+                frame.pendingCall = call;
+                enterBlock(calleeFrame, callee.getBasicBlocks().get(0), null);
+                stack.push(calleeFrame);
+            } else if (instr instanceof ReturnExpr || instr instanceof ReturnVoid) {
+                final Object value = instr instanceof ReturnExpr
+                        ? evaluate(((ReturnExpr) instr).getReturnValue(), frame)
+                        : null;
+                memory -= frame.stackBytes;
+                stack.pop();
+                if (stack.isEmpty()) {
+                    if (!(value instanceof Integer)) {
+                        throw new EvaluationFailure("main does not return an integer");
+                    }
+                    exitStatus = (Integer) value;
+                    return;
+                }
+                final Frame caller = stack.peek();
+                caller.values.put(caller.pendingCall.getVar(), value);
+                caller.pendingCall = null;
+            } else if (instr instanceof HaltWithError) {
+                errorMessage = ((HaltWithError) instr).getMsg();
+                return;
+            } else if (instr instanceof Jump) {
+                enterBlock(frame, ((Jump) instr).getLabel(), frame.block);
+            } else if (instr instanceof Branch) {
+                final Branch branch = (Branch) instr;
+                final boolean condition = asBool(evaluate(branch.getCondition(), frame));
+                enterBlock(frame, condition ? branch.getIfTrueLabel() : branch.getIfFalseLabel(),
+                        frame.block);
+            } else if (instr instanceof Print) {
+                output.add(asInt(evaluate(((Print) instr).getE(), frame)));
+                charge(4);
+            } else if (instr instanceof Store) {
+                final Store store = (Store) instr;
+                final Type type = ((TypePointer) store.getAddress().calculateType()).getTo();
+                store(asPointer(evaluate(store.getAddress(), frame)), type,
+                        evaluate(store.getValue(), frame));
+            } else if (instr instanceof MemSet) {
+                final MemSet memSet = (MemSet) instr;
+                fill(asPointer(evaluate(memSet.getAddress(), frame)), memSet.getByteValue(),
+                        asInt(evaluate(memSet.getSizeInBytes(), frame)));
+            } else if (instr instanceof MemCopy) {
+                final MemCopy memCopy = (MemCopy) instr;
+                copy(asPointer(evaluate(memCopy.getDestination(), frame)),
+                        asPointer(evaluate(memCopy.getSource(), frame)),
+                        asInt(evaluate(memCopy.getSizeInBytes(), frame)));
+            } else if (instr instanceof Assign && !(instr instanceof PhiNode)) {
+                frame.values.put(((Assign) instr).getVar(), evaluateAssign((Assign) instr, frame));
+            } else if (!(instr instanceof CommentInstr)) {
+                throw new EvaluationFailure("unexpected " + instr.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Continues a procedure at a block, assigning all phi nodes at once.
+     */
+    private void enterBlock(Frame frame, BasicBlock block, BasicBlock from) {
+        final Map<Variable, Object> phiValues = new IdentityHashMap<>();
+        for (PhiNode phi : block.getPhiNodes()) {
+            Object value = null;
+            for (PhiNodeChoice choice : phi.getChoices()) {
+                if (choice.getLabel() == from) {
+                    value = evaluate(choice.getValue(), frame);
+                }
+            }
+            if (value == null) {
+                throw new EvaluationFailure("phi node without value");
+            }
+            phiValues.put(phi.getVar(), value);
+        }
+        frame.values.putAll(phiValues);
+        frame.block = block;
+        frame.index = Instructions.firstNonPhiIndex(block);
+    }
+
+    private Object evaluateAssign(Assign assign, Frame frame) {
+        if (assign instanceof Alloc) {
+            final int size = asInt(evaluate(((Alloc) assign).getSizeInBytes(), frame));
+            return new Pointer(allocate(size), 0);
+        } else if (assign instanceof Alloca) {
+            final int size = sizeOf(((Alloca) assign).getType());
+            frame.stackBytes += size;
+            return new Pointer(allocate(size), 0);
+        } else if (assign instanceof BinaryOperation) {
+            final BinaryOperation op = (BinaryOperation) assign;
+            return evaluate(op.getOperator(), evaluate(op.getLeft(), frame),
+                    evaluate(op.getRight(), frame));
+        } else if (assign instanceof Bitcast) {
+            return evaluate(((Bitcast) assign).getExpr(), frame);
+        } else if (assign instanceof GetElementPtr) {
+            return evaluateGep((GetElementPtr) assign, frame);
+        } else if (assign instanceof Load) {
+            final Load load = (Load) assign;
+            final Type type = ((TypePointer) load.getAddress().calculateType()).getTo();
+            return load(asPointer(evaluate(load.getAddress(), frame)), type);
+        }
+        throw new EvaluationFailure("unexpected " + assign.getClass().getSimpleName());
+    }
+
+    private Object evaluate(Operand operand, Frame frame) {
+        if (operand instanceof ConstInt) {
+            return ((ConstInt) operand).getIntVal();
+        } else if (operand instanceof ConstBool) {
+            return ((ConstBool) operand).getBoolVal();
+        } else if (operand instanceof Nullpointer) {
+            return NULL;
+        } else if (operand instanceof GlobalRef) {
+            return globals.get(((GlobalRef) operand).getGlobal());
+        } else if (operand instanceof ProcedureRef) {
+            return ((ProcedureRef) operand).getProcedure();
+        } else if (operand instanceof Sizeof) {
+            return sizeOf(((Sizeof) operand).getStructType());
+        } else if (operand instanceof VarRef && frame != null) {
+            final Object value = frame.values.get(((VarRef) operand).getVariable());
+            if (value != null) {
+                return value;
+            }
+        }
+        throw new EvaluationFailure("no value for " + operand);
+    }
+
+    private static Object evaluate(Operator operator, Object left, Object right) {
+        if (operator instanceof Eq) {
+            return left.equals(right);
+        } else if (left instanceof Boolean && right instanceof Boolean) {
+            final boolean l = (Boolean) left;
+            final boolean r = (Boolean) right;
+            if (operator instanceof And) {
+                return l & r;
+            } else if (operator instanceof Or) {
+                return l | r;
+            } else if (operator instanceof Xor) {
+                return l ^ r;
+            }
+            throw new EvaluationFailure("unexpected boolean " + operator);
+        }
+        final int l = asInt(left);
+        final int r = asInt(right);
+        if (operator instanceof Add) {
+            return l + r;
+        } else if (operator instanceof Sub) {
+            return l - r;
+        } else if (operator instanceof Mul) {
+            return l * r;
+        } else if (operator instanceof Sdiv || operator instanceof Srem) {
+            //
+            // Both are undefined in LLVM, so leave them to the program.
+            //
+            if (r == 0 || l == Integer.MIN_VALUE && r == -1) {
+                throw new EvaluationFailure("undefined division");
+            }
+            return operator instanceof Sdiv ? l / r : l % r;
+        } else if (operator instanceof And) {
+            return l & r;
+        } else if (operator instanceof Or) {
+            return l | r;
+        } else if (operator instanceof Xor) {
+            return l ^ r;
+        } else if (operator instanceof Slt) {
+            return l < r;
+        }
+        throw new EvaluationFailure("unexpected " + operator);
+    }
+
+    /**
+     * Computes the address of an element, using the sizes of the
+     * translation.
+     */
+    private Pointer evaluateGep(GetElementPtr gep, Frame frame) {
+        final Pointer base = asPointer(evaluate(gep.getBaseAddress(), frame));
+        if (base == NULL) {
+            throw new EvaluationFailure("address computation on null");
+        }
+        final OperandList indices = gep.getIndices();
+        Type type = ((TypePointer) gep.getBaseAddress().calculateType()).getTo();
+        int offset = base.offset + asInt(evaluate(indices.get(0), frame)) * sizeOf(type);
+        for (int i = 1; i < indices.size(); ++i) {
+            final int index = asInt(evaluate(indices.get(i), frame));
+            if (type instanceof TypeStruct) {
+                final StructFieldList fields = ((TypeStruct) type).getFields();
+                for (int f = 0; f < index; ++f) {
+                    offset += sizeOf(fields.get(f).getType());
+                }
+                type = fields.get(index).getType();
+            } else if (type instanceof TypeArray) {
+                type = ((TypeArray) type).getOf();
+                offset += index * sizeOf(type);
+            } else {
+                throw new EvaluationFailure("address computation into " + type);
+            }
+        }
+        return new Pointer(base.memory, offset);
+    }
+
+    private Memory allocate(int size) {
+        if (size < 0) {
+            throw new EvaluationFailure("negative allocation");
+        }
+        charge(size);
+        return new Memory(size);
+    }
+
+    private void charge(int bytes) {
+        memory += bytes;
+        if (memory > maxMemory || memory < 0) {
+            throw new EvaluationFailure("out of memory");
+        }
+    }
+
+    private static void checkAccess(Pointer address, int size) {
+        if (address == NULL || address.offset < 0 || size < 0
+                || address.offset + size > address.memory.size) {
+            throw new EvaluationFailure("access out of bounds");
+        }
+    }
+
+    private static void store(Pointer address, Type type, Object value) {
+        final int size = sizeOf(type);
+        checkAccess(address, size);
+        for (int i = 0; i < size; ++i) {
+            address.memory.cells.remove(address.offset + i);
+        }
+        address.memory.cells.put(address.offset, value);
+    }
+
+    private static Object load(Pointer address, Type type) {
+        checkAccess(address, sizeOf(type));
+        final Object value = address.memory.cells.get(address.offset);
+        if (value instanceof Fill) {
+            final int byteValue = ((Fill) value).byteValue;
+            if (type instanceof TypeInt) {
+                return (byteValue & 0xff) * 0x01010101;
+            } else if (type instanceof TypeBool) {
+                return byteValue != 0;
+            } else if (type instanceof TypePointer && byteValue == 0) {
+                return NULL;
+            }
+        } else if (type instanceof TypeInt && value instanceof Integer
+                || type instanceof TypeBool && value instanceof Boolean
+                || type instanceof TypePointer && (value instanceof Pointer
+                        || value instanceof Proc)) {
+            return value;
+        }
+        throw new EvaluationFailure(value == null ? "uninitialized load" : "mismatched load");
+    }
+
+    private static void fill(Pointer address, int byteValue, int size) {
+        checkAccess(address, size);
+        for (int i = 0; i < size; ++i) {
+            address.memory.cells.put(address.offset + i, new Fill(byteValue));
+        }
+    }
+
+    private static void copy(Pointer destination, Pointer source, int size) {
+        checkAccess(destination, size);
+        checkAccess(source, size);
+        final Map<Integer, Object> copied = new HashMap<>();
+        for (int i = 0; i < size; ++i) {
+            final Object value = source.memory.cells.get(source.offset + i);
+            if (value != null) {
+                copied.put(i, value);
+            }
+        }
+        for (int i = 0; i < size; ++i) {
+            destination.memory.cells.remove(destination.offset + i);
+        }
+        for (Map.Entry<Integer, Object> e : copied.entrySet()) {
+            destination.memory.cells.put(destination.offset + e.getKey(), e.getValue());
+        }
+    }
+
+    private static int asInt(Object value) {
+        if (!(value instanceof Integer)) {
+            throw new EvaluationFailure("integer expected");
+        }
+        return (Integer) value;
+    }
+
+    private static boolean asBool(Object value) {
+        if (!(value instanceof Boolean)) {
+            throw new EvaluationFailure("boolean expected");
+        }
+        return (Boolean) value;
+    }
+
+    private static Pointer asPointer(Object value) {
+        if (!(value instanceof Pointer)) {
+            throw new EvaluationFailure("pointer expected");
+        }
+        return (Pointer) value;
+    }
+
+    /**
+     * Gets the size of a type as computed by the translation, without
+     * padding.
+     */
+    private static int sizeOf(Type type) {
+        if (type instanceof TypeInt) {
+            return 4;
+        } else if (type instanceof TypeBool || type instanceof TypeByte) {
+            return 1;
+        } else if (type instanceof TypePointer || type instanceof TypeNullpointer
+                || type instanceof TypeProc) {
+            return 8;
+        } else if (type instanceof TypeArray) {
+            return ((TypeArray) type).getSize() * sizeOf(((TypeArray) type).getOf());
+        } else if (type instanceof TypeStruct) {
+            int size = 0;
+            for (StructField field : ((TypeStruct) type).getFields()) {
+                size += sizeOf(field.getType());
+            }
+            return size;
+        }
+        throw new EvaluationFailure("size of " + type);
+    }
+}
@@ -0,0 +1,504 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Sparse conditional constant propagation.
+ *
+ * <p>Every SSA value starts out undefined and is lowered to a constant or to
+ * overdefined, while only the blocks reachable under the values known so far
+ * are executed: a branch on a constant condition only makes one of its edges
+ * executable, and phi nodes only merge the values of executable edges.
+ * Afterwards, constant values replace the instructions computing them,
+ * branches on constants become jumps, and blocks that are no longer reachable
+ * are removed. Phi nodes left with a single distinct value are replaced by it.
+ *
+ * <p>Divisions are only folded if they cannot trap or overflow, which the
+ * checks emitted by the translation ensure for the executed divisions.
+ */
+public class ConstantPropagation {
+
+    private enum Kind { UNDEFINED, CONSTANT, OVERDEFINED }
+
+    /**
+     * A value of the constant propagation lattice.
+     */
+    private static final class Value {
+        private static final Value UNDEFINED = new Value(Kind.UNDEFINED, null);
+        private static final Value OVERDEFINED = new Value(Kind.OVERDEFINED, null);
+
+        private final Kind kind;
+        private final Const constant;
+
+        private Value(Kind kind, Const constant) {
+            this.kind = kind;
+            this.constant = constant;
+        }
+
+        static Value of(Const constant) {
+            return new Value(Kind.CONSTANT, constant);
+        }
+
+        boolean isConstant() {
+            return kind == Kind.CONSTANT;
+        }
+
+        boolean sameAs(Value other) {
+            return kind == other.kind
+                    && (kind != Kind.CONSTANT || sameConst(constant, other.constant));
+        }
+    }
+
+    private Uses uses;
+    private final Map<Variable, Value> values = new IdentityHashMap<>();
+    private final Set<BasicBlock> executable = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<BasicBlock, List<BasicBlock>> executableEdges = new IdentityHashMap<>();
+    private final Deque<BasicBlock[]> edgeWorklist = new ArrayDeque<>();
+    private final Deque<Instruction> instrWorklist = new ArrayDeque<>();
+
+    private int foldedInstructions;
+    private int foldedBranches;
+
+    /**
+     * Propagates constants through a procedure and removes unreachable
+     * blocks.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  Whether the procedure was changed.
+     */
+    public boolean run(Proc proc) {
+        foldedInstructions = 0;
+        foldedBranches = 0;
+        values.clear();
+        executable.clear();
+        executableEdges.clear();
+        if (proc.getBasicBlocks().isEmpty()) {
+            return false;
+        }
+        uses = new Uses(proc);
+
+        final BasicBlock entry = proc.getBasicBlocks().get(0);
+        executable.add(entry);
+        for (Instruction instr : entry) {
+            visit(instr);
+        }
+        while (!edgeWorklist.isEmpty() || !instrWorklist.isEmpty()) {
+            while (!edgeWorklist.isEmpty()) {
+                final BasicBlock[] edge = edgeWorklist.pop();
+                final BasicBlock target = edge[1];
+                for (PhiNode phi : target.getPhiNodes()) {
+                    visit(phi);
+                }
+                if (executable.add(target)) {
+                    for (Instruction instr : target) {
+                        if (!(instr instanceof PhiNode)) {
+                            visit(instr);
+                        }
+                    }
+                }
+            }
+            while (!instrWorklist.isEmpty()) {
+                final Instruction instr = instrWorklist.pop();
+                if (executable.contains(Instructions.getBlock(instr))) {
+                    visit(instr);
+                }
+            }
+        }
+
+        boolean changed = resolveBranches(proc);
+        if (Instructions.removeUnreachableBlocks(proc)) {
+            uses = new Uses(proc);
+            changed = true;
+        }
+        changed |= replaceConstants(proc);
+        changed |= removeTrivialPhiNodes(proc);
+        return changed;
+    }
+
+    /**
+     * Gets the amount of instructions replaced by constants in the last run,
+     * including phi nodes with a single value.
+     *
+     * @return  The amount of removed instructions.
+     */
+    public int getFoldedInstructions() {
+        return foldedInstructions;
+    }
+
+    /**
+     * Gets the amount of branches replaced by jumps in the last run.
+     *
+     * @return  The amount of resolved branches.
+     */
+    public int getFoldedBranches() {
+        return foldedBranches;
+    }
+
+    private void visit(Instruction instr) {
+        if (instr instanceof Jump) {
+            markEdge(Instructions.getBlock(instr), ((Jump) instr).getLabel());
+        } else if (instr instanceof Branch) {
+            final Branch branch = (Branch) instr;
+            final Value condition = valueOf(branch.getCondition());
+            final BasicBlock block = Instructions.getBlock(instr);
+            if (condition.isConstant()) {
+                final boolean taken = ((ConstBool) condition.constant).getBoolVal();
+                markEdge(block, taken ? branch.getIfTrueLabel() : branch.getIfFalseLabel());
+            } else if (condition.kind == Kind.OVERDEFINED) {
+                markEdge(block, branch.getIfTrueLabel());
+                markEdge(block, branch.getIfFalseLabel());
+            }
+        } else if (instr instanceof PhiNode) {
+            setValue(((PhiNode) instr).getVar(), evaluatePhi((PhiNode) instr));
+        } else if (instr instanceof BinaryOperation) {
+            setValue(((BinaryOperation) instr).getVar(), evaluate((BinaryOperation) instr));
+        } else if (instr instanceof Bitcast) {
+            final Value expr = valueOf(((Bitcast) instr).getExpr());
+            setValue(((Bitcast) instr).getVar(),
+                    expr.isConstant() && !(expr.constant instanceof Nullpointer)
+                            ? Value.OVERDEFINED
+                            : expr);
+        } else if (instr instanceof Assign) {
+            setValue(((Assign) instr).getVar(), Value.OVERDEFINED);
+        }
+    }
+
+    private void markEdge(BasicBlock from, BasicBlock to) {
+        final List<BasicBlock> targets =
+                executableEdges.computeIfAbsent(from, b -> new ArrayList<>());
+        for (BasicBlock target : targets) {
+            if (target == to) {
+                return;
+            }
+        }
+        targets.add(to);
+        edgeWorklist.push(new BasicBlock[] {from, to});
+    }
+
+    private boolean isExecutableEdge(BasicBlock from, BasicBlock to) {
+        for (BasicBlock target : executableEdges.getOrDefault(from, Collections.emptyList())) {
+            if (target == to) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setValue(Variable var, Value value) {
+        final Value old = values.getOrDefault(var, Value.UNDEFINED);
+        //
+        // Values only ever move down the lattice.
+        //
+        if (old.sameAs(value) || old.kind == Kind.OVERDEFINED) {
+            return;
+        }
+        final Value lowered = old.isConstant() ? Value.OVERDEFINED : value;
+        values.put(var, lowered);
+        for (VarRef ref : uses.get(var)) {
+            final Instruction user = Instructions.getInstruction(ref);
+            if (user != null) {
+                instrWorklist.push(user);
+            }
+        }
+    }
+
+    private Value valueOf(Operand operand) {
+        if (operand instanceof ConstInt || operand instanceof ConstBool
+                || operand instanceof Nullpointer) {
+            return Value.of((Const) operand);
+        }
+        if (operand instanceof VarRef && ((VarRef) operand).getVariable() instanceof TemporaryVar) {
+            return values.getOrDefault(((VarRef) operand).getVariable(), Value.UNDEFINED);
+        }
+        return Value.OVERDEFINED;
+    }
+
+    private Value evaluatePhi(PhiNode phi) {
+        final BasicBlock block = Instructions.getBlock(phi);
+        Value result = Value.UNDEFINED;
+        for (PhiNodeChoice choice : phi.getChoices()) {
+            if (!isExecutableEdge(choice.getLabel(), block)) {
+                continue;
+            }
+            final Value value = valueOf(choice.getValue());
+            if (value.kind == Kind.UNDEFINED) {
+                continue;
+            }
+            if (result.kind == Kind.UNDEFINED) {
+                result = value;
+            } else if (!result.sameAs(value)) {
+                return Value.OVERDEFINED;
+            }
+        }
+        return result;
+    }
+
+    private Value evaluate(BinaryOperation op) {
+        final Value left = valueOf(op.getLeft());
+        final Value right = valueOf(op.getRight());
+        final Operator operator = op.getOperator();
+        //
+        // Absorbing operands determine the result on their own.
+        //
+        for (Value operand : List.of(left, right)) {
+            if (operand.isConstant() && isAbsorbing(operator, operand.constant)) {
+                return operand;
+            }
+        }
+        if (left.kind == Kind.UNDEFINED || right.kind == Kind.UNDEFINED) {
+            return Value.UNDEFINED;
+        }
+        if (!left.isConstant() || !right.isConstant()) {
+            return Value.OVERDEFINED;
+        }
+
+        final Const result = fold(operator, left.constant, right.constant);
+        return result == null ? Value.OVERDEFINED : Value.of(result);
+    }
+
+    private static boolean isAbsorbing(Operator operator, Const constant) {
+        if (operator instanceof And) {
+            return constant instanceof ConstBool && !((ConstBool) constant).getBoolVal()
+                    || constant instanceof ConstInt && ((ConstInt) constant).getIntVal() == 0;
+        } else if (operator instanceof Or) {
+            return constant instanceof ConstBool && ((ConstBool) constant).getBoolVal()
+                    || constant instanceof ConstInt && ((ConstInt) constant).getIntVal() == -1;
+        } else if (operator instanceof Mul) {
+            return constant instanceof ConstInt && ((ConstInt) constant).getIntVal() == 0;
+        }
+        return false;
+    }
+
+    /**
+     * Folds an operation on constants.
+     *
+     * @return null, or the result, if it can be computed at compile time.
+     */
+    private static Const fold(Operator operator, Const left, Const right) {
+        if (operator instanceof Eq) {
+            return ConstBool(sameConst(left, right));
+        }
+        if (left instanceof ConstBool && right instanceof ConstBool) {
+            final boolean l = ((ConstBool) left).getBoolVal();
+            final boolean r = ((ConstBool) right).getBoolVal();
+            if (operator instanceof And) {
+                return ConstBool(l && r);
+            } else if (operator instanceof Or) {
+                return ConstBool(l || r);
+            } else if (operator instanceof Xor) {
+                return ConstBool(l ^ r);
+            }
+            return null;
+        }
+        if (!(left instanceof ConstInt) || !(right instanceof ConstInt)) {
+            return null;
+        }
+
+        final int l = ((ConstInt) left).getIntVal();
+        final int r = ((ConstInt) right).getIntVal();
+        return operator.match(new Operator.Matcher<Const>() {
+            @Override
+            public Const case_Add(Add add) {
+                return ConstInt(l + r);
+            }
+
+            @Override
+            public Const case_Sub(Sub sub) {
+                return ConstInt(l - r);
+            }
+
+            @Override
+            public Const case_Mul(Mul mul) {
+                return ConstInt(l * r);
+            }
+
+            @Override
+            public Const case_Sdiv(Sdiv sdiv) {
+                return isSafeDivision(l, r) ? ConstInt(l / r) : null;
+            }
+
+            @Override
+            public Const case_Srem(Srem srem) {
+                return isSafeDivision(l, r) ? ConstInt(l % r) : null;
+            }
+
+            @Override
+            public Const case_And(And and) {
+                return ConstInt(l & r);
+            }
+
+            @Override
+            public Const case_Or(Or or) {
+                return ConstInt(l | r);
+            }
+
+            @Override
+            public Const case_Xor(Xor xor) {
+                return ConstInt(l ^ r);
+            }
+
+            @Override
+            public Const case_Eq(Eq eq) {
+                return ConstBool(l == r);
+            }
+
+            @Override
+            public Const case_Slt(Slt slt) {
+                return ConstBool(l < r);
+            }
+        });
+    }
+
+    /**
+     * Checks whether sdiv and srem are defined for the operands.
+     */
+    private static boolean isSafeDivision(int left, int right) {
+        return right != 0 && !(left == Integer.MIN_VALUE && right == -1);
+    }
+
+    private static boolean sameConst(Const a, Const b) {
+        if (a instanceof ConstInt && b instanceof ConstInt) {
+            return ((ConstInt) a).getIntVal() == ((ConstInt) b).getIntVal();
+        } else if (a instanceof ConstBool && b instanceof ConstBool) {
+            return ((ConstBool) a).getBoolVal() == ((ConstBool) b).getBoolVal();
+        }
+        return a instanceof Nullpointer && b instanceof Nullpointer;
+    }
+
+    /**
+     * Replaces branches on constant conditions by jumps.
+     */
+    private boolean resolveBranches(Proc proc) {
+        boolean changed = false;
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            final Optional<TerminatingInstruction> terminator = block.getTerminatingInstruction();
+            if (!executable.contains(block) || !terminator.isPresent()
+                    || !(terminator.get() instanceof Branch)) {
+                continue;
+            }
+            final Branch branch = (Branch) terminator.get();
+            final Value condition = valueOf(branch.getCondition());
+            if (!condition.isConstant()) {
+                continue;
+            }
+
+            final boolean taken = ((ConstBool) condition.constant).getBoolVal();
+            final BasicBlock target = taken ? branch.getIfTrueLabel() : branch.getIfFalseLabel();
+            final BasicBlock other = taken ? branch.getIfFalseLabel() : branch.getIfTrueLabel();
+            uses.forget(branch);
+            branch.replaceBy(Jump(target));
+            if (other != target) {
+                Instructions.removePhiChoice(other, block);
+            }
+            Instructions.removeIfUnused(branch.getCondition(), uses);
+            ++foldedBranches;
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Replaces all uses of instructions with constant values by the constant,
+     * and removes the instructions. Null pointers are not replaced, as their
+     * type is lost otherwise.
+     */
+    private boolean replaceConstants(Proc proc) {
+        boolean changed = false;
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (Instruction instr : Instructions.snapshot(block)) {
+                if (!(instr instanceof BinaryOperation || instr instanceof PhiNode)) {
+                    continue;
+                }
+                final Variable var = ((Assign) instr).getVar();
+                final Value value = values.getOrDefault(var, Value.UNDEFINED);
+                if (!value.isConstant() || value.constant instanceof Nullpointer) {
+                    continue;
+                }
+
+                uses.replaceAll(var, value.constant);
+                uses.forget(instr);
+                Instructions.remove(instr);
+                removeOperandsIfUnused(instr);
+                ++foldedInstructions;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Removes the definitions of the operands of a removed instruction that
+     * are no longer used, e.g. the unknown operand of a multiplication by 0.
+     */
+    private void removeOperandsIfUnused(Instruction instr) {
+        final List<Operand> operands = new ArrayList<>();
+        instr.accept(new Element.DefaultVisitor() {
+            @Override
+            public void visit(VarRef ref) {
+                super.visit(ref);
+                operands.add(ref);
+            }
+        });
+        for (Operand operand : operands) {
+            Instructions.removeIfUnused(operand, uses);
+        }
+    }
+
+    /**
+     * Replaces phi nodes whose choices all have the same value, apart from
+     * the phi node itself, by that value.
+     */
+    private boolean removeTrivialPhiNodes(Proc proc) {
+        boolean changed = false;
+        boolean removed = true;
+        while (removed) {
+            removed = false;
+            for (BasicBlock block : proc.getBasicBlocks()) {
+                for (PhiNode phi : block.getPhiNodes()) {
+                    final Operand value = getSingleValue(phi);
+                    if (value == null) {
+                        continue;
+                    }
+                    uses.forget(phi);
+                    Instructions.remove(phi);
+                    uses.replaceAll(phi.getVar(), value);
+                    ++foldedInstructions;
+                    removed = true;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static Operand getSingleValue(PhiNode phi) {
+        Operand result = null;
+        for (PhiNodeChoice choice : phi.getChoices()) {
+            final Operand value = choice.getValue();
+            if (value instanceof VarRef && ((VarRef) value).getVariable() == phi.getVar()) {
+                continue;
+            }
+            if (result == null) {
+                result = value;
+            } else if (!sameOperand(result, value)) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    private static boolean sameOperand(Operand a, Operand b) {
+        if (a instanceof VarRef && b instanceof VarRef) {
+            return ((VarRef) a).getVariable() == ((VarRef) b).getVariable();
+        }
+        return (a instanceof ConstInt || a instanceof ConstBool)
+                && (b instanceof ConstInt || b instanceof ConstBool)
+                && sameConst((Const) a, (Const) b);
+    }
+}
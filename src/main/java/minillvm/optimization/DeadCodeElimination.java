@@ -0,0 +1,287 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Removes dead instructions and simplifies the control flow graph.
+ *
+ * <p>The translation leaves behind comments, unreachable blocks after
+ * returns, empty blocks of if statements and temporaries that later passes
+ * made unused. This pass repeats the following steps until none of them
+ * changes the procedure:
+ * <ul>
+ *     <li>remove blocks unreachable from the entry block,</li>
+ *     <li>replace branches on constants or to a single target by
+ *         jumps,</li>
+ *     <li>redirect edges into blocks only containing a jump to the target of
+ *         the jump,</li>
+ *     <li>merge blocks with their successor if it has no other predecessor,
+ *         and</li>
+ *     <li>remove instructions without side effects whose values are not
+ *         needed by any instruction with side effects.</li>
+ * </ul>
+ * Comments are removed up front, so they do not keep blocks from being
+ * empty.
+ */
+public class DeadCodeElimination {
+
+    private int blocksBefore;
+    private int blocksAfter;
+    private int instructionsBefore;
+    private int instructionsAfter;
+
+    /**
+     * Removes dead code from a procedure.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  Whether the procedure was changed.
+     */
+    public boolean run(Proc proc) {
+        blocksBefore = proc.getBasicBlocks().size();
+        instructionsBefore = countInstructions(proc);
+        if (!proc.getBasicBlocks().isEmpty()) {
+            removeComments(proc);
+            boolean changed = true;
+            while (changed) {
+                changed = Instructions.removeUnreachableBlocks(proc);
+                changed |= simplifyBranches(proc);
+                changed |= threadJumps(proc);
+                changed |= mergeBlocks(proc);
+                changed |= removeDeadInstructions(proc);
+            }
+        }
+        blocksAfter = proc.getBasicBlocks().size();
+        instructionsAfter = countInstructions(proc);
+        return blocksAfter != blocksBefore || instructionsAfter != instructionsBefore;
+    }
+
+    public int getBlocksBefore() {
+        return blocksBefore;
+    }
+
+    public int getBlocksAfter() {
+        return blocksAfter;
+    }
+
+    public int getInstructionsBefore() {
+        return instructionsBefore;
+    }
+
+    public int getInstructionsAfter() {
+        return instructionsAfter;
+    }
+
+    private static int countInstructions(Proc proc) {
+        int count = 0;
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            count += block.size();
+        }
+        return count;
+    }
+
+    private static void removeComments(Proc proc) {
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (int i = block.size() - 1; i >= 0; --i) {
+                if (block.get(i) instanceof CommentInstr) {
+                    block.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces branches on constants and branches with equal targets by
+     * jumps.
+     */
+    private static boolean simplifyBranches(Proc proc) {
+        boolean changed = false;
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            final Optional<TerminatingInstruction> terminator = block.getTerminatingInstruction();
+            if (!terminator.isPresent() || !(terminator.get() instanceof Branch)) {
+                continue;
+            }
+            final Branch branch = (Branch) terminator.get();
+            if (branch.getCondition() instanceof ConstBool) {
+                final boolean condition = ((ConstBool) branch.getCondition()).getBoolVal();
+                final BasicBlock target =
+                        condition ? branch.getIfTrueLabel() : branch.getIfFalseLabel();
+                final BasicBlock other =
+                        condition ? branch.getIfFalseLabel() : branch.getIfTrueLabel();
+                branch.replaceBy(Jump(target));
+                if (other != target) {
+                    Instructions.removePhiChoice(other, block);
+                }
+                changed = true;
+            } else if (branch.getIfTrueLabel() == branch.getIfFalseLabel()
+                    && branch.getIfTrueLabel().getPhiNodes().isEmpty()) {
+                branch.replaceBy(Jump(branch.getIfTrueLabel()));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Redirects the edges into blocks that only jump to another block. The
+     * skipped blocks become unreachable.
+     */
+    private static boolean threadJumps(Proc proc) {
+        final ControlFlowGraph cfg = new ControlFlowGraph(proc);
+        final Set<BasicBlock> touched = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean changed = false;
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            if (block == cfg.getEntry() || block.size() != 1 || !(block.get(0) instanceof Jump)) {
+                continue;
+            }
+            final BasicBlock target = ((Jump) block.get(0)).getLabel();
+            final Set<BasicBlock> preds = identitySet(cfg.getPredecessors(block));
+            if (target == block || touched.contains(block) || touched.contains(target)
+                    || !Collections.disjoint(preds, touched)) {
+                continue;
+            }
+            final List<PhiNode> phis = target.getPhiNodes();
+            //
+            // A predecessor already jumping to the target would need two
+            // different phi node choices for the same edge.
+            //
+            if (!phis.isEmpty() && !Collections.disjoint(preds,
+                    identitySet(cfg.getPredecessors(target)))) {
+                continue;
+            }
+
+            for (BasicBlock pred : preds) {
+                Instructions.replaceTarget(pred.getTerminatingInstruction().get(), block, target);
+            }
+            for (PhiNode phi : phis) {
+                final PhiNodeChoiceList choices = phi.getChoices();
+                for (int i = 0; i < choices.size(); ++i) {
+                    if (choices.get(i).getLabel() == block) {
+                        final Operand value = choices.get(i).getValue();
+                        choices.remove(i);
+                        for (BasicBlock pred : preds) {
+                            choices.add(PhiNodeChoice(pred, value.copy()));
+                        }
+                        break;
+                    }
+                }
+            }
+            touched.add(block);
+            touched.add(target);
+            touched.addAll(preds);
+            changed = true;
+        }
+        return changed;
+    }
+
+    private static Set<BasicBlock> identitySet(Collection<BasicBlock> blocks) {
+        final Set<BasicBlock> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        set.addAll(blocks);
+        return set;
+    }
+
+    /**
+     * Appends blocks to their only predecessor if it jumps to them
+     * unconditionally.
+     */
+    private static boolean mergeBlocks(Proc proc) {
+        final ControlFlowGraph cfg = new ControlFlowGraph(proc);
+        final Set<BasicBlock> touched = Collections.newSetFromMap(new IdentityHashMap<>());
+        final BasicBlockList blocks = proc.getBasicBlocks();
+        Uses uses = null;
+        boolean changed = false;
+        for (BasicBlock block : new ArrayList<>(blocks)) {
+            final Optional<TerminatingInstruction> terminator = block.getTerminatingInstruction();
+            if (!terminator.isPresent() || !(terminator.get() instanceof Jump)) {
+                continue;
+            }
+            final BasicBlock successor = ((Jump) terminator.get()).getLabel();
+            if (successor == block || successor == cfg.getEntry()
+                    || cfg.getPredecessors(successor).size() != 1
+                    || touched.contains(block) || touched.contains(successor)) {
+                continue;
+            }
+
+            if (uses == null) {
+                uses = new Uses(proc);
+            }
+            for (PhiNode phi : successor.getPhiNodes()) {
+                uses.replaceAll(phi.getVar(), phi.getChoices().get(0).getValue());
+                uses.forget(phi);
+                Instructions.remove(phi);
+            }
+            Instructions.remove(terminator.get());
+            while (!successor.isEmpty()) {
+                final Instruction instr = successor.get(0);
+                successor.remove(0);
+                block.add(instr);
+            }
+            for (BasicBlock next : ControlFlowGraph.successorsOf(block)) {
+                Instructions.replacePhiPredecessor(next, successor, block);
+            }
+            for (int i = 0; i < blocks.size(); ++i) {
+                if (blocks.get(i) == successor) {
+                    blocks.remove(i);
+                    break;
+                }
+            }
+            touched.add(block);
+            touched.add(successor);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Removes all instructions without side effects whose values are not
+     * transitively used by an instruction with side effects.
+     */
+    private static boolean removeDeadInstructions(Proc proc) {
+        final Set<Instruction> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<Instruction> worklist = new ArrayDeque<>();
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (Instruction instr : block) {
+                if (!isRemovable(instr)) {
+                    live.add(instr);
+                    worklist.push(instr);
+                }
+            }
+        }
+
+        while (!worklist.isEmpty()) {
+            worklist.pop().accept(new Element.DefaultVisitor() {
+                @Override
+                public void visit(VarRef ref) {
+                    super.visit(ref);
+                    final Element def = ref.getVariable().getParent();
+                    if (def instanceof Instruction && live.add((Instruction) def)) {
+                        worklist.push((Instruction) def);
+                    }
+                }
+            });
+        }
+
+        boolean changed = false;
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (int i = block.size() - 1; i >= 0; --i) {
+                if (!live.contains(block.get(i))) {
+                    block.remove(i);
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isRemovable(Instruction instr) {
+        return instr instanceof BinaryOperation || instr instanceof Bitcast
+                || instr instanceof GetElementPtr || instr instanceof Load
+                || instr instanceof PhiNode || instr instanceof Alloca;
+    }
+}
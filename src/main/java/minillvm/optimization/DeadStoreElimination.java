@@ -0,0 +1,265 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+
+/**
+ * Removes stores and fills that are overwritten before they are read.
+ *
+ * <p>A store is dead if the stores overwriting it post-dominate it, that is
+ * every path from the store reaches a store to the same address, or ends the
+ * program with an error, without passing an instruction that may read the
+ * stored memory. This removes the default values stored by constructors into
+ * fields that are assigned right after the inlined constructor call. A fill
+ * by memset is dead likewise, if it is followed by a fill or copy of the same
+ * bytes, as when arrays are zero-filled on creation and then copied into.
+ *
+ * <p>Loads read memory if they may alias the address, and calls, copies,
+ * file writes and returns may read any memory. Addresses are the same if
+ * they are computed by the same operations from the same values, and none of
+ * the instructions computing the overwritten address may be executed again
+ * in between, as the address might change.
+ */
+public class DeadStoreElimination {
+
+    private final AliasAnalysis aliasAnalysis;
+
+    private int removedStores;
+    private int removedFills;
+
+    /**
+     * Creates a pass for the procedures of a program.
+     *
+     * @param prog  The program whose procedures to optimize.
+     */
+    public DeadStoreElimination(Prog prog) {
+        aliasAnalysis = new AliasAnalysis(prog);
+    }
+
+    /**
+     * Removes the dead stores and fills of a procedure.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  Whether the procedure was changed.
+     */
+    public boolean run(Proc proc) {
+        removedStores = 0;
+        removedFills = 0;
+        final List<Instruction> dead = new ArrayList<>();
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (int i = 0; i < block.size(); ++i) {
+                final Instruction instr = block.get(i);
+                if ((instr instanceof Store || instr instanceof MemSet)
+                        && isOverwritten(block, i)) {
+                    dead.add(instr);
+                }
+            }
+        }
+        //
+        // The stores overwriting a dead store may be dead as well, but then
+        // they are overwritten in turn, so all of them can be removed.
+        //
+        if (dead.isEmpty()) {
+            return false;
+        }
+        final Uses uses = new Uses(proc);
+        for (Instruction instr : dead) {
+            uses.forget(instr);
+            Instructions.remove(instr);
+            if (instr instanceof Store) {
+                Instructions.removeIfUnused(((Store) instr).getAddress(), uses);
+                ++removedStores;
+            } else {
+                Instructions.removeIfUnused(((MemSet) instr).getAddress(), uses);
+                Instructions.removeIfUnused(((MemSet) instr).getSizeInBytes(), uses);
+                ++removedFills;
+            }
+        }
+        return true;
+    }
+
+    public int getRemovedStores() {
+        return removedStores;
+    }
+
+    public int getRemovedFills() {
+        return removedFills;
+    }
+
+    /**
+     * Checks whether a store or fill is overwritten on all paths before its
+     * memory may be read.
+     *
+     * @param block  The block of the store.
+     * @param index  The index of the store in the block.
+     */
+    private boolean isOverwritten(BasicBlock block, int index) {
+        final Instruction write = block.get(index);
+        final Set<Variable> computation = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (write instanceof Store) {
+            collectComputation(((Store) write).getAddress(), computation);
+        } else {
+            collectComputation(((MemSet) write).getAddress(), computation);
+            collectComputation(((MemSet) write).getSizeInBytes(), computation);
+        }
+
+        final Set<BasicBlock> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<BasicBlock> worklist = new ArrayDeque<>();
+        BasicBlock current = block;
+        int start = index + 1;
+        while (current != null) {
+            for (int i = start; i < current.size(); ++i) {
+                final Instruction instr = current.get(i);
+                //
+                // Copies read their source before overwriting.
+                //
+                if (instr instanceof Assign
+                        && computation.contains(((Assign) instr).getVar())
+                        || mayRead(instr, write)) {
+                    return false;
+                }
+                if (overwrites(instr, write)) {
+                    break;
+                }
+                if (instr instanceof Jump || instr instanceof Branch) {
+                    //
+                    // The block of the store is visited again from its start
+                    // if it is part of a loop, reaching the store at the
+                    // latest.
+                    //
+                    for (BasicBlock successor : successorsOf(instr)) {
+                        if (visited.add(successor)) {
+                            worklist.push(successor);
+                        }
+                    }
+                }
+            }
+            current = worklist.poll();
+            start = 0;
+        }
+        return true;
+    }
+
+    private static List<BasicBlock> successorsOf(Instruction terminator) {
+        if (terminator instanceof Jump) {
+            return List.of(((Jump) terminator).getLabel());
+        }
+        final Branch branch = (Branch) terminator;
+        return List.of(branch.getIfTrueLabel(), branch.getIfFalseLabel());
+    }
+
+    /**
+     * Checks whether an instruction overwrites all memory written by a store
+     * or fill.
+     */
+    private static boolean overwrites(Instruction instr, Instruction write) {
+        if (write instanceof Store) {
+            return instr instanceof Store
+                    && isSame(((Store) instr).getAddress(), ((Store) write).getAddress());
+        }
+        final MemSet fill = (MemSet) write;
+        if (instr instanceof MemSet) {
+            return isSame(((MemSet) instr).getAddress(), fill.getAddress())
+                    && isSame(((MemSet) instr).getSizeInBytes(), fill.getSizeInBytes());
+        } else if (instr instanceof MemCopy) {
+            return isSame(((MemCopy) instr).getDestination(), fill.getAddress())
+                    && isSame(((MemCopy) instr).getSizeInBytes(), fill.getSizeInBytes());
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an instruction may read memory written by a store or
+     * fill. Errors end the program, so its memory is never read afterwards.
+     */
+    private boolean mayRead(Instruction instr, Instruction write) {
+        if (instr instanceof Call || instr instanceof WriteFile
+                || instr instanceof ReturnExpr || instr instanceof ReturnVoid) {
+            return true;
+        }
+        final Operand address = write instanceof Store
+                ? ((Store) write).getAddress() : ((MemSet) write).getAddress();
+        if (instr instanceof Load) {
+            return aliasAnalysis.mayAlias(((Load) instr).getAddress(), address);
+        } else if (instr instanceof MemCopy) {
+            return aliasAnalysis.mayAlias(((MemCopy) instr).getSource(), address);
+        }
+        return false;
+    }
+
+    /**
+     * Collects the variables computed by the operations an operand is
+     * computed by.
+     */
+    private static void collectComputation(Operand operand, Set<Variable> computation) {
+        if (!(operand instanceof VarRef)) {
+            return;
+        }
+        final Variable var = ((VarRef) operand).getVariable();
+        if (!computation.add(var)) {
+            return;
+        }
+        final Element def = var.getParent();
+        if (def instanceof GetElementPtr) {
+            collectComputation(((GetElementPtr) def).getBaseAddress(), computation);
+            for (Operand index : ((GetElementPtr) def).getIndices()) {
+                collectComputation(index, computation);
+            }
+        } else if (def instanceof Bitcast) {
+            collectComputation(((Bitcast) def).getExpr(), computation);
+        } else if (def instanceof BinaryOperation) {
+            collectComputation(((BinaryOperation) def).getLeft(), computation);
+            collectComputation(((BinaryOperation) def).getRight(), computation);
+        }
+    }
+
+    /**
+     * Checks whether two operands are computed by the same operations from
+     * the same variables and constants.
+     */
+    private static boolean isSame(Operand a, Operand b) {
+        if (a instanceof ConstInt && b instanceof ConstInt) {
+            return ((ConstInt) a).getIntVal() == ((ConstInt) b).getIntVal();
+        } else if (a instanceof GlobalRef && b instanceof GlobalRef) {
+            return ((GlobalRef) a).getGlobal() == ((GlobalRef) b).getGlobal();
+        } else if (!(a instanceof VarRef) || !(b instanceof VarRef)) {
+            return false;
+        }
+        final Variable varA = ((VarRef) a).getVariable();
+        final Variable varB = ((VarRef) b).getVariable();
+        if (varA == varB) {
+            return true;
+        }
+        final Element defA = varA.getParent();
+        final Element defB = varB.getParent();
+        if (defA instanceof GetElementPtr && defB instanceof GetElementPtr) {
+            final OperandList indicesA = ((GetElementPtr) defA).getIndices();
+            final OperandList indicesB = ((GetElementPtr) defB).getIndices();
+            if (indicesA.size() != indicesB.size() || !isSame(
+                    ((GetElementPtr) defA).getBaseAddress(),
+                    ((GetElementPtr) defB).getBaseAddress())) {
+                return false;
+            }
+            for (int i = 0; i < indicesA.size(); ++i) {
+                if (!isSame(indicesA.get(i), indicesB.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (defA instanceof Bitcast && defB instanceof Bitcast) {
+            return ((Bitcast) defA).getType().toString()
+                    .equals(((Bitcast) defB).getType().toString())
+                    && isSame(((Bitcast) defA).getExpr(), ((Bitcast) defB).getExpr());
+        } else if (defA instanceof BinaryOperation && defB instanceof BinaryOperation) {
+            final BinaryOperation opA = (BinaryOperation) defA;
+            final BinaryOperation opB = (BinaryOperation) defB;
+            return opA.getOperator().getClass() == opB.getOperator().getClass()
+                    && isSame(opA.getLeft(), opB.getLeft())
+                    && isSame(opA.getRight(), opB.getRight());
+        }
+        return false;
+    }
+}
@@ -0,0 +1,307 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Moves heap allocations that do not escape their procedure to the stack.
+ *
+ * <p>An allocation escapes if a pointer into it is stored to memory, passed
+ * to a call, returned, merged by a phi node or used in any other way than
+ * as the address of loads and stores, possibly after casts and field or
+ * element address computations. Comparisons with null are allowed and are
+ * folded to false, since stack memory is never null. Allocations of objects
+ * and of arrays with a constant size are moved to a stack slot in the entry
+ * block. Reusing a single slot for an allocation in a loop is safe, because
+ * a non-escaping pointer cannot survive an iteration without a phi node.
+ *
+ * <p>Objects whose fields are only accessed at constant indices are replaced
+ * by one stack slot per field instead, which are then promoted to SSA values
+ * by Mem2Reg.
+ *
+ * <p>Since the translation allocates objects and arrays in dedicated
+ * procedures, this pass relies on those being inlined first.
+ */
+public class EscapeAnalysis {
+
+    /**
+     * The maximum size of arrays to allocate on the stack, in bytes.
+     */
+    private static final int MAX_STACK_BYTES = 1024;
+
+    private Uses uses;
+    private BasicBlock entry;
+
+    private int stackAllocated;
+    private int scalarReplaced;
+
+    /**
+     * Moves all non-escaping allocations of a procedure to the stack.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  Whether the procedure was changed.
+     */
+    public boolean run(Proc proc) {
+        stackAllocated = 0;
+        scalarReplaced = 0;
+        if (proc.getBasicBlocks().isEmpty()) {
+            return false;
+        }
+        uses = new Uses(proc);
+        entry = proc.getBasicBlocks().get(0);
+
+        final List<Alloc> allocs = new ArrayList<>();
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (Instruction instr : block) {
+                if (instr instanceof Alloc) {
+                    allocs.add((Alloc) instr);
+                }
+            }
+        }
+
+        for (Alloc alloc : allocs) {
+            final Type type = getStackType(alloc);
+            final List<Assign> derived = new ArrayList<>();
+            final List<BinaryOperation> nullChecks = new ArrayList<>();
+            if (type == null || !collectDerived(alloc.getVar(), derived, nullChecks)) {
+                continue;
+            }
+
+            for (BinaryOperation nullCheck : nullChecks) {
+                removeNullCheck(nullCheck);
+            }
+            if (type instanceof TypeStruct && isScalarReplaceable(alloc, derived)) {
+                replaceByScalars(alloc, derived);
+                ++scalarReplaced;
+            } else {
+                moveToStack(alloc, type);
+                ++stackAllocated;
+            }
+        }
+
+        if (stackAllocated + scalarReplaced == 0) {
+            return false;
+        }
+        Instructions.removeUnreachableBlocks(proc);
+        if (scalarReplaced > 0) {
+            new Mem2Reg().run(proc);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the amount of allocations moved to a stack slot by the last run.
+     *
+     * @return  The amount of stack allocated objects and arrays.
+     */
+    public int getStackAllocated() {
+        return stackAllocated;
+    }
+
+    /**
+     * Gets the amount of objects replaced by their fields by the last run.
+     *
+     * @return  The amount of scalar replaced objects.
+     */
+    public int getScalarReplaced() {
+        return scalarReplaced;
+    }
+
+    /**
+     * Gets the type of a stack slot that can hold an allocation.
+     *
+     * @return null, or the type of the stack slot, if the allocation has a
+     *         known and small enough size.
+     */
+    private static Type getStackType(Alloc alloc) {
+        final Operand size = alloc.getSizeInBytes();
+        if (size instanceof Sizeof) {
+            return ((Sizeof) size).getStructType();
+        }
+        if (!(size instanceof ConstInt)) {
+            return null;
+        }
+        final int bytes = ((ConstInt) size).getIntVal();
+        if (bytes <= 0 || bytes > MAX_STACK_BYTES) {
+            return null;
+        }
+        //
+        // The translation computes array sizes without the padding after the
+        // length, so one extra pointer-sized, and pointer-aligned, element is
+        // reserved.
+        //
+        return TypeArray(TypePointer(TypeByte()), (bytes + 7) / 8 + 1);
+    }
+
+    /**
+     * Collects all casts and address computations based on a pointer.
+     *
+     * @return  Whether the pointer does not escape.
+     */
+    private boolean collectDerived(Variable pointer, List<Assign> derived,
+                                   List<BinaryOperation> nullChecks) {
+        for (VarRef ref : uses.get(pointer)) {
+            final Instruction user = Instructions.getInstruction(ref);
+            if (user instanceof Load) {
+                continue;
+            } else if (user instanceof Store) {
+                if (((Store) user).getAddress() != ref) {
+                    return false;
+                }
+            } else if (user instanceof BinaryOperation && isNullCheck((BinaryOperation) user)) {
+                nullChecks.add((BinaryOperation) user);
+            } else if (user instanceof Bitcast
+                    || user instanceof GetElementPtr
+                            && ((GetElementPtr) user).getBaseAddress() == ref) {
+                derived.add((Assign) user);
+                if (!collectDerived(((Assign) user).getVar(), derived, nullChecks)) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNullCheck(BinaryOperation op) {
+        return op.getOperator() instanceof Eq
+                && (op.getLeft() instanceof Nullpointer || op.getRight() instanceof Nullpointer);
+    }
+
+    /**
+     * Replaces a comparison of a stack pointer with null by false, resolving
+     * the branches on it.
+     */
+    private void removeNullCheck(BinaryOperation nullCheck) {
+        for (VarRef ref : uses.get(nullCheck.getVar())) {
+            final Instruction user = Instructions.getInstruction(ref);
+            if (user instanceof Branch && ((Branch) user).getCondition() == ref) {
+                final Branch branch = (Branch) user;
+                final BasicBlock block = Instructions.getBlock(branch);
+                uses.forget(branch);
+                branch.replaceBy(Jump(branch.getIfFalseLabel()));
+                if (branch.getIfTrueLabel() != branch.getIfFalseLabel()) {
+                    Instructions.removePhiChoice(branch.getIfTrueLabel(), block);
+                }
+            }
+        }
+        uses.replaceAll(nullCheck.getVar(), ConstBool(false));
+        uses.forget(nullCheck);
+        Instructions.remove(nullCheck);
+    }
+
+    /**
+     * Checks whether an object is only accessed through constant field
+     * addresses of its own structure type.
+     */
+    private boolean isScalarReplaceable(Alloc alloc, List<Assign> derived) {
+        final TypeStruct struct = ((Sizeof) alloc.getSizeInBytes()).getStructType();
+        if (!isOnlyUsedBy(alloc.getVar(), Bitcast.class)) {
+            return false;
+        }
+        for (Assign instr : derived) {
+            if (instr instanceof Bitcast) {
+                final Bitcast cast = (Bitcast) instr;
+                if (!isVarRefTo(cast.getExpr(), alloc.getVar())
+                        || !cast.getType().equalsType(TypePointer(struct))
+                        || !isOnlyUsedBy(cast.getVar(), GetElementPtr.class)) {
+                    return false;
+                }
+            } else {
+                final GetElementPtr gep = (GetElementPtr) instr;
+                if (!(gep.getBaseAddress() instanceof VarRef)
+                        || !(((VarRef) gep.getBaseAddress()).getVariable().getParent()
+                                instanceof Bitcast)
+                        || getFieldIndex(gep) < 0) {
+                    return false;
+                }
+                for (VarRef ref : uses.get(gep.getVar())) {
+                    final Instruction user = Instructions.getInstruction(ref);
+                    if (!(user instanceof Load || user instanceof Store)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isOnlyUsedBy(Variable var, Class<? extends Instruction> kind) {
+        for (VarRef ref : uses.get(var)) {
+            if (!kind.isInstance(Instructions.getInstruction(ref))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the field index of a field address computation "p, 0, i".
+     *
+     * @return -1, or the field index, if the indices are constant.
+     */
+    private static int getFieldIndex(GetElementPtr gep) {
+        final OperandList indices = gep.getIndices();
+        if (indices.size() != 2 || !(indices.get(0) instanceof ConstInt)
+                || ((ConstInt) indices.get(0)).getIntVal() != 0
+                || !(indices.get(1) instanceof ConstInt)) {
+            return -1;
+        }
+        return ((ConstInt) indices.get(1)).getIntVal();
+    }
+
+    private static boolean isVarRefTo(Operand operand, Variable var) {
+        return operand instanceof VarRef && ((VarRef) operand).getVariable() == var;
+    }
+
+    /**
+     * Gives every accessed field of an object its own stack slot and removes
+     * the allocation.
+     */
+    private void replaceByScalars(Alloc alloc, List<Assign> derived) {
+        final TypeStruct struct = ((Sizeof) alloc.getSizeInBytes()).getStructType();
+        final Map<Integer, TemporaryVar> fieldSlots = new HashMap<>();
+        for (Assign instr : derived) {
+            if (!(instr instanceof GetElementPtr)) {
+                continue;
+            }
+            final int index = getFieldIndex((GetElementPtr) instr);
+            final TemporaryVar slot = fieldSlots.computeIfAbsent(index, i -> {
+                final StructField field = struct.getFields().get(i);
+                final TemporaryVar var = TemporaryVar(field.getName());
+                entry.add(0, Alloca(var, field.getType()));
+                return var;
+            });
+            uses.replaceAll(instr.getVar(), VarRef(slot));
+        }
+
+        for (int i = derived.size() - 1; i >= 0; --i) {
+            uses.forget(derived.get(i));
+            Instructions.remove(derived.get(i));
+        }
+        uses.forget(alloc);
+        Instructions.remove(alloc);
+    }
+
+    /**
+     * Replaces an allocation by the address of a stack slot in the entry
+     * block.
+     */
+    private void moveToStack(Alloc alloc, Type type) {
+        final TemporaryVar slot = TemporaryVar(alloc.getVar().getName() + "_stack");
+        entry.add(0, Alloca(slot, type));
+
+        final TemporaryVar address = TemporaryVar(alloc.getVar().getName());
+        uses.replaceAll(alloc.getVar(), VarRef(address));
+        uses.forget(alloc);
+        final Bitcast cast = Bitcast(address, TypePointer(TypeByte()), VarRef(slot));
+        alloc.replaceBy(cast);
+        uses.register(cast);
+    }
+}
@@ -0,0 +1,394 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.analysis.DominatorTree;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Removes instructions recomputing a value that is already available.
+ *
+ * <p>The dominator tree is walked with a scoped table of the available
+ * values, keyed by operation and value numbers of the operands, so an
+ * instruction is replaced by an equal instruction dominating it. Pure binary
+ * operations, casts and address computations are always replaced. Loads are
+ * replaced by the result of a dominating load, or by the value of a
+ * dominating store, of the same address, if no call and no store that may
+ * alias the address lies on any path in between.
+ *
+ * <p>Conditions are known on the edges leaving a branch, so branches
+ * dominated by such an edge and testing the same condition are replaced by
+ * jumps. After unifying the conditions, this removes the repeated null and
+ * bounds checks of e.g. "a[i] = a[i] + 1".
+ */
+public class GlobalValueNumbering {
+
+    private final AliasAnalysis aliasAnalysis;
+
+    private ControlFlowGraph cfg;
+    private DominatorTree domTree;
+    private Uses uses;
+
+    private final Map<Variable, Integer> valueNumbers = new IdentityHashMap<>();
+    private final Map<Element, Integer> constNumbers = new IdentityHashMap<>();
+    /**
+     * The instructions computing available values. Loaded values are
+     * available from loads and stores.
+     */
+    private final Map<String, Instruction> available = new HashMap<>();
+    private final Map<Variable, Boolean> knownConditions = new IdentityHashMap<>();
+
+    private int removed;
+    private int removedLoads;
+    private int removedBranches;
+
+    /**
+     * Creates a pass for the procedures of a program.
+     *
+     * @param prog  The program whose procedures to optimize.
+     */
+    public GlobalValueNumbering(Prog prog) {
+        aliasAnalysis = new AliasAnalysis(prog);
+    }
+
+    /**
+     * Removes all redundant computations of a procedure.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  Whether the procedure was changed.
+     */
+    public boolean run(Proc proc) {
+        removed = 0;
+        removedLoads = 0;
+        removedBranches = 0;
+        valueNumbers.clear();
+        constNumbers.clear();
+        available.clear();
+        knownConditions.clear();
+        if (proc.getBasicBlocks().isEmpty()) {
+            return false;
+        }
+
+        cfg = new ControlFlowGraph(proc);
+        domTree = new DominatorTree(cfg);
+        uses = new Uses(proc);
+        visit(cfg.getEntry());
+
+        if (removedBranches > 0) {
+            Instructions.removeUnreachableBlocks(proc);
+        }
+        return removed + removedBranches > 0;
+    }
+
+    /**
+     * Gets the amount of instructions removed by the last run.
+     *
+     * @return  The amount of removed instructions, including loads.
+     */
+    public int getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Gets the amount of loads removed by the last run, including loads
+     * replaced by a stored value.
+     *
+     * @return  The amount of removed loads.
+     */
+    public int getRemovedLoads() {
+        return removedLoads;
+    }
+
+    /**
+     * Gets the amount of branches replaced by jumps in the last run.
+     *
+     * @return  The amount of removed branches.
+     */
+    public int getRemovedBranches() {
+        return removedBranches;
+    }
+
+    /**
+     * Numbers the values of a block and of all blocks it dominates. Table
+     * entries and known conditions added for a block are removed again when
+     * leaving its dominator subtree.
+     */
+    private void visit(BasicBlock block) {
+        final List<String> addedKeys = new ArrayList<>();
+        final List<Instruction> shadowed = new ArrayList<>();
+        final Variable condition = getKnownCondition(block);
+        final boolean addedCondition = condition != null && !knownConditions.containsKey(condition);
+        if (addedCondition) {
+            knownConditions.put(condition, isTrueEdgeTarget(block));
+        }
+
+        for (Instruction instr : Instructions.snapshot(block)) {
+            if (instr instanceof Branch) {
+                resolveBranch((Branch) instr);
+            }
+            if (instr instanceof Store && isForwardable(((Store) instr).getValue())) {
+                final String key = getLoadKey(((Store) instr).getAddress());
+                addedKeys.add(key);
+                shadowed.add(available.put(key, instr));
+                continue;
+            }
+            if (!(instr instanceof BinaryOperation || instr instanceof Bitcast
+                    || instr instanceof GetElementPtr || instr instanceof Load)) {
+                continue;
+            }
+            final Assign assign = (Assign) instr;
+            final String key = getKey(assign);
+            final Instruction leader = available.get(key);
+            if (leader != null && (!(assign instanceof Load)
+                    || !isClobbered(leader, (Load) assign))) {
+                uses.replaceAll(assign.getVar(), getValue(leader));
+                uses.forget(assign);
+                Instructions.remove(assign);
+                ++removed;
+                if (assign instanceof Load) {
+                    ++removedLoads;
+                }
+                continue;
+            }
+            //
+            // A clobbered load replaces the available one, which is restored
+            // when leaving the subtree.
+            //
+            addedKeys.add(key);
+            shadowed.add(available.put(key, assign));
+        }
+
+        for (BasicBlock child : domTree.getChildren(block)) {
+            visit(child);
+        }
+
+        for (int i = addedKeys.size() - 1; i >= 0; --i) {
+            if (shadowed.get(i) == null) {
+                available.remove(addedKeys.get(i));
+            } else {
+                available.put(addedKeys.get(i), shadowed.get(i));
+            }
+        }
+        if (addedCondition) {
+            knownConditions.remove(condition);
+        }
+    }
+
+    /**
+     * Gets the condition of the branch leading to a block, if it is the only
+     * way to reach the block.
+     */
+    private Variable getKnownCondition(BasicBlock block) {
+        final List<BasicBlock> preds = cfg.getPredecessors(block);
+        if (preds.size() != 1) {
+            return null;
+        }
+        final Optional<TerminatingInstruction> terminator =
+                preds.get(0).getTerminatingInstruction();
+        if (!terminator.isPresent() || !(terminator.get() instanceof Branch)) {
+            return null;
+        }
+        final Branch branch = (Branch) terminator.get();
+        if (branch.getIfTrueLabel() == branch.getIfFalseLabel()
+                || !(branch.getCondition() instanceof VarRef)) {
+            return null;
+        }
+        return ((VarRef) branch.getCondition()).getVariable();
+    }
+
+    private boolean isTrueEdgeTarget(BasicBlock block) {
+        final Branch branch =
+                (Branch) cfg.getPredecessors(block).get(0).getTerminatingInstruction().get();
+        return branch.getIfTrueLabel() == block;
+    }
+
+    /**
+     * Replaces a branch on a condition known from a dominating edge by a
+     * jump.
+     */
+    private void resolveBranch(Branch branch) {
+        if (!(branch.getCondition() instanceof VarRef)) {
+            return;
+        }
+        final Boolean known = knownConditions.get(((VarRef) branch.getCondition()).getVariable());
+        if (known == null) {
+            return;
+        }
+        final BasicBlock block = Instructions.getBlock(branch);
+        final BasicBlock target = known ? branch.getIfTrueLabel() : branch.getIfFalseLabel();
+        final BasicBlock other = known ? branch.getIfFalseLabel() : branch.getIfTrueLabel();
+        uses.forget(branch);
+        branch.replaceBy(Jump(target));
+        if (other != target) {
+            Instructions.removePhiChoice(other, block);
+        }
+        ++removedBranches;
+    }
+
+    /**
+     * Gets a key identifying the value computed by an instruction.
+     */
+    private String getKey(Assign instr) {
+        final StringBuilder key = new StringBuilder();
+        if (instr instanceof BinaryOperation) {
+            final BinaryOperation op = (BinaryOperation) instr;
+            String left = getKey(op.getLeft());
+            String right = getKey(op.getRight());
+            final Operator operator = op.getOperator();
+            final boolean commutative = operator instanceof Add || operator instanceof Mul
+                    || operator instanceof And || operator instanceof Or
+                    || operator instanceof Xor || operator instanceof Eq;
+            if (commutative && left.compareTo(right) > 0) {
+                final String tmp = left;
+                left = right;
+                right = tmp;
+            }
+            key.append(operator.getClass().getSimpleName()).append('(')
+                    .append(left).append(',').append(right).append(')');
+        } else if (instr instanceof Bitcast) {
+            key.append("cast(").append(((Bitcast) instr).getType()).append(',')
+                    .append(getKey(((Bitcast) instr).getExpr())).append(')');
+        } else if (instr instanceof GetElementPtr) {
+            key.append("gep(").append(getKey(((GetElementPtr) instr).getBaseAddress()));
+            for (Operand index : ((GetElementPtr) instr).getIndices()) {
+                key.append(',').append(getKey(index));
+            }
+            key.append(')');
+        } else {
+            key.append(getLoadKey(((Load) instr).getAddress()));
+        }
+        return key.toString();
+    }
+
+    private String getLoadKey(Operand address) {
+        return "load(" + getKey(address) + ")";
+    }
+
+    /**
+     * Checks whether a stored value can replace loads. Null pointers are
+     * not propagated, since their type is only known from their context.
+     */
+    private static boolean isForwardable(Operand value) {
+        return value instanceof VarRef || value instanceof ConstInt || value instanceof ConstBool;
+    }
+
+    /**
+     * Gets the value computed by an available instruction.
+     */
+    private static Operand getValue(Instruction instr) {
+        if (instr instanceof Store) {
+            return ((Store) instr).getValue();
+        }
+        return VarRef(((Assign) instr).getVar());
+    }
+
+    private String getKey(Operand operand) {
+        if (operand instanceof VarRef) {
+            final Variable var = ((VarRef) operand).getVariable();
+            return "v" + valueNumbers.computeIfAbsent(var, v -> valueNumbers.size());
+        } else if (operand instanceof ConstInt) {
+            return "i" + ((ConstInt) operand).getIntVal();
+        } else if (operand instanceof ConstBool) {
+            return "b" + ((ConstBool) operand).getBoolVal();
+        } else if (operand instanceof Nullpointer) {
+            return "null";
+        } else if (operand instanceof GlobalRef) {
+            return "g" + getConstNumber(((GlobalRef) operand).getGlobal());
+        } else if (operand instanceof ProcedureRef) {
+            return "p" + getConstNumber(((ProcedureRef) operand).getProcedure());
+        } else if (operand instanceof Sizeof) {
+            return "s" + getConstNumber(((Sizeof) operand).getStructType());
+        }
+        //
+        // Constant structures are never compared, so every one gets its own
+        // number.
+        //
+        return "c" + getConstNumber(operand);
+    }
+
+    private int getConstNumber(Element e) {
+        return constNumbers.computeIfAbsent(e, x -> constNumbers.size());
+    }
+
+    /**
+     * Checks whether memory loaded or stored by an available instruction may
+     * be written before a later load from the same address.
+     */
+    private boolean isClobbered(Instruction available, Load load) {
+        final Operand address = load.getAddress();
+        if (aliasAnalysis.isImmutable(address)) {
+            return false;
+        }
+        final BasicBlock from = Instructions.getBlock(available);
+        final BasicBlock to = Instructions.getBlock(load);
+        if (from == to) {
+            return isClobbered(from, Instructions.indexOf(from, available) + 1,
+                    Instructions.indexOf(to, load), address);
+        }
+        if (isClobbered(from, Instructions.indexOf(from, available) + 1, from.size(), address)
+                || isClobbered(to, 0, Instructions.indexOf(to, load), address)) {
+            return true;
+        }
+        for (BasicBlock block : getBlocksBetween(from, to)) {
+            if (isClobbered(block, 0, block.size(), address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isClobbered(BasicBlock block, int start, int end, Operand address) {
+        for (int i = start; i < end; ++i) {
+            final Instruction instr = block.get(i);
+            if (instr instanceof Call || instr instanceof MemSet || instr instanceof MemCopy) {
+                return true;
+            }
+            if (instr instanceof Store
+                    && aliasAnalysis.mayAlias(((Store) instr).getAddress(), address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets all blocks on paths from one block to another, without passing
+     * the first block again.
+     */
+    private Set<BasicBlock> getBlocksBetween(BasicBlock from, BasicBlock to) {
+        final Set<BasicBlock> forward = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<BasicBlock> worklist = new ArrayDeque<>();
+        for (BasicBlock successor : cfg.getSuccessors(from)) {
+            if (successor != from && forward.add(successor)) {
+                worklist.push(successor);
+            }
+        }
+        while (!worklist.isEmpty()) {
+            for (BasicBlock successor : cfg.getSuccessors(worklist.pop())) {
+                if (successor != from && forward.add(successor)) {
+                    worklist.push(successor);
+                }
+            }
+        }
+
+        final Set<BasicBlock> between = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BasicBlock pred : cfg.getPredecessors(to)) {
+            if (forward.contains(pred) && between.add(pred)) {
+                worklist.push(pred);
+            }
+        }
+        while (!worklist.isEmpty()) {
+            for (BasicBlock pred : cfg.getPredecessors(worklist.pop())) {
+                if (forward.contains(pred) && between.add(pred)) {
+                    worklist.push(pred);
+                }
+            }
+        }
+        return between;
+    }
+}
@@ -0,0 +1,283 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Inlines direct calls to small procedures.
+ *
+ * <p>A procedure is small if it has at most as many instructions as the size
+ * budget, not counting comments. The block containing a call is split after
+ * the call, a copy of the callee with fresh variables and blocks is placed in
+ * between, and the returns of the copy jump to the second half of the split
+ * block, merging returned values with a phi node. Stack slots of the callee
+ * are moved to the entry block of the caller, so inlining into loops does not
+ * grow the stack.
+ *
+ * <p>Only the calls present before a procedure is processed are inlined, so
+ * recursion cannot unfold indefinitely. Processing procedures in bottom-up
+ * order makes callees inline their own small callees first.
+ */
+public class Inliner {
+
+    private final int budget;
+
+    /**
+     * Creates an inliner.
+     *
+     * @param budget  The maximum amount of instructions of inlined procedures.
+     */
+    public Inliner(int budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Gets the procedures of a program ordered such that callees come before
+     * their callers, apart from recursive calls.
+     *
+     * @param prog  The program to inspect.
+     *
+     * @return  The procedures of the program in bottom-up order.
+     */
+    public static List<Proc> getBottomUpOrder(Prog prog) {
+        final List<Proc> order = new ArrayList<>();
+        final Set<Proc> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Proc proc : prog.getProcedures()) {
+            addPostOrder(proc, visited, order);
+        }
+        return order;
+    }
+
+    private static void addPostOrder(Proc proc, Set<Proc> visited, List<Proc> order) {
+        if (!visited.add(proc)) {
+            return;
+        }
+        for (Proc callee : getCallees(proc)) {
+            addPostOrder(callee, visited, order);
+        }
+        order.add(proc);
+    }
+
+    private static List<Proc> getCallees(Proc proc) {
+        final List<Proc> callees = new ArrayList<>();
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (Instruction instr : block) {
+                final Proc callee = getDirectCallee(instr);
+                if (callee != null) {
+                    callees.add(callee);
+                }
+            }
+        }
+        return callees;
+    }
+
+    private static Proc getDirectCallee(Instruction instr) {
+        if (!(instr instanceof Call) || !(((Call) instr).getFunction() instanceof ProcedureRef)) {
+            return null;
+        }
+        return ((ProcedureRef) ((Call) instr).getFunction()).getProcedure();
+    }
+
+    /**
+     * Inlines all direct calls to small procedures in a procedure.
+     *
+     * @param proc  The procedure to inline calls into.
+     *
+     * @return  The amount of inlined calls.
+     */
+    public int run(Proc proc) {
+        final List<Call> calls = new ArrayList<>();
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (Instruction instr : block) {
+                final Proc callee = getDirectCallee(instr);
+                if (callee != null && isInlinable(callee, proc)) {
+                    calls.add((Call) instr);
+                }
+            }
+        }
+
+        for (Call call : calls) {
+            inline(call, proc);
+        }
+        if (!calls.isEmpty()) {
+            //
+            // The rest of a block is unreachable if the callee never returns.
+            //
+            Instructions.removeUnreachableBlocks(proc);
+        }
+        return calls.size();
+    }
+
+    private boolean isInlinable(Proc callee, Proc caller) {
+        if (callee == caller || callee.getBasicBlocks().isEmpty()) {
+            return false;
+        }
+        int size = 0;
+        for (BasicBlock block : callee.getBasicBlocks()) {
+            for (Instruction instr : block) {
+                if (getDirectCallee(instr) == callee) {
+                    return false;
+                }
+                if (!(instr instanceof CommentInstr)) {
+                    ++size;
+                }
+            }
+        }
+        return size <= budget;
+    }
+
+    /**
+     * Replaces a call by a copy of the body of the called procedure.
+     */
+    private void inline(Call call, Proc caller) {
+        final Proc callee = getDirectCallee(call);
+        final BasicBlock block = Instructions.getBlock(call);
+        final BasicBlockList blocks = caller.getBasicBlocks();
+
+        //
+        // Split the block after the call. The successors of the block now
+        // get their edges from the second half.
+        //
+        final BasicBlock rest = BasicBlock();
+        rest.setName(callee.getName() + "_end");
+        final int callIndex = Instructions.indexOf(block, call);
+        while (block.size() > callIndex + 1) {
+            final Instruction instr = block.get(callIndex + 1);
+            block.remove(callIndex + 1);
+            rest.add(instr);
+        }
+        block.remove(callIndex);
+        for (BasicBlock successor : ControlFlowGraph.successorsOf(rest)) {
+            Instructions.replacePhiPredecessor(successor, block, rest);
+        }
+
+        final List<BasicBlock> body = copyBody(callee, call.getArguments());
+        block.add(Jump(body.get(0)));
+
+        //
+        // Returns jump to the rest of the split block, the result of the
+        // call is the merged return value.
+        //
+        final PhiNodeChoiceList results = PhiNodeChoiceList();
+        for (BasicBlock b : body) {
+            final Optional<TerminatingInstruction> terminator = b.getTerminatingInstruction();
+            if (!terminator.isPresent()) {
+                continue;
+            }
+            if (terminator.get() instanceof ReturnExpr) {
+                final Operand value = ((ReturnExpr) terminator.get()).getReturnValue();
+                results.add(PhiNodeChoice(b, value.copy()));
+                terminator.get().replaceBy(Jump(rest));
+            } else if (terminator.get() instanceof ReturnVoid) {
+                terminator.get().replaceBy(Jump(rest));
+            }
+        }
+
+        int index = 0;
+        while (blocks.get(index) != block) {
+            ++index;
+        }
+        ++index;
+        for (BasicBlock b : body) {
+            blocks.add(index++, b);
+        }
+        blocks.add(index, rest);
+
+        final Uses uses = new Uses(caller);
+        if (results.size() == 1) {
+            uses.replaceAll(call.getVar(), results.get(0).getValue());
+        } else if (results.size() > 1) {
+            final TemporaryVar result = TemporaryVar(call.getVar().getName());
+            rest.add(0, PhiNode(result, callee.getReturnType(), results));
+            uses.replaceAll(call.getVar(), VarRef(result));
+        }
+        moveAllocasToEntry(body, blocks.get(0));
+    }
+
+    /**
+     * Copies the blocks of a procedure, replacing parameters by arguments and
+     * all temporaries and blocks by fresh ones.
+     */
+    static List<BasicBlock> copyBody(Proc callee, OperandList arguments) {
+        final Map<BasicBlock, BasicBlock> blockCopies = new IdentityHashMap<>();
+        final Map<Variable, Variable> varCopies = new IdentityHashMap<>();
+        final List<BasicBlock> body = new ArrayList<>();
+        for (BasicBlock block : callee.getBasicBlocks()) {
+            final BasicBlock copy = BasicBlock();
+            copy.setName(callee.getName() + "_" + block.getName());
+            blockCopies.put(block, copy);
+            body.add(copy);
+            for (Instruction instr : block) {
+                final Instruction instrCopy = instr.copy();
+                if (instr instanceof Assign) {
+                    varCopies.put(((Assign) instr).getVar(), ((Assign) instrCopy).getVar());
+                }
+                copy.add(instrCopy);
+            }
+        }
+
+        final Map<Parameter, Operand> argumentOf = new IdentityHashMap<>();
+        for (int i = 0; i < arguments.size(); ++i) {
+            argumentOf.put(callee.getParameters().get(i), arguments.get(i));
+        }
+
+        final List<VarRef> refs = new ArrayList<>();
+        for (BasicBlock copy : body) {
+            copy.accept(new Element.DefaultVisitor() {
+                @Override
+                public void visit(VarRef ref) {
+                    super.visit(ref);
+                    refs.add(ref);
+                }
+
+                @Override
+                public void visit(PhiNodeChoice choice) {
+                    super.visit(choice);
+                    choice.setLabel(blockCopies.get(choice.getLabel()));
+                }
+
+                @Override
+                public void visit(Jump jump) {
+                    super.visit(jump);
+                    jump.setLabel(blockCopies.get(jump.getLabel()));
+                }
+
+                @Override
+                public void visit(Branch branch) {
+                    super.visit(branch);
+                    branch.setIfTrueLabel(blockCopies.get(branch.getIfTrueLabel()));
+                    branch.setIfFalseLabel(blockCopies.get(branch.getIfFalseLabel()));
+                }
+            });
+        }
+        for (VarRef ref : refs) {
+            final Variable var = ref.getVariable();
+            if (var instanceof Parameter) {
+                ref.replaceBy(argumentOf.get(var).copy());
+            } else if (varCopies.containsKey(var)) {
+                ref.setVariable(varCopies.get(var));
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Moves the stack slots of an inlined body to the entry block.
+     */
+    private static void moveAllocasToEntry(List<BasicBlock> body, BasicBlock entry) {
+        int index = Instructions.firstNonPhiIndex(entry);
+        for (BasicBlock block : body) {
+            for (Instruction instr : Instructions.snapshot(block)) {
+                if (instr instanceof Alloca) {
+                    Instructions.remove(instr);
+                    entry.add(index++, instr);
+                }
+            }
+        }
+    }
+}
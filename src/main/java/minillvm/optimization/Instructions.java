@@ -0,0 +1,266 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.ast.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Helpers for editing instructions and basic blocks in place.
+ *
+ * <p>AST lists may compare equal structurally, so all lookups are done by
+ * identity.
+ */
+public class Instructions {
+
+    /**
+     * Gets the basic block an instruction belongs to.
+     *
+     * @param instr  The instruction to inspect.
+     *
+     * @return null, or the block of the instruction, if it is attached to one.
+     */
+    public static BasicBlock getBlock(Instruction instr) {
+        final Element parent = instr.getParent();
+        return parent instanceof BasicBlock ? (BasicBlock) parent : null;
+    }
+
+    /**
+     * Gets the instruction an element is part of.
+     *
+     * @param e  The element to inspect.
+     *
+     * @return null, or the enclosing instruction, if existent.
+     */
+    public static Instruction getInstruction(Element e) {
+        while (e != null && !(e instanceof Instruction)) {
+            e = e.getParent();
+        }
+        return (Instruction) e;
+    }
+
+    /**
+     * Gets the position of an instruction in a basic block.
+     *
+     * @param block  The block to search.
+     * @param instr  The instruction to find.
+     *
+     * @return -1, or the index of the instruction, if it is part of the block.
+     */
+    public static int indexOf(BasicBlock block, Instruction instr) {
+        for (int i = 0; i < block.size(); ++i) {
+            if (block.get(i) == instr) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes an instruction from its basic block.
+     *
+     * @param instr  The instruction to remove.
+     */
+    public static void remove(Instruction instr) {
+        final BasicBlock block = getBlock(instr);
+        if (block == null) {
+            return;
+        }
+
+        block.remove(indexOf(block, instr));
+    }
+
+    /**
+     * Inserts an instruction directly before another one.
+     *
+     * @param anchor  The instruction to insert before.
+     * @param instr   The detached instruction to insert.
+     */
+    public static void insertBefore(Instruction anchor, Instruction instr) {
+        final BasicBlock block = getBlock(anchor);
+        block.add(indexOf(block, anchor), instr);
+    }
+
+    /**
+     * Gets the index of the first instruction after the leading phi nodes of
+     * a basic block.
+     *
+     * @param block  The block to inspect.
+     *
+     * @return  The index to insert non-phi instructions at the block start.
+     */
+    public static int firstNonPhiIndex(BasicBlock block) {
+        int i = 0;
+        while (i < block.size()
+                && (block.get(i) instanceof PhiNode || block.get(i) instanceof CommentInstr)) {
+            ++i;
+        }
+        return i;
+    }
+
+    /**
+     * Gets the index of the terminating instruction of a basic block, or the
+     * block size if there is none.
+     *
+     * @param block  The block to inspect.
+     *
+     * @return  The index to insert instructions at the block end.
+     */
+    public static int terminatorIndex(BasicBlock block) {
+        return block.getTerminatingInstruction()
+                .map(t -> indexOf(block, t))
+                .orElse(block.size());
+    }
+
+    /**
+     * Removes all blocks unreachable from the entry block of a procedure, as
+     * well as all phi node choices for edges originating from them.
+     *
+     * @param proc  The procedure to clean up.
+     *
+     * @return  Whether any block was removed.
+     */
+    public static boolean removeUnreachableBlocks(Proc proc) {
+        final ControlFlowGraph cfg = new ControlFlowGraph(proc);
+        final BasicBlockList blocks = proc.getBasicBlocks();
+        boolean changed = false;
+        for (int i = blocks.size() - 1; i >= 0; --i) {
+            if (!cfg.isReachable(blocks.get(i))) {
+                blocks.remove(i);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            for (BasicBlock block : blocks) {
+                for (PhiNode phi : block.getPhiNodes()) {
+                    removeChoices(phi, cfg);
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static void removeChoices(PhiNode phi, ControlFlowGraph cfg) {
+        final PhiNodeChoiceList choices = phi.getChoices();
+        for (int i = choices.size() - 1; i >= 0; --i) {
+            if (!cfg.isReachable(choices.get(i).getLabel())) {
+                choices.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Redirects the phi node choices of a block from one predecessor to
+     * another, e.g. after an edge has been split or moved.
+     *
+     * @param block     The block whose phi nodes to update.
+     * @param oldPred   The previous predecessor.
+     * @param newPred   The new predecessor.
+     */
+    public static void replacePhiPredecessor(BasicBlock block, BasicBlock oldPred,
+                                             BasicBlock newPred) {
+        for (PhiNode phi : block.getPhiNodes()) {
+            for (PhiNodeChoice choice : phi.getChoices()) {
+                if (choice.getLabel() == oldPred) {
+                    choice.setLabel(newPred);
+                }
+            }
+        }
+    }
+
+    /**
+     * Redirects all edges of a terminating instruction to a target block.
+     *
+     * @param terminator  The terminating instruction to update.
+     * @param oldTarget   The previous jump target.
+     * @param newTarget   The new jump target.
+     */
+    public static void replaceTarget(TerminatingInstruction terminator, BasicBlock oldTarget,
+                                     BasicBlock newTarget) {
+        if (terminator instanceof Jump) {
+            final Jump jump = (Jump) terminator;
+            if (jump.getLabel() == oldTarget) {
+                jump.setLabel(newTarget);
+            }
+        } else if (terminator instanceof Branch) {
+            final Branch branch = (Branch) terminator;
+            if (branch.getIfTrueLabel() == oldTarget) {
+                branch.setIfTrueLabel(newTarget);
+            }
+            if (branch.getIfFalseLabel() == oldTarget) {
+                branch.setIfFalseLabel(newTarget);
+            }
+        }
+    }
+
+    /**
+     * Gets a snapshot of the instructions of a block that is safe to iterate
+     * while editing the block.
+     *
+     * @param block  The block to inspect.
+     *
+     * @return  A copy of the instruction list.
+     */
+    public static List<Instruction> snapshot(BasicBlock block) {
+        return new ArrayList<>(block);
+    }
+
+    /**
+     * Removes the phi node choice of one edge from a predecessor, e.g. after
+     * the edge has been removed.
+     *
+     * @param block  The block whose phi nodes to update.
+     * @param pred   The predecessor of the removed edge.
+     */
+    public static void removePhiChoice(BasicBlock block, BasicBlock pred) {
+        for (PhiNode phi : block.getPhiNodes()) {
+            final PhiNodeChoiceList choices = phi.getChoices();
+            for (int i = 0; i < choices.size(); ++i) {
+                if (choices.get(i).getLabel() == pred) {
+                    choices.remove(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the instruction defining an operand if it is no longer used and
+     * has no side effects, and continues with the operands of the removed
+     * instruction.
+     *
+     * @param operand  The operand whose definition to remove.
+     * @param uses     The up to date uses of the procedure.
+     */
+    public static void removeIfUnused(Operand operand, Uses uses) {
+        if (!(operand instanceof VarRef)) {
+            return;
+        }
+        final Variable var = ((VarRef) operand).getVariable();
+        final Element def = var.getParent();
+        if (uses.isUsed(var)
+                || !(def instanceof BinaryOperation || def instanceof Bitcast
+                        || def instanceof GetElementPtr || def instanceof Load
+                        || def instanceof PhiNode)
+                || getBlock((Instruction) def) == null) {
+            return;
+        }
+
+        final List<Operand> operands = new ArrayList<>();
+        def.accept(new Element.DefaultVisitor() {
+            @Override
+            public void visit(VarRef ref) {
+                super.visit(ref);
+                operands.add(ref);
+            }
+        });
+        uses.forget(def);
+        remove((Instruction) def);
+        for (Operand o : operands) {
+            removeIfUnused(o, uses);
+        }
+    }
+}
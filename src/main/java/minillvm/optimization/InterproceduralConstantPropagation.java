@@ -0,0 +1,391 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Propagates constant arguments into the called procedures.
+ *
+ * <p>A parameter whose argument is the same constant at all calls of a
+ * procedure is replaced by the constant. Self-recursive calls passing the
+ * parameter on do not count. This requires all calls to be known, so
+ * procedures referenced by Virtual Method Tables or other values are only
+ * specialized, as is main.
+ *
+ * <p>Calls passing the same constants to used parameters of a procedure at
+ * several sites get a specialized copy of the procedure, without the constant
+ * parameters. Calls count for the tuple of all their constant arguments and
+ * for each single one of them, so e.g. a constant step passed with varying
+ * sizes is specialized as well. The most frequent tuples are specialized
+ * first, as long as the copies fit into the size budget. Calls within the copies
+ * passing the same constants on, e.g. recursive calls, call the copy itself.
+ *
+ * <p>Later passes like SCCP and bounds check elimination can then fold the
+ * constants within the procedures.
+ */
+public class InterproceduralConstantPropagation {
+
+    /**
+     * The amount of calls with equal constant arguments a procedure needs to
+     * be specialized.
+     */
+    private static final int MIN_SPECIALIZED_CALLS = 2;
+
+    private final int budget;
+    private final Map<Proc, Integer> propagated = new IdentityHashMap<>();
+    private final Map<Proc, Integer> specializedCalls = new IdentityHashMap<>();
+
+    /**
+     * A tuple of constant arguments of a procedure seen at several calls.
+     */
+    private static class Candidate {
+        final Proc proc;
+        final List<Operand> constants;
+        final List<Call> calls = new ArrayList<>();
+        Proc specialization;
+
+        Candidate(Proc proc, List<Operand> constants) {
+            this.proc = proc;
+            this.constants = constants;
+        }
+    }
+
+    /**
+     * Creates the pass.
+     *
+     * @param budget  The maximum amount of instructions of all specialized
+     *                copies.
+     */
+    public InterproceduralConstantPropagation(int budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Propagates constant arguments into the procedures of a program and
+     * specializes procedures for frequent constant arguments.
+     *
+     * @param prog  The program to optimize.
+     *
+     * @return  Whether the program was changed.
+     */
+    public boolean run(Prog prog) {
+        propagated.clear();
+        specializedCalls.clear();
+        final List<Proc> topDown = Inliner.getBottomUpOrder(prog);
+        Collections.reverse(topDown);
+
+        final Set<Proc> addressTaken = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Map<Proc, List<Call>> callsTo = getDirectCalls(prog, addressTaken);
+        for (Proc proc : topDown) {
+            final List<Call> calls = callsTo.get(proc);
+            if (calls != null && !addressTaken.contains(proc)
+                    && !proc.getBasicBlocks().isEmpty()) {
+                propagateArguments(proc, calls);
+            }
+        }
+
+        final List<Candidate> candidates = getCandidates(topDown);
+        final Map<Proc, List<Candidate>> specializations = new IdentityHashMap<>();
+        int remaining = budget;
+        int count = 0;
+        for (Candidate candidate : candidates) {
+            final int size = countInstructions(candidate.proc);
+            if (size > remaining) {
+                continue;
+            }
+            remaining -= size;
+            candidate.specialization = specialize(candidate, ++count);
+            prog.getProcedures().add(candidate.specialization);
+            specializations.computeIfAbsent(candidate.proc, p -> new ArrayList<>())
+                    .add(candidate);
+        }
+
+        //
+        // Redirect the calls after all copies exist, so the calls within the
+        // copies are redirected as well.
+        //
+        for (Proc proc : prog.getProcedures()) {
+            for (BasicBlock block : proc.getBasicBlocks()) {
+                for (Instruction instr : block) {
+                    final Proc callee = getDirectCallee(instr);
+                    if (callee != null && specializations.containsKey(callee)) {
+                        redirect((Call) instr, specializations.get(callee));
+                    }
+                }
+            }
+        }
+        return !propagated.isEmpty() || !specializedCalls.isEmpty();
+    }
+
+    /**
+     * Gets the amount of parameters replaced by constants in the last run.
+     *
+     * @param proc  The procedure whose parameters to count.
+     *
+     * @return  The amount of replaced parameters.
+     */
+    public int getPropagated(Proc proc) {
+        return propagated.getOrDefault(proc, 0);
+    }
+
+    /**
+     * Gets the amount of calls redirected to a specialized procedure in the
+     * last run.
+     *
+     * @param proc  The procedure whose calls to count.
+     *
+     * @return  0, or the amount of calls, if the procedure is a specialized
+     *          copy.
+     */
+    public int getSpecializedCalls(Proc proc) {
+        return specializedCalls.getOrDefault(proc, 0);
+    }
+
+    /**
+     * Gets all direct calls by called procedure, and collects the procedures
+     * referenced in any other way.
+     */
+    private static Map<Proc, List<Call>> getDirectCalls(Prog prog, Set<Proc> addressTaken) {
+        final Map<Proc, List<Call>> callsTo = new IdentityHashMap<>();
+        prog.accept(new Element.DefaultVisitor() {
+            @Override
+            public void visit(ProcedureRef ref) {
+                super.visit(ref);
+                final Element parent = ref.getParent();
+                if (parent instanceof Call && ((Call) parent).getFunction() == ref) {
+                    callsTo.computeIfAbsent(ref.getProcedure(), p -> new ArrayList<>())
+                            .add((Call) parent);
+                } else {
+                    addressTaken.add(ref.getProcedure());
+                }
+            }
+        });
+        return callsTo;
+    }
+
+    private static Proc getDirectCallee(Instruction instr) {
+        if (!(instr instanceof Call) || !(((Call) instr).getFunction() instanceof ProcedureRef)) {
+            return null;
+        }
+        return ((ProcedureRef) ((Call) instr).getFunction()).getProcedure();
+    }
+
+    /**
+     * Replaces the parameters with the same constant argument at all calls.
+     */
+    private void propagateArguments(Proc proc, List<Call> calls) {
+        Uses uses = null;
+        final ParameterList params = proc.getParameters();
+        for (int i = 0; i < params.size(); ++i) {
+            final Parameter param = params.get(i);
+            Operand constant = null;
+            for (Call call : calls) {
+                final Operand argument = call.getArguments().get(i);
+                if (argument instanceof VarRef && ((VarRef) argument).getVariable() == param) {
+                    continue;
+                }
+                if (!isConstant(argument)
+                        || constant != null && !getKey(constant).equals(getKey(argument))) {
+                    constant = null;
+                    break;
+                }
+                constant = argument;
+            }
+            if (constant == null) {
+                continue;
+            }
+            if (uses == null) {
+                uses = new Uses(proc);
+            }
+            if (uses.isUsed(param)) {
+                uses.replaceAll(param, constant);
+                propagated.merge(proc, 1, Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * Groups the calls by procedure and by the constants they pass to used
+     * parameters, and returns the groups with enough calls, most calls
+     * first. A call belongs to the group of all its constants, and to the
+     * groups of each single one.
+     */
+    private static List<Candidate> getCandidates(List<Proc> procs) {
+        final Map<Proc, Set<Parameter>> usedParams = new IdentityHashMap<>();
+        final Map<Proc, Map<String, Candidate>> byKey = new IdentityHashMap<>();
+        final List<Candidate> candidates = new ArrayList<>();
+        for (Proc proc : procs) {
+            for (BasicBlock block : proc.getBasicBlocks()) {
+                for (Instruction instr : block) {
+                    final Proc callee = getDirectCallee(instr);
+                    if (callee == null || callee.getBasicBlocks().isEmpty()) {
+                        continue;
+                    }
+                    final Set<Parameter> used = usedParams.computeIfAbsent(callee,
+                            InterproceduralConstantPropagation::getUsedParameters);
+                    final List<Operand> constants = new ArrayList<>();
+                    for (int i = 0; i < callee.getParameters().size(); ++i) {
+                        final Operand argument = ((Call) instr).getArguments().get(i);
+                        final boolean isUsed = used.contains(callee.getParameters().get(i));
+                        constants.add(isConstant(argument) && isUsed ? argument : null);
+                    }
+                    final int constantCount = countConstants(constants);
+                    if (constantCount == 0) {
+                        continue;
+                    }
+                    final List<List<Operand>> tuples = new ArrayList<>();
+                    tuples.add(constants);
+                    for (int i = 0; i < constants.size() && constantCount > 1; ++i) {
+                        if (constants.get(i) != null) {
+                            final List<Operand> single =
+                                    new ArrayList<>(Collections.nCopies(constants.size(), null));
+                            single.set(i, constants.get(i));
+                            tuples.add(single);
+                        }
+                    }
+                    for (List<Operand> tuple : tuples) {
+                        byKey.computeIfAbsent(callee, p -> new HashMap<>())
+                                .computeIfAbsent(getKey(tuple), k -> {
+                                    final Candidate c = new Candidate(callee, tuple);
+                                    candidates.add(c);
+                                    return c;
+                                })
+                                .calls.add((Call) instr);
+                    }
+                }
+            }
+        }
+
+        final List<Candidate> result = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (candidate.calls.size() >= MIN_SPECIALIZED_CALLS) {
+                result.add(candidate);
+            }
+        }
+        result.sort((a, b) -> a.calls.size() != b.calls.size()
+                ? b.calls.size() - a.calls.size()
+                : countConstants(b.constants) - countConstants(a.constants));
+        return result;
+    }
+
+    private static String getKey(List<Operand> constants) {
+        final StringBuilder key = new StringBuilder();
+        for (Operand constant : constants) {
+            key.append(constant == null ? "_" : getKey(constant)).append(',');
+        }
+        return key.toString();
+    }
+
+    private static int countConstants(List<Operand> constants) {
+        int count = 0;
+        for (Operand constant : constants) {
+            if (constant != null) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static Set<Parameter> getUsedParameters(Proc proc) {
+        final Set<Parameter> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        proc.accept(new Element.DefaultVisitor() {
+            @Override
+            public void visit(VarRef ref) {
+                super.visit(ref);
+                if (ref.getVariable() instanceof Parameter) {
+                    used.add((Parameter) ref.getVariable());
+                }
+            }
+        });
+        return used;
+    }
+
+    private static boolean isConstant(Operand operand) {
+        return operand instanceof ConstInt || operand instanceof ConstBool;
+    }
+
+    private static String getKey(Operand constant) {
+        if (constant instanceof ConstInt) {
+            return Integer.toString(((ConstInt) constant).getIntVal());
+        }
+        return Boolean.toString(((ConstBool) constant).getBoolVal());
+    }
+
+    private static int countInstructions(Proc proc) {
+        int size = 0;
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (Instruction instr : block) {
+                if (!(instr instanceof CommentInstr)) {
+                    ++size;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Copies a procedure, replacing the constant parameters of a candidate by
+     * the constants.
+     */
+    private static Proc specialize(Candidate candidate, int number) {
+        final Proc proc = candidate.proc;
+        final ParameterList params = ParameterList();
+        final OperandList arguments = OperandList();
+        for (int i = 0; i < proc.getParameters().size(); ++i) {
+            final Parameter param = proc.getParameters().get(i);
+            final Operand constant = candidate.constants.get(i);
+            if (constant != null) {
+                arguments.add(constant.copy());
+            } else {
+                final Parameter copy = Parameter(param.getType(), param.getName());
+                params.add(copy);
+                arguments.add(VarRef(copy));
+            }
+        }
+        //
+        // The dot cannot occur in NQJ names, so the name is unique.
+        //
+        final Proc specialization = Proc(proc.getName() + ".spec" + number,
+                proc.getReturnType(), params, BasicBlockList());
+        for (BasicBlock block : Inliner.copyBody(proc, arguments)) {
+            specialization.getBasicBlocks().add(block);
+        }
+        return specialization;
+    }
+
+    /**
+     * Lets a call call the specialization for its constant arguments, if
+     * there is one.
+     */
+    private void redirect(Call call, List<Candidate> candidates) {
+        final OperandList arguments = call.getArguments();
+        for (Candidate candidate : candidates) {
+            if (!matches(arguments, candidate.constants)) {
+                continue;
+            }
+            for (int i = arguments.size() - 1; i >= 0; --i) {
+                if (candidate.constants.get(i) != null) {
+                    arguments.remove(i);
+                }
+            }
+            call.setFunction(ProcedureRef(candidate.specialization));
+            specializedCalls.merge(candidate.specialization, 1, Integer::sum);
+            return;
+        }
+    }
+
+    private static boolean matches(OperandList arguments, List<Operand> constants) {
+        for (int i = 0; i < arguments.size(); ++i) {
+            final Operand constant = constants.get(i);
+            if (constant != null && !(isConstant(arguments.get(i))
+                    && getKey(arguments.get(i)).equals(getKey(constant)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
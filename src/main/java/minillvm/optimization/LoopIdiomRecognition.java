@@ -0,0 +1,331 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.analysis.DominatorTree;
+import minillvm.analysis.LoopNest;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Replaces loops filling or copying arrays element by element by calls to
+ * the memset and memcpy intrinsics.
+ *
+ * <p>Recognized loops consist of a header testing "i &lt; n" for an
+ * induction variable i starting at s and a body incrementing it by one,
+ * with one of the following stores to the elements of invariant arrays:
+ * <ul>
+ *     <li>"a[i] = c" for a constant c whose bytes are all equal, e.g. the
+ *         zero-initialization of new arrays, or</li>
+ *     <li>"a[i] = b[i]" for arrays of the same element type.</li>
+ * </ul>
+ * The body is then only entered if s &lt; n, and writes the n - s elements
+ * starting at s at once before leaving the loop. Since two arrays either are
+ * the same or do not overlap at all, memcpy is safe for copies.
+ *
+ * <p>Element accesses of user code are only recognized after their bounds
+ * checks were removed.
+ */
+public class LoopIdiomRecognition {
+
+    private Uses uses;
+    private int fills;
+    private int copies;
+
+    /**
+     * Replaces all fill and copy loops of a procedure.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  Whether the procedure was changed.
+     */
+    public boolean run(Proc proc) {
+        fills = 0;
+        copies = 0;
+        if (proc.getBasicBlocks().isEmpty()) {
+            return false;
+        }
+        final ControlFlowGraph cfg = new ControlFlowGraph(proc);
+        final LoopNest loopNest = new LoopNest(new DominatorTree(cfg));
+        uses = new Uses(proc);
+        for (LoopNest.Loop loop : loopNest.getLoops()) {
+            if (loop.getBlocks().size() == 2 && loop.getLatches().size() == 1) {
+                replaceLoop(loop, cfg);
+            }
+        }
+        if (fills + copies == 0) {
+            return false;
+        }
+        Instructions.removeUnreachableBlocks(proc);
+        return true;
+    }
+
+    /**
+     * Gets the amount of loops replaced by memset in the last run.
+     *
+     * @return  The amount of replaced fill loops.
+     */
+    public int getFills() {
+        return fills;
+    }
+
+    /**
+     * Gets the amount of loops replaced by memcpy in the last run.
+     *
+     * @return  The amount of replaced copy loops.
+     */
+    public int getCopies() {
+        return copies;
+    }
+
+    private void replaceLoop(LoopNest.Loop loop, ControlFlowGraph cfg) {
+        final BasicBlock header = loop.getHeader();
+        final BasicBlock body = loop.getLatches().get(0);
+        if (body == header || cfg.getPredecessors(body).size() != 1) {
+            return;
+        }
+
+        //
+        // The header: "i = phi [s, outside], [next, body]; c = i < n;
+        // branch c, body, exit".
+        //
+        final List<Instruction> headerInstrs = withoutComments(header);
+        if (headerInstrs.size() != 3 || !(headerInstrs.get(0) instanceof PhiNode)
+                || !(headerInstrs.get(1) instanceof BinaryOperation)
+                || !(headerInstrs.get(2) instanceof Branch)) {
+            return;
+        }
+        final PhiNode phi = (PhiNode) headerInstrs.get(0);
+        final BinaryOperation condition = (BinaryOperation) headerInstrs.get(1);
+        final Branch branch = (Branch) headerInstrs.get(2);
+        if (phi.getChoices().size() != 2 || !(condition.getOperator() instanceof Slt)
+                || !isVarRefTo(condition.getLeft(), phi.getVar())
+                || !isInvariant(condition.getRight(), loop)
+                || !isVarRefTo(branch.getCondition(), condition.getVar())
+                || branch.getIfTrueLabel() != body || loop.contains(branch.getIfFalseLabel())) {
+            return;
+        }
+        final BasicBlock exit = branch.getIfFalseLabel();
+        final boolean nextFirst = phi.getChoices().get(0).getLabel() == body;
+        final PhiNodeChoice next = phi.getChoices().get(nextFirst ? 0 : 1);
+        final PhiNodeChoice start = phi.getChoices().get(nextFirst ? 1 : 0);
+        if (start.getLabel() == body || next.getLabel() != body
+                || !isInvariant(start.getValue(), loop)) {
+            return;
+        }
+
+        //
+        // The body: element address computations, at most one load, one
+        // store, the increment and the jump back.
+        //
+        Store store = null;
+        Load load = null;
+        BinaryOperation increment = null;
+        for (Instruction instr : withoutComments(body)) {
+            if (instr instanceof Store && store == null) {
+                store = (Store) instr;
+            } else if (instr instanceof Load && load == null) {
+                load = (Load) instr;
+            } else if (instr instanceof BinaryOperation && increment == null) {
+                increment = (BinaryOperation) instr;
+            } else if (!(instr instanceof GetElementPtr || instr instanceof Jump)) {
+                return;
+            }
+        }
+        if (store == null || increment == null || !isIncrement(increment, phi.getVar())
+                || !isVarRefTo(next.getValue(), increment.getVar())) {
+            return;
+        }
+        final Operand destination = getElementArray(store.getAddress(), phi.getVar(), loop);
+        if (destination == null) {
+            return;
+        }
+        final Operand source;
+        final int byteValue;
+        if (load == null) {
+            source = null;
+            byteValue = getByteValue(store.getValue());
+            if (byteValue == Integer.MIN_VALUE) {
+                return;
+            }
+        } else {
+            source = getElementArray(load.getAddress(), phi.getVar(), loop);
+            byteValue = 0;
+            if (source == null || !isVarRefTo(store.getValue(), load.getVar())
+                    || !load.getAddress().calculateType()
+                            .equalsType(store.getAddress().calculateType())) {
+                return;
+            }
+        }
+        if (!isOnlyUsedIn(phi.getVar(), loop) || !isOnlyUsedIn(increment.getVar(), loop)
+                || !isOnlyUsedIn(condition.getVar(), loop)
+                || load != null && !isOnlyUsedIn(load.getVar(), loop)) {
+            return;
+        }
+        for (Instruction instr : body) {
+            if (instr instanceof GetElementPtr
+                    && !isOnlyUsedIn(((GetElementPtr) instr).getVar(), loop)) {
+                return;
+            }
+        }
+        final List<PhiNode> exitPhis = exit.getPhiNodes();
+        for (PhiNode exitPhi : exitPhis) {
+            for (PhiNodeChoice choice : exitPhi.getChoices()) {
+                if (choice.getLabel() == header && !isInvariant(choice.getValue(), loop)) {
+                    return;
+                }
+            }
+        }
+
+        final int elementSize =
+                getElementSize(((TypePointer) store.getAddress().calculateType()).getTo());
+        for (Instruction instr : Instructions.snapshot(body)) {
+            uses.forget(instr);
+            Instructions.remove(instr);
+        }
+        final TemporaryVar count = TemporaryVar("count");
+        body.add(BinaryOperation(count, condition.getRight().copy(), Sub(), VarRef(phi.getVar())));
+        final TemporaryVar bytes = TemporaryVar("bytes");
+        body.add(BinaryOperation(bytes, VarRef(count), Mul(), ConstInt(elementSize)));
+        final Operand destinationBytes = addElementBytes(body, destination, phi.getVar());
+        if (source == null) {
+            body.add(MemSet(destinationBytes, byteValue, VarRef(bytes)));
+            ++fills;
+        } else {
+            final Operand sourceBytes = addElementBytes(body, source, phi.getVar());
+            body.add(MemCopy(destinationBytes, sourceBytes, VarRef(bytes)));
+            ++copies;
+        }
+        body.add(Jump(exit));
+        for (Instruction instr : body) {
+            uses.register(instr);
+        }
+
+        Instructions.removePhiChoice(header, body);
+        for (PhiNode exitPhi : exitPhis) {
+            for (PhiNodeChoice choice : exitPhi.getChoices()) {
+                if (choice.getLabel() == header) {
+                    exitPhi.getChoices().add(PhiNodeChoice(body, choice.getValue().copy()));
+                    break;
+                }
+            }
+        }
+    }
+
+    private static List<Instruction> withoutComments(BasicBlock block) {
+        final List<Instruction> result = new ArrayList<>();
+        for (Instruction instr : block) {
+            if (!(instr instanceof CommentInstr)) {
+                result.add(instr);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isVarRefTo(Operand operand, Variable var) {
+        return operand instanceof VarRef && ((VarRef) operand).getVariable() == var;
+    }
+
+    private static boolean isInvariant(Operand operand, LoopNest.Loop loop) {
+        if (!(operand instanceof VarRef)) {
+            return true;
+        }
+        final Element def = ((VarRef) operand).getVariable().getParent();
+        return !(def instanceof Instruction)
+                || !loop.contains(Instructions.getBlock((Instruction) def));
+    }
+
+    private static boolean isIncrement(BinaryOperation op, Variable var) {
+        return op.getOperator() instanceof Add
+                && (isVarRefTo(op.getLeft(), var) && isOne(op.getRight())
+                        || isVarRefTo(op.getRight(), var) && isOne(op.getLeft()));
+    }
+
+    private static boolean isOne(Operand operand) {
+        return operand instanceof ConstInt && ((ConstInt) operand).getIntVal() == 1;
+    }
+
+    private boolean isOnlyUsedIn(Variable var, LoopNest.Loop loop) {
+        for (VarRef ref : uses.get(var)) {
+            final Instruction user = Instructions.getInstruction(ref);
+            if (user == null || !loop.contains(Instructions.getBlock(user))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the array of an element address "a, 0, 1, i" for an invariant
+     * array a.
+     *
+     * @return null, or the array, if the address is an element address.
+     */
+    private static Operand getElementArray(Operand address, Variable index,
+                                           LoopNest.Loop loop) {
+        if (!(address instanceof VarRef)
+                || !(((VarRef) address).getVariable().getParent() instanceof GetElementPtr)) {
+            return null;
+        }
+        final GetElementPtr gep = (GetElementPtr) ((VarRef) address).getVariable().getParent();
+        final OperandList indices = gep.getIndices();
+        if (indices.size() != 3 || !isConstInt(indices.get(0), 0) || !isConstInt(indices.get(1), 1)
+                || !isVarRefTo(indices.get(2), index)
+                || !isInvariant(gep.getBaseAddress(), loop)) {
+            return null;
+        }
+        return gep.getBaseAddress();
+    }
+
+    private static boolean isConstInt(Operand operand, int value) {
+        return operand instanceof ConstInt && ((ConstInt) operand).getIntVal() == value;
+    }
+
+    /**
+     * Gets the value of all bytes of a constant.
+     *
+     * @return {@link Integer#MIN_VALUE}, or the byte value, if all bytes of
+     *         the constant are equal.
+     */
+    private static int getByteValue(Operand value) {
+        if (value instanceof Nullpointer
+                || value instanceof ConstBool && !((ConstBool) value).getBoolVal()) {
+            return 0;
+        } else if (value instanceof ConstBool) {
+            return 1;
+        } else if (value instanceof ConstInt) {
+            final int intVal = ((ConstInt) value).getIntVal();
+            if (intVal == 0 || intVal == -1) {
+                return intVal;
+            }
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * Gets the size of array elements, as computed by the translation.
+     */
+    private static int getElementSize(Type type) {
+        if (type instanceof TypeInt) {
+            return 4;
+        } else if (type instanceof TypeBool) {
+            return 1;
+        }
+        return 8;
+    }
+
+    /**
+     * Adds the computation of the byte address of an array element.
+     */
+    private static Operand addElementBytes(BasicBlock block, Operand array, Variable index) {
+        final TemporaryVar address = TemporaryVar("elementAddr");
+        block.add(GetElementPtr(address, array.copy(),
+                OperandList(ConstInt(0), ConstInt(1), VarRef(index))));
+        final TemporaryVar bytes = TemporaryVar("elementBytes");
+        block.add(Bitcast(bytes, TypePointer(TypeByte()), VarRef(address)));
+        return VarRef(bytes);
+    }
+}
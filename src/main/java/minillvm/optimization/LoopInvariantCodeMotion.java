@@ -0,0 +1,480 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.analysis.DominatorTree;
+import minillvm.analysis.LoopNest;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Hoists loop invariant computations and loads out of loops.
+ *
+ * <p>Every loop gets a preheader, a block that only jumps to the loop header
+ * and is the only entry into the loop. Loops are processed from the innermost
+ * outwards, so values hoisted out of an inner loop can be hoisted further.
+ * Pure instructions with invariant operands are always hoisted, apart from
+ * divisions that might trap.
+ *
+ * <p>Loads are hoisted if their address is invariant, the loop contains no
+ * calls and no store that may alias the address, and the address is
+ * dereferenceable in the preheader, as the load is executed even if the loop
+ * is not. Virtual Method Tables, the Virtual Method Table pointers of objects
+ * and array lengths are only written when they are created, so their loads
+ * are hoisted regardless of calls and stores. Addresses are dereferenceable
+ * if they are fields, or elements at constant indices of arrays of constant
+ * size, of stack slots, globals, 'this', Virtual Method Tables, results of
+ * procedures that never return null and values that passed a null check
+ * dominating the preheader. Whether addresses may alias is decided by
+ * {@link AliasAnalysis}.
+ *
+ * <p>A null check, or any other check leading to an error, on an invariant
+ * value that ends the loop header is executed first in every iteration, so
+ * it is moved into the preheader once all instructions before it have been
+ * hoisted. This lets the loads guarded by it be hoisted as well.
+ */
+public class LoopInvariantCodeMotion {
+
+    private final AliasAnalysis aliasAnalysis;
+    private final NullCheckElimination nullChecks;
+
+    private Proc proc;
+    private ControlFlowGraph cfg;
+    private DominatorTree domTree;
+    private LoopNest loopNest;
+
+    private int hoisted;
+    private int hoistedLoads;
+
+    /**
+     * Creates a pass for the procedures of a program.
+     *
+     * @param prog        The program whose procedures to optimize.
+     * @param nullChecks  The null check analysis of the program, to look up
+     *                    procedures that never return null.
+     */
+    public LoopInvariantCodeMotion(Prog prog, NullCheckElimination nullChecks) {
+        this.nullChecks = nullChecks;
+        aliasAnalysis = new AliasAnalysis(prog);
+    }
+
+    /**
+     * Hoists all loop invariant computations of a procedure.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  The amount of loops in the procedure.
+     */
+    public int run(Proc proc) {
+        this.proc = proc;
+        hoisted = 0;
+        hoistedLoads = 0;
+        if (proc.getBasicBlocks().isEmpty()) {
+            return 0;
+        }
+
+        analyze();
+        final List<BasicBlock> headers = new ArrayList<>();
+        for (LoopNest.Loop loop : loopNest.getLoopsInnermostFirst()) {
+            headers.add(loop.getHeader());
+        }
+        for (BasicBlock header : headers) {
+            BasicBlock preheader = getPreheader(header);
+            if (preheader == null) {
+                continue;
+            }
+            hoistInvariants(header, preheader);
+            while (hoistGuard(header, preheader)) {
+                analyze();
+                preheader = getPreheader(header);
+                hoistInvariants(header, preheader);
+            }
+        }
+        return headers.size();
+    }
+
+    /**
+     * Gets the amount of instructions hoisted by the last run.
+     *
+     * @return  The amount of hoisted instructions, including loads.
+     */
+    public int getHoisted() {
+        return hoisted;
+    }
+
+    /**
+     * Gets the amount of loads hoisted by the last run.
+     *
+     * @return  The amount of hoisted loads.
+     */
+    public int getHoistedLoads() {
+        return hoistedLoads;
+    }
+
+    private void analyze() {
+        cfg = new ControlFlowGraph(proc);
+        domTree = new DominatorTree(cfg);
+        loopNest = new LoopNest(domTree);
+    }
+
+    private LoopNest.Loop getLoop(BasicBlock header) {
+        final LoopNest.Loop loop = loopNest.getLoop(header);
+        return loop != null && loop.getHeader() == header ? loop : null;
+    }
+
+    /**
+     * Gets the preheader of a loop, creating it if necessary.
+     *
+     * @return null, or the preheader, if the loop is entered at all.
+     */
+    private BasicBlock getPreheader(BasicBlock header) {
+        final LoopNest.Loop loop = getLoop(header);
+        final List<BasicBlock> outside = new ArrayList<>();
+        for (BasicBlock pred : cfg.getPredecessors(header)) {
+            if (cfg.isReachable(pred) && !loop.contains(pred)) {
+                outside.add(pred);
+            }
+        }
+        if (outside.isEmpty()) {
+            return null;
+        }
+        if (outside.size() == 1 && cfg.getSuccessors(outside.get(0)).size() == 1) {
+            return outside.get(0);
+        }
+
+        final BasicBlock preheader = BasicBlock();
+        preheader.setName(header.getName() + "_preheader");
+        for (PhiNode phi : header.getPhiNodes()) {
+            final PhiNodeChoiceList choices = phi.getChoices();
+            final PhiNodeChoiceList entering = PhiNodeChoiceList();
+            for (int i = choices.size() - 1; i >= 0; --i) {
+                if (containsBlock(outside, choices.get(i).getLabel())) {
+                    entering.add(0, choices.get(i).copy());
+                    choices.remove(i);
+                }
+            }
+            if (entering.size() == 1) {
+                choices.add(PhiNodeChoice(preheader, entering.get(0).getValue().copy()));
+            } else {
+                final TemporaryVar var = TemporaryVar(phi.getVar().getName());
+                preheader.add(PhiNode(var, phi.getType(), entering));
+                choices.add(PhiNodeChoice(preheader, VarRef(var)));
+            }
+        }
+        preheader.add(Jump(header));
+        for (BasicBlock pred : outside) {
+            Instructions.replaceTarget(pred.getTerminatingInstruction().get(), header, preheader);
+        }
+        insertBefore(header, preheader);
+        analyze();
+        return preheader;
+    }
+
+    private static boolean containsBlock(List<BasicBlock> blocks, BasicBlock block) {
+        for (BasicBlock b : blocks) {
+            if (b == block) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void insertBefore(BasicBlock anchor, BasicBlock block) {
+        final BasicBlockList blocks = proc.getBasicBlocks();
+        int index = 0;
+        while (blocks.get(index) != anchor) {
+            ++index;
+        }
+        blocks.add(index, block);
+    }
+
+    /**
+     * Moves all invariant instructions of a loop to its preheader.
+     */
+    private void hoistInvariants(BasicBlock header, BasicBlock preheader) {
+        final LoopNest.Loop loop = getLoop(header);
+        boolean hasCall = false;
+        final List<Operand> storeAddresses = new ArrayList<>();
+        for (BasicBlock block : loop.getBlocks()) {
+            for (Instruction instr : block) {
+                if (instr instanceof Call || instr instanceof MemSet
+                        || instr instanceof MemCopy) {
+                    hasCall = true;
+                } else if (instr instanceof Store) {
+                    storeAddresses.add(((Store) instr).getAddress());
+                }
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock block : cfg.getReversePostOrder()) {
+                if (!loop.contains(block)) {
+                    continue;
+                }
+                for (Instruction instr : Instructions.snapshot(block)) {
+                    final boolean isLoad = instr instanceof Load;
+                    if (isLoad && !isHoistableLoad((Load) instr, loop, preheader,
+                            hasCall, storeAddresses)) {
+                        continue;
+                    }
+                    if (!isLoad && !isHoistable(instr, loop)) {
+                        continue;
+                    }
+                    Instructions.remove(instr);
+                    preheader.add(Instructions.terminatorIndex(preheader), instr);
+                    ++hoisted;
+                    if (isLoad) {
+                        ++hoistedLoads;
+                    }
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private boolean isHoistable(Instruction instr, LoopNest.Loop loop) {
+        if (instr instanceof BinaryOperation) {
+            final BinaryOperation op = (BinaryOperation) instr;
+            if ((op.getOperator() instanceof Sdiv || op.getOperator() instanceof Srem)
+                    && !isSafeDivisor(op.getRight())) {
+                return false;
+            }
+            return isInvariant(op.getLeft(), loop) && isInvariant(op.getRight(), loop);
+        } else if (instr instanceof Bitcast) {
+            return isInvariant(((Bitcast) instr).getExpr(), loop);
+        } else if (instr instanceof GetElementPtr) {
+            final GetElementPtr gep = (GetElementPtr) instr;
+            if (!isInvariant(gep.getBaseAddress(), loop)) {
+                return false;
+            }
+            for (Operand index : gep.getIndices()) {
+                if (!isInvariant(index, loop)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isSafeDivisor(Operand divisor) {
+        return divisor instanceof ConstInt
+                && ((ConstInt) divisor).getIntVal() != 0
+                && ((ConstInt) divisor).getIntVal() != -1;
+    }
+
+    private boolean isHoistableLoad(Load load, LoopNest.Loop loop, BasicBlock preheader,
+                                    boolean hasCall, List<Operand> storeAddresses) {
+        final Operand address = load.getAddress();
+        if (!isInvariant(address, loop) || !isDereferenceable(address, preheader)) {
+            return false;
+        }
+        if (aliasAnalysis.isImmutable(address)) {
+            return true;
+        }
+        if (hasCall) {
+            return false;
+        }
+        for (Operand storeAddress : storeAddresses) {
+            if (aliasAnalysis.mayAlias(address, storeAddress)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isInvariant(Operand operand, LoopNest.Loop loop) {
+        if (!(operand instanceof VarRef)) {
+            return true;
+        }
+        final Element def = ((VarRef) operand).getVariable().getParent();
+        if (!(def instanceof Instruction)) {
+            return true;
+        }
+        final BasicBlock block = Instructions.getBlock((Instruction) def);
+        return block != null && !loop.contains(block);
+    }
+
+    /**
+     * Checks whether an address can be loaded from at the end of a block.
+     */
+    private boolean isDereferenceable(Operand address, BasicBlock block) {
+        if (address instanceof GlobalRef) {
+            return true;
+        }
+        if (!(address instanceof VarRef)) {
+            return false;
+        }
+        final Variable var = ((VarRef) address).getVariable();
+        if (var instanceof Parameter && var.getName().equals("this")
+                && isFirstParameter((Parameter) var)) {
+            return true;
+        }
+
+        final Element def = var.getParent();
+        if (def instanceof Alloca) {
+            return true;
+        } else if (def instanceof Bitcast) {
+            return isDereferenceable(((Bitcast) def).getExpr(), block);
+        } else if (def instanceof GetElementPtr) {
+            return isInBounds((GetElementPtr) def)
+                    && isDereferenceable(((GetElementPtr) def).getBaseAddress(), block);
+        } else if (def instanceof Load) {
+            //
+            // Pointers to constant structures, i.e. Virtual Method Tables,
+            // always point to the according global.
+            //
+            final Type type = var.calculateType();
+            if (type instanceof TypePointer
+                    && aliasAnalysis.isConstantStruct(((TypePointer) type).getTo())) {
+                return true;
+            }
+        } else if (def instanceof Call && ((Call) def).getFunction() instanceof ProcedureRef) {
+            if (nullChecks.returnsNonNull(
+                    ((ProcedureRef) ((Call) def).getFunction()).getProcedure())) {
+                return true;
+            }
+        }
+        return isCheckedNonNull(var, block);
+    }
+
+    /**
+     * Checks whether an address computation stays within the object it is
+     * based on: it selects structure fields, or elements of arrays of known
+     * size, at constant indices. Elements of NQJ arrays are excluded, as the
+     * length of those is only known at runtime.
+     */
+    private static boolean isInBounds(GetElementPtr gep) {
+        final OperandList indices = gep.getIndices();
+        Type type = gep.getBaseAddress().calculateType();
+        if (!(type instanceof TypePointer) || indices.isEmpty()
+                || !(indices.get(0) instanceof ConstInt)
+                || ((ConstInt) indices.get(0)).getIntVal() != 0) {
+            return false;
+        }
+        type = ((TypePointer) type).getTo();
+        for (int i = 1; i < indices.size(); ++i) {
+            if (!(indices.get(i) instanceof ConstInt)) {
+                return false;
+            }
+            final int index = ((ConstInt) indices.get(i)).getIntVal();
+            if (type instanceof TypeStruct
+                    && index >= 0 && index < ((TypeStruct) type).getFields().size()) {
+                type = ((TypeStruct) type).getFields().get(index).getType();
+            } else if (type instanceof TypeArray
+                    && index >= 0 && index < ((TypeArray) type).getSize()) {
+                type = ((TypeArray) type).getOf();
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isFirstParameter(Parameter param) {
+        final ParameterList params = proc.getParameters();
+        return !params.isEmpty() && params.get(0) == param;
+    }
+
+    /**
+     * Checks whether a null check of a variable dominates a block.
+     */
+    private boolean isCheckedNonNull(Variable var, BasicBlock block) {
+        for (BasicBlock b = block; b != null; b = domTree.getImmediateDominator(b)) {
+            final List<BasicBlock> preds = cfg.getPredecessors(b);
+            if (preds.size() != 1) {
+                continue;
+            }
+            final Optional<TerminatingInstruction> terminator =
+                    preds.get(0).getTerminatingInstruction();
+            if (!terminator.isPresent() || !(terminator.get() instanceof Branch)) {
+                continue;
+            }
+            final Branch branch = (Branch) terminator.get();
+            if (branch.getIfFalseLabel() == b && branch.getIfTrueLabel() != b
+                    && isNullCheckOf(branch.getCondition(), var)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNullCheckOf(Operand condition, Variable var) {
+        if (!(condition instanceof VarRef)
+                || !(((VarRef) condition).getVariable().getParent() instanceof BinaryOperation)) {
+            return false;
+        }
+        final BinaryOperation op = (BinaryOperation) ((VarRef) condition).getVariable().getParent();
+        if (!(op.getOperator() instanceof Eq)) {
+            return false;
+        }
+        return op.getRight() instanceof Nullpointer && isVarRefTo(op.getLeft(), var)
+                || op.getLeft() instanceof Nullpointer && isVarRefTo(op.getRight(), var);
+    }
+
+    private static boolean isVarRefTo(Operand operand, Variable var) {
+        return operand instanceof VarRef && ((VarRef) operand).getVariable() == var;
+    }
+
+    /**
+     * Moves a check leading to an error at the end of a loop header into the
+     * preheader, if it is the first thing the loop does.
+     *
+     * @return  Whether the check was moved.
+     */
+    private boolean hoistGuard(BasicBlock header, BasicBlock preheader) {
+        final LoopNest.Loop loop = getLoop(header);
+        for (Instruction instr : header) {
+            if (!(instr instanceof PhiNode || instr instanceof CommentInstr
+                    || instr instanceof TerminatingInstruction)) {
+                return false;
+            }
+        }
+        final Optional<TerminatingInstruction> terminator = header.getTerminatingInstruction();
+        if (!terminator.isPresent() || !(terminator.get() instanceof Branch)) {
+            return false;
+        }
+        final Branch branch = (Branch) terminator.get();
+        if (!isInvariant(branch.getCondition(), loop)) {
+            return false;
+        }
+        final boolean haltsIfTrue = isHalting(branch.getIfTrueLabel());
+        final BasicBlock halt = haltsIfTrue ? branch.getIfTrueLabel() : branch.getIfFalseLabel();
+        final BasicBlock next = haltsIfTrue ? branch.getIfFalseLabel() : branch.getIfTrueLabel();
+        if (!isHalting(halt) || loop.contains(halt) || next == halt) {
+            return false;
+        }
+
+        //
+        // The preheader checks and then continues in a new preheader.
+        //
+        final BasicBlock checked = BasicBlock();
+        checked.setName(header.getName() + "_checked");
+        checked.add(Jump(header));
+        insertBefore(header, checked);
+        Instructions.replacePhiPredecessor(header, preheader, checked);
+        final Operand condition = branch.getCondition().copy();
+        preheader.getTerminatingInstruction().get().replaceBy(haltsIfTrue
+                ? Branch(condition, halt, checked)
+                : Branch(condition, checked, halt));
+        branch.replaceBy(Jump(next));
+        return true;
+    }
+
+    private static boolean isHalting(BasicBlock block) {
+        for (Instruction instr : block) {
+            if (instr instanceof HaltWithError) {
+                return true;
+            }
+            if (!(instr instanceof CommentInstr)) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
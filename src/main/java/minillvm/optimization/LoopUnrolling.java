@@ -0,0 +1,547 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.analysis.DominatorTree;
+import minillvm.analysis.LoopNest;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Unrolls innermost loops with a constant trip count.
+ *
+ * <p>Recognized loops exit only in their header, by a branch on "i &lt; c"
+ * for a constant c and an induction variable i, a phi node starting at a
+ * constant and incremented by a positive constant in the single latch. Only
+ * blocks stopping with an error may be left from elsewhere, as by bounds
+ * checks.
+ *
+ * <p>Loops whose unrolled code fits into {@link #MAX_UNROLLED_SIZE}
+ * instructions are unrolled fully: the iterations are placed one after the
+ * other, with the phi nodes of the header replaced by the values of the
+ * previous iteration and the condition known to hold, followed by a final
+ * copy of the header leaving the loop. Larger loops are unrolled partially
+ * by the unroll factor: since the trip count is known, the remainder
+ * iterations are peeled in front of the loop, and the body of the loop then
+ * runs the factor of iterations at once, testing the condition only in the
+ * first of them.
+ *
+ * <p>Unrolled loops whose body becomes innermost, e.g. outer loops of
+ * matrix operations, are unrolled as well.
+ */
+public class LoopUnrolling {
+
+    /**
+     * The maximum amount of instructions of an unrolled loop.
+     */
+    public static final int MAX_UNROLLED_SIZE = 200;
+
+    private final int factor;
+    private final Set<BasicBlock> partiallyUnrolled =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    private Proc proc;
+    private int fullyUnrolled;
+    private int partiallyUnrolledCount;
+
+    /**
+     * The copies of the blocks and variables of one iteration.
+     */
+    private static class Iteration {
+        final Map<BasicBlock, BasicBlock> blocks = new IdentityHashMap<>();
+        final Map<Variable, Operand> values = new IdentityHashMap<>();
+        final List<BasicBlock> copies = new ArrayList<>();
+
+        /**
+         * Gets the value of an operand of the original loop in this
+         * iteration.
+         */
+        Operand map(Operand operand) {
+            if (operand instanceof VarRef && values.containsKey(((VarRef) operand).getVariable())) {
+                return values.get(((VarRef) operand).getVariable()).copy();
+            }
+            return operand.copy();
+        }
+    }
+
+    /**
+     * Creates the pass.
+     *
+     * @param factor  The amount of iterations run at once by partially
+     *                unrolled loops, 1 to only unroll fully.
+     */
+    public LoopUnrolling(int factor) {
+        this.factor = factor;
+    }
+
+    /**
+     * Unrolls the loops of a procedure with constant trip counts.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  Whether the procedure was changed.
+     */
+    public boolean run(Proc proc) {
+        this.proc = proc;
+        fullyUnrolled = 0;
+        partiallyUnrolledCount = 0;
+        partiallyUnrolled.clear();
+        if (proc.getBasicBlocks().isEmpty()) {
+            return false;
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            final ControlFlowGraph cfg = new ControlFlowGraph(proc);
+            final LoopNest loopNest = new LoopNest(new DominatorTree(cfg));
+            for (LoopNest.Loop loop : loopNest.getLoopsInnermostFirst()) {
+                if (loop.getChildren().isEmpty() && !partiallyUnrolled.contains(loop.getHeader())
+                        && unroll(loop, cfg)) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        return fullyUnrolled + partiallyUnrolledCount > 0;
+    }
+
+    /**
+     * Gets the amount of loops unrolled fully in the last run.
+     *
+     * @return  The amount of fully unrolled loops.
+     */
+    public int getFullyUnrolled() {
+        return fullyUnrolled;
+    }
+
+    /**
+     * Gets the amount of loops unrolled by the unroll factor in the last run.
+     *
+     * @return  The amount of partially unrolled loops.
+     */
+    public int getPartiallyUnrolled() {
+        return partiallyUnrolledCount;
+    }
+
+    private boolean unroll(LoopNest.Loop loop, ControlFlowGraph cfg) {
+        final BasicBlock header = loop.getHeader();
+        if (loop.getLatches().size() != 1) {
+            return false;
+        }
+        final BasicBlock latch = loop.getLatches().get(0);
+        BasicBlock preheader = null;
+        for (BasicBlock pred : cfg.getPredecessors(header)) {
+            if (!loop.contains(pred)) {
+                if (preheader != null) {
+                    return false;
+                }
+                preheader = pred;
+            }
+        }
+        final Optional<TerminatingInstruction> headerTerminator =
+                header.getTerminatingInstruction();
+        final Optional<TerminatingInstruction> latchTerminator = latch.getTerminatingInstruction();
+        if (preheader == null || latch == header || !headerTerminator.isPresent()
+                || !(headerTerminator.get() instanceof Branch) || !latchTerminator.isPresent()
+                || !(latchTerminator.get() instanceof Jump) || !hasOnlyHaltingExits(loop)) {
+            return false;
+        }
+        final Branch branch = (Branch) headerTerminator.get();
+        final BasicBlock body = branch.getIfTrueLabel();
+        final BasicBlock exit = branch.getIfFalseLabel();
+        if (!loop.contains(body) || loop.contains(exit) || body == header) {
+            return false;
+        }
+
+        final long tripCount = getTripCount(header, branch, preheader, latch);
+        if (tripCount < 0) {
+            return false;
+        }
+        final List<BasicBlock> blocks = new ArrayList<>();
+        int size = 0;
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            if (loop.contains(block)) {
+                blocks.add(block);
+                size += countInstructions(block);
+            }
+        }
+
+        if ((tripCount + 1) * size <= MAX_UNROLLED_SIZE) {
+            unrollFully(header, blocks, preheader, latch, body, exit, (int) tripCount);
+            ++fullyUnrolled;
+            return true;
+        } else if (factor > 1 && tripCount >= factor && (long) factor * size <= MAX_UNROLLED_SIZE) {
+            unrollPartially(header, blocks, preheader, latch, body, (int) (tripCount % factor));
+            partiallyUnrolled.add(header);
+            ++partiallyUnrolledCount;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the only edges leaving a loop, apart from the ones of
+     * the header, lead to blocks stopping with an error, without phi nodes
+     * or uses of values of the loop.
+     */
+    private static boolean hasOnlyHaltingExits(LoopNest.Loop loop) {
+        for (BasicBlock block : loop.getBlocks()) {
+            if (block == loop.getHeader()) {
+                continue;
+            }
+            for (BasicBlock successor : ControlFlowGraph.successorsOf(block)) {
+                if (!loop.contains(successor) && !isHalting(successor, loop)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHalting(BasicBlock block, LoopNest.Loop loop) {
+        final Optional<TerminatingInstruction> terminator = block.getTerminatingInstruction();
+        if (!terminator.isPresent() || !(terminator.get() instanceof HaltWithError)
+                || !block.getPhiNodes().isEmpty()) {
+            return false;
+        }
+        final boolean[] usesLoop = {false};
+        block.accept(new Element.DefaultVisitor() {
+            @Override
+            public void visit(VarRef ref) {
+                super.visit(ref);
+                final Element def = ref.getVariable().getParent();
+                if (def instanceof Instruction
+                        && loop.contains(Instructions.getBlock((Instruction) def))) {
+                    usesLoop[0] = true;
+                }
+            }
+        });
+        return !usesLoop[0];
+    }
+
+    /**
+     * Computes the trip count of a loop testing "i &lt; c" with an
+     * induction variable i starting at a constant and incremented by a
+     * positive constant.
+     *
+     * @return -1, or the trip count, if it is constant.
+     */
+    private static long getTripCount(BasicBlock header, Branch branch, BasicBlock preheader,
+                                     BasicBlock latch) {
+        if (!(branch.getCondition() instanceof VarRef)
+                || !(((VarRef) branch.getCondition()).getVariable().getParent()
+                        instanceof BinaryOperation)) {
+            return -1;
+        }
+        final BinaryOperation condition =
+                (BinaryOperation) ((VarRef) branch.getCondition()).getVariable().getParent();
+        if (!(condition.getOperator() instanceof Slt) || !(condition.getLeft() instanceof VarRef)
+                || !(condition.getRight() instanceof ConstInt)
+                || !(((VarRef) condition.getLeft()).getVariable().getParent() instanceof PhiNode)) {
+            return -1;
+        }
+        final PhiNode phi = (PhiNode) ((VarRef) condition.getLeft()).getVariable().getParent();
+        if (Instructions.getBlock(phi) != header || phi.getChoices().size() != 2) {
+            return -1;
+        }
+        Operand start = null;
+        Operand next = null;
+        for (PhiNodeChoice choice : phi.getChoices()) {
+            if (choice.getLabel() == preheader) {
+                start = choice.getValue();
+            } else if (choice.getLabel() == latch) {
+                next = choice.getValue();
+            }
+        }
+        if (!(start instanceof ConstInt) || !(next instanceof VarRef)
+                || !(((VarRef) next).getVariable().getParent() instanceof BinaryOperation)) {
+            return -1;
+        }
+        final BinaryOperation increment =
+                (BinaryOperation) ((VarRef) next).getVariable().getParent();
+        final Operand step;
+        if (isVarRefTo(increment.getLeft(), phi.getVar())) {
+            step = increment.getRight();
+        } else if (isVarRefTo(increment.getRight(), phi.getVar())) {
+            step = increment.getLeft();
+        } else {
+            return -1;
+        }
+        if (!(increment.getOperator() instanceof Add) || !(step instanceof ConstInt)
+                || ((ConstInt) step).getIntVal() <= 0) {
+            return -1;
+        }
+
+        final long from = ((ConstInt) start).getIntVal();
+        final long to = ((ConstInt) condition.getRight()).getIntVal();
+        final long by = ((ConstInt) step).getIntVal();
+        if (from >= to) {
+            return 0;
+        }
+        final long tripCount = (to - from + by - 1) / by;
+        //
+        // The induction variable must not wrap around after the last
+        // iteration.
+        //
+        return from + tripCount * by <= Integer.MAX_VALUE ? tripCount : -1;
+    }
+
+    private static boolean isVarRefTo(Operand operand, Variable var) {
+        return operand instanceof VarRef && ((VarRef) operand).getVariable() == var;
+    }
+
+    private static int countInstructions(BasicBlock block) {
+        int count = 0;
+        for (Instruction instr : block) {
+            if (!(instr instanceof CommentInstr)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Replaces a loop by its iterations and a final test leaving it.
+     */
+    private void unrollFully(BasicBlock header, List<BasicBlock> blocks, BasicBlock preheader,
+                             BasicBlock latch, BasicBlock body, BasicBlock exit, int tripCount) {
+        final List<BasicBlock> unrolled = new ArrayList<>();
+        Map<Variable, Operand> headerValues = getPhiValues(header, preheader, null);
+        BasicBlock previousLatch = preheader;
+        for (int i = 0; i < tripCount; ++i) {
+            final Iteration iteration = copyIteration(blocks, header, headerValues);
+            final BasicBlock headerCopy = iteration.blocks.get(header);
+            headerCopy.getTerminatingInstruction().get()
+                    .replaceBy(Jump(iteration.blocks.get(body)));
+            Instructions.replaceTarget(previousLatch.getTerminatingInstruction().get(),
+                    header, headerCopy);
+            previousLatch = iteration.blocks.get(latch);
+            headerValues = getPhiValues(header, latch, iteration);
+            unrolled.addAll(iteration.copies);
+        }
+
+        final Iteration last = copyIteration(Collections.singletonList(header), header,
+                headerValues);
+        final BasicBlock lastHeader = last.blocks.get(header);
+        lastHeader.getTerminatingInstruction().get().replaceBy(Jump(exit));
+        Instructions.replaceTarget(previousLatch.getTerminatingInstruction().get(),
+                header, lastHeader);
+        unrolled.addAll(last.copies);
+
+        //
+        // Only the header leaves the loop, so only its values can be used
+        // after it, now the ones of the last copy.
+        //
+        Instructions.replacePhiPredecessor(exit, header, lastHeader);
+        final Set<BasicBlock> loopBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+        loopBlocks.addAll(blocks);
+        final Uses uses = new Uses(proc);
+        for (Instruction instr : header) {
+            if (!(instr instanceof Assign)) {
+                continue;
+            }
+            final Variable var = ((Assign) instr).getVar();
+            for (VarRef ref : new ArrayList<>(uses.get(var))) {
+                final Instruction user = Instructions.getInstruction(ref);
+                if (user != null && !loopBlocks.contains(Instructions.getBlock(user))) {
+                    uses.replace(ref, last.map(ref));
+                }
+            }
+        }
+        replaceBlocks(blocks, unrolled);
+    }
+
+    /**
+     * Peels the remainder iterations in front of a loop and lets every
+     * iteration of the loop run the unroll factor of iterations.
+     */
+    private void unrollPartially(BasicBlock header, List<BasicBlock> blocks, BasicBlock preheader,
+                                 BasicBlock latch, BasicBlock body, int remainder) {
+        final List<BasicBlock> peeled = new ArrayList<>();
+        Map<Variable, Operand> headerValues = getPhiValues(header, preheader, null);
+        BasicBlock previousLatch = preheader;
+        for (int i = 0; i < remainder; ++i) {
+            final Iteration iteration = copyIteration(blocks, header, headerValues);
+            final BasicBlock headerCopy = iteration.blocks.get(header);
+            headerCopy.getTerminatingInstruction().get()
+                    .replaceBy(Jump(iteration.blocks.get(body)));
+            Instructions.replaceTarget(previousLatch.getTerminatingInstruction().get(),
+                    header, headerCopy);
+            previousLatch = iteration.blocks.get(latch);
+            headerValues = getPhiValues(header, latch, iteration);
+            peeled.addAll(iteration.copies);
+        }
+        if (remainder > 0) {
+            for (PhiNode phi : header.getPhiNodes()) {
+                for (PhiNodeChoice choice : phi.getChoices()) {
+                    if (choice.getLabel() == preheader) {
+                        choice.setLabel(previousLatch);
+                        choice.setValue(headerValues.get(phi.getVar()).copy());
+                    }
+                }
+            }
+        }
+
+        //
+        // The remaining trip count is a multiple of the factor, so the
+        // copies of the header within the loop need not test the condition.
+        // The original latch is only redirected after copying it.
+        //
+        final List<BasicBlock> copies = new ArrayList<>();
+        final List<BasicBlock> latches = new ArrayList<>();
+        final List<BasicBlock> headerCopies = new ArrayList<>();
+        Map<Variable, Operand> latchValues = getPhiValues(header, latch, null);
+        latches.add(latch);
+        for (int i = 1; i < factor; ++i) {
+            final Iteration iteration = copyIteration(blocks, header, latchValues);
+            final BasicBlock headerCopy = iteration.blocks.get(header);
+            headerCopy.getTerminatingInstruction().get()
+                    .replaceBy(Jump(iteration.blocks.get(body)));
+            headerCopies.add(headerCopy);
+            latches.add(iteration.blocks.get(latch));
+            latchValues = getPhiValues(header, latch, iteration);
+            copies.addAll(iteration.copies);
+        }
+        for (int i = 0; i < headerCopies.size(); ++i) {
+            Instructions.replaceTarget(latches.get(i).getTerminatingInstruction().get(),
+                    header, headerCopies.get(i));
+        }
+        final BasicBlock lastLatch = latches.get(latches.size() - 1);
+        for (PhiNode phi : header.getPhiNodes()) {
+            for (PhiNodeChoice choice : phi.getChoices()) {
+                if (choice.getLabel() == latch) {
+                    choice.setLabel(lastLatch);
+                    choice.setValue(latchValues.get(phi.getVar()).copy());
+                }
+            }
+        }
+
+        final BasicBlockList procBlocks = proc.getBasicBlocks();
+        int index = indexOf(procBlocks, header);
+        for (BasicBlock block : peeled) {
+            procBlocks.add(index++, block);
+        }
+        index = indexOf(procBlocks, blocks.get(blocks.size() - 1)) + 1;
+        for (BasicBlock block : copies) {
+            procBlocks.add(index++, block);
+        }
+    }
+
+    /**
+     * Gets the values of the phi nodes of the header on entering it from a
+     * block, as computed by an iteration.
+     */
+    private static Map<Variable, Operand> getPhiValues(BasicBlock header, BasicBlock from,
+                                                       Iteration iteration) {
+        final Map<Variable, Operand> values = new IdentityHashMap<>();
+        for (PhiNode phi : header.getPhiNodes()) {
+            for (PhiNodeChoice choice : phi.getChoices()) {
+                if (choice.getLabel() == from) {
+                    values.put(phi.getVar(), iteration == null
+                            ? choice.getValue()
+                            : iteration.map(choice.getValue()));
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Copies blocks of a loop with fresh variables and blocks, replacing the
+     * phi nodes of the header by values. Edges to the header and out of the
+     * loop are kept.
+     */
+    private static Iteration copyIteration(List<BasicBlock> blocks, BasicBlock header,
+                                           Map<Variable, Operand> headerValues) {
+        final Iteration iteration = new Iteration();
+        iteration.values.putAll(headerValues);
+        for (BasicBlock block : blocks) {
+            final BasicBlock copy = BasicBlock();
+            copy.setName(block.getName() + "_unrolled");
+            iteration.blocks.put(block, copy);
+            iteration.copies.add(copy);
+            for (Instruction instr : block) {
+                if (block == header && instr instanceof PhiNode) {
+                    continue;
+                }
+                final Instruction instrCopy = instr.copy();
+                if (instr instanceof Assign) {
+                    iteration.values.put(((Assign) instr).getVar(),
+                            VarRef(((Assign) instrCopy).getVar()));
+                }
+                copy.add(instrCopy);
+            }
+        }
+
+        final List<VarRef> refs = new ArrayList<>();
+        for (BasicBlock copy : iteration.copies) {
+            copy.accept(new Element.DefaultVisitor() {
+                @Override
+                public void visit(VarRef ref) {
+                    super.visit(ref);
+                    refs.add(ref);
+                }
+
+                @Override
+                public void visit(PhiNodeChoice choice) {
+                    super.visit(choice);
+                    choice.setLabel(iteration.blocks.getOrDefault(choice.getLabel(),
+                            choice.getLabel()));
+                }
+
+                @Override
+                public void visit(Jump jump) {
+                    super.visit(jump);
+                    if (jump.getLabel() != header) {
+                        jump.setLabel(iteration.blocks.getOrDefault(jump.getLabel(),
+                                jump.getLabel()));
+                    }
+                }
+
+                @Override
+                public void visit(Branch branch) {
+                    super.visit(branch);
+                    if (branch.getIfTrueLabel() != header) {
+                        branch.setIfTrueLabel(iteration.blocks.getOrDefault(
+                                branch.getIfTrueLabel(), branch.getIfTrueLabel()));
+                    }
+                    if (branch.getIfFalseLabel() != header) {
+                        branch.setIfFalseLabel(iteration.blocks.getOrDefault(
+                                branch.getIfFalseLabel(), branch.getIfFalseLabel()));
+                    }
+                }
+            });
+        }
+        for (VarRef ref : refs) {
+            final Operand value = iteration.values.get(ref.getVariable());
+            if (value instanceof VarRef) {
+                ref.setVariable(((VarRef) value).getVariable());
+            } else if (value != null) {
+                ref.replaceBy(value.copy());
+            }
+        }
+        return iteration;
+    }
+
+    private void replaceBlocks(List<BasicBlock> blocks, List<BasicBlock> replacement) {
+        final BasicBlockList procBlocks = proc.getBasicBlocks();
+        int index = indexOf(procBlocks, blocks.get(0));
+        for (BasicBlock block : replacement) {
+            procBlocks.add(index++, block);
+        }
+        for (BasicBlock block : blocks) {
+            procBlocks.remove(indexOf(procBlocks, block));
+        }
+    }
+
+    private static int indexOf(BasicBlockList blocks, BasicBlock block) {
+        for (int i = 0; i < blocks.size(); ++i) {
+            if (blocks.get(i) == block) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
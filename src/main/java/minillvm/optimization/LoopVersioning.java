@@ -0,0 +1,760 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.analysis.DominatorTree;
+import minillvm.analysis.LoopNest;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Hoists the null and bounds checks of loops over arrays out of the loops by
+ * versioning them.
+ *
+ * <p>Recognized loops are innermost loops exiting only in their header, by a
+ * branch on "i &lt; n" for a loop invariant n and an induction variable i, a
+ * phi node starting at a loop invariant value and incremented by one in the
+ * single latch. Only blocks stopping with an error may be left from
+ * elsewhere, as by the checks.
+ *
+ * <p>Null checks of loop invariant arrays and bounds checks of such arrays
+ * at the index i + c for a constant c, or at a loop invariant index, hold in
+ * every iteration if they hold for the first and last value of i. Such loops
+ * are preceded by one guard testing this, which enters a copy of the loop
+ * without these checks, or else the original loop, still stopping with the
+ * same errors.
+ */
+public class LoopVersioning {
+
+    /**
+     * A check within a loop that the guard can test in front of it.
+     */
+    private static class Check {
+        final Branch branch;
+        final Operand array;
+        final Operand index;
+        final Integer offset;
+
+        /**
+         * Creates a check.
+         *
+         * @param branch  The branch to the block stopping with an error.
+         * @param array   The checked array.
+         * @param index   null, or the loop invariant index.
+         * @param offset  null, or the constant added to the induction
+         *                variable for the index. Both are null for null
+         *                checks.
+         */
+        Check(Branch branch, Operand array, Operand index, Integer offset) {
+            this.branch = branch;
+            this.array = array;
+            this.index = index;
+            this.offset = offset;
+        }
+    }
+
+    private final Set<BasicBlock> versioned = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Proc proc;
+    private int versionedLoops;
+    private int removedChecks;
+
+    /**
+     * Versions the loops of a procedure with checks that can be hoisted.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  Whether the procedure was changed.
+     */
+    public boolean run(Proc proc) {
+        this.proc = proc;
+        versionedLoops = 0;
+        removedChecks = 0;
+        versioned.clear();
+        if (proc.getBasicBlocks().isEmpty()) {
+            return false;
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            final ControlFlowGraph cfg = new ControlFlowGraph(proc);
+            final LoopNest loopNest = new LoopNest(new DominatorTree(cfg));
+            for (LoopNest.Loop loop : loopNest.getLoopsInnermostFirst()) {
+                if (loop.getChildren().isEmpty() && !versioned.contains(loop.getHeader())
+                        && version(loop, cfg)) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (versionedLoops > 0) {
+            Instructions.removeUnreachableBlocks(proc);
+        }
+        return versionedLoops > 0;
+    }
+
+    /**
+     * Gets the amount of loops versioned in the last run.
+     *
+     * @return  The amount of versioned loops.
+     */
+    public int getVersionedLoops() {
+        return versionedLoops;
+    }
+
+    /**
+     * Gets the amount of checks removed from the copies of the loops in the
+     * last run.
+     *
+     * @return  The amount of removed checks.
+     */
+    public int getRemovedChecks() {
+        return removedChecks;
+    }
+
+    private boolean version(LoopNest.Loop loop, ControlFlowGraph cfg) {
+        final BasicBlock header = loop.getHeader();
+        if (loop.getLatches().size() != 1) {
+            return false;
+        }
+        final BasicBlock latch = loop.getLatches().get(0);
+        BasicBlock preheader = null;
+        for (BasicBlock pred : cfg.getPredecessors(header)) {
+            if (!loop.contains(pred)) {
+                if (preheader != null) {
+                    return false;
+                }
+                preheader = pred;
+            }
+        }
+        final Optional<TerminatingInstruction> headerTerminator =
+                header.getTerminatingInstruction();
+        if (preheader == null || latch == header || !headerTerminator.isPresent()
+                || !(headerTerminator.get() instanceof Branch)
+                || !preheader.getTerminatingInstruction().isPresent()
+                || !hasOnlyHaltingExits(loop)) {
+            return false;
+        }
+        final Branch branch = (Branch) headerTerminator.get();
+        final BasicBlock exit = branch.getIfFalseLabel();
+        if (!loop.contains(branch.getIfTrueLabel()) || loop.contains(exit)) {
+            return false;
+        }
+
+        final BinaryOperation condition = getBinaryOperation(branch.getCondition());
+        if (condition == null || !(condition.getOperator() instanceof Slt)
+                || !isInvariant(condition.getRight(), loop)) {
+            return false;
+        }
+        final PhiNode inductionVar = getInductionVar(condition.getLeft(), header, preheader,
+                latch);
+        if (inductionVar == null) {
+            return false;
+        }
+        Operand start = null;
+        for (PhiNodeChoice choice : inductionVar.getChoices()) {
+            if (choice.getLabel() == preheader) {
+                start = choice.getValue();
+            }
+        }
+
+        final List<BasicBlock> blocks = new ArrayList<>();
+        final List<Check> checks = new ArrayList<>();
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            if (loop.contains(block)) {
+                blocks.add(block);
+                final Check check = matchCheck(block, inductionVar, start, loop);
+                if (check != null) {
+                    checks.add(check);
+                }
+            }
+        }
+        if (checks.isEmpty()) {
+            return false;
+        }
+
+        //
+        // Values of the loop can only be used after it if they are defined
+        // in the header, which then has to merge them with the ones of the
+        // copy in the exit.
+        //
+        final List<VarRef> usesAfter = new ArrayList<>();
+        final Set<Variable> headerVars = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Instruction instr : header) {
+            if (instr instanceof Assign) {
+                headerVars.add(((Assign) instr).getVar());
+            }
+        }
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            if (loop.contains(block)) {
+                continue;
+            }
+            block.accept(new Element.DefaultVisitor() {
+                @Override
+                public void visit(PhiNodeChoice choice) {
+                    if (choice.getLabel() != header) {
+                        super.visit(choice);
+                    }
+                }
+
+                @Override
+                public void visit(VarRef ref) {
+                    super.visit(ref);
+                    if (headerVars.contains(ref.getVariable())) {
+                        usesAfter.add(ref);
+                    }
+                }
+            });
+        }
+        if (!usesAfter.isEmpty() && cfg.getPredecessors(exit).size() != 1) {
+            return false;
+        }
+
+        final Map<BasicBlock, BasicBlock> copies = new IdentityHashMap<>();
+        final Map<Variable, Variable> vars = new IdentityHashMap<>();
+        final List<BasicBlock> fastBlocks = copyLoop(blocks, copies, vars);
+        final BasicBlock fastHeader = copies.get(header);
+
+        //
+        // The lengths of the arrays can only be loaded once they are known
+        // not to be null.
+        //
+        final List<BasicBlock> guards = new ArrayList<>();
+        final BasicBlock slowLoop = BasicBlock();
+        slowLoop.setName("slowLoop");
+        slowLoop.add(Jump(header));
+        final BasicBlock versionNulls = BasicBlock();
+        versionNulls.setName("versionNulls");
+        guards.add(versionNulls);
+        final Operand anyNull = addNullGuard(checks, versionNulls);
+        final BasicBlock versionBounds = BasicBlock();
+        versionBounds.setName("versionBounds");
+        final Operand outOfBounds = addBoundsGuard(checks, start, condition.getRight(),
+                versionBounds);
+        BasicBlock lastGuard = versionNulls;
+        if (outOfBounds == null) {
+            versionNulls.add(Branch(anyNull, slowLoop, fastHeader));
+        } else {
+            versionNulls.add(Branch(anyNull, slowLoop, versionBounds));
+            versionBounds.add(Branch(outOfBounds, slowLoop, fastHeader));
+            guards.add(versionBounds);
+            lastGuard = versionBounds;
+        }
+
+        Instructions.replaceTarget(preheader.getTerminatingInstruction().get(), header,
+                versionNulls);
+        Instructions.replacePhiPredecessor(header, preheader, slowLoop);
+        Instructions.replacePhiPredecessor(fastHeader, preheader, lastGuard);
+        final List<Operand> removedConditions = new ArrayList<>();
+        for (Check check : checks) {
+            final Branch fastBranch = (Branch) copyOf(check.branch, copies);
+            fastBranch.replaceBy(Jump(fastBranch.getIfFalseLabel()));
+            removedConditions.add(fastBranch.getCondition());
+        }
+
+        for (PhiNode phi : exit.getPhiNodes()) {
+            for (PhiNodeChoice choice : new ArrayList<>(phi.getChoices())) {
+                if (choice.getLabel() == header) {
+                    phi.getChoices().add(PhiNodeChoice(fastHeader,
+                            mapOperand(choice.getValue(), vars)));
+                }
+            }
+        }
+        final Map<Variable, Variable> merged = new IdentityHashMap<>();
+        int phiIndex = 0;
+        for (VarRef ref : usesAfter) {
+            final Variable var = ref.getVariable();
+            if (!merged.containsKey(var)) {
+                final TemporaryVar mergedVar = TemporaryVar(var.getName());
+                exit.add(phiIndex++, PhiNode(mergedVar, var.calculateType(), PhiNodeChoiceList(
+                        PhiNodeChoice(header, VarRef(var)),
+                        PhiNodeChoice(fastHeader, VarRef(vars.get(var))))));
+                merged.put(var, mergedVar);
+            }
+            ref.setVariable(merged.get(var));
+        }
+
+        final BasicBlockList procBlocks = proc.getBasicBlocks();
+        int index = indexOf(procBlocks, header);
+        for (BasicBlock block : guards) {
+            procBlocks.add(index++, block);
+        }
+        for (BasicBlock block : fastBlocks) {
+            procBlocks.add(index++, block);
+        }
+        procBlocks.add(index, slowLoop);
+        final Uses uses = new Uses(proc);
+        for (Operand removedCondition : removedConditions) {
+            Instructions.removeIfUnused(removedCondition, uses);
+        }
+
+        versioned.add(header);
+        ++versionedLoops;
+        removedChecks += checks.size();
+        return true;
+    }
+
+    /**
+     * Gets the induction variable of a loop compared in its header, a phi
+     * node incremented by one in the latch.
+     *
+     * @return null, or the phi node, if the operand is an induction variable.
+     */
+    private static PhiNode getInductionVar(Operand operand, BasicBlock header,
+                                           BasicBlock preheader, BasicBlock latch) {
+        if (!(operand instanceof VarRef)
+                || !(((VarRef) operand).getVariable().getParent() instanceof PhiNode)) {
+            return null;
+        }
+        final PhiNode phi = (PhiNode) ((VarRef) operand).getVariable().getParent();
+        if (Instructions.getBlock(phi) != header || phi.getChoices().size() != 2) {
+            return null;
+        }
+        Operand start = null;
+        Operand next = null;
+        for (PhiNodeChoice choice : phi.getChoices()) {
+            if (choice.getLabel() == preheader) {
+                start = choice.getValue();
+            } else if (choice.getLabel() == latch) {
+                next = choice.getValue();
+            }
+        }
+        //
+        // Incrementing by one cannot overflow, as the variable is smaller
+        // than n in the loop.
+        //
+        final Integer step = getOffset(next, phi);
+        return start != null && step != null && step == 1 ? phi : null;
+    }
+
+    /**
+     * Matches a null check of a loop invariant array, or a bounds check of
+     * one at the induction variable plus a constant or at a loop invariant
+     * index, ending a block.
+     *
+     * @return null, or the check, if the guard can test it.
+     */
+    private static Check matchCheck(BasicBlock block, PhiNode inductionVar, Operand start,
+                                    LoopNest.Loop loop) {
+        final Optional<TerminatingInstruction> terminator = block.getTerminatingInstruction();
+        if (!terminator.isPresent() || !(terminator.get() instanceof Branch)) {
+            return null;
+        }
+        final Branch branch = (Branch) terminator.get();
+        if (!isHalting(branch.getIfTrueLabel()) || isHalting(branch.getIfFalseLabel())) {
+            return null;
+        }
+
+        final BinaryOperation condition = getBinaryOperation(branch.getCondition());
+        if (condition != null && condition.getOperator() instanceof Eq
+                && condition.getRight() instanceof Nullpointer) {
+            return isInvariant(condition.getLeft(), loop)
+                    ? new Check(branch, condition.getLeft(), null, null)
+                    : null;
+        }
+
+        final BinaryOperation outOfBounds = condition;
+        if (outOfBounds == null || !(outOfBounds.getOperator() instanceof Or)) {
+            return null;
+        }
+        final BinaryOperation smallerZero = getBinaryOperation(outOfBounds.getLeft());
+        final BinaryOperation greaterEqualLen = getBinaryOperation(outOfBounds.getRight());
+        if (smallerZero == null || !(smallerZero.getOperator() instanceof Slt)
+                || !isConstInt(smallerZero.getRight(), 0)
+                || greaterEqualLen == null || !(greaterEqualLen.getOperator() instanceof Slt)
+                || !isSameVar(smallerZero.getLeft(), greaterEqualLen.getRight())) {
+            return null;
+        }
+        final BinaryOperation lenMinusOne = getBinaryOperation(greaterEqualLen.getLeft());
+        if (lenMinusOne == null || !(lenMinusOne.getOperator() instanceof Sub)
+                || !isConstInt(lenMinusOne.getRight(), 1)) {
+            return null;
+        }
+        final Operand array = getArrayOfLength(lenMinusOne.getLeft());
+        if (array == null || !isInvariant(array, loop)) {
+            return null;
+        }
+        final Operand index = smallerZero.getLeft();
+        if (isInvariant(index, loop)) {
+            return new Check(branch, array, index, null);
+        }
+        final Integer offset = getOffset(index, inductionVar);
+        if (offset == null || offset == Integer.MIN_VALUE || start instanceof ConstInt
+                && (long) ((ConstInt) start).getIntVal() + offset < 0) {
+            return null;
+        }
+        return new Check(branch, array, null, offset);
+    }
+
+    /**
+     * Gets the constant added to the induction variable by a value.
+     *
+     * @return null, or the constant, if the value is the induction variable
+     *         plus or minus a constant.
+     */
+    private static Integer getOffset(Operand value, PhiNode inductionVar) {
+        if (isVarRefTo(value, inductionVar.getVar())) {
+            return 0;
+        }
+        final BinaryOperation op = getBinaryOperation(value);
+        if (op == null) {
+            return null;
+        }
+        final Variable var = inductionVar.getVar();
+        if (op.getOperator() instanceof Add && isVarRefTo(op.getLeft(), var)
+                && op.getRight() instanceof ConstInt) {
+            return ((ConstInt) op.getRight()).getIntVal();
+        }
+        if (op.getOperator() instanceof Add && isVarRefTo(op.getRight(), var)
+                && op.getLeft() instanceof ConstInt) {
+            return ((ConstInt) op.getLeft()).getIntVal();
+        }
+        if (op.getOperator() instanceof Sub && isVarRefTo(op.getLeft(), var)
+                && op.getRight() instanceof ConstInt
+                && ((ConstInt) op.getRight()).getIntVal() != Integer.MIN_VALUE) {
+            return -((ConstInt) op.getRight()).getIntVal();
+        }
+        return null;
+    }
+
+    /**
+     * Adds the tests of the checked arrays for null to a block.
+     *
+     * @return  The condition holding if any of them is null.
+     */
+    private static Operand addNullGuard(List<Check> checks, BasicBlock block) {
+        final List<Operand> arrays = new ArrayList<>();
+        Operand anyNull = null;
+        for (Check check : checks) {
+            if (indexOf(arrays, check.array) < 0) {
+                arrays.add(check.array);
+                final TemporaryVar isNull = TemporaryVar("isNull");
+                block.add(BinaryOperation(isNull, check.array.copy(), Eq(), Nullpointer()));
+                anyNull = combine(block, anyNull, VarRef(isNull));
+            }
+        }
+        return anyNull;
+    }
+
+    /**
+     * Adds the tests of the checked indexes to a block, which loads the
+     * lengths of the arrays.
+     *
+     * <p>The induction variable takes values from start to n - 1, so "i + c"
+     * is within the bounds if "start + c &gt;= 0" and "n + c &lt;= length".
+     * The latter is tested as "n &lt;= length - c" for positive c, and as
+     * "n &lt;= length" otherwise, which cannot overflow.
+     *
+     * @return null, or the condition holding if any index may be out of
+     *         bounds, if there are bounds checks.
+     */
+    private static Operand addBoundsGuard(List<Check> checks, Operand start, Operand end,
+                                          BasicBlock block) {
+        final List<Operand> arrays = new ArrayList<>();
+        final List<Operand> lengths = new ArrayList<>();
+        final List<Integer> minOffsets = new ArrayList<>();
+        final List<Integer> maxOffsets = new ArrayList<>();
+        Operand outOfBounds = null;
+        for (Check check : checks) {
+            if (check.index == null && check.offset == null) {
+                continue;
+            }
+            int array = indexOf(arrays, check.array);
+            if (array < 0) {
+                final TemporaryVar lengthAddr = TemporaryVar("length_addr");
+                block.add(GetElementPtr(lengthAddr, check.array.copy(),
+                        OperandList(ConstInt(0), ConstInt(0))));
+                final TemporaryVar length = TemporaryVar("len");
+                block.add(Load(length, VarRef(lengthAddr)));
+                array = arrays.size();
+                arrays.add(check.array);
+                lengths.add(VarRef(length));
+                minOffsets.add(null);
+                maxOffsets.add(null);
+            }
+            if (check.offset != null) {
+                if (minOffsets.get(array) == null || check.offset < minOffsets.get(array)) {
+                    minOffsets.set(array, check.offset);
+                }
+                if (maxOffsets.get(array) == null || check.offset > maxOffsets.get(array)) {
+                    maxOffsets.set(array, check.offset);
+                }
+                continue;
+            }
+            outOfBounds = addLowerTest(block, outOfBounds, check.index, 0);
+            outOfBounds = addUpperTest(block, outOfBounds, lengths.get(array), check.index, 1);
+        }
+
+        //
+        // Only the smallest and largest offset of each array need to be
+        // tested for the induction variable.
+        //
+        for (int i = 0; i < arrays.size(); ++i) {
+            if (minOffsets.get(i) != null) {
+                outOfBounds = addLowerTest(block, outOfBounds, start, -minOffsets.get(i));
+                outOfBounds = addUpperTest(block, outOfBounds, lengths.get(i), end,
+                        Math.max(maxOffsets.get(i), 0));
+            }
+        }
+        return outOfBounds;
+    }
+
+    /**
+     * Adds the test "value &lt; minimum" to a block, unless it is known not
+     * to hold.
+     *
+     * @return  The disjunction of the previous tests and this one.
+     */
+    private static Operand addLowerTest(BasicBlock block, Operand previous, Operand value,
+                                        int minimum) {
+        if (value instanceof ConstInt && ((ConstInt) value).getIntVal() >= minimum) {
+            return previous;
+        }
+        final TemporaryVar smallerZero = TemporaryVar("smallerZero");
+        block.add(BinaryOperation(smallerZero, value.copy(), Slt(), ConstInt(minimum)));
+        return combine(block, previous, VarRef(smallerZero));
+    }
+
+    /**
+     * Adds the test "length - offset &lt; limit" to a block, for an offset of
+     * at least 0, which cannot overflow.
+     *
+     * @return  The disjunction of the previous tests and this one.
+     */
+    private static Operand addUpperTest(BasicBlock block, Operand previous, Operand length,
+                                        Operand limit, int offset) {
+        Operand bound = length.copy();
+        if (offset > 0) {
+            final TemporaryVar lenMinusOffset = TemporaryVar("lenMinusOffset");
+            block.add(BinaryOperation(lenMinusOffset, bound, Sub(), ConstInt(offset)));
+            bound = VarRef(lenMinusOffset);
+        }
+        final TemporaryVar greaterEqualLen = TemporaryVar("greaterEqualLen");
+        block.add(BinaryOperation(greaterEqualLen, bound, Slt(), limit.copy()));
+        return combine(block, previous, VarRef(greaterEqualLen));
+    }
+
+    /**
+     * Adds the disjunction of two conditions to a block.
+     *
+     * @return  The disjunction, or the condition if it is the first one.
+     */
+    private static Operand combine(BasicBlock block, Operand previous, Operand condition) {
+        if (previous == null) {
+            return condition;
+        }
+        final TemporaryVar either = TemporaryVar("either");
+        block.add(BinaryOperation(either, previous, Or(), condition));
+        return VarRef(either);
+    }
+
+    /**
+     * Copies the blocks of a loop with fresh variables and blocks, including
+     * the phi nodes of the header. Edges within the loop lead to the copies,
+     * edges out of the loop are kept.
+     *
+     * @param blocks  The blocks of the loop.
+     * @param copies  Receives the copies of the blocks.
+     * @param vars    Receives the copies of the variables.
+     *
+     * @return  The copied blocks.
+     */
+    private static List<BasicBlock> copyLoop(List<BasicBlock> blocks,
+                                             Map<BasicBlock, BasicBlock> copies,
+                                             Map<Variable, Variable> vars) {
+        final List<BasicBlock> result = new ArrayList<>();
+        for (BasicBlock block : blocks) {
+            final BasicBlock copy = BasicBlock();
+            copy.setName(block.getName() + "_fast");
+            copies.put(block, copy);
+            result.add(copy);
+            for (Instruction instr : block) {
+                final Instruction instrCopy = instr.copy();
+                if (instr instanceof Assign) {
+                    vars.put(((Assign) instr).getVar(), ((Assign) instrCopy).getVar());
+                }
+                copy.add(instrCopy);
+            }
+        }
+
+        for (BasicBlock copy : result) {
+            copy.accept(new Element.DefaultVisitor() {
+                @Override
+                public void visit(VarRef ref) {
+                    super.visit(ref);
+                    ref.setVariable(vars.getOrDefault(ref.getVariable(), ref.getVariable()));
+                }
+
+                @Override
+                public void visit(PhiNodeChoice choice) {
+                    super.visit(choice);
+                    choice.setLabel(copies.getOrDefault(choice.getLabel(), choice.getLabel()));
+                }
+
+                @Override
+                public void visit(Jump jump) {
+                    super.visit(jump);
+                    jump.setLabel(copies.getOrDefault(jump.getLabel(), jump.getLabel()));
+                }
+
+                @Override
+                public void visit(Branch branch) {
+                    super.visit(branch);
+                    branch.setIfTrueLabel(copies.getOrDefault(branch.getIfTrueLabel(),
+                            branch.getIfTrueLabel()));
+                    branch.setIfFalseLabel(copies.getOrDefault(branch.getIfFalseLabel(),
+                            branch.getIfFalseLabel()));
+                }
+            });
+        }
+        return result;
+    }
+
+    private static Instruction copyOf(Instruction instr, Map<BasicBlock, BasicBlock> copies) {
+        final BasicBlock block = Instructions.getBlock(instr);
+        return copies.get(block).get(Instructions.indexOf(block, instr));
+    }
+
+    private static Operand mapOperand(Operand operand, Map<Variable, Variable> vars) {
+        if (operand instanceof VarRef && vars.containsKey(((VarRef) operand).getVariable())) {
+            return VarRef(vars.get(((VarRef) operand).getVariable()));
+        }
+        return operand.copy();
+    }
+
+    /**
+     * Checks whether the only edges leaving a loop, apart from the ones of
+     * the header, lead to blocks stopping with an error, without phi nodes
+     * or uses of values of the loop.
+     */
+    private static boolean hasOnlyHaltingExits(LoopNest.Loop loop) {
+        for (BasicBlock block : loop.getBlocks()) {
+            if (block == loop.getHeader()) {
+                continue;
+            }
+            for (BasicBlock successor : ControlFlowGraph.successorsOf(block)) {
+                if (!loop.contains(successor) && (!isHalting(successor)
+                        || !successor.getPhiNodes().isEmpty() || usesLoop(successor, loop))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean usesLoop(BasicBlock block, LoopNest.Loop loop) {
+        final boolean[] result = {false};
+        block.accept(new Element.DefaultVisitor() {
+            @Override
+            public void visit(VarRef ref) {
+                super.visit(ref);
+                result[0] |= !isInvariant(ref, loop);
+            }
+        });
+        return result[0];
+    }
+
+    private static boolean isHalting(BasicBlock block) {
+        for (Instruction instr : block) {
+            if (instr instanceof HaltWithError) {
+                return true;
+            }
+            if (!(instr instanceof CommentInstr)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an operand is defined outside of a loop.
+     */
+    private static boolean isInvariant(Operand operand, LoopNest.Loop loop) {
+        if (!(operand instanceof VarRef)) {
+            return true;
+        }
+        final Element def = ((VarRef) operand).getVariable().getParent();
+        return !(def instanceof Instruction)
+                || !loop.contains(Instructions.getBlock((Instruction) def));
+    }
+
+    /**
+     * Gets the array whose length is loaded into a value.
+     *
+     * @return null, or the array, if the value is an array length.
+     */
+    private static Operand getArrayOfLength(Operand value) {
+        if (!(value instanceof VarRef)
+                || !(((VarRef) value).getVariable().getParent() instanceof Load)) {
+            return null;
+        }
+        final Load load = (Load) ((VarRef) value).getVariable().getParent();
+        if (!(load.getAddress() instanceof VarRef)
+                || !(((VarRef) load.getAddress()).getVariable().getParent()
+                        instanceof GetElementPtr)) {
+            return null;
+        }
+        final GetElementPtr gep =
+                (GetElementPtr) ((VarRef) load.getAddress()).getVariable().getParent();
+        if (gep.getIndices().size() != 2
+                || !isConstInt(gep.getIndices().get(0), 0)
+                || !isConstInt(gep.getIndices().get(1), 0)) {
+            return null;
+        }
+        final Type baseType = gep.getBaseAddress().calculateType();
+        if (!(baseType instanceof TypePointer)
+                || !(((TypePointer) baseType).getTo() instanceof TypeStruct)) {
+            return null;
+        }
+        final TypeStruct struct = (TypeStruct) ((TypePointer) baseType).getTo();
+        if (struct.getFields().isEmpty()
+                || !struct.getFields().get(0).getName().equals("length")) {
+            return null;
+        }
+        return gep.getBaseAddress();
+    }
+
+    private static BinaryOperation getBinaryOperation(Operand operand) {
+        if (!(operand instanceof VarRef)) {
+            return null;
+        }
+        final Element def = ((VarRef) operand).getVariable().getParent();
+        return def instanceof BinaryOperation ? (BinaryOperation) def : null;
+    }
+
+    private static boolean isSameVar(Operand a, Operand b) {
+        if (a instanceof ConstInt && b instanceof ConstInt) {
+            return ((ConstInt) a).getIntVal() == ((ConstInt) b).getIntVal();
+        }
+        return a instanceof VarRef && b instanceof VarRef
+                && ((VarRef) a).getVariable() == ((VarRef) b).getVariable();
+    }
+
+    private static boolean isVarRefTo(Operand operand, Variable var) {
+        return operand instanceof VarRef && ((VarRef) operand).getVariable() == var;
+    }
+
+    private static boolean isConstInt(Operand operand, int value) {
+        return operand instanceof ConstInt && ((ConstInt) operand).getIntVal() == value;
+    }
+
+    private static int indexOf(List<Operand> arrays, Operand array) {
+        for (int i = 0; i < arrays.size(); ++i) {
+            if (isSameVar(arrays.get(i), array)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(BasicBlockList blocks, BasicBlock block) {
+        for (int i = 0; i < blocks.size(); ++i) {
+            if (blocks.get(i) == block) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,341 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.analysis.DominatorTree;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Promotes stack slots to SSA registers.
+ *
+ * <p>The translation gives every parameter and local variable an Alloca, so
+ * every read becomes a Load and every write a Store. An Alloca whose address
+ * is only ever used as the address of Load and Store instructions does not
+ * escape and is replaced by SSA values: phi nodes are placed at the iterated
+ * dominance frontier of all blocks writing the slot, and every Load is
+ * replaced by the reaching definition.
+ */
+public class Mem2Reg {
+
+    private Uses uses;
+
+    /**
+     * The stack slots being promoted, in program order.
+     */
+    private final List<Alloca> slots = new ArrayList<>();
+
+    /**
+     * An index of the promoted stack slots by their address variable.
+     */
+    private final Map<Variable, Alloca> slotByVar = new IdentityHashMap<>();
+
+    /**
+     * The phi nodes placed for each block, and the slots they belong to.
+     */
+    private final Map<BasicBlock, List<PhiNode>> blockPhis = new IdentityHashMap<>();
+    private final Map<PhiNode, Alloca> phiSlot = new IdentityHashMap<>();
+
+    /**
+     * Typed null pointers for pointer slots. A raw Nullpointer operand has no
+     * type of its own and cannot be used as a base address, so loads of null
+     * values are replaced by a Bitcast in the entry block instead.
+     */
+    private final Map<Alloca, TemporaryVar> typedNull = new IdentityHashMap<>();
+
+    private BasicBlock entry;
+
+    /**
+     * Promotes all non-escaping stack slots of a procedure.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  The amount of promoted stack slots.
+     */
+    public int run(Proc proc) {
+        if (proc.getBasicBlocks().isEmpty()) {
+            return 0;
+        }
+        //
+        // Loads in unreachable blocks have no reaching definition.
+        //
+        Instructions.removeUnreachableBlocks(proc);
+
+        final ControlFlowGraph cfg = new ControlFlowGraph(proc);
+        final DominatorTree domTree = new DominatorTree(cfg);
+        uses = new Uses(proc);
+        entry = cfg.getEntry();
+
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (Instruction instr : block) {
+                if (instr instanceof Alloca && isPromotable((Alloca) instr, uses)) {
+                    slots.add((Alloca) instr);
+                    slotByVar.put(((Alloca) instr).getVar(), (Alloca) instr);
+                }
+            }
+        }
+
+        if (slots.isEmpty()) {
+            return 0;
+        }
+
+        for (Alloca slot : slots) {
+            placePhiNodes(slot, domTree);
+        }
+
+        final Map<BasicBlock, Map<Alloca, Operand>> outValues = rename(domTree);
+
+        for (BasicBlock block : cfg.getReversePostOrder()) {
+            final Map<Alloca, Operand> values = outValues.get(block);
+            for (BasicBlock successor : cfg.getSuccessors(block)) {
+                for (PhiNode phi : blockPhis.getOrDefault(successor, Collections.emptyList())) {
+                    final Alloca slot = phiSlot.get(phi);
+                    final Operand value = currentValue(values, slot).copy();
+                    phi.getChoices().add(PhiNodeChoice(block, value));
+                    uses.register(value);
+                }
+            }
+        }
+
+        removeDeadPhiNodes();
+        return slots.size();
+    }
+
+    /**
+     * Checks whether the address of a stack slot is only used to load from
+     * and store to it. No other code can access the content of such a slot.
+     */
+    static boolean isPromotable(Alloca alloca, Uses uses) {
+        for (VarRef ref : uses.get(alloca.getVar())) {
+            final Element parent = ref.getParent();
+            if (parent instanceof Load && ((Load) parent).getAddress() == ref) {
+                continue;
+            }
+            if (parent instanceof Store && ((Store) parent).getAddress() == ref) {
+                continue;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void placePhiNodes(Alloca slot, DominatorTree domTree) {
+        //
+        // The Alloca itself defines the slot as uninitialized, which matters
+        // for slots allocated inside of loops.
+        //
+        final List<BasicBlock> defBlocks = new ArrayList<>();
+        final Set<BasicBlock> isDefBlock = Collections.newSetFromMap(new IdentityHashMap<>());
+        final BasicBlock allocaBlock = Instructions.getBlock(slot);
+        isDefBlock.add(allocaBlock);
+        defBlocks.add(allocaBlock);
+        for (VarRef ref : uses.get(slot.getVar())) {
+            if (ref.getParent() instanceof Store) {
+                final BasicBlock block = Instructions.getBlock((Store) ref.getParent());
+                if (isDefBlock.add(block)) {
+                    defBlocks.add(block);
+                }
+            }
+        }
+        //
+        // Place phi nodes at the iterated dominance frontier.
+        //
+        final Set<BasicBlock> hasPhi = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<BasicBlock> worklist = new ArrayDeque<>(defBlocks);
+        while (!worklist.isEmpty()) {
+            final BasicBlock block = worklist.pop();
+            for (BasicBlock frontier : domTree.getDominanceFrontier(block)) {
+                if (!hasPhi.add(frontier)) {
+                    continue;
+                }
+
+                final PhiNode phi = PhiNode(
+                    TemporaryVar(slot.getVar().getName()),
+                    slot.getType(),
+                    PhiNodeChoiceList()
+                );
+                frontier.addFront(phi);
+                blockPhis.computeIfAbsent(frontier, b -> new ArrayList<>()).add(phi);
+                phiSlot.put(phi, slot);
+
+                if (isDefBlock.add(frontier)) {
+                    worklist.push(frontier);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces all loads by the reaching definitions and removes the stack
+     * slots including all stores to them. Blocks are visited in dominator tree
+     * pre-order, so the definitions reaching a block without a phi node are the
+     * ones reaching the end of its immediate dominator.
+     *
+     * @return  The definitions reaching the end of each block.
+     */
+    private Map<BasicBlock, Map<Alloca, Operand>> rename(DominatorTree domTree) {
+        final Map<BasicBlock, Map<Alloca, Operand>> outValues = new IdentityHashMap<>();
+        for (BasicBlock block : domTree.getPreorder()) {
+            final BasicBlock idom = domTree.getImmediateDominator(block);
+            final Map<Alloca, Operand> values = idom == null
+                    ? new IdentityHashMap<>()
+                    : new IdentityHashMap<>(outValues.get(idom));
+
+            for (PhiNode phi : blockPhis.getOrDefault(block, Collections.emptyList())) {
+                values.put(phiSlot.get(phi), VarRef(phi.getVar()));
+            }
+
+            for (Instruction instr : Instructions.snapshot(block)) {
+                if (instr instanceof Alloca && slotByVar.containsKey(((Alloca) instr).getVar())) {
+                    values.remove((Alloca) instr);
+                    Instructions.remove(instr);
+                } else if (instr instanceof Load) {
+                    final Load load = (Load) instr;
+                    final Alloca slot = getSlot(load.getAddress());
+                    if (slot == null) {
+                        continue;
+                    }
+
+                    uses.forget(load);
+                    Instructions.remove(load);
+                    uses.replaceAll(load.getVar(), currentValue(values, slot));
+                } else if (instr instanceof Store) {
+                    final Store store = (Store) instr;
+                    final Alloca slot = getSlot(store.getAddress());
+                    if (slot == null) {
+                        continue;
+                    }
+
+                    Operand value = store.getValue();
+                    if (value instanceof Nullpointer) {
+                        value = VarRef(getTypedNull(slot));
+                    }
+                    values.put(slot, value.copy());
+                    uses.forget(store);
+                    Instructions.remove(store);
+                }
+            }
+
+            outValues.put(block, values);
+        }
+        return outValues;
+    }
+
+    private Alloca getSlot(Operand address) {
+        if (!(address instanceof VarRef)) {
+            return null;
+        }
+        return slotByVar.get(((VarRef) address).getVariable());
+    }
+
+    /**
+     * Gets the definition of a slot from a set of reaching definitions. Slots
+     * without a definition are uninitialized and read as the default value.
+     */
+    private Operand currentValue(Map<Alloca, Operand> values, Alloca slot) {
+        final Operand value = values.get(slot);
+        if (value != null) {
+            return value;
+        }
+
+        return slot.getType().match(new Type.Matcher<Operand>() {
+            @Override
+            public Operand case_TypeByte(TypeByte typeByte) {
+                return ConstInt(0);
+            }
+
+            @Override
+            public Operand case_TypeArray(TypeArray typeArray) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public Operand case_TypeProc(TypeProc typeProc) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public Operand case_TypeInt(TypeInt typeInt) {
+                return ConstInt(0);
+            }
+
+            @Override
+            public Operand case_TypeStruct(TypeStruct typeStruct) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public Operand case_TypeNullpointer(TypeNullpointer typeNullpointer) {
+                return VarRef(getTypedNull(slot));
+            }
+
+            @Override
+            public Operand case_TypeVoid(TypeVoid typeVoid) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public Operand case_TypeBool(TypeBool typeBool) {
+                return ConstBool(false);
+            }
+
+            @Override
+            public Operand case_TypePointer(TypePointer typePointer) {
+                return VarRef(getTypedNull(slot));
+            }
+        });
+    }
+
+    private TemporaryVar getTypedNull(Alloca slot) {
+        return typedNull.computeIfAbsent(slot, s -> {
+            final TemporaryVar nullVar = TemporaryVar(s.getVar().getName() + "_null");
+            entry.add(Instructions.firstNonPhiIndex(entry),
+                    Bitcast(nullVar, s.getType(), Nullpointer()));
+            return nullVar;
+        });
+    }
+
+    /**
+     * Removes all placed phi nodes whose values are only used by other
+     * unused phi nodes.
+     */
+    private void removeDeadPhiNodes() {
+        final Set<PhiNode> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<PhiNode> worklist = new ArrayDeque<>();
+        for (PhiNode phi : phiSlot.keySet()) {
+            for (VarRef ref : uses.get(phi.getVar())) {
+                if (!(Instructions.getInstruction(ref) instanceof PhiNode)
+                        && live.add(phi)) {
+                    worklist.push(phi);
+                }
+            }
+        }
+
+        while (!worklist.isEmpty()) {
+            final PhiNode phi = worklist.pop();
+            for (PhiNodeChoice choice : phi.getChoices()) {
+                if (!(choice.getValue() instanceof VarRef)) {
+                    continue;
+                }
+
+                final Element def = ((VarRef) choice.getValue()).getVariable().getParent();
+                if (def instanceof PhiNode && phiSlot.containsKey(def)
+                        && live.add((PhiNode) def)) {
+                    worklist.push((PhiNode) def);
+                }
+            }
+        }
+
+        for (List<PhiNode> phis : blockPhis.values()) {
+            for (PhiNode phi : phis) {
+                if (!live.contains(phi)) {
+                    uses.forget(phi);
+                    Instructions.remove(phi);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Memoizes the results of recursive pure procedures over integers.
+ *
+ * <p>A procedure is pure if it only accesses its own stack slots, does not
+ * print and only calls pure procedures. Pure procedures with integer
+ * parameters and result that can call themselves get a global table of
+ * {@link #TABLE_SIZE} entries, each holding whether it is valid, the
+ * arguments and the result. A new entry block hashes the arguments to an
+ * entry and returns its result if it is valid and holds the same arguments.
+ * Otherwise the procedure runs as before, and fills the entry before
+ * returning. Entries are simply overwritten on collisions, so the table
+ * never grows.
+ *
+ * <p>Procedures stopping with an error never fill an entry, so the error is
+ * still raised by every call.
+ */
+public class Memoization {
+
+    /**
+     * The amount of entries of a table, a power of two.
+     */
+    public static final int TABLE_SIZE = 1024;
+
+    private final Set<Proc> pure = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Determines the pure procedures of a program.
+     *
+     * @param prog  The program whose procedures to analyze.
+     */
+    public Memoization(Prog prog) {
+        for (Proc proc : prog.getProcedures()) {
+            if (!proc.getBasicBlocks().isEmpty() && hasPureInstructions(proc)) {
+                pure.add(proc);
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Proc proc : new ArrayList<>(pure)) {
+                for (Proc callee : getCallees(proc)) {
+                    if (!pure.contains(callee)) {
+                        pure.remove(proc);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether a procedure has no effects apart from its result.
+     *
+     * @param proc  The procedure to check.
+     *
+     * @return  Whether the procedure is pure.
+     */
+    public boolean isPure(Proc proc) {
+        return pure.contains(proc);
+    }
+
+    /**
+     * Memoizes a procedure if it is a recursive pure procedure over
+     * integers.
+     *
+     * @param proc  The procedure to memoize.
+     * @param prog  The program to add the table of the procedure to.
+     *
+     * @return  Whether the procedure was memoized.
+     */
+    public boolean run(Proc proc, Prog prog) {
+        if (!isPure(proc) || !(proc.getReturnType() instanceof TypeInt)
+                || proc.getParameters().isEmpty() || !isRecursive(proc)) {
+            return false;
+        }
+        for (Parameter param : proc.getParameters()) {
+            if (!(param.getType() instanceof TypeInt)) {
+                return false;
+            }
+        }
+
+        //
+        // The entries: {valid, arguments..., result}.
+        //
+        final StructFieldList fields = StructFieldList(StructField(TypeBool(), "valid"));
+        for (Parameter param : proc.getParameters()) {
+            fields.add(StructField(TypeInt(), param.getName()));
+        }
+        fields.add(StructField(TypeInt(), "result"));
+        final int resultIndex = fields.size() - 1;
+        //
+        // The dot cannot occur in NQJ names, so the names are unique.
+        //
+        final TypeStruct entryType = TypeStruct(proc.getName() + ".memo_entry", fields);
+        prog.getStructTypes().add(entryType);
+        final TypeArray tableType = TypeArray(entryType, TABLE_SIZE);
+        final Global table = Global(tableType, proc.getName() + ".memo", false,
+                ConstZero(tableType));
+        prog.getGlobals().add(table);
+
+        final BasicBlockList blocks = proc.getBasicBlocks();
+        final BasicBlock body = blocks.get(0);
+        final BasicBlock lookup = BasicBlock();
+        lookup.setName("memo_lookup");
+        final BasicBlock check = BasicBlock();
+        check.setName("memo_check");
+        final BasicBlock hit = BasicBlock();
+        hit.setName("memo_hit");
+        final List<BasicBlock> original = new ArrayList<>(blocks);
+
+        for (Instruction instr : Instructions.snapshot(body)) {
+            if (instr instanceof Alloca) {
+                Instructions.remove(instr);
+                lookup.add(instr);
+            }
+        }
+
+        //
+        // Hash the arguments, and compute all field addresses of the entry
+        // up front, so the returns can use them as well.
+        //
+        Operand hash = VarRef(proc.getParameters().get(0));
+        for (int i = 1; i < proc.getParameters().size(); ++i) {
+            final TemporaryVar scaled = TemporaryVar("memo_scaled");
+            lookup.add(BinaryOperation(scaled, hash, Mul(), ConstInt(31)));
+            final TemporaryVar sum = TemporaryVar("memo_hash");
+            lookup.add(BinaryOperation(sum, VarRef(scaled), Add(),
+                    VarRef(proc.getParameters().get(i))));
+            hash = VarRef(sum);
+        }
+        final TemporaryVar index = TemporaryVar("memo_index");
+        lookup.add(BinaryOperation(index, hash, And(), ConstInt(TABLE_SIZE - 1)));
+        final List<TemporaryVar> fieldAddresses = new ArrayList<>();
+        for (int i = 0; i < fields.size(); ++i) {
+            final TemporaryVar address = TemporaryVar("memo_" + fields.get(i).getName());
+            lookup.add(GetElementPtr(address, GlobalRef(table),
+                    OperandList(ConstInt(0), VarRef(index), ConstInt(i))));
+            fieldAddresses.add(address);
+        }
+        final TemporaryVar valid = TemporaryVar("memo_valid");
+        lookup.add(Load(valid, VarRef(fieldAddresses.get(0))));
+        lookup.add(Branch(VarRef(valid), check, body));
+
+        Operand matches = null;
+        for (int i = 0; i < proc.getParameters().size(); ++i) {
+            final TemporaryVar stored = TemporaryVar("memo_stored");
+            check.add(Load(stored, VarRef(fieldAddresses.get(i + 1))));
+            final TemporaryVar equal = TemporaryVar("memo_equal");
+            check.add(BinaryOperation(equal, VarRef(stored), Eq(),
+                    VarRef(proc.getParameters().get(i))));
+            if (i == 0) {
+                matches = VarRef(equal);
+            } else {
+                final TemporaryVar both = TemporaryVar("memo_matches");
+                check.add(BinaryOperation(both, matches, And(), VarRef(equal)));
+                matches = VarRef(both);
+            }
+        }
+        check.add(Branch(matches, hit, body));
+
+        final TemporaryVar result = TemporaryVar("memo_cached");
+        hit.add(Load(result, VarRef(fieldAddresses.get(resultIndex))));
+        hit.add(ReturnExpr(VarRef(result)));
+
+        for (BasicBlock block : original) {
+            final Optional<TerminatingInstruction> terminator = block.getTerminatingInstruction();
+            if (!terminator.isPresent() || !(terminator.get() instanceof ReturnExpr)) {
+                continue;
+            }
+            final Operand value = ((ReturnExpr) terminator.get()).getReturnValue();
+            final Instruction ret = terminator.get();
+            Instructions.insertBefore(ret, Store(VarRef(fieldAddresses.get(0)), ConstBool(true)));
+            for (int i = 0; i < proc.getParameters().size(); ++i) {
+                Instructions.insertBefore(ret, Store(VarRef(fieldAddresses.get(i + 1)),
+                        VarRef(proc.getParameters().get(i))));
+            }
+            Instructions.insertBefore(ret,
+                    Store(VarRef(fieldAddresses.get(resultIndex)), value.copy()));
+        }
+
+        blocks.add(0, lookup);
+        blocks.add(1, check);
+        blocks.add(2, hit);
+        return true;
+    }
+
+    /**
+     * Checks whether all instructions of a procedure, apart from calls, are
+     * free of effects outside of the procedure. Stack slots may be accessed.
+     */
+    private static boolean hasPureInstructions(Proc proc) {
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (Instruction instr : block) {
+                if (instr instanceof Call) {
+                    if (!(((Call) instr).getFunction() instanceof ProcedureRef)) {
+                        return false;
+                    }
+                } else if (instr instanceof Load) {
+                    if (!isStackSlot(((Load) instr).getAddress())) {
+                        return false;
+                    }
+                } else if (instr instanceof Store) {
+                    if (!isStackSlot(((Store) instr).getAddress())) {
+                        return false;
+                    }
+                } else if (!(instr instanceof Alloca || instr instanceof BinaryOperation
+                        || instr instanceof PhiNode || instr instanceof CommentInstr
+                        || instr instanceof TerminatingInstruction)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isStackSlot(Operand address) {
+        return address instanceof VarRef
+                && ((VarRef) address).getVariable().getParent() instanceof Alloca;
+    }
+
+    private static List<Proc> getCallees(Proc proc) {
+        final List<Proc> callees = new ArrayList<>();
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (Instruction instr : block) {
+                if (instr instanceof Call && ((Call) instr).getFunction() instanceof ProcedureRef) {
+                    callees.add(((ProcedureRef) ((Call) instr).getFunction()).getProcedure());
+                }
+            }
+        }
+        return callees;
+    }
+
+    /**
+     * Checks whether a procedure can call itself, directly or through other
+     * procedures.
+     */
+    private static boolean isRecursive(Proc proc) {
+        final Set<Proc> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<Proc> worklist = new ArrayDeque<>(getCallees(proc));
+        while (!worklist.isEmpty()) {
+            final Proc callee = worklist.pop();
+            if (callee == proc) {
+                return true;
+            }
+            if (visited.add(callee)) {
+                worklist.addAll(getCallees(callee));
+            }
+        }
+        return false;
+    }
+}
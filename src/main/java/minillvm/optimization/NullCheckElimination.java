@@ -0,0 +1,360 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Removes null checks of values that are known to be non-null.
+ *
+ * <p>A forward dataflow analysis computes the values known to be non-null at
+ * the end of every block, and on every branch edge. Values are non-null if they
+ * are the 'this' parameter of a method, the result of a procedure that only
+ * returns non-null values (e.g. the instantiation procedures, which check
+ * the allocation themselves), a global, or if they passed a null check
+ * before. The contents of stack slots whose address does not escape are
+ * tracked as well, so the pass also works before Mem2Reg.
+ *
+ * <p>The analysis of returned values is shared across procedures, so a
+ * single instance should be used for all procedures of a program.
+ */
+public class NullCheckElimination {
+
+    /**
+     * Whether a procedure only returns non-null values, by procedure.
+     * Procedures being analyzed are assumed to possibly return null.
+     */
+    private final Map<Proc, Boolean> returnsNonNull = new IdentityHashMap<>();
+
+    private int checkCount;
+
+    /**
+     * The non-null values at the end of each block and on each branch edge of
+     * a procedure. Non-null values include the Allocas of stack slots whose
+     * content is non-null.
+     */
+    private class Analysis {
+        private final ControlFlowGraph cfg;
+        private final Set<Alloca> slots = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final Map<BasicBlock, Set<Element>> blockOut = new IdentityHashMap<>();
+
+        Analysis(Proc proc) {
+            cfg = new ControlFlowGraph(proc);
+            final Uses uses = new Uses(proc);
+            for (BasicBlock block : proc.getBasicBlocks()) {
+                for (Instruction instr : block) {
+                    if (instr instanceof Alloca && Mem2Reg.isPromotable((Alloca) instr, uses)) {
+                        slots.add((Alloca) instr);
+                    }
+                }
+            }
+
+            final List<BasicBlock> rpo = cfg.getReversePostOrder();
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (BasicBlock block : rpo) {
+                    final Set<Element> out = transfer(block, blockIn(block));
+                    if (!out.equals(blockOut.get(block))) {
+                        blockOut.put(block, out);
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the non-null values at the start of a block. Predecessors
+         * that were not visited yet are optimistically ignored.
+         */
+        private Set<Element> blockIn(BasicBlock block) {
+            final Set<Element> in = newSet();
+            if (block == cfg.getEntry()) {
+                final ParameterList params = cfg.getProc().getParameters();
+                if (!params.isEmpty() && params.get(0).getName().equals("this")) {
+                    in.add(params.get(0));
+                }
+                return in;
+            }
+
+            boolean first = true;
+            for (BasicBlock pred : cfg.getPredecessors(block)) {
+                if (!blockOut.containsKey(pred)) {
+                    continue;
+                }
+                final Set<Element> edge = edgeOut(pred, block);
+                if (first) {
+                    in.addAll(edge);
+                    first = false;
+                } else {
+                    in.retainAll(edge);
+                }
+            }
+
+            for (PhiNode phi : block.getPhiNodes()) {
+                in.remove(phi.getVar());
+                boolean nonNull = true;
+                for (PhiNodeChoice choice : phi.getChoices()) {
+                    final Set<Element> edge = blockOut.containsKey(choice.getLabel())
+                            ? edgeOut(choice.getLabel(), block)
+                            : null;
+                    if (edge != null && !isNonNull(choice.getValue(), edge)) {
+                        nonNull = false;
+                    }
+                }
+                if (nonNull) {
+                    in.add(phi.getVar());
+                }
+            }
+            return in;
+        }
+
+        /**
+         * Gets the non-null values on the edge from a block to a successor.
+         * Leaving a null check towards the non-null block adds the checked
+         * value.
+         */
+        Set<Element> edgeOut(BasicBlock block, BasicBlock successor) {
+            final Set<Element> out = blockOut.get(block);
+            final Optional<TerminatingInstruction> terminator = block.getTerminatingInstruction();
+            if (!terminator.isPresent() || !(terminator.get() instanceof Branch)) {
+                return out;
+            }
+            final Branch branch = (Branch) terminator.get();
+            final Operand checked = getNullChecked(branch.getCondition());
+            if (checked == null || branch.getIfFalseLabel() != successor
+                    || branch.getIfTrueLabel() == successor) {
+                return out;
+            }
+
+            final Set<Element> edge = newSet();
+            edge.addAll(out);
+            edge.add(((VarRef) checked).getVariable());
+            final Alloca slot = getReloadedSlot(checked, block);
+            if (slot != null) {
+                edge.add(slot);
+            }
+            return edge;
+        }
+
+        /**
+         * Gets the non-null values before the terminating instruction of a
+         * block.
+         */
+        Set<Element> getBlockOut(BasicBlock block) {
+            return blockOut.get(block);
+        }
+
+        private Set<Element> transfer(BasicBlock block, Set<Element> in) {
+            final Set<Element> state = newSet();
+            state.addAll(in);
+            for (Instruction instr : block) {
+                if (instr instanceof PhiNode) {
+                    continue;
+                }
+                if (instr instanceof Alloca && slots.contains(instr)) {
+                    //
+                    // Fresh stack slots read as null.
+                    //
+                    state.remove(instr);
+                } else if (instr instanceof Store) {
+                    final Alloca slot = getSlot(((Store) instr).getAddress());
+                    if (slot != null) {
+                        if (isNonNull(((Store) instr).getValue(), state)) {
+                            state.add(slot);
+                        } else {
+                            state.remove(slot);
+                        }
+                    }
+                }
+
+                if (instr instanceof Assign) {
+                    final TemporaryVar var = ((Assign) instr).getVar();
+                    if (isNonNullResult((Assign) instr, state)) {
+                        state.add(var);
+                    } else {
+                        state.remove(var);
+                    }
+                }
+            }
+            return state;
+        }
+
+        private boolean isNonNullResult(Assign instr, Set<Element> state) {
+            if (instr instanceof Bitcast) {
+                return isNonNull(((Bitcast) instr).getExpr(), state);
+            } else if (instr instanceof Load) {
+                final Alloca slot = getSlot(((Load) instr).getAddress());
+                return slot != null && state.contains(slot);
+            } else if (instr instanceof Call) {
+                final Operand function = ((Call) instr).getFunction();
+                return function instanceof ProcedureRef
+                        && returnsNonNull(((ProcedureRef) function).getProcedure());
+            }
+            return false;
+        }
+
+        private Alloca getSlot(Operand address) {
+            if (!(address instanceof VarRef)) {
+                return null;
+            }
+            final Element def = ((VarRef) address).getVariable().getParent();
+            return def instanceof Alloca && slots.contains(def) ? (Alloca) def : null;
+        }
+
+        /**
+         * Gets the stack slot a checked value was loaded from, if the slot
+         * still holds the value at the end of the block.
+         */
+        private Alloca getReloadedSlot(Operand checked, BasicBlock block) {
+            final Element def = ((VarRef) checked).getVariable().getParent();
+            if (!(def instanceof Load) || def.getParent() != block) {
+                return null;
+            }
+            final Alloca slot = getSlot(((Load) def).getAddress());
+            if (slot == null) {
+                return null;
+            }
+            for (int i = Instructions.indexOf(block, (Load) def) + 1; i < block.size(); ++i) {
+                if (block.get(i) instanceof Store
+                        && getSlot(((Store) block.get(i)).getAddress()) == slot) {
+                    return null;
+                }
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * Removes all redundant null checks of a procedure.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  The amount of removed null checks.
+     */
+    public int run(Proc proc) {
+        checkCount = 0;
+        if (proc.getBasicBlocks().isEmpty()) {
+            return 0;
+        }
+
+        final Analysis analysis = new Analysis(proc);
+        final Uses uses = new Uses(proc);
+        int removed = 0;
+        for (BasicBlock block : analysis.cfg.getReversePostOrder()) {
+            final Optional<TerminatingInstruction> terminator = block.getTerminatingInstruction();
+            if (!terminator.isPresent() || !(terminator.get() instanceof Branch)) {
+                continue;
+            }
+            final Branch branch = (Branch) terminator.get();
+            final Operand checked = getNullChecked(branch.getCondition());
+            if (checked == null || !isHalting(branch.getIfTrueLabel())) {
+                continue;
+            }
+
+            ++checkCount;
+            if (isNonNull(checked, analysis.getBlockOut(block))) {
+                uses.forget(branch);
+                branch.replaceBy(Jump(branch.getIfFalseLabel()));
+                Instructions.removeIfUnused(branch.getCondition(), uses);
+                ++removed;
+            }
+        }
+
+        if (removed > 0) {
+            Instructions.removeUnreachableBlocks(proc);
+        }
+        return removed;
+    }
+
+    /**
+     * Gets the amount of null checks found by the last run.
+     *
+     * @return  The amount of null checks, including the removed ones.
+     */
+    public int getCheckCount() {
+        return checkCount;
+    }
+
+    /**
+     * Checks whether a procedure only returns non-null values.
+     *
+     * @param proc  The procedure to check.
+     *
+     * @return  Whether all return values of the procedure are non-null.
+     */
+    public boolean returnsNonNull(Proc proc) {
+        final Boolean known = returnsNonNull.get(proc);
+        if (known != null) {
+            return known;
+        }
+        if (!(proc.getReturnType() instanceof TypePointer) || proc.getBasicBlocks().isEmpty()) {
+            returnsNonNull.put(proc, false);
+            return false;
+        }
+
+        returnsNonNull.put(proc, false);
+        final Analysis analysis = new Analysis(proc);
+        boolean result = true;
+        for (BasicBlock block : analysis.cfg.getReversePostOrder()) {
+            final Optional<TerminatingInstruction> terminator = block.getTerminatingInstruction();
+            if (terminator.isPresent() && terminator.get() instanceof ReturnExpr
+                    && !isNonNull(((ReturnExpr) terminator.get()).getReturnValue(),
+                            analysis.getBlockOut(block))) {
+                result = false;
+            }
+        }
+        returnsNonNull.put(proc, result);
+        return result;
+    }
+
+    /**
+     * Gets the value checked by a null check condition "value == null".
+     *
+     * @return null, or the checked value, if the condition is a null check.
+     */
+    private static Operand getNullChecked(Operand condition) {
+        if (!(condition instanceof VarRef)
+                || !(((VarRef) condition).getVariable().getParent() instanceof BinaryOperation)) {
+            return null;
+        }
+        final BinaryOperation op = (BinaryOperation) ((VarRef) condition).getVariable().getParent();
+        if (!(op.getOperator() instanceof Eq)) {
+            return null;
+        }
+        if (op.getRight() instanceof Nullpointer && op.getLeft() instanceof VarRef) {
+            return op.getLeft();
+        }
+        if (op.getLeft() instanceof Nullpointer && op.getRight() instanceof VarRef) {
+            return op.getRight();
+        }
+        return null;
+    }
+
+    private static boolean isNonNull(Operand operand, Set<Element> state) {
+        if (operand instanceof GlobalRef || operand instanceof ProcedureRef) {
+            return true;
+        }
+        return operand instanceof VarRef && state.contains(((VarRef) operand).getVariable());
+    }
+
+    private static boolean isHalting(BasicBlock block) {
+        for (Instruction instr : block) {
+            if (instr instanceof HaltWithError) {
+                return true;
+            }
+            if (!(instr instanceof CommentInstr)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static Set<Element> newSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+}
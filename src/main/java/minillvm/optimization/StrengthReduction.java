@@ -0,0 +1,433 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.analysis.DominatorTree;
+import minillvm.analysis.LoopNest;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Strength reduction of the address computations of loops.
+ *
+ * <p>The induction variables of a loop are phi nodes in its header,
+ * incremented or decremented by one in the single latch and tested against a
+ * bound at the start of every iteration, so that they cannot overflow. Addresses of array
+ * elements at such a variable plus a constant, e.g. "a[i]" and "a[i - 1]",
+ * are recomputed from the array in every iteration. They are replaced by a
+ * pointer to the element at the variable, which is incremented along with
+ * it, and the constant is added to the pointer.
+ *
+ * <p>If the variable is then only used to test the loop condition, the test
+ * compares the pointer with the address of the element at the bound instead,
+ * and the variable is removed.
+ */
+public class StrengthReduction {
+
+    /**
+     * The addresses of the elements of one array at an induction variable
+     * plus constants.
+     */
+    private static class AddressFamily {
+        final Operand base;
+        final List<Integer> prefix;
+        final List<GetElementPtr> addresses = new ArrayList<>();
+        final List<Integer> offsets = new ArrayList<>();
+        TemporaryVar pointer;
+
+        AddressFamily(Operand base, List<Integer> prefix) {
+            this.base = base;
+            this.prefix = prefix;
+        }
+
+        /**
+         * Creates the address of the element at an index.
+         */
+        GetElementPtr addressAt(TemporaryVar var, Operand index) {
+            final OperandList indices = OperandList();
+            for (int i : prefix) {
+                indices.add(ConstInt(i));
+            }
+            indices.add(index.copy());
+            return GetElementPtr(var, base.copy(), indices);
+        }
+    }
+
+    private int reducedAddresses;
+    private int replacedTests;
+
+    /**
+     * Reduces the address computations of the loops of a procedure.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  Whether the procedure was changed.
+     */
+    public boolean run(Proc proc) {
+        reducedAddresses = 0;
+        replacedTests = 0;
+        if (proc.getBasicBlocks().isEmpty()) {
+            return false;
+        }
+        final ControlFlowGraph cfg = new ControlFlowGraph(proc);
+        final LoopNest loopNest = new LoopNest(new DominatorTree(cfg));
+        for (LoopNest.Loop loop : loopNest.getLoopsInnermostFirst()) {
+            reduce(proc, loop, cfg);
+        }
+        return reducedAddresses > 0;
+    }
+
+    /**
+     * Gets the amount of address computations replaced by pointers in the
+     * last run.
+     *
+     * @return  The amount of reduced addresses.
+     */
+    public int getReducedAddresses() {
+        return reducedAddresses;
+    }
+
+    /**
+     * Gets the amount of loop tests comparing pointers instead of induction
+     * variables after the last run.
+     *
+     * @return  The amount of replaced tests.
+     */
+    public int getReplacedTests() {
+        return replacedTests;
+    }
+
+    private void reduce(Proc proc, LoopNest.Loop loop, ControlFlowGraph cfg) {
+        final BasicBlock header = loop.getHeader();
+        if (loop.getLatches().size() != 1) {
+            return;
+        }
+        final BasicBlock latch = loop.getLatches().get(0);
+        BasicBlock preheader = null;
+        for (BasicBlock pred : cfg.getPredecessors(header)) {
+            if (!loop.contains(pred)) {
+                if (preheader != null) {
+                    return;
+                }
+                preheader = pred;
+            }
+        }
+        if (preheader == null || !preheader.getTerminatingInstruction().isPresent()
+                || !latch.getTerminatingInstruction().isPresent()) {
+            return;
+        }
+
+        //
+        // The header may jump to the block testing the loop condition, e.g.
+        // after removing null checks, so that every iteration still passes
+        // the test.
+        //
+        BasicBlock testBlock = header;
+        while (testBlock.getTerminatingInstruction().isPresent()
+                && testBlock.getTerminatingInstruction().get() instanceof Jump) {
+            final BasicBlock target =
+                    ((Jump) testBlock.getTerminatingInstruction().get()).getLabel();
+            if (target == header || !loop.contains(target)
+                    || cfg.getPredecessors(target).size() != 1) {
+                return;
+            }
+            testBlock = target;
+        }
+        final Optional<TerminatingInstruction> testTerminator =
+                testBlock.getTerminatingInstruction();
+        if (!testTerminator.isPresent() || !(testTerminator.get() instanceof Branch)) {
+            return;
+        }
+        final Branch branch = (Branch) testTerminator.get();
+        final BinaryOperation test = getBinaryOperation(branch.getCondition());
+        if (test == null || !(test.getOperator() instanceof Slt)
+                || !loop.contains(branch.getIfTrueLabel())
+                || loop.contains(branch.getIfFalseLabel())) {
+            return;
+        }
+
+        //
+        // The loop only continues while "i < n" for an incremented variable,
+        // or "n < i" for a decremented one, so the variable cannot overflow.
+        //
+        PhiNode inductionVar = getInductionVar(test.getLeft(), header, preheader, latch, 1);
+        Operand bound = test.getRight();
+        int step = 1;
+        if (inductionVar == null) {
+            inductionVar = getInductionVar(test.getRight(), header, preheader, latch, -1);
+            bound = test.getLeft();
+            step = -1;
+        }
+        if (inductionVar == null) {
+            return;
+        }
+        Operand start = null;
+        for (PhiNodeChoice choice : inductionVar.getChoices()) {
+            if (choice.getLabel() == preheader) {
+                start = choice.getValue();
+            }
+        }
+
+        final List<AddressFamily> families = new ArrayList<>();
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            if (!loop.contains(block)) {
+                continue;
+            }
+            for (Instruction instr : block) {
+                if (instr instanceof GetElementPtr) {
+                    addToFamily((GetElementPtr) instr, inductionVar, loop, families);
+                }
+            }
+        }
+        if (families.isEmpty()) {
+            return;
+        }
+
+        final Uses uses = new Uses(proc);
+        for (AddressFamily family : families) {
+            final TemporaryVar first = TemporaryVar("firstElementPtr");
+            Instructions.insertBefore(preheader.getTerminatingInstruction().get(),
+                    family.addressAt(first, start));
+            family.pointer = TemporaryVar("elementPtr");
+            final TemporaryVar next = TemporaryVar("nextElementPtr");
+            final PhiNode phi = PhiNode(family.pointer,
+                    family.addresses.get(0).getVar().calculateType(), PhiNodeChoiceList(
+                            PhiNodeChoice(preheader, VarRef(first)),
+                            PhiNodeChoice(latch, VarRef(next))));
+            header.add(0, phi);
+            uses.register(phi);
+            final GetElementPtr increment = GetElementPtr(next, VarRef(family.pointer),
+                    OperandList(ConstInt(step)));
+            Instructions.insertBefore(latch.getTerminatingInstruction().get(), increment);
+            uses.register(increment);
+
+            for (int i = 0; i < family.addresses.size(); ++i) {
+                final GetElementPtr address = family.addresses.get(i);
+                final int offset = family.offsets.get(i);
+                final Operand index = address.getIndices().get(address.getIndices().size() - 1);
+                uses.forget(address);
+                if (offset == 0) {
+                    uses.replaceAll(address.getVar(), VarRef(family.pointer));
+                    Instructions.remove(address);
+                } else {
+                    address.setBaseAddress(VarRef(family.pointer));
+                    address.setIndices(OperandList(ConstInt(offset)));
+                    uses.register(address);
+                }
+                if (offset != 0) {
+                    Instructions.removeIfUnused(index, uses);
+                }
+                ++reducedAddresses;
+            }
+        }
+
+        if (isInvariant(bound, loop) && isOnlyCounting(inductionVar, test, latch, uses)) {
+            final AddressFamily family = families.get(0);
+            final TemporaryVar end = TemporaryVar("endElementPtr");
+            Instructions.insertBefore(preheader.getTerminatingInstruction().get(),
+                    family.addressAt(end, bound));
+            uses.forget(test);
+            if (step > 0) {
+                test.setLeft(VarRef(family.pointer));
+                test.setRight(VarRef(end));
+            } else {
+                test.setLeft(VarRef(end));
+                test.setRight(VarRef(family.pointer));
+            }
+            uses.register(test);
+            for (PhiNodeChoice choice : inductionVar.getChoices()) {
+                if (choice.getLabel() == latch) {
+                    final Instruction increment = (Instruction)
+                            ((VarRef) choice.getValue()).getVariable().getParent();
+                    uses.forget(inductionVar);
+                    Instructions.remove(inductionVar);
+                    uses.forget(increment);
+                    Instructions.remove(increment);
+                    break;
+                }
+            }
+            ++replacedTests;
+        }
+    }
+
+    /**
+     * Gets the induction variable compared in the header of a loop, a phi
+     * node stepping by one in the latch.
+     *
+     * @return null, or the phi node, if the operand is an induction variable
+     *         with the step.
+     */
+    private static PhiNode getInductionVar(Operand operand, BasicBlock header,
+                                           BasicBlock preheader, BasicBlock latch, int step) {
+        if (!(operand instanceof VarRef)
+                || !(((VarRef) operand).getVariable().getParent() instanceof PhiNode)) {
+            return null;
+        }
+        final PhiNode phi = (PhiNode) ((VarRef) operand).getVariable().getParent();
+        if (Instructions.getBlock(phi) != header || phi.getChoices().size() != 2) {
+            return null;
+        }
+        Operand start = null;
+        Operand next = null;
+        for (PhiNodeChoice choice : phi.getChoices()) {
+            if (choice.getLabel() == preheader) {
+                start = choice.getValue();
+            } else if (choice.getLabel() == latch) {
+                next = choice.getValue();
+            }
+        }
+        final Integer offset = getOffset(next, phi);
+        return start != null && next instanceof VarRef && offset != null && offset == step
+                ? phi
+                : null;
+    }
+
+    /**
+     * Adds the address of an element of a loop invariant array at the
+     * induction variable plus a constant to its family.
+     */
+    private static void addToFamily(GetElementPtr gep, PhiNode inductionVar, LoopNest.Loop loop,
+                                    List<AddressFamily> families) {
+        final OperandList indices = gep.getIndices();
+        if (indices.size() < 2 || !isInvariant(gep.getBaseAddress(), loop)
+                || !(gep.getBaseAddress().calculateType() instanceof TypePointer)) {
+            return;
+        }
+        final Integer offset = getOffset(indices.get(indices.size() - 1), inductionVar);
+        if (offset == null) {
+            return;
+        }
+
+        //
+        // The last index has to select an array element, so that pointers
+        // to the elements can be incremented.
+        //
+        final List<Integer> prefix = new ArrayList<>();
+        Type type = ((TypePointer) gep.getBaseAddress().calculateType()).getTo();
+        for (int i = 0; i < indices.size() - 1; ++i) {
+            if (!(indices.get(i) instanceof ConstInt)) {
+                return;
+            }
+            final int index = ((ConstInt) indices.get(i)).getIntVal();
+            prefix.add(index);
+            if (i == 0) {
+                continue;
+            } else if (type instanceof TypeStruct
+                    && index >= 0 && index < ((TypeStruct) type).getFields().size()) {
+                type = ((TypeStruct) type).getFields().get(index).getType();
+            } else if (type instanceof TypeArray) {
+                type = ((TypeArray) type).getOf();
+            } else {
+                return;
+            }
+        }
+        if (!(type instanceof TypeArray)) {
+            return;
+        }
+
+        for (AddressFamily family : families) {
+            if (isSameOperand(family.base, gep.getBaseAddress()) && family.prefix.equals(prefix)) {
+                family.addresses.add(gep);
+                family.offsets.add(offset);
+                return;
+            }
+        }
+        final AddressFamily family = new AddressFamily(gep.getBaseAddress(), prefix);
+        family.addresses.add(gep);
+        family.offsets.add(offset);
+        families.add(family);
+    }
+
+    /**
+     * Checks whether an induction variable is only used by the test of the
+     * loop and by its step, which is only used by the variable.
+     */
+    private static boolean isOnlyCounting(PhiNode inductionVar, BinaryOperation test,
+                                          BasicBlock latch, Uses uses) {
+        Operand next = null;
+        for (PhiNodeChoice choice : inductionVar.getChoices()) {
+            if (choice.getLabel() == latch) {
+                next = choice.getValue();
+            }
+        }
+        final Variable nextVar = ((VarRef) next).getVariable();
+        for (VarRef ref : uses.get(inductionVar.getVar())) {
+            final Instruction user = Instructions.getInstruction(ref);
+            if (user != test && user != nextVar.getParent()) {
+                return false;
+            }
+        }
+        for (VarRef ref : uses.get(nextVar)) {
+            if (Instructions.getInstruction(ref) != inductionVar) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the constant added to the induction variable by a value.
+     *
+     * @return null, or the constant, if the value is the induction variable
+     *         plus or minus a constant.
+     */
+    private static Integer getOffset(Operand value, PhiNode inductionVar) {
+        if (isVarRefTo(value, inductionVar.getVar())) {
+            return 0;
+        }
+        final BinaryOperation op = getBinaryOperation(value);
+        if (op == null) {
+            return null;
+        }
+        final Variable var = inductionVar.getVar();
+        if (op.getOperator() instanceof Add && isVarRefTo(op.getLeft(), var)
+                && op.getRight() instanceof ConstInt) {
+            return ((ConstInt) op.getRight()).getIntVal();
+        }
+        if (op.getOperator() instanceof Add && isVarRefTo(op.getRight(), var)
+                && op.getLeft() instanceof ConstInt) {
+            return ((ConstInt) op.getLeft()).getIntVal();
+        }
+        if (op.getOperator() instanceof Sub && isVarRefTo(op.getLeft(), var)
+                && op.getRight() instanceof ConstInt
+                && ((ConstInt) op.getRight()).getIntVal() != Integer.MIN_VALUE) {
+            return -((ConstInt) op.getRight()).getIntVal();
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether an operand is defined outside of a loop.
+     */
+    private static boolean isInvariant(Operand operand, LoopNest.Loop loop) {
+        if (!(operand instanceof VarRef)) {
+            return true;
+        }
+        final Element def = ((VarRef) operand).getVariable().getParent();
+        return !(def instanceof Instruction)
+                || !loop.contains(Instructions.getBlock((Instruction) def));
+    }
+
+    private static boolean isSameOperand(Operand a, Operand b) {
+        if (a instanceof VarRef && b instanceof VarRef) {
+            return ((VarRef) a).getVariable() == ((VarRef) b).getVariable();
+        }
+        return a instanceof GlobalRef && b instanceof GlobalRef
+                && ((GlobalRef) a).getGlobal() == ((GlobalRef) b).getGlobal();
+    }
+
+    private static BinaryOperation getBinaryOperation(Operand operand) {
+        if (!(operand instanceof VarRef)) {
+            return null;
+        }
+        final Element def = ((VarRef) operand).getVariable().getParent();
+        return def instanceof BinaryOperation ? (BinaryOperation) def : null;
+    }
+
+    private static boolean isVarRefTo(Operand operand, Variable var) {
+        return operand instanceof VarRef && ((VarRef) operand).getVariable() == var;
+    }
+}
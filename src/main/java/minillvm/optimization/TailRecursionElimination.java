@@ -0,0 +1,134 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Replaces self-recursive calls in tail position by jumps.
+ *
+ * <p>A call is in tail position if the next instruction, apart from comments,
+ * returns its result. The entry block of a procedure with such calls becomes
+ * a loop header, with a phi node per parameter merging the parameter with
+ * the arguments of the calls, and the calls are replaced by jumps to it. A new
+ * entry block keeps the stack slots of the procedure, so they are not
+ * allocated again in every iteration.
+ *
+ * <p>Other calls in tail position are marked as tail calls, allowing LLVM to
+ * reuse the stack frame of the caller. This is safe, since no stack slot
+ * address can be passed to a call in the translated programs.
+ */
+public class TailRecursionElimination {
+
+    /**
+     * Replaces all self-recursive calls in tail position of a procedure by
+     * jumps.
+     *
+     * @param proc  The procedure to optimize.
+     *
+     * @return  The amount of replaced calls.
+     */
+    public int run(Proc proc) {
+        final List<Call> calls = new ArrayList<>();
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (Instruction instr : block) {
+                if (instr instanceof Call && isSelfCall((Call) instr, proc)
+                        && isInTailPosition((Call) instr)) {
+                    calls.add((Call) instr);
+                }
+            }
+        }
+        if (calls.isEmpty()) {
+            return 0;
+        }
+
+        final BasicBlockList blocks = proc.getBasicBlocks();
+        final BasicBlock header = blocks.get(0);
+        final BasicBlock entry = BasicBlock();
+        entry.setName(header.getName() + "_alloca");
+        for (Instruction instr : Instructions.snapshot(header)) {
+            if (instr instanceof Alloca) {
+                Instructions.remove(instr);
+                entry.add(instr);
+            }
+        }
+        entry.add(Jump(header));
+        blocks.add(0, entry);
+
+        //
+        // All uses of the parameters, including the arguments of the
+        // replaced calls, now refer to the values of the current iteration.
+        //
+        final Uses uses = new Uses(proc);
+        final List<PhiNode> phis = new ArrayList<>();
+        for (Parameter param : proc.getParameters()) {
+            final PhiNode phi = PhiNode(TemporaryVar(param.getName()), param.getType(),
+                    PhiNodeChoiceList());
+            uses.replaceAll(param, VarRef(phi.getVar()));
+            phi.getChoices().add(PhiNodeChoice(entry, VarRef(param)));
+            header.add(phis.size(), phi);
+            phis.add(phi);
+        }
+
+        for (Call call : calls) {
+            final BasicBlock block = Instructions.getBlock(call);
+            for (int i = 0; i < phis.size(); ++i) {
+                final Operand argument = call.getArguments().get(i);
+                phis.get(i).getChoices().add(PhiNodeChoice(block, argument.copy()));
+            }
+            final int index = Instructions.indexOf(block, call);
+            while (block.size() > index) {
+                block.remove(index);
+            }
+            block.add(Jump(header));
+        }
+        return calls.size();
+    }
+
+    private static boolean isSelfCall(Call call, Proc proc) {
+        return call.getFunction() instanceof ProcedureRef
+                && ((ProcedureRef) call.getFunction()).getProcedure() == proc;
+    }
+
+    /**
+     * Checks whether the result of a call is returned immediately.
+     */
+    private static boolean isInTailPosition(Call call) {
+        final BasicBlock block = Instructions.getBlock(call);
+        for (int i = Instructions.indexOf(block, call) + 1; i < block.size(); ++i) {
+            final Instruction instr = block.get(i);
+            if (instr instanceof CommentInstr) {
+                continue;
+            }
+            return instr instanceof ReturnExpr
+                    && ((ReturnExpr) instr).getReturnValue() instanceof VarRef
+                    && ((VarRef) ((ReturnExpr) instr).getReturnValue()).getVariable()
+                            == call.getVar();
+        }
+        return false;
+    }
+
+    /**
+     * Marks all calls in tail position of a procedure as tail calls.
+     *
+     * @param proc  The procedure whose calls to mark.
+     *
+     * @return  The amount of marked calls.
+     */
+    public static int markTailCalls(Proc proc) {
+        int marked = 0;
+        for (BasicBlock block : proc.getBasicBlocks()) {
+            for (Instruction instr : block) {
+                if (instr instanceof Call && !((Call) instr).getTailCall()
+                        && isInTailPosition((Call) instr)) {
+                    ((Call) instr).setTailCall(true);
+                    ++marked;
+                }
+            }
+        }
+        return marked;
+    }
+}
@@ -0,0 +1,137 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+
+/**
+ * An index of all variable references in a procedure by variable.
+ *
+ * <p>The index has to be kept up to date by the passes using it: references
+ * added to the procedure must be registered, and instructions removed from it
+ * should be forgotten.
+ */
+public class Uses {
+
+    private final Map<Variable, List<VarRef>> uses = new IdentityHashMap<>();
+
+    /**
+     * Indexes all variable references of a procedure.
+     *
+     * @param proc  The procedure to index.
+     */
+    public Uses(Proc proc) {
+        register(proc);
+    }
+
+    /**
+     * Registers all variable references of an element.
+     *
+     * @param e  The element to index, e.g. a newly inserted instruction.
+     */
+    public void register(Element e) {
+        if (e instanceof VarRef) {
+            add((VarRef) e);
+            return;
+        }
+
+        e.accept(new Element.DefaultVisitor() {
+            @Override
+            public void visit(VarRef varRef) {
+                super.visit(varRef);
+                add(varRef);
+            }
+        });
+    }
+
+    private void add(VarRef varRef) {
+        uses.computeIfAbsent(varRef.getVariable(), v -> new ArrayList<>()).add(varRef);
+    }
+
+    /**
+     * Removes all variable references of an element from the index, e.g.
+     * before the instruction owning them is deleted.
+     *
+     * @param e  The element to forget.
+     */
+    public void forget(Element e) {
+        final List<VarRef> refs = new ArrayList<>();
+        if (e instanceof VarRef) {
+            refs.add((VarRef) e);
+        } else {
+            e.accept(new Element.DefaultVisitor() {
+                @Override
+                public void visit(VarRef varRef) {
+                    super.visit(varRef);
+                    refs.add(varRef);
+                }
+            });
+        }
+
+        for (VarRef ref : refs) {
+            final List<VarRef> varUses = uses.get(ref.getVariable());
+            if (varUses != null) {
+                varUses.removeIf(r -> r == ref);
+            }
+        }
+    }
+
+    /**
+     * Gets all references to a variable.
+     *
+     * @param v  The variable to look up.
+     *
+     * @return  A snapshot of all registered references to the variable.
+     */
+    public List<VarRef> get(Variable v) {
+        return new ArrayList<>(uses.getOrDefault(v, Collections.emptyList()));
+    }
+
+    /**
+     * Checks whether a variable is referenced at all.
+     *
+     * @param v  The variable to look up.
+     *
+     * @return  Whether there are registered references to the variable.
+     */
+    public boolean isUsed(Variable v) {
+        final List<VarRef> varUses = uses.get(v);
+        return varUses != null && !varUses.isEmpty();
+    }
+
+    /**
+     * Replaces all references to a variable by copies of an operand.
+     *
+     * @param v            The variable to replace.
+     * @param replacement  The operand to replace all references with.
+     */
+    public void replaceAll(Variable v, Operand replacement) {
+        final List<VarRef> refs = uses.remove(v);
+        if (refs == null) {
+            return;
+        }
+
+        for (VarRef ref : refs) {
+            if (ref.getParent() == null) {
+                continue;
+            }
+
+            final Operand copy = replacement.copy();
+            ref.replaceBy(copy);
+            register(copy);
+        }
+    }
+
+    /**
+     * Replaces a single operand in place by another one.
+     *
+     * @param operand      The attached operand to replace.
+     * @param replacement  The detached operand to put in its place.
+     */
+    public void replace(Operand operand, Operand replacement) {
+        forget(operand);
+        operand.replaceBy(replacement);
+        register(replacement);
+    }
+}
@@ -2,10 +2,13 @@ package minillvm.printer;
 
 import frontend.SourcePosition;
 import minillvm.analysis.ExpectedType;
+import minillvm.analysis.TypeBasedAliasAnalysis;
+import minillvm.analysis.TypeBasedAliasAnalysis.AccessType;
 import minillvm.analysis.Typechecker;
 import minillvm.ast.*;
 
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -19,9 +22,12 @@ public class PrettyPrinter implements
     private final StringBuilder sb;
     private boolean includeType;
     private final Map<String, String> stringConstantNames = new HashMap<>();
+    private final Map<String, String> fileNameConstantNames = new HashMap<>();
     private final Map<Element, SourcePosition> sourcePositions = new HashMap<>();
     private int currentLine = 1;
     private int currentColumn = 0;
+    private TypeBasedAliasAnalysis tbaa;
+    private final Map<AccessType, Integer> tbaaTags = new IdentityHashMap<>();
 
     public PrettyPrinter(StringBuilder sb) {
         this.sb = sb;
@@ -225,6 +231,7 @@ public class PrettyPrinter implements
         DuplicateNames.eliminateDuplicateNames(p);
 
         printStringConstants(p);
+        collectTbaaTags(p);
 
         appendLine();
         appendLine();
@@ -246,6 +253,55 @@ public class PrettyPrinter implements
         }
 
         addBuiltins();
+        printTbaaMetadata();
+    }
+
+    /**
+     * Numbers the TBAA metadata of all loads and stores. The root is node 0,
+     * and every access type gets a type node followed by its access tag.
+     */
+    private void collectTbaaTags(Prog p) {
+        tbaa = new TypeBasedAliasAnalysis(p);
+        p.accept(new Element.DefaultVisitor() {
+            @Override
+            public void visit(Load e) {
+                super.visit(e);
+                tbaa.getAccessType(e.getAddress());
+            }
+
+            @Override
+            public void visit(Store e) {
+                super.visit(e);
+                tbaa.getAccessType(e.getAddress());
+            }
+        });
+        for (AccessType t : tbaa.getAccessTypes()) {
+            tbaaTags.put(t, 2 * tbaaTags.size() + 2);
+        }
+    }
+
+    private void printTbaaMetadata() {
+        if (tbaaTags.isEmpty()) {
+            return;
+        }
+        appendLine();
+        appendLine("!0 = !{!\"NotQuiteJava TBAA\"}");
+        for (AccessType t : tbaa.getAccessTypes()) {
+            final int tag = tbaaTags.get(t);
+            final int parent = t.getParent() == null ? 0 : tbaaTags.get(t.getParent()) - 1;
+            appendLine("!" + (tag - 1) + " = !{!\"" + t.getName() + "\", !" + parent + ", i64 0}");
+            appendLine("!" + tag + " = !{!" + (tag - 1) + ", !" + (tag - 1) + ", i64 0}");
+        }
+    }
+
+    private void printTbaaTag(Operand address) {
+        if (tbaa == null) {
+            return;
+        }
+        final Integer tag = tbaaTags.get(tbaa.getAccessType(address));
+        if (tag != null) {
+            append(", !tbaa !" + tag);
+        }
     }
 
     private void printStringConstants(Prog p) {
@@ -268,6 +324,19 @@ public class PrettyPrinter implements
                         + " x i8] c" + escapeString(e.getMsg() + "\n\0") + ", align 1");
                 stringConstantNames.put(e.getMsg(), constantName);
             }
+
+            public void visit(WriteFile w) {
+                super.visit(w);
+                if (fileNameConstantNames.containsKey(w.getFileName())) {
+                    return;
+                }
+                // file names are not followed by a newline
+                String constantName = ".file_name_" + (fileNameConstantNames.size() + 1);
+                appendLine("@" + constantName + " = private unnamed_addr constant ["
+                        + (w.getFileName().getBytes().length + 1)
+                        + " x i8] c" + escapeString(w.getFileName() + "\0") + ", align 1");
+                fileNameConstantNames.put(w.getFileName(), constantName);
+            }
         });
     }
 
@@ -282,6 +351,37 @@ public class PrettyPrinter implements
         appendLine();
         appendLine("declare void @exit(i32)");
         appendLine();
+        appendLine("declare void @llvm.memset.p0i8.i32(i8*, i8, i32, i1)");
+        appendLine();
+        appendLine("declare void @llvm.memcpy.p0i8.p0i8.i32(i8*, i8*, i32, i1)");
+        appendLine();
+        //
+        // The helper writing files is only needed by profiled programs. NQJ
+        // cannot produce its dotted name.
+        //
+        if (!fileNameConstantNames.isEmpty()) {
+            appendLine("declare i8* @fopen(i8*, i8*)");
+            appendLine();
+            appendLine("declare i64 @fwrite(i8*, i64, i64, i8*)");
+            appendLine();
+            appendLine("declare i32 @fclose(i8*)");
+            appendLine();
+            appendLine("@.writemode = private unnamed_addr constant [3 x i8] c\"wb\\00\", align 1");
+            appendLine("define void @nqj.writeFile(i8* %name, i8* %data, i32 %size) {");
+            appendLine("    %file = call i8* @fopen(i8* %name, i8* getelementptr inbounds "
+                    + "([3 x i8], [3 x i8]* @.writemode, i32 0, i32 0))");
+            appendLine("    %failed = icmp eq i8* %file, null");
+            appendLine("    br i1 %failed, label %done, label %write");
+            appendLine("write:");
+            appendLine("    %size64 = zext i32 %size to i64");
+            appendLine("    %written = call i64 @fwrite(i8* %data, i64 1, i64 %size64, i8* %file)");
+            appendLine("    %closed = call i32 @fclose(i8* %file)");
+            appendLine("    br label %done");
+            appendLine("done:");
+            appendLine("    ret void");
+            appendLine("}");
+            appendLine();
+        }
         appendLine("@.printstr = private unnamed_addr constant [4 x i8] c\"%d\\0A\\00\", align 1");
         appendLine("define void @print(i32 %i) {");
         appendLine("    %temp = call i32 (i8*, ...) "
@@ -366,6 +466,15 @@ public class PrettyPrinter implements
         append("@" + getName(e.getGlobal()));
     }
 
+    @Override
+    public void case_ConstZero(ConstZero e) {
+        if (includeType) {
+            append(e.getType());
+            append(" ");
+        }
+        append("zeroinitializer");
+    }
+
     @Override
     public void case_ConstStruct(ConstStruct e) {
         appendLine(" {");
@@ -462,6 +571,7 @@ public class PrettyPrinter implements
         }
         append(s.getVar() + " = load " + t + ", ");
         printWithType(s.getAddress());
+        printTbaaTag(s.getAddress());
     }
 
     @Override
@@ -496,6 +606,7 @@ public class PrettyPrinter implements
         printWithType(s.getValue());
         append(", ");
         printWithType(s.getAddress());
+        printTbaaTag(s.getAddress());
     }
 
     @Override
@@ -511,7 +622,7 @@ public class PrettyPrinter implements
 
 
         append(s.getVar() + " = ");
-        append("call " + t + " ");
+        append((s.getTailCall() ? "tail call " : "call ") + t + " ");
 
         print(s.getFunction());
         append("(");
@@ -526,6 +637,38 @@ public class PrettyPrinter implements
         append(")");
     }
 
+    @Override
+    public void case_MemSet(MemSet s) {
+        append("call void @llvm.memset.p0i8.i32(");
+        printWithType(s.getAddress());
+        append(", i8 " + s.getByteValue() + ", ");
+        printWithType(s.getSizeInBytes());
+        append(", i1 false)");
+    }
+
+    @Override
+    public void case_MemCopy(MemCopy s) {
+        append("call void @llvm.memcpy.p0i8.p0i8.i32(");
+        printWithType(s.getDestination());
+        append(", ");
+        printWithType(s.getSource());
+        append(", ");
+        printWithType(s.getSizeInBytes());
+        append(", i1 false)");
+    }
+
+    @Override
+    public void case_WriteFile(WriteFile s) {
+        final int length = s.getFileName().getBytes().length + 1;
+        append("call void @nqj.writeFile(i8* getelementptr inbounds ([" + length + " x i8], ["
+                + length + " x i8]* @" + fileNameConstantNames.get(s.getFileName())
+                + ", i32 0, i32 0), ");
+        printWithType(s.getData());
+        append(", ");
+        printWithType(s.getSizeInBytes());
+        append(")");
+    }
+
     @Override
     public void case_Print(Print s) {
         append("call void @print(");
@@ -0,0 +1,78 @@
+package translation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+
+/**
+ * The receiver classes counted at the method call sites of a program
+ * compiled with "-profile-generate=&lt;file&gt;".
+ *
+ * <p>Profiles consist of little endian 32 bit integers: the amount of call
+ * sites, the amount of classes, and for each call site the amount of calls
+ * with receivers of each class. Call sites are numbered in translation order,
+ * classes in declaration order.
+ */
+public class CallSiteProfile {
+
+    private final int[][] counts;
+    private final int classCount;
+
+    private CallSiteProfile(int[][] counts, int classCount) {
+        this.counts = counts;
+        this.classCount = classCount;
+    }
+
+    /**
+     * Reads a profile written by an instrumented program.
+     *
+     * @param file  The profile file to read.
+     *
+     * @return  The read profile.
+     *
+     * @throws IOException  If the file cannot be read or is no profile.
+     */
+    public static CallSiteProfile read(File file) throws IOException {
+        final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < 8) {
+            throw new IOException("Malformed profile " + file);
+        }
+        final int siteCount = data.getInt();
+        final int classCount = data.getInt();
+        if (siteCount < 0 || classCount < 0
+                || data.remaining() != 4L * siteCount * classCount) {
+            throw new IOException("Malformed profile " + file);
+        }
+        final int[][] counts = new int[siteCount][classCount];
+        for (int[] siteCounts : counts) {
+            for (int i = 0; i < classCount; ++i) {
+                siteCounts[i] = data.getInt();
+            }
+        }
+        return new CallSiteProfile(counts, classCount);
+    }
+
+    public int getSiteCount() {
+        return counts.length;
+    }
+
+    public int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * Gets the amount of calls at a call site with receivers of a class.
+     *
+     * @param site        The number of the call site.
+     * @param classIndex  The index of the receiver class.
+     *
+     * @return  The amount of calls.
+     */
+    public int getCount(int site, int classIndex) {
+        return counts[site][classIndex];
+    }
+}
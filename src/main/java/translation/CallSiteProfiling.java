@@ -0,0 +1,221 @@
+package translation;
+
+import main.Optimization;
+import main.OptimizationReport;
+import minillvm.ast.*;
+import notquitejava.ast.NQJClassDecl;
+import notquitejava.ast.NQJElement;
+import notquitejava.ast.NQJMethodCall;
+import notquitejava.ast.NQJProgram;
+
+import static minillvm.ast.Ast.*;
+
+
+/**
+ * Profile-guided devirtualization of method calls.
+ *
+ * <p>With "-profile-generate=&lt;file&gt;", every method call dispatching
+ * through the Virtual Method Table counts the class of its receiver in a
+ * global table of a counter per call site and class, which main writes to
+ * the file before returning. Programs stopping with an error write no
+ * profile.
+ *
+ * <p>With "-profile-use=&lt;file&gt;", such calls compare the Virtual Method
+ * Table of the receiver with the one of the class receiving more than half of
+ * the calls of the profile, and call its implementation directly if they are
+ * equal, which can then be inlined. Other receivers are still called through
+ * the Virtual Method Table. Profiles of a different program are ignored.
+ */
+class CallSiteProfiling {
+
+    private final Translator tr;
+    private final NQJProgram javaProg;
+    private final OptimizationReport report;
+    private final String profileFile;
+    private final CallSiteProfile profile;
+    private final int siteCount;
+    private int nextSite;
+
+    private TypeStruct counterStruct;
+    private Global counters;
+    private Proc classIndexProc;
+
+    /**
+     * Prepares profiling of the method calls of a program.
+     *
+     * @param tr           The translator of the program.
+     * @param javaProg     The program to profile.
+     * @param report       The report to record guarded calls to.
+     * @param profileFile  The file to write the profile to, or null to not
+     *                     instrument calls.
+     * @param profile      The profile guiding calls, or null.
+     */
+    CallSiteProfiling(Translator tr, NQJProgram javaProg, OptimizationReport report,
+                      String profileFile, CallSiteProfile profile) {
+        this.tr = tr;
+        this.javaProg = javaProg;
+        this.report = report;
+        this.profileFile = profileFile;
+
+        final int[] sites = {0};
+        javaProg.accept(new NQJElement.DefaultVisitor() {
+            @Override
+            public void visit(NQJMethodCall methodCall) {
+                super.visit(methodCall);
+                ++sites[0];
+            }
+        });
+        siteCount = sites[0];
+
+        final int classCount = javaProg.getClassDecls().size();
+        if (profile != null && (profile.getSiteCount() != siteCount
+                || profile.getClassCount() != classCount)) {
+            report.add(Optimization.DEVIRTUALIZE, "ignored profile of " + profile.getSiteCount()
+                    + " call sites and " + profile.getClassCount() + " classes");
+            this.profile = null;
+        } else {
+            this.profile = profile;
+        }
+
+        if (profileFile != null) {
+            final TypeArray countsType = TypeArray(TypeArray(TypeInt(), classCount), siteCount);
+            counterStruct = TypeStruct("profile.counters", StructFieldList(
+                    StructField(TypeInt(), "sites"),
+                    StructField(TypeInt(), "classes"),
+                    StructField(countsType, "counts")));
+            counters = Global(counterStruct, "profile.counters", false,
+                    ConstStruct(counterStruct, ConstList(ConstInt(siteCount),
+                            ConstInt(classCount), ConstZero(countsType))));
+            classIndexProc = Proc("profile.classIndex", TypeInt(),
+                    ParameterList(Parameter(TypePointer(TypeByte()), "vtable")),
+                    BasicBlockList());
+        }
+    }
+
+    /**
+     * Numbers the next translated method call.
+     *
+     * @return  The number of the call site.
+     */
+    int nextSite() {
+        return nextSite++;
+    }
+
+    /**
+     * Adds the counting of the receiver class at a call site to the current
+     * block, if calls are instrumented.
+     *
+     * @param site    The number of the call site.
+     * @param vtable  The Virtual Method Table of the receiver.
+     */
+    void countReceiver(int site, Operand vtable) {
+        if (profileFile == null) {
+            return;
+        }
+        final TemporaryVar vtableBytes = TemporaryVar("profileVTable");
+        tr.addInstruction(Bitcast(vtableBytes, TypePointer(TypeByte()), vtable.copy()));
+        final TemporaryVar classIndex = TemporaryVar("profileClass");
+        tr.addInstruction(Call(classIndex, ProcedureRef(classIndexProc),
+                OperandList(VarRef(vtableBytes))));
+        final TemporaryVar counter = TemporaryVar("profileCounter");
+        tr.addInstruction(GetElementPtr(counter, GlobalRef(counters),
+                OperandList(ConstInt(0), ConstInt(2), ConstInt(site), VarRef(classIndex))));
+        final TemporaryVar count = TemporaryVar("profileCount");
+        tr.addInstruction(Load(count, VarRef(counter)));
+        final TemporaryVar incremented = TemporaryVar("profileIncremented");
+        tr.addInstruction(BinaryOperation(incremented, VarRef(count), Add(), ConstInt(1)));
+        tr.addInstruction(Store(VarRef(counter), VarRef(incremented)));
+    }
+
+    /**
+     * Gets the class receiving more than half of the calls at a call site.
+     *
+     * @param e            The AST method call.
+     * @param site         The number of the call site.
+     * @param staticClass  The static receiver class of the call.
+     *
+     * @return null, or the dominating class, if the profile has one.
+     */
+    NQJClassDecl getDominantClass(NQJMethodCall e, int site, NQJClassDecl staticClass) {
+        if (profile == null) {
+            return null;
+        }
+        long total = 0;
+        int dominant = 0;
+        for (int i = 0; i < profile.getClassCount(); ++i) {
+            total += profile.getCount(site, i);
+            if (profile.getCount(site, i) > profile.getCount(site, dominant)) {
+                dominant = i;
+            }
+        }
+        final NQJClassDecl dominantClass = javaProg.getClassDecls().get(dominant);
+        if (2L * profile.getCount(site, dominant) <= total
+                || !Translator.isSubclass(dominantClass, staticClass)) {
+            return null;
+        }
+        report.add(Optimization.DEVIRTUALIZE, "line " + tr.sourceLine(e) + ": "
+                + staticClass.getName() + "." + e.getMethodName() + " guarded by class "
+                + dominantClass.getName() + ", receiving " + profile.getCount(site, dominant)
+                + " of " + total + " calls");
+        return dominantClass;
+    }
+
+    /**
+     * Adds the counter table, the lookup of class indices and the writing of
+     * the profile to an instrumented program.
+     *
+     * @param prog  The translated program, including a main procedure.
+     */
+    void finish(Prog prog) {
+        if (profileFile == null) {
+            return;
+        }
+        prog.getStructTypes().add(counterStruct);
+        prog.getGlobals().add(counters);
+        prog.getProcedures().add(classIndexProc);
+        addClassIndexBody();
+
+        for (Proc proc : prog.getProcedures()) {
+            if (!proc.getName().equals("main")) {
+                continue;
+            }
+            for (BasicBlock block : proc.getBasicBlocks()) {
+                if (!block.getTerminatingInstruction().isPresent()
+                        || !(block.getTerminatingInstruction().get() instanceof ReturnExpr)) {
+                    continue;
+                }
+                final TemporaryVar data = TemporaryVar("profileData");
+                final int index = block.size() - 1;
+                block.add(index, Bitcast(data, TypePointer(TypeByte()), GlobalRef(counters)));
+                block.add(index + 1, WriteFile(profileFile, VarRef(data),
+                        Sizeof(counterStruct)));
+            }
+        }
+    }
+
+    /**
+     * Looks up the index of the class of a Virtual Method Table by comparing
+     * it with the one of every class in turn.
+     */
+    private void addClassIndexBody() {
+        final Parameter vtable = classIndexProc.getParameters().get(0);
+        final BasicBlockList blocks = classIndexProc.getBasicBlocks();
+        BasicBlock compare = tr.newBasicBlock("compare");
+        for (int i = 0; i < javaProg.getClassDecls().size(); ++i) {
+            blocks.add(compare);
+            final TemporaryVar classVTable = TemporaryVar("classVTable");
+            compare.add(Bitcast(classVTable, TypePointer(TypeByte()),
+                    GlobalRef(tr.getVTableVar(javaProg.getClassDecls().get(i)))));
+            final TemporaryVar isClass = TemporaryVar("isClass");
+            compare.add(BinaryOperation(isClass, VarRef(vtable), Eq(), VarRef(classVTable)));
+            final BasicBlock found = tr.newBasicBlock("found");
+            final BasicBlock next = tr.newBasicBlock("compare");
+            compare.add(Branch(VarRef(isClass), found, next));
+            blocks.add(found);
+            found.add(ReturnExpr(ConstInt(i)));
+            compare = next;
+        }
+        blocks.add(compare);
+        compare.add(HaltWithError("Unknown Virtual Method Table"));
+    }
+}
@@ -0,0 +1,124 @@
+package translation;
+
+import minillvm.ast.Ast;
+import minillvm.ast.BasicBlock;
+import minillvm.ast.Operand;
+import notquitejava.ast.*;
+
+
+/**
+ * Translate boolean expressions in branch conditions.
+ *
+ * <p>Conditions transfer control directly to one of two target blocks, so
+ * short-circuit evaluation and negation do not need to materialize boolean
+ * values. After the translation, the current block is terminated.
+ */
+public class ExprCondition implements NQJExpr.MatcherVoid {
+    private final Translator tr;
+    private final BasicBlock ifTrue;
+    private final BasicBlock ifFalse;
+
+    /**
+     * Creates a condition translator for a pair of jump targets.
+     *
+     * @param translator  The translator to emit instructions with.
+     * @param ifTrue      The block to continue at when the condition holds.
+     * @param ifFalse     The block to continue at otherwise.
+     */
+    public ExprCondition(Translator translator, BasicBlock ifTrue, BasicBlock ifFalse) {
+        this.tr = translator;
+        this.ifTrue = ifTrue;
+        this.ifFalse = ifFalse;
+    }
+
+    /**
+     * Evaluates the condition as a value and branches on the result.
+     */
+    private void branchOnValue(NQJExpr e) {
+        final Operand condition = tr.exprRvalue(e);
+        tr.getCurrentBlock().add(Ast.Branch(condition, ifTrue, ifFalse));
+    }
+
+    @Override
+    public void case_ExprBinary(NQJExprBinary e) {
+        if (!(e.getOperator() instanceof NQJAnd)) {
+            //
+            // Comparisons yield the branch condition without any detour.
+            //
+            branchOnValue(e);
+            return;
+        }
+        //
+        // The right operand is only evaluated when the left one holds, and
+        // both operands may jump to the false target directly.
+        //
+        final BasicBlock andRight = tr.newBasicBlock("and_first_true");
+        tr.translateCondition(e.getLeft(), andRight, ifFalse);
+
+        tr.addBasicBlock(andRight);
+        tr.setCurrentBlock(andRight);
+        tr.translateCondition(e.getRight(), ifTrue, ifFalse);
+    }
+
+    @Override
+    public void case_ExprUnary(NQJExprUnary e) {
+        if (!(e.getUnaryOperator() instanceof NQJNegate)) {
+            branchOnValue(e);
+            return;
+        }
+        //
+        // Negation swaps the jump targets.
+        //
+        tr.translateCondition(e.getExpr(), ifFalse, ifTrue);
+    }
+
+    @Override
+    public void case_BoolConst(NQJBoolConst e) {
+        tr.getCurrentBlock().add(Ast.Jump(e.getBoolValue() ? ifTrue : ifFalse));
+    }
+
+    @Override
+    public void case_Read(NQJRead e) {
+        branchOnValue(e);
+    }
+
+    @Override
+    public void case_ArrayLength(NQJArrayLength e) {
+        branchOnValue(e);
+    }
+
+    @Override
+    public void case_MethodCall(NQJMethodCall e) {
+        branchOnValue(e);
+    }
+
+    @Override
+    public void case_FunctionCall(NQJFunctionCall e) {
+        branchOnValue(e);
+    }
+
+    @Override
+    public void case_Number(NQJNumber e) {
+        branchOnValue(e);
+    }
+
+    @Override
+    public void case_ExprThis(NQJExprThis e) {
+        branchOnValue(e);
+    }
+
+    @Override
+    public void case_ExprNull(NQJExprNull e) {
+        branchOnValue(e);
+    }
+
+    @Override
+    public void case_NewArray(NQJNewArray e) {
+        branchOnValue(e);
+    }
+
+    @Override
+    public void case_NewObject(NQJNewObject e) {
+        branchOnValue(e);
+    }
+}
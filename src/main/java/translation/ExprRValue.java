@@ -62,23 +62,28 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
         return e.getOperator().match(new NQJOperator.Matcher<>() {
             @Override
             public Operand case_And(NQJAnd and) {
+                //
+                // The result is false whenever the right operand is skipped,
+                // so the join only needs to pick the right operand otherwise.
+                //
                 BasicBlock andRight = tr.newBasicBlock("and_first_true");
                 BasicBlock andEnd = tr.newBasicBlock("and_end");
-                TemporaryVar andResVar = TemporaryVar("andResVar");
-                tr.getCurrentBlock().add(Ast.Alloca(andResVar, Ast.TypeBool()));
-                tr.getCurrentBlock().add(Ast.Store(VarRef(andResVar), left));
-                tr.getCurrentBlock().add(Ast.Branch(left.copy(), andRight, andEnd));
+                BasicBlock leftEnd = tr.getCurrentBlock();
+                leftEnd.add(Ast.Branch(left, andRight, andEnd));
 
                 tr.addBasicBlock(andRight);
                 tr.setCurrentBlock(andRight);
                 Operand right = tr.exprRvalue(e.getRight());
-                tr.getCurrentBlock().add(Ast.Store(VarRef(andResVar), right));
-                tr.getCurrentBlock().add(Ast.Jump(andEnd));
+                BasicBlock rightEnd = tr.getCurrentBlock();
+                rightEnd.add(Ast.Jump(andEnd));
 
                 tr.addBasicBlock(andEnd);
                 tr.setCurrentBlock(andEnd);
                 TemporaryVar andRes = TemporaryVar("andRes");
-                andEnd.add(Ast.Load(andRes, VarRef(andResVar)));
+                andEnd.add(PhiNode(andRes, Ast.TypeBool(), PhiNodeChoiceList(
+                        PhiNodeChoice(leftEnd, ConstBool(false)),
+                        PhiNodeChoice(rightEnd, right)
+                )));
                 return VarRef(andRes);
             }
 
@@ -99,8 +104,6 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
             @Override
             public Operand case_Div(NQJDiv div) {
                 Operand right = tr.exprRvalue(e.getRight());
-                TemporaryVar divResVar = TemporaryVar("divResVar");
-                tr.addInstruction(Ast.Alloca(divResVar, Ast.TypeInt()));
                 TemporaryVar isZero = TemporaryVar("isZero");
                 tr.addInstruction(BinaryOperation(isZero, right, Eq(), ConstInt(0)));
                 BasicBlock ifZero = tr.newBasicBlock("ifZero");
@@ -127,7 +130,7 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
                 TemporaryVar isOverflow = TemporaryVar("isOverflow");
                 tr.addInstruction(BinaryOperation(isOverflow,
                         VarRef(isMinInt), And(), VarRef(isMinusOne)));
-                tr.addInstruction(Ast.Store(VarRef(divResVar), ConstInt(Integer.MIN_VALUE)));
+                BasicBlock overflowEnd = tr.getCurrentBlock();
                 tr.addInstruction(Ast.Branch(VarRef(isOverflow), divEnd, divNoOverflow));
 
 
@@ -135,14 +138,20 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
                 tr.setCurrentBlock(divNoOverflow);
                 TemporaryVar divResultA = TemporaryVar("divResultA");
                 tr.addInstruction(BinaryOperation(divResultA, left, Ast.Sdiv(), right.copy()));
-                tr.addInstruction(Ast.Store(VarRef(divResVar), VarRef(divResultA)));
                 tr.addInstruction(Ast.Jump(divEnd));
 
 
                 tr.addBasicBlock(divEnd);
                 tr.setCurrentBlock(divEnd);
+                //
+                // MIN_INT / -1 overflows and is defined to be MIN_INT, which
+                // is what Java does, rather than being undefined like sdiv.
+                //
                 TemporaryVar divResultB = TemporaryVar("divResultB");
-                tr.addInstruction(Ast.Load(divResultB, VarRef(divResVar)));
+                tr.addInstruction(PhiNode(divResultB, Ast.TypeInt(), PhiNodeChoiceList(
+                        PhiNodeChoice(overflowEnd, ConstInt(Integer.MIN_VALUE)),
+                        PhiNodeChoice(divNoOverflow, VarRef(divResultA))
+                )));
                 return VarRef(divResultB);
             }
 
@@ -232,29 +241,13 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
         //
         // CHANGE: Implemented method call translation.
         //
+        final int site = tr.getProfiling().nextSite();
         final Operand receiverOperand = tr.exprRvalue(e.getReceiver());
         //
         // Class objects may be null.
         //
         tr.addNullcheck(receiverOperand, "Nullpointer exception in line " + tr.sourceLine(e));
         //
-        // Add necessary argument casts. Compatibility is ensured by Analysis.
-        //
-        final NQJFunctionDecl methodDecl = e.getFunctionDeclaration();
-        final NQJVarDeclList formalParams = methodDecl.getFormalParameters();
-        final OperandList args = OperandList();
-        args.add(
-            tr.addCastIfNecessary(receiverOperand.copy(),
-            tr.getMethodThisType(methodDecl))
-        );
-        for (int i = 0; i < e.getArguments().size(); i++) {
-            Operand arg = tr.addCastIfNecessary(
-                tr.exprRvalue(e.getArguments().get(i)),
-                tr.translateType(formalParams.get(i).getType())
-                );
-            args.add(arg);
-        }
-        //
         // Look up the method index in the Virtual Method Table.
         // Analysis ensured the receiver is a class type.
         //
@@ -289,6 +282,36 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
             throw new IllegalStateException();
         }
         //
+        // Call the method directly if class hierarchy analysis shows that the
+        // call cannot dispatch to any other implementation.
+        //
+        final Proc target = tr.resolveMethodCall(e,
+            tr.getStructFromPointer(receiverOperand), fieldIndex);
+        //
+        // Add necessary argument casts. Compatibility is ensured by Analysis.
+        //
+        final NQJFunctionDecl methodDecl = e.getFunctionDeclaration();
+        final NQJVarDeclList formalParams = methodDecl.getFormalParameters();
+        final OperandList args = OperandList();
+        args.add(
+            tr.addCastIfNecessary(receiverOperand.copy(),
+            target == null
+                ? tr.getMethodThisType(methodDecl)
+                : target.getParameters().get(0).getType())
+        );
+        for (int i = 0; i < e.getArguments().size(); i++) {
+            Operand arg = tr.addCastIfNecessary(
+                tr.exprRvalue(e.getArguments().get(i)),
+                tr.translateType(formalParams.get(i).getType())
+                );
+            args.add(arg);
+        }
+        final TemporaryVar res = TemporaryVar(e.getMethodName() + "_result");
+        if (target != null) {
+            tr.addInstruction(Ast.Call(res, ProcedureRef(target), args));
+            return VarRef(res);
+        }
+        //
         // Retrieve the method location via the Virtual Method Table.
         //
         final TemporaryVar vtablePtrPtr = TemporaryVar("vtablePtrPtr");
@@ -304,6 +327,51 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
         tr.addInstruction(
             Load(vtablePtr, VarRef(vtablePtrPtr))
         );
+        tr.getProfiling().countReceiver(site, VarRef(vtablePtr));
+        //
+        // Call the implementation of the class dominating the profile
+        // directly if the receiver is of that class.
+        //
+        final TypeStruct receiverStruct = tr.getStructFromPointer(receiverOperand);
+        final NQJClassDecl profiledClass = tr.getProfiling().getDominantClass(e, site,
+            tr.getClassDecl(receiverStruct));
+        final Type resultType = tr.translateType(methodDecl.getReturnType());
+        BasicBlock guardedCall = null;
+        BasicBlock join = null;
+        Operand guardedRes = null;
+        if (profiledClass != null) {
+            final Proc guardedTarget = tr.getVTableEntry(profiledClass, fieldIndex);
+            final TemporaryVar profiledVTable = TemporaryVar("profiledVTable");
+            tr.addInstruction(Bitcast(profiledVTable, vtablePtr.calculateType(),
+                GlobalRef(tr.getVTableVar(profiledClass))));
+            final TemporaryVar isProfiled = TemporaryVar("isProfiledClass");
+            tr.addInstruction(
+                BinaryOperation(isProfiled, VarRef(vtablePtr), Eq(), VarRef(profiledVTable))
+            );
+            guardedCall = tr.newBasicBlock("guardedCall");
+            final BasicBlock virtualCall = tr.newBasicBlock("virtualCall");
+            join = tr.newBasicBlock("callEnd");
+            tr.getCurrentBlock().add(Branch(VarRef(isProfiled), guardedCall, virtualCall));
+
+            tr.addBasicBlock(guardedCall);
+            tr.setCurrentBlock(guardedCall);
+            final OperandList guardedArgs = OperandList();
+            guardedArgs.add(tr.addCastIfNecessary(receiverOperand.copy(),
+                guardedTarget.getParameters().get(0).getType()));
+            for (int i = 1; i < args.size(); i++) {
+                guardedArgs.add(args.get(i).copy());
+            }
+            final TemporaryVar directRes = TemporaryVar(e.getMethodName() + "_result");
+            tr.addInstruction(Ast.Call(directRes, ProcedureRef(guardedTarget), guardedArgs));
+            guardedRes = resultType instanceof TypeVoid
+                ? VarRef(directRes)
+                : tr.addCastIfNecessary(VarRef(directRes), resultType);
+            guardedCall = tr.getCurrentBlock();
+            tr.getCurrentBlock().add(Jump(join));
+
+            tr.addBasicBlock(virtualCall);
+            tr.setCurrentBlock(virtualCall);
+        }
         tr.addInstruction(
             GetElementPtr(
                 methodPtr,
@@ -318,9 +386,26 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
         //
         // Add the method call instruction and add a reference to the result.
         //
-        final TemporaryVar res = TemporaryVar(e.getMethodName() + "_result");
         tr.addInstruction(Ast.Call(res, VarRef(method), args));
-        return VarRef(res);
+        if (profiledClass == null) {
+            return VarRef(res);
+        }
+        if (resultType instanceof TypeVoid) {
+            tr.getCurrentBlock().add(Jump(join));
+            tr.addBasicBlock(join);
+            tr.setCurrentBlock(join);
+            return VarRef(res);
+        }
+        final Operand virtualRes = tr.addCastIfNecessary(VarRef(res), resultType);
+        final BasicBlock virtualCall = tr.getCurrentBlock();
+        tr.getCurrentBlock().add(Jump(join));
+        tr.addBasicBlock(join);
+        tr.setCurrentBlock(join);
+        final TemporaryVar merged = TemporaryVar(e.getMethodName() + "_result");
+        tr.addInstruction(PhiNode(merged, resultType, PhiNodeChoiceList(
+            PhiNodeChoice(guardedCall, guardedRes),
+            PhiNodeChoice(virtualCall, virtualRes))));
+        return VarRef(merged);
     }
 
     @Override
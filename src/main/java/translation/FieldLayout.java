@@ -0,0 +1,105 @@
+package translation;
+
+import minillvm.ast.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Orders the fields of class instance structures to avoid padding.
+ *
+ * <p>Structures are laid out by LLVM in field order, aligning each field to
+ * its size. The fields of a class follow those of its superclass, which must
+ * stay a prefix, so only the own fields of a class are reordered: starting
+ * after the prefix, the field with the largest alignment that needs no padding
+ * at the current offset is placed next, or the largest field if all of them
+ * need padding. Booleans are thus packed into consecutive bytes filling the
+ * gaps and the tail of the structure. They cannot share bytes, as fields are
+ * accessed through pointers to them.
+ */
+class FieldLayout {
+
+    /**
+     * Gets the size and alignment of a field type on the target.
+     *
+     * @param type  The field type.
+     *
+     * @return  The size of the type in bytes.
+     */
+    static int sizeOf(Type type) {
+        if (type instanceof TypeInt) {
+            return 4;
+        } else if (type instanceof TypeBool || type instanceof TypeByte) {
+            return 1;
+        }
+        return 8;
+    }
+
+    /**
+     * Gets the size of a structure with fields of the given types, including
+     * padding between the fields and at the end.
+     *
+     * @param types  The field types in order.
+     *
+     * @return  The size of the structure in bytes.
+     */
+    static int sizeOf(List<Type> types) {
+        int offset = 0;
+        int alignment = 1;
+        for (Type type : types) {
+            final int size = sizeOf(type);
+            offset = align(offset, size) + size;
+            alignment = Math.max(alignment, size);
+        }
+        return align(offset, alignment);
+    }
+
+    /**
+     * Orders fields to follow a prefix of other fields with as little padding
+     * as possible. Fields of equal alignment keep their order.
+     *
+     * @param prefix  The fields preceding the ordered ones.
+     * @param fields  The fields to order.
+     *
+     * @return  The fields in layout order.
+     */
+    static List<StructField> order(StructFieldList prefix, List<StructField> fields) {
+        int offset = 0;
+        for (StructField field : prefix) {
+            final int size = sizeOf(field.getType());
+            offset = align(offset, size) + size;
+        }
+        final List<StructField> remaining = new ArrayList<>(fields);
+        final List<StructField> ordered = new ArrayList<>();
+        while (!remaining.isEmpty()) {
+            //
+            // Field lists compare structurally, hence pick fields by index.
+            //
+            int next = -1;
+            int largest = 0;
+            for (int i = 0; i < remaining.size(); ++i) {
+                final int size = sizeOf(remaining.get(i).getType());
+                if (offset % size == 0
+                        && (next < 0 || size > sizeOf(remaining.get(next).getType()))) {
+                    next = i;
+                }
+                if (size > sizeOf(remaining.get(largest).getType())) {
+                    largest = i;
+                }
+            }
+            if (next < 0) {
+                next = largest;
+            }
+            final StructField field = remaining.remove(next);
+            final int size = sizeOf(field.getType());
+            offset = align(offset, size) + size;
+            ordered.add(field);
+        }
+        return ordered;
+    }
+
+    private static int align(int offset, int alignment) {
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+}
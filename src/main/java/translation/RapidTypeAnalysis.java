@@ -0,0 +1,310 @@
+package translation;
+
+import main.Optimization;
+import main.OptimizationReport;
+import minillvm.ast.*;
+import notquitejava.ast.NQJClassDecl;
+import notquitejava.ast.NQJProgram;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.Nullpointer;
+
+
+/**
+ * Removes all parts of a translated program that are unreachable from main.
+ *
+ * <p>Starting from main, procedures become reachable when they are referenced
+ * by a reachable procedure. A class is instantiated when its instantiation
+ * function is reachable, and a virtual method call makes the according Virtual
+ * Method Table entry of all instantiated subclasses of the static receiver
+ * class reachable. Afterwards, all unreachable procedures are removed, the
+ * Virtual Method Table entries referring to them are replaced by null, and all
+ * globals and structures that are no longer referenced are removed.
+ */
+class RapidTypeAnalysis {
+
+    /**
+     * A Virtual Method Table entry called on a static receiver class.
+     */
+    private static class CalledMethod {
+        private final NQJClassDecl receiverClass;
+        private final int vtableIndex;
+
+        CalledMethod(NQJClassDecl receiverClass, int vtableIndex) {
+            this.receiverClass = receiverClass;
+            this.vtableIndex = vtableIndex;
+        }
+    }
+
+    private final Translator tr;
+    private final NQJProgram javaProg;
+    private final OptimizationReport report;
+
+    /**
+     * Indices of the classes by their instantiation function and by their
+     * Virtual Method Table structure.
+     */
+    private final Map<Proc, NQJClassDecl> newClassFuncClass = new IdentityHashMap<>();
+    private final Map<TypeStruct, NQJClassDecl> vtableStructClass = new IdentityHashMap<>();
+
+    private final Set<Proc> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Deque<Proc> worklist = new ArrayDeque<>();
+    private final List<NQJClassDecl> instantiated = new ArrayList<>();
+    private final List<CalledMethod> calledMethods = new ArrayList<>();
+
+    private final Set<TypeStruct> usedStructs = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Deque<TypeStruct> structWorklist = new ArrayDeque<>();
+
+    RapidTypeAnalysis(Translator tr, NQJProgram javaProg, OptimizationReport report) {
+        this.tr = tr;
+        this.javaProg = javaProg;
+        this.report = report;
+    }
+
+    /**
+     * Analyzes a translated program and removes all unreachable parts.
+     *
+     * @param prog  The translated program, including a main procedure.
+     */
+    void run(Prog prog) {
+        for (NQJClassDecl classDecl : javaProg.getClassDecls()) {
+            final Proc newClassFunc = tr.findNewClassFunc(classDecl);
+            if (newClassFunc != null) {
+                newClassFuncClass.put(newClassFunc, classDecl);
+            }
+            final TypeStruct struct = tr.getClassStruct(classDecl.getName());
+            vtableStructClass.put(tr.getVTableStruct(struct), classDecl);
+        }
+
+        for (Proc proc : prog.getProcedures()) {
+            if (proc.getName().equals("main")) {
+                markReachable(proc);
+            }
+        }
+        while (!worklist.isEmpty()) {
+            scan(worklist.pop());
+        }
+
+        final int procCount = prog.getProcedures().size();
+        final int structCount = prog.getStructTypes().size();
+        final int vtableEntries = pruneVTables();
+        final ProcList procs = prog.getProcedures();
+        for (int i = procs.size() - 1; i >= 0; --i) {
+            if (!reachable.contains(procs.get(i))) {
+                procs.remove(i);
+            }
+        }
+        pruneGlobals(prog);
+        pruneStructs(prog);
+
+        report.add(Optimization.RTA, "instantiated " + instantiated.size() + " of "
+                + javaProg.getClassDecls().size() + " classes");
+        report.add(Optimization.RTA, "removed "
+                + (procCount - prog.getProcedures().size()) + " of " + procCount
+                + " procedures, " + (structCount - prog.getStructTypes().size()) + " of "
+                + structCount + " structures and " + vtableEntries + " vtable entries");
+    }
+
+    private void markReachable(Proc proc) {
+        if (!reachable.add(proc)) {
+            return;
+        }
+        worklist.push(proc);
+
+        final NQJClassDecl classDecl = newClassFuncClass.get(proc);
+        if (classDecl != null) {
+            instantiated.add(classDecl);
+            for (CalledMethod method : new ArrayList<>(calledMethods)) {
+                markTarget(classDecl, method);
+            }
+        }
+    }
+
+    private void addCalledMethod(CalledMethod method) {
+        for (CalledMethod m : calledMethods) {
+            if (m.receiverClass == method.receiverClass && m.vtableIndex == method.vtableIndex) {
+                return;
+            }
+        }
+        calledMethods.add(method);
+        for (NQJClassDecl classDecl : new ArrayList<>(instantiated)) {
+            markTarget(classDecl, method);
+        }
+    }
+
+    /**
+     * Marks the implementation of a called method reachable if instances of a
+     * class may be receivers of the call.
+     */
+    private void markTarget(NQJClassDecl classDecl, CalledMethod method) {
+        if (Translator.isSubclass(classDecl, method.receiverClass)) {
+            markReachable(tr.getVTableEntry(classDecl, method.vtableIndex));
+        }
+    }
+
+    /**
+     * Collects direct references to procedures and Virtual Method Table
+     * lookups of a reachable procedure.
+     */
+    private void scan(Proc proc) {
+        proc.accept(new Element.DefaultVisitor() {
+            @Override
+            public void visit(ProcedureRef ref) {
+                super.visit(ref);
+                markReachable(ref.getProcedure());
+            }
+
+            @Override
+            public void visit(GetElementPtr gep) {
+                super.visit(gep);
+                final Type baseType = gep.getBaseAddress().calculateType();
+                if (!(baseType instanceof TypePointer)) {
+                    return;
+                }
+                final NQJClassDecl receiverClass =
+                        vtableStructClass.get(((TypePointer) baseType).getTo());
+                if (receiverClass == null) {
+                    return;
+                }
+                //
+                // The translation only indexes Virtual Method Tables with
+                // constant indices when calling methods.
+                //
+                final int vtableIndex = ((ConstInt) gep.getIndices().get(1)).getIntVal();
+                addCalledMethod(new CalledMethod(receiverClass, vtableIndex));
+            }
+        });
+    }
+
+    /**
+     * Replaces all Virtual Method Table entries referring to unreachable
+     * procedures by null.
+     *
+     * @return  The amount of replaced entries of instantiated classes.
+     */
+    private int pruneVTables() {
+        int pruned = 0;
+        for (NQJClassDecl classDecl : javaProg.getClassDecls()) {
+            final ConstList entries =
+                    ((ConstStruct) tr.getVTableVar(classDecl).getInitialValue()).getValues();
+            for (int i = 0; i < entries.size(); ++i) {
+                final Const entry = entries.get(i);
+                if (entry instanceof ProcedureRef
+                        && !reachable.contains(((ProcedureRef) entry).getProcedure())) {
+                    entries.set(i, Nullpointer());
+                    if (instantiated.contains(classDecl)) {
+                        ++pruned;
+                    }
+                }
+            }
+        }
+        return pruned;
+    }
+
+    /**
+     * Removes all globals that are not referenced by the remaining procedures.
+     */
+    private void pruneGlobals(Prog prog) {
+        final Set<Global> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        prog.getProcedures().accept(new Element.DefaultVisitor() {
+            @Override
+            public void visit(GlobalRef ref) {
+                super.visit(ref);
+                used.add(ref.getGlobal());
+            }
+        });
+        final GlobalList globals = prog.getGlobals();
+        for (int i = globals.size() - 1; i >= 0; --i) {
+            if (!used.contains(globals.get(i))) {
+                globals.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Removes all structures that are not referenced by the remaining globals
+     * and procedures, directly or through other structures.
+     */
+    private void pruneStructs(Prog prog) {
+        final Element.DefaultVisitor collector = new Element.DefaultVisitor() {
+            @Override
+            public void visit(Global g) {
+                super.visit(g);
+                useType(g.getType());
+            }
+
+            @Override
+            public void visit(Parameter p) {
+                super.visit(p);
+                useType(p.getType());
+            }
+
+            @Override
+            public void visit(Proc p) {
+                super.visit(p);
+                useType(p.getReturnType());
+            }
+
+            @Override
+            public void visit(Alloca a) {
+                super.visit(a);
+                useType(a.getType());
+            }
+
+            @Override
+            public void visit(Bitcast b) {
+                super.visit(b);
+                useType(b.getType());
+            }
+
+            @Override
+            public void visit(PhiNode p) {
+                super.visit(p);
+                useType(p.getType());
+            }
+
+            @Override
+            public void visit(Sizeof s) {
+                super.visit(s);
+                useType(s.getStructType());
+            }
+
+            @Override
+            public void visit(ConstStruct c) {
+                super.visit(c);
+                useType(c.getStructType());
+            }
+        };
+        prog.getGlobals().accept(collector);
+        prog.getProcedures().accept(collector);
+
+        while (!structWorklist.isEmpty()) {
+            for (StructField field : structWorklist.pop().getFields()) {
+                useType(field.getType());
+            }
+        }
+
+        final TypeStructList structs = prog.getStructTypes();
+        for (int i = structs.size() - 1; i >= 0; --i) {
+            if (!usedStructs.contains(structs.get(i))) {
+                structs.remove(i);
+            }
+        }
+    }
+
+    private void useType(Type type) {
+        if (type instanceof TypePointer) {
+            useType(((TypePointer) type).getTo());
+        } else if (type instanceof TypeArray) {
+            useType(((TypeArray) type).getOf());
+        } else if (type instanceof TypeProc) {
+            useType(((TypeProc) type).getResultType());
+            for (Type argType : ((TypeProc) type).getArgTypes()) {
+                useType(argType);
+            }
+        } else if (type instanceof TypeStruct && usedStructs.add((TypeStruct) type)) {
+            structWorklist.push((TypeStruct) type);
+        }
+    }
+}
@@ -33,10 +33,8 @@ public class StmtTranslator implements NQJStatement.MatcherVoid {
 
         tr.addBasicBlock(whileStart);
         tr.setCurrentBlock(whileStart);
-        // evaluate condition
-        Operand condition = tr.exprRvalue(s.getCondition());
-        // branch based on condition
-        tr.getCurrentBlock().add(Ast.Branch(condition, loopBodyStart, endloop));
+        // evaluate condition and branch based on it
+        tr.translateCondition(s.getCondition(), loopBodyStart, endloop);
 
         // translate loop body
         tr.addBasicBlock(loopBodyStart);
@@ -78,10 +76,8 @@ public class StmtTranslator implements NQJStatement.MatcherVoid {
         final BasicBlock ifFalse = tr.newBasicBlock("ifFalse");
         final BasicBlock endif = tr.newBasicBlock("endif");
 
-        // translate the condition
-        Operand condition = tr.exprRvalue(s.getCondition());
-        // jump based on condition
-        tr.getCurrentBlock().add(Ast.Branch(condition, ifTrue, ifFalse));
+        // translate the condition and jump based on it
+        tr.translateCondition(s.getCondition(), ifTrue, ifFalse);
 
         // translate ifTrue
         tr.addBasicBlock(ifTrue);
@@ -2,11 +2,15 @@ package translation;
 
 import analysis.ArrayType;
 import analysis.ClassType;
+import main.CompilerOptions;
+import main.Optimization;
+import main.OptimizationReport;
 import minillvm.ast.*;
 import notquitejava.ast.*;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -26,6 +30,8 @@ public class Translator {
     private final Map<NQJFunctionDecl, Proc> functionImpl = new HashMap<>();
     private final Prog prog = Prog(TypeStructList(), GlobalList(), ProcList());
     private final NQJProgram javaProg;
+    private final CompilerOptions options;
+    private final OptimizationReport report;
     private final Map<NQJVarDecl, TemporaryVar> localVarLocation = new HashMap<>();
     private final Map<analysis.Type, Type> translatedType = new HashMap<>();
     private final Map<Type, TypeStruct> arrayStruct = new HashMap<>();
@@ -65,14 +71,63 @@ public class Translator {
      */
     private final Map<String, Global> classVTableVars = new HashMap<>();
 
+    /**
+     * An index of the declaring classes of method procedures.
+     */
+    private final Map<Proc, NQJClassDecl> methodClass = new IdentityHashMap<>();
+
+    /**
+     * The amount of method calls translated, and the amount of those that
+     * were devirtualized.
+     */
+    private int methodCalls;
+    private int devirtualizedCalls;
+
+    /**
+     * The call site profile guiding devirtualization, or null.
+     */
+    private final CallSiteProfile profile;
+    private CallSiteProfiling profiling;
+
     public Translator(NQJProgram javaProg) {
+        this(javaProg, new CompilerOptions(), new OptimizationReport());
+    }
+
+    /**
+     * Creates a translator applying translation time optimizations.
+     *
+     * @param javaProg  The program to translate.
+     * @param options   The options selecting the optimizations to apply.
+     * @param report    The report to record applied optimizations to.
+     */
+    public Translator(NQJProgram javaProg, CompilerOptions options, OptimizationReport report) {
+        this(javaProg, options, report, null);
+    }
+
+    /**
+     * Creates a translator applying translation time optimizations, including
+     * profile-guided devirtualization.
+     *
+     * @param javaProg  The program to translate.
+     * @param options   The options selecting the optimizations to apply.
+     * @param report    The report to record applied optimizations to.
+     * @param profile   The call site profile of the program, or null.
+     */
+    public Translator(NQJProgram javaProg, CompilerOptions options, OptimizationReport report,
+                      CallSiteProfile profile) {
         this.javaProg = javaProg;
+        this.options = options;
+        this.report = report;
+        this.profile = profile;
     }
 
     /**
      * Translates given program into a mini llvm program.
      */
     public Prog translate() {
+        profiling = new CallSiteProfiling(this, javaProg, report,
+                options.getProfileGenerate(), profile);
+
         //
         // Translate classes. This must happen before translating functions, so
         // that they can easily reference any class.
@@ -88,10 +143,24 @@ public class Translator {
         translateMainFunction();
 
         finishNewArrayProcs();
+        profiling.finish(prog);
+
+        if (options.isEnabled(Optimization.DEVIRTUALIZE)) {
+            report.add(Optimization.DEVIRTUALIZE, "devirtualized " + devirtualizedCalls
+                    + " of " + methodCalls + " method calls");
+        }
+
+        if (options.isEnabled(Optimization.RTA)) {
+            new RapidTypeAnalysis(this, javaProg, report).run(prog);
+        }
 
         return prog;
     }
 
+    CallSiteProfiling getProfiling() {
+        return profiling;
+    }
+
     TemporaryVar getLocalVarLocation(NQJVarDecl varDecl) {
         return localVarLocation.get(varDecl);
     }
@@ -158,7 +227,7 @@ public class Translator {
         final BasicBlock loopBody = newBasicBlock("loopBody");
         final BasicBlock loopEnd = newBasicBlock("loopEnd");
         final TemporaryVar iVar = TemporaryVar("iVar");
-        currentBlock.add(Alloca(iVar, TypeInt()));
+        addEntryAlloca(iVar, TypeInt());
         currentBlock.add(Store(VarRef(iVar), ConstInt(0)));
         currentBlock.add(Jump(loopStart));
 
@@ -281,7 +350,7 @@ public class Translator {
         int i = hiddenParams;
         for (NQJVarDecl param : m.getFormalParameters()) {
             TemporaryVar v = TemporaryVar(param.getName());
-            addInstruction(Alloca(v, translateType(param.getType())));
+            addEntryAlloca(v, translateType(param.getType()));
             //
             // Arguments are offset by +1 due to the 'this' parameter.
             //
@@ -354,7 +423,7 @@ public class Translator {
             public void visit(NQJVarDecl localVar) {
                 super.visit(localVar);
                 TemporaryVar v = TemporaryVar(localVar.getName());
-                addInstruction(Alloca(v, translateType(localVar.getType())));
+                addEntryAlloca(v, translateType(localVar.getType()));
                 localVarLocation.put(localVar, v);
             }
         });
@@ -364,6 +433,25 @@ public class Translator {
         currentBlock.add(instruction);
     }
 
+    /**
+     * Allocates stack space in the entry block of the current procedure.
+     * An Alloca in any other block allocates again every time the block is
+     * executed, e.g. in every loop iteration.
+     */
+    void addEntryAlloca(TemporaryVar var, Type type) {
+        final BasicBlock entry = currentProcedure.getBasicBlocks().get(0);
+        //
+        // Keep the Allocas at the start of the block, in allocation order.
+        //
+        int index = 0;
+        for (int i = 0; i < entry.size(); ++i) {
+            if (entry.get(i) instanceof Alloca) {
+                index = i + 1;
+            }
+        }
+        entry.add(index, Alloca(var, type));
+    }
+
     Type translateType(NQJType type) {
         return translateType(type.getType());
     }
@@ -405,6 +493,14 @@ public class Translator {
         return e.match(exprRValue);
     }
 
+    /**
+     * Translates a boolean expression into a branch to one of two blocks.
+     * The current block is terminated afterwards.
+     */
+    void translateCondition(NQJExpr e, BasicBlock ifTrue, BasicBlock ifFalse) {
+        e.match(new ExprCondition(this, ifTrue, ifFalse));
+    }
+
     void addNullcheck(Operand arrayAddr, String errorMessage) {
         TemporaryVar isNull = TemporaryVar("isNull");
         addInstruction(BinaryOperation(isNull, arrayAddr.copy(), Eq(), Nullpointer()));
@@ -832,10 +928,24 @@ public class Translator {
                 struct.getFields().add(superclassStruct.getFields().get(i).copy());
             }
         }
+        final List<StructField> fields = new ArrayList<>();
         for (final NQJVarDecl fieldDecl : classDecl.getFields()) {
-            struct.getFields().add(
-                StructField(translateType(fieldDecl.getType()), fieldDecl.getName())
-            );
+            fields.add(StructField(translateType(fieldDecl.getType()), fieldDecl.getName()));
+        }
+        //
+        // Only the own fields may be reordered, keeping the superclass prefix.
+        // The order only depends on the field types, thus it is deterministic
+        // as well.
+        //
+        if (options.isEnabled(Optimization.FIELD_LAYOUT)) {
+            struct.getFields().addAll(FieldLayout.order(struct.getFields(), fields));
+            report.add(Optimization.FIELD_LAYOUT, struct.getName() + ": "
+                    + FieldLayout.sizeOf(struct.getFields().stream()
+                        .map(StructField::getType).collect(Collectors.toList()))
+                    + " bytes per object, before "
+                    + FieldLayout.sizeOf(getDeclaredFieldTypes(classDecl)));
+        } else {
+            struct.getFields().addAll(fields);
         }
         //
         // Index the class instance structure.
@@ -843,6 +953,29 @@ public class Translator {
         classVTableStructs.put(struct.getName(), vtableStruct);
     }
 
+    /**
+     * Gets the field types of a class instance structure in declaration order,
+     * i.e. the layout without reordering fields.
+     *
+     * @param classDecl  The AST class declaration.
+     *
+     * @return  The types of the VTable pointer and all fields.
+     */
+    private List<Type> getDeclaredFieldTypes(NQJClassDecl classDecl) {
+        final NQJClassDecl superclass = classDecl.getDirectSuperClass();
+        final List<Type> types;
+        if (superclass != null) {
+            types = getDeclaredFieldTypes(superclass);
+        } else {
+            types = new ArrayList<>();
+            types.add(TypePointer(TypeByte()));
+        }
+        for (final NQJVarDecl fieldDecl : classDecl.getFields()) {
+            types.add(translateType(fieldDecl.getType()));
+        }
+        return types;
+    }
+
     /**
      * Initialize a class instance structure reference.
      *
@@ -907,6 +1040,7 @@ public class Translator {
         //
         for (final NQJFunctionDecl methodDecl : classDecl.getMethods()) {
             initMethod(struct, methodDecl);
+            methodClass.put(loadFunctionProc(methodDecl), classDecl);
         }
         //
         // Construct the class instance and Virtual Method Table structures.
@@ -971,6 +1105,108 @@ public class Translator {
         return classStruct.get(className);
     }
 
+    /**
+     * Gets the procedure a Virtual Method Table entry of a class refers to.
+     *
+     * @param classDecl    The AST class declaration to look up.
+     * @param vtableIndex  The Virtual Method Table index of the method.
+     *
+     * @return  The procedure implementing the method for the class.
+     */
+    Proc getVTableEntry(NQJClassDecl classDecl, int vtableIndex) {
+        final ConstStruct vtableData = (ConstStruct) getVTableVar(classDecl).getInitialValue();
+        return ((ProcedureRef) vtableData.getValues().get(vtableIndex)).getProcedure();
+    }
+
+    /**
+     * Gets the Virtual Method Table global variable of a class.
+     */
+    Global getVTableVar(NQJClassDecl classDecl) {
+        return classVTableVars.get(classStruct.get(classDecl.getName()).getName());
+    }
+
+    /**
+     * Gets the instantiation function of a class, if one was created.
+     */
+    Proc findNewClassFunc(NQJClassDecl classDecl) {
+        return newClassFuncForType.get(classStruct.get(classDecl.getName()).getName());
+    }
+
+    /**
+     * Resolves the target of a method call by class hierarchy analysis.
+     *
+     * <p>A call may dispatch to the Virtual Method Table entry of the static
+     * receiver class and of all of its subclasses. If all of these entries
+     * refer to the same procedure, the call can be made directly.
+     *
+     * @param e              The AST method call to resolve.
+     * @param receiverClass  The class instance structure of the receiver.
+     * @param vtableIndex    The Virtual Method Table index of the method.
+     *
+     * @return null, or the only procedure that can be called, if unique.
+     */
+    Proc resolveMethodCall(NQJMethodCall e, TypeStruct receiverClass, int vtableIndex) {
+        if (!options.isEnabled(Optimization.DEVIRTUALIZE)) {
+            return null;
+        }
+
+        ++methodCalls;
+        final NQJClassDecl staticClass = getClassDecl(receiverClass);
+
+        final List<Proc> targets = new ArrayList<>();
+        for (final NQJClassDecl classDecl : javaProg.getClassDecls()) {
+            if (!isSubclass(classDecl, staticClass)) {
+                continue;
+            }
+
+            final Proc target = getVTableEntry(classDecl, vtableIndex);
+            if (targets.stream().noneMatch(t -> t == target)) {
+                targets.add(target);
+            }
+        }
+
+        final String site = "line " + sourceLine(e) + ": " + staticClass.getName() + "."
+                + e.getMethodName();
+        if (targets.size() != 1) {
+            report.add(Optimization.DEVIRTUALIZE,
+                    site + " stays virtual with " + targets.size() + " possible targets");
+            return null;
+        }
+
+        ++devirtualizedCalls;
+        final Proc target = targets.get(0);
+        report.add(Optimization.DEVIRTUALIZE, site + " calls "
+                + methodClass.get(target).getName() + "." + target.getName() + " directly");
+        return target;
+    }
+
+    /**
+     * Gets the AST class declaration of a class instance structure.
+     */
+    NQJClassDecl getClassDecl(TypeStruct receiverClass) {
+        for (final NQJClassDecl classDecl : javaProg.getClassDecls()) {
+            if (classStruct.get(classDecl.getName()) == receiverClass) {
+                return classDecl;
+            }
+        }
+        //
+        // Receivers are guaranteed to have class types by Analysis.
+        //
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Checks whether a class is a (non-strict) subclass of another class.
+     */
+    static boolean isSubclass(NQJClassDecl classDecl, NQJClassDecl superclass) {
+        for (NQJClassDecl c = classDecl; c != null; c = c.getDirectSuperClass()) {
+            if (c == superclass) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Gets the appropriate structure type from a pointer.
      *
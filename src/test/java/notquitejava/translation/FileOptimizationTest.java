@@ -0,0 +1,44 @@
+package notquitejava.translation;
+
+import main.CompilerOptions;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collection;
+
+
+/**
+ * Runs the translation tests on the files from testdata/translation with all
+ * optimizations enabled. The optimized programs must behave exactly like the
+ * unoptimized ones.
+ */
+@RunWith(Parameterized.class)
+public class FileOptimizationTest {
+
+	private final File inputFile;
+
+	public FileOptimizationTest(File inputFile) {
+		this.inputFile = inputFile;
+	}
+
+	@Test
+	public void testOptimizedTranslation() throws Exception {
+		String input = Files.readString(inputFile.toPath());
+		TranslationTestHelper.testLLVMTranslation(inputFile.getName(), input,
+				CompilerOptions.optimizeAll());
+	}
+
+	@Parameterized.Parameters(name = "{0}")
+	public static Collection<Object[]> data() {
+		return FileTranslationTest.data();
+	}
+
+	@AfterClass
+	public static void writeLaunchConfig() throws Exception {
+		TranslationTestHelper.setupVscodeLaunch();
+	}
+}
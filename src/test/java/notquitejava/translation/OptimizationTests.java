@@ -0,0 +1,1091 @@
+package notquitejava.translation;
+
+import main.CompilerOptions;
+import main.Optimization;
+import minillvm.analysis.ControlFlowGraph;
+import minillvm.analysis.DominatorTree;
+import minillvm.analysis.LoopNest;
+import minillvm.ast.*;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for individual optimizations. Every program is run and compared with
+ * Java, and the optimized code is inspected for the expected shape.
+ */
+public class OptimizationTests {
+
+	@Test
+	public void mem2regLoop() throws Exception {
+		Prog prog = testStatements(new CompilerOptions().enable(Optimization.MEM2REG),
+				"int x;",
+				"int sum;",
+				"x = 10;",
+				"sum = 0;",
+				"while (0 < x) {",
+				"	sum = sum + x;",
+				"	x = x - 1;",
+				"}",
+				"printInt(sum);"
+		);
+		Proc main = findProc(prog, "main");
+		assertEquals(0, count(main, Alloca.class));
+		assertEquals(0, count(main, Load.class));
+		assertEquals(0, count(main, Store.class));
+		assertTrue(count(main, PhiNode.class) >= 2);
+	}
+
+	@Test
+	public void mem2regParameters() throws Exception {
+		Prog prog = testProgram(new CompilerOptions().enable(Optimization.MEM2REG),
+				"int main() {",
+				"	printInt(fac(10));",
+				"	return 0;",
+				"}",
+				"int fac(int n) {",
+				"	int r;",
+				"	r = 1;",
+				"	while (1 < n) {",
+				"		r = r * n;",
+				"		n = n - 1;",
+				"	}",
+				"	return r;",
+				"}"
+		);
+		assertEquals(0, count(findProc(prog, "fac"), Alloca.class));
+	}
+
+	@Test
+	public void mem2regNullLocal() throws Exception {
+		testProgram(new CompilerOptions().enable(Optimization.MEM2REG),
+				"int main() {",
+				"	A a;",
+				"	a = null;",
+				"	if (a == null) {",
+				"		a = new A();",
+				"	} else {}",
+				"	printInt(a.get());",
+				"	return 0;",
+				"}",
+				"class A {",
+				"	int get() { return 7; }",
+				"}"
+		);
+	}
+
+	@Test
+	public void devirtualizeMonomorphicCall() throws Exception {
+		Prog prog = testProgram(new CompilerOptions().enable(Optimization.DEVIRTUALIZE),
+				"int main() {",
+				"	A a;",
+				"	a = new B();",
+				"	printInt(a.get() + a.inc(1));",
+				"	return 0;",
+				"}",
+				"class A {",
+				"	int get() { return 7; }",
+				"	int inc(int x) { return x + 1; }",
+				"}",
+				"class B extends A {",
+				"	int inc(int x) { return x + 2; }",
+				"}"
+		);
+		Proc main = findProc(prog, "main");
+		// A.get is never overridden, while A.inc dispatches to B.inc as well
+		assertEquals(1, countDirectCalls(main, "get"));
+		assertEquals(0, countDirectCalls(main, "inc"));
+	}
+
+	@Test
+	public void devirtualizeLeafClass() throws Exception {
+		Prog prog = testProgram(new CompilerOptions().enable(Optimization.DEVIRTUALIZE),
+				"int main() {",
+				"	B b;",
+				"	b = new B();",
+				"	printInt(b.inc(1));",
+				"	return 0;",
+				"}",
+				"class A {",
+				"	int inc(int x) { return x + 1; }",
+				"}",
+				"class B extends A {",
+				"	int inc(int x) { return x + 2; }",
+				"}"
+		);
+		assertEquals(1, countDirectCalls(findProc(prog, "main"), "inc"));
+	}
+
+	@Test
+	public void rtaRemovesUnreachableCode() throws Exception {
+		Prog prog = testProgram(new CompilerOptions().enable(Optimization.RTA),
+				"int main() {",
+				"	A a;",
+				"	a = new B();",
+				"	printInt(a.get());",
+				"	return 0;",
+				"}",
+				"int unused(int x) {",
+				"	boolean[] flags;",
+				"	flags = new boolean[x];",
+				"	return flags.length;",
+				"}",
+				"class A {",
+				"	int get() { return 1; }",
+				"	int other() { return 2; }",
+				"}",
+				"class B extends A {",
+				"	int get() { return 3; }",
+				"}",
+				"class C extends A {",
+				"	int get() { return 4; }",
+				"	Dead make() { return new Dead(); }",
+				"}",
+				"class Dead {",
+				"	int[] data;",
+				"}"
+		);
+		// main, new_class_B and B.get remain
+		assertEquals(3, prog.getProcedures().size());
+		assertEquals(1, prog.getGlobals().size());
+		for (TypeStruct struct : prog.getStructTypes()) {
+			assertTrue(struct.getName().endsWith("_A") || struct.getName().endsWith("_B"));
+		}
+	}
+
+	@Test
+	public void fieldLayoutPacksBooleans() throws Exception {
+		Prog prog = testProgram(new CompilerOptions().enable(Optimization.FIELD_LAYOUT),
+				"int main() {",
+				"	B b;",
+				"	b = new B();",
+				"	printInt(b.init());",
+				"	return 0;",
+				"}",
+				"class A {",
+				"	boolean p;",
+				"	A next;",
+				"	boolean q;",
+				"	int x;",
+				"}",
+				"class B extends A {",
+				"	boolean d;",
+				"	int[] ys;",
+				"	int y;",
+				"	int init() {",
+				"		p = true;",
+				"		x = 1;",
+				"		d = true;",
+				"		y = 2;",
+				"		if (p) { x = x + y; } else { }",
+				"		return x;",
+				"	}",
+				"}"
+		);
+		assertEquals("[_vtable, next, x, p, q]", fieldNames(findStruct(prog, "class_A")));
+		// the fields of A stay a prefix of those of B
+		assertEquals("[_vtable, next, x, p, q, d, ys, y]", fieldNames(findStruct(prog, "class_B")));
+	}
+
+	@Test
+	public void boundsChecksInductionVariables() throws Exception {
+		Prog prog = testStatements(
+				new CompilerOptions().enable(Optimization.MEM2REG).enable(Optimization.BOUNDS_CHECKS),
+				"int[] a;",
+				"int i;",
+				"int sum;",
+				"a = new int[10];",
+				"i = 0;",
+				"while (i < a.length) {",
+				"	a[i] = i;",
+				"	i = i + 1;",
+				"}",
+				"sum = 0;",
+				"while (0 < i) {",
+				"	i = i - 1;",
+				"	sum = sum + a[i] * a[i];",
+				"}",
+				"printInt(sum);"
+		);
+		assertEquals(0, countHalts(findProc(prog, "main"), "Index out of bounds"));
+	}
+
+	@Test
+	public void boundsChecksKeepUnprovenChecks() throws Exception {
+		Prog prog = testStatements(
+				new CompilerOptions().enable(Optimization.MEM2REG).enable(Optimization.BOUNDS_CHECKS),
+				"int[] a;",
+				"int i;",
+				"a = new int[10];",
+				"i = 0;",
+				"while (i < 11) {",
+				"	a[i] = i;",
+				"	i = i + 1;",
+				"}"
+		);
+		assertEquals(1, countHalts(findProc(prog, "main"), "Index out of bounds"));
+	}
+
+	@Test
+	public void boundsChecksKeepOverflowingSubtraction() throws Exception {
+		Prog prog = testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.SCCP)
+						.enable(Optimization.BOUNDS_CHECKS),
+				"int main() {",
+				"	printInt(get(new int[10], 2147483645));",
+				"	return 0;",
+				"}",
+				"int get(int[] a, int x) {",
+				"	int j;",
+				"	j = 0;",
+				"	if (0 < x) {",
+				"		j = x - (0 - 5);",
+				"		if (j < a.length) {",
+				"			j = a[j];",
+				"		} else { }",
+				"	} else { }",
+				"	return j;",
+				"}"
+		);
+		// x - (0 - 5) overflows to a negative index
+		assertEquals(1, countHalts(findProc(prog, "get"), "Index out of bounds"));
+	}
+
+	@Test
+	public void nullChecksKnownObjects() throws Exception {
+		Prog prog = testProgram(new CompilerOptions().enable(Optimization.NULL_CHECKS),
+				"int main() {",
+				"	A a;",
+				"	int[] xs;",
+				"	a = new A();",
+				"	xs = new int[3];",
+				"	xs[0] = a.get();",
+				"	printInt(xs[0] + xs.length + a.get());",
+				"	return 0;",
+				"}",
+				"class A {",
+				"	int x;",
+				"	int get() { x = x + 1; return this.next(); }",
+				"	int next() { return x; }",
+				"}"
+		);
+		assertEquals(0, countHalts(findProc(prog, "main"), "Nullpointer"));
+		assertEquals(0, countHalts(findProc(prog, "get"), "Nullpointer"));
+	}
+
+	@Test
+	public void nullChecksKeepPossiblyNull() throws Exception {
+		Prog prog = testProgram(new CompilerOptions().enable(Optimization.NULL_CHECKS),
+				"int main() {",
+				"	A a;",
+				"	a = new A();",
+				"	printInt(a.get());",
+				"	a = a.self(false);",
+				"	printInt(a.get());",
+				"	printInt(a.get());",
+				"	return 0;",
+				"}",
+				"class A {",
+				"	int get() { return 1; }",
+				"	A self(boolean b) {",
+				"		A r;",
+				"		if (b) { r = this; } else { r = null; }",
+				"		return r;",
+				"	}",
+				"}"
+		);
+		// only the first call on the result of self stays checked
+		assertEquals(1, countHalts(findProc(prog, "main"), "Nullpointer"));
+	}
+
+	@Test
+	public void sccpDivisionByLiteral() throws Exception {
+		Prog prog = testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG).enable(Optimization.SCCP),
+				"int main() {",
+				"	printInt(f(100));",
+				"	printInt(f(-2147483647 - 1));",
+				"	return 0;",
+				"}",
+				"int f(int x) {",
+				"	int y;",
+				"	y = 6 / 2;",
+				"	return x / 7 + x / y;",
+				"}"
+		);
+		Proc f = findProc(prog, "f");
+		assertEquals(0, countHalts(f, "Division by zero"));
+		assertEquals(0, count(f, Branch.class));
+		assertEquals(0, count(f, PhiNode.class));
+	}
+
+	@Test
+	public void sccpConstantConditions() throws Exception {
+		Prog prog = testStatements(new CompilerOptions()
+						.enable(Optimization.MEM2REG).enable(Optimization.SCCP),
+				"int x;",
+				"int i;",
+				"boolean debug;",
+				"debug = false;",
+				"x = 3;",
+				"i = 0;",
+				"while (i < 10) {",
+				"	if (debug) {",
+				"		x = x + 1;",
+				"	} else {}",
+				"	i = i + 1;",
+				"}",
+				"printInt(x * 2);",
+				"printInt(i);"
+		);
+		Proc main = findProc(prog, "main");
+		// only the loop condition remains, x is folded to 3
+		assertEquals(1, count(main, Branch.class));
+		assertEquals(1, count(main, PhiNode.class));
+	}
+
+	@Test
+	public void inlineSmallMethods() throws Exception {
+		Prog prog = testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.DEVIRTUALIZE)
+						.enable(Optimization.INLINE),
+				"int main() {",
+				"	Counter c;",
+				"	int i;",
+				"	c = new Counter();",
+				"	i = 0;",
+				"	while (i < 5) {",
+				"		c.add(max(i, 2));",
+				"		i = i + 1;",
+				"	}",
+				"	printInt(c.get());",
+				"	return 0;",
+				"}",
+				"int max(int a, int b) {",
+				"	int r;",
+				"	if (a < b) { r = b; } else { r = a; }",
+				"	return r;",
+				"}",
+				"class Counter {",
+				"	int n;",
+				"	int add(int x) { n = n + x; return n; }",
+				"	int get() { return n; }",
+				"}"
+		);
+		Proc main = findProc(prog, "main");
+		assertEquals(0, countDirectCalls(main, "max"));
+		assertEquals(0, countDirectCalls(main, "add"));
+		assertEquals(0, countDirectCalls(main, "get"));
+		assertEquals(0, count(main, Alloca.class));
+	}
+
+	@Test
+	public void inlineRespectsBudget() throws Exception {
+		Prog prog = testProgram(new CompilerOptions()
+						.enable(Optimization.INLINE)
+						.setInlineBudget(5),
+				"int main() {",
+				"	printInt(fib(10) + one());",
+				"	return 0;",
+				"}",
+				"int one() { return 1; }",
+				"int fib(int n) {",
+				"	int r;",
+				"	if (n < 2) { r = n; } else { r = fib(n - 1) + fib(n - 2); }",
+				"	return r;",
+				"}"
+		);
+		Proc main = findProc(prog, "main");
+		assertEquals(1, countDirectCalls(main, "fib"));
+		assertEquals(0, countDirectCalls(main, "one"));
+	}
+
+	@Test
+	public void escapeAnalysisLocalObjects() throws Exception {
+		Prog prog = testProgram(CompilerOptions.optimizeAll(),
+				"int main() {",
+				"	int i;",
+				"	int sum;",
+				"	Point p;",
+				"	int[] a;",
+				"	i = 0;",
+				"	sum = 0;",
+				"	while (i < 10) {",
+				"		p = new Point();",
+				"		p.set(i, i + 1);",
+				"		sum = sum + p.dist();",
+				"		i = i + 1;",
+				"	}",
+				"	a = new int[4];",
+				"	a[2] = sum;",
+				"	printInt(a[2] + a.length);",
+				"	return 0;",
+				"}",
+				"class Point {",
+				"	int x;",
+				"	int y;",
+				"	int set(int a, int b) { x = a; y = b; return 0; }",
+				"	int dist() { return x * x + y * y; }",
+				"}"
+		);
+		Proc main = findProc(prog, "main");
+		assertEquals(0, count(main, Alloc.class));
+		// only the array needs memory, the point is replaced by its fields
+		assertEquals(1, count(main, Alloca.class));
+	}
+
+	@Test
+	public void escapeAnalysisKeepsEscapingObjects() throws Exception {
+		Prog prog = testProgram(CompilerOptions.optimizeAll(),
+				"int main() {",
+				"	Node n;",
+				"	Node m;",
+				"	n = new Node();",
+				"	m = new Node();",
+				"	n.setNext(m);",
+				"	printInt(n.getNext().getValue());",
+				"	return 0;",
+				"}",
+				"class Node {",
+				"	Node next;",
+				"	int getValue() { return 5; }",
+				"	Node getNext() { return next; }",
+				"	int setNext(Node n) { next = n; return 0; }",
+				"}"
+		);
+		// m is stored into a field of n, n itself stays local
+		assertEquals(1, count(findProc(prog, "main"), Alloc.class));
+	}
+
+	@Test
+	public void licmHoistsFieldAndLengthLoads() throws Exception {
+		Prog prog = testProgram(CompilerOptions.optimizeAll(),
+				"int main() {",
+				"	int[] a;",
+				"	int i;",
+				"	a = new int[50];",
+				"	i = 0;",
+				"	while (i < a.length) { a[i] = i; i = i + 1; }",
+				"	printInt(new Acc().init(3).run(a));",
+				"	return 0;",
+				"}",
+				"class Acc {",
+				"	int scale;",
+				"	Acc init(int s) { scale = s; return this; }",
+				"	int run(int[] xs) {",
+				"		int i;",
+				"		int s;",
+				"		i = 0;",
+				"		s = 0;",
+				"		while (i < xs.length) {",
+				"			s = s + xs[i] * scale;",
+				"			i = i + 1;",
+				"		}",
+				"		return s;",
+				"	}",
+				"}"
+		);
+		// only the array element is loaded in every iteration
+		assertEquals(1, countInLoops(findProc(prog, "run"), Load.class));
+	}
+
+	@Test
+	public void licmKeepsGuardedElementLoads() throws Exception {
+		Prog prog = testStatements(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.NULL_CHECKS)
+						.enable(Optimization.LICM),
+				"int[] a;",
+				"int i;",
+				"int s;",
+				"a = new int[10];",
+				"i = 0;",
+				"s = 0;",
+				"while (i < 10) {",
+				"	if (i < 0) {",
+				"		s = s + a[100000000];",
+				"	} else { }",
+				"	s = s + i;",
+				"	i = i + 1;",
+				"}",
+				"printInt(s);"
+		);
+		// the element is out of range, so it must not be loaded before the loop
+		assertEquals(1, countInLoops(findProc(prog, "main"), Load.class));
+	}
+
+	@Test
+	public void licmHoistsVirtualMethodLookup() throws Exception {
+		Prog prog = testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.NULL_CHECKS)
+						.enable(Optimization.LICM),
+				"int main() {",
+				"	A a;",
+				"	int i;",
+				"	int s;",
+				"	a = new B();",
+				"	i = 0;",
+				"	s = 0;",
+				"	while (i < 10) {",
+				"		s = s + a.f(i);",
+				"		i = i + 1;",
+				"	}",
+				"	printInt(s);",
+				"	return 0;",
+				"}",
+				"class A {",
+				"	int f(int x) { return x; }",
+				"}",
+				"class B extends A {",
+				"	int f(int x) { return x * 2; }",
+				"}"
+		);
+		assertEquals(0, countInLoops(findProc(prog, "main"), Load.class));
+	}
+
+	@Test
+	public void gvnRemovesRepeatedChecks() throws Exception {
+		Prog prog = testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.GVN),
+				"int main() {",
+				"	int[] a;",
+				"	a = new int[3];",
+				"	printInt(inc(a, 2));",
+				"	return 0;",
+				"}",
+				"int inc(int[] a, int i) {",
+				"	a[i] = a[i] + 1;",
+				"	return a[i];",
+				"}"
+		);
+		Proc inc = findProc(prog, "inc");
+		assertEquals(1, countHalts(inc, "Nullpointer"));
+		assertEquals(1, countHalts(inc, "Index out of bounds"));
+	}
+
+	@Test
+	public void gvnForwardsStoredValues() throws Exception {
+		Prog prog = testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.NULL_CHECKS)
+						.enable(Optimization.GVN),
+				"int main() {",
+				"	A a;",
+				"	a = new A();",
+				"	printInt(a.get());",
+				"	return 0;",
+				"}",
+				"class A {",
+				"	int x;",
+				"	int y;",
+				"	int get() {",
+				"		int s;",
+				"		s = x + x;",
+				"		y = s;",
+				"		s = s + x;",
+				"		x = s;",
+				"		return s + x;",
+				"	}",
+				"}"
+		);
+		// x is loaded once, the load after the store to it uses the stored value
+		assertEquals(1, count(findProc(prog, "get"), Load.class));
+	}
+
+	@Test
+	public void gvnIgnoresStoresToOtherAccessTypes() throws Exception {
+		Prog prog = testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.NULL_CHECKS)
+						.enable(Optimization.GVN),
+				"int main() {",
+				"	A a;",
+				"	a = new A();",
+				"	printInt(a.get(new int[2], new A()));",
+				"	return 0;",
+				"}",
+				"class A {",
+				"	int x;",
+				"	int y;",
+				"	int get(int[] arr, A other) {",
+				"		int s;",
+				"		s = x;",
+				"		arr[0] = 5;",
+				"		other.y = 7;",
+				"		s = s + x;",
+				"		other.x = 3;",
+				"		return s + x;",
+				"	}",
+				"}"
+		);
+		// x is only loaded again after the store to the x of another object,
+		// and the length of arr is loaded for the bounds check
+		assertEquals(3, count(findProc(prog, "get"), Load.class));
+	}
+
+	@Test
+	public void dceRemovesEmptyBlocks() throws Exception {
+		Prog prog = testStatements(new CompilerOptions()
+						.enable(Optimization.DCE),
+				"int x;",
+				"x = 1;",
+				"if (x < 2) {",
+				"} else {",
+				"}",
+				"printInt(x);",
+				"return 0;"
+		);
+		Proc main = findProc(prog, "main");
+		assertEquals(1, main.getBasicBlocks().size());
+		assertEquals(0, count(main, CommentInstr.class));
+	}
+
+	@Test
+	public void tailRecursionBecomesLoop() throws Exception {
+		Prog prog = testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.TAIL_RECURSION),
+				"int main() {",
+				"	printInt(sum(1000, 0));",
+				"	printInt(fact(5));",
+				"	return 0;",
+				"}",
+				"int sum(int n, int acc) {",
+				"	if (n < 1) {",
+				"		return acc;",
+				"	} else {",
+				"	}",
+				"	return sum(n - 1, acc + n);",
+				"}",
+				"int fact(int n) {",
+				"	if (n < 2) {",
+				"		return 1;",
+				"	} else {",
+				"	}",
+				"	return n * fact(n - 1);",
+				"}"
+		);
+		assertEquals(0, countDirectCalls(findProc(prog, "sum"), "sum"));
+		// the result of fact is used by the multiplication
+		assertEquals(1, countDirectCalls(findProc(prog, "fact"), "fact"));
+	}
+
+	@Test
+	public void tailRecursionMarksTailCalls() throws Exception {
+		Prog prog = testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.TAIL_RECURSION),
+				"int main() {",
+				"	printInt(f(3));",
+				"	return 0;",
+				"}",
+				"int f(int x) {",
+				"	return g(x + 1);",
+				"}",
+				"int g(int x) {",
+				"	return x * 2;",
+				"}"
+		);
+		Proc f = findProc(prog, "f");
+		int marked = 0;
+		for (BasicBlock block : f.getBasicBlocks()) {
+			for (Instruction instr : block) {
+				if (instr instanceof Call && ((Call) instr).getTailCall()) {
+					marked++;
+				}
+			}
+		}
+		assertEquals(1, marked);
+	}
+
+	@Test
+	public void loopIdiomsReplaceArrayInitialization() throws Exception {
+		Prog prog = testStatements(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.LOOP_IDIOMS),
+				"int[] a;",
+				"a = new int[10];",
+				"printInt(a[3]);"
+		);
+		Proc newArray = findProc(prog, "newArray");
+		assertEquals(1, count(newArray, MemSet.class));
+		assertEquals(0, countInLoops(newArray, Store.class));
+	}
+
+	@Test
+	public void ipcpSpecializesConstantArguments() throws Exception {
+		Prog prog = testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.IPCP)
+						.enable(Optimization.SCCP),
+				"int main() {",
+				"	printInt(f(1, true));",
+				"	printInt(f(1, true));",
+				"	printInt(f(3, false));",
+				"	printInt(g(7));",
+				"	return 0;",
+				"}",
+				"int f(int x, boolean b) {",
+				"	int r;",
+				"	r = x;",
+				"	if (b) {",
+				"		r = r * 2;",
+				"	} else { }",
+				"	return r;",
+				"}",
+				"int g(int x) {",
+				"	return x * 3;",
+				"}"
+		);
+		Proc main = findProc(prog, "main");
+		assertEquals(2, countDirectCalls(main, "f.spec"));
+		assertEquals(0, findProc(prog, "f.spec1").getParameters().size());
+		assertEquals(0, count(findProc(prog, "g"), BinaryOperation.class));
+	}
+
+	@Test
+	public void memoizeRecursivePureFunctions() throws Exception {
+		Prog prog = testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.MEMOIZE),
+				"int main() {",
+				"	printInt(fib(20));",
+				"	printInt(countDown(3));",
+				"	return 0;",
+				"}",
+				"int fib(int n) {",
+				"	int r;",
+				"	if (n < 2) {",
+				"		r = n;",
+				"	} else {",
+				"		r = fib(n - 1) + fib(n - 2);",
+				"	}",
+				"	return r;",
+				"}",
+				"int countDown(int n) {",
+				"	int r;",
+				"	printInt(n);",
+				"	if (n < 1) {",
+				"		r = 0;",
+				"	} else {",
+				"		r = countDown(n - 1);",
+				"	}",
+				"	return r;",
+				"}"
+		);
+		String tables = "";
+		for (Global global : prog.getGlobals()) {
+			if (global.getName().endsWith(".memo")) {
+				tables += global.getName();
+			}
+		}
+		assertEquals("fib.memo", tables);
+	}
+
+	@Test
+	public void evaluateReplacesMainByOutput() throws Exception {
+		String[] program = {
+				"int i;",
+				"i = 0;",
+				"while (i < 3) {",
+				"	printInt(i * i);",
+				"	i = i + 1;",
+				"}"
+		};
+		Proc main = findProc(testStatements(new CompilerOptions()
+				.enable(Optimization.EVALUATE), program), "main");
+		assertEquals(1, main.getBasicBlocks().size());
+		assertEquals(3, count(main, Print.class));
+
+		main = findProc(testStatements(new CompilerOptions()
+				.enable(Optimization.EVALUATE)
+				.setEvaluationSteps(10), program), "main");
+		assertTrue(count(main, Branch.class) > 0);
+	}
+
+	@Test
+	public void unrollLoopsWithConstantTripCounts() throws Exception {
+		Proc main = findProc(testStatements(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.UNROLL),
+				"int i;",
+				"i = 0;",
+				"while (i < 3) {",
+				"	printInt(i);",
+				"	i = i + 1;",
+				"}",
+				"printInt(i);"
+		), "main");
+		assertEquals(4, count(main, Print.class));
+		assertEquals(0, countInLoops(main, Print.class));
+
+		// 102 iterations: 2 peeled in front, the loop runs 4 at once
+		main = findProc(testStatements(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.UNROLL)
+						.setUnrollFactor(4),
+				"int i;",
+				"i = 0;",
+				"while (i < 102) {",
+				"	printInt(i);",
+				"	i = i + 1;",
+				"}"
+		), "main");
+		assertEquals(6, count(main, Print.class));
+		assertEquals(4, countInLoops(main, Print.class));
+	}
+
+	@Test
+	public void loopVersioningHoistsChecks() throws Exception {
+		Proc sum = findProc(testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.LOOP_VERSIONING),
+				"int main() {",
+				"	printInt(new S().sum(new int[5], 5));",
+				"	return 0;",
+				"}",
+				"class S {",
+				"	int sum(int[] a, int n) {",
+				"		int i;",
+				"		int s;",
+				"		s = 0;",
+				"		i = 0;",
+				"		while (i < n) {",
+				"			s = s + a[i] + a[i + 1];",
+				"			i = i + 1;",
+				"		}",
+				"		return s;",
+				"	}",
+				"}"
+		), "sum");
+		// the original loop keeps its 4 checks, the copy only tests i < n
+		assertEquals(6, countInLoops(sum, Branch.class));
+		assertEquals(2, countHalts(sum, "Index out of bounds"));
+		assertEquals(2, countHalts(sum, "Nullpointer"));
+	}
+
+	@Test
+	public void strengthReductionIncrementsPointers() throws Exception {
+		Proc main = findProc(testStatements(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.NULL_CHECKS)
+						.enable(Optimization.BOUNDS_CHECKS)
+						.enable(Optimization.LICM)
+						.enable(Optimization.STRENGTH_REDUCTION)
+						.enable(Optimization.DCE),
+				"int[] a;",
+				"int i;",
+				"int sum;",
+				"a = new int[10];",
+				"sum = 0;",
+				"i = 0;",
+				"while (i < a.length) {",
+				"	sum = sum + a[i];",
+				"	i = i + 1;",
+				"}",
+				"printInt(sum);"
+		), "main");
+		// the loop only increments a pointer, which replaces i in the test
+		assertEquals(1, countInLoops(main, GetElementPtr.class));
+		assertEquals(2, countInLoops(main, BinaryOperation.class));
+		assertEquals(2, countInLoops(main, PhiNode.class));
+	}
+
+	@Test
+	public void deadStoreEliminationRemovesDefaultStores() throws Exception {
+		Proc main = findProc(testProgram(new CompilerOptions()
+						.enable(Optimization.MEM2REG)
+						.enable(Optimization.DEVIRTUALIZE)
+						.enable(Optimization.INLINE)
+						.enable(Optimization.DSE),
+				"int main() {",
+				"	Point p;",
+				"	p = new Point();",
+				"	p.init(1, 2);",
+				"	printInt(p.x + p.y);",
+				"	return 0;",
+				"}",
+				"class Point {",
+				"	int x;",
+				"	int y;",
+				"	boolean v;",
+				"	int init(int x0, int y0) { x = x0; y = y0; v = true; return 0; }",
+				"}"
+		), "main");
+		// only the Virtual Method Table pointer and the fields set by init
+		assertEquals(4, count(main, Store.class));
+	}
+
+	@Test
+	public void profileGuidesDevirtualization() throws Exception {
+		String[] program = {
+				"int main() {",
+				"	Shape[] shapes;",
+				"	int i;",
+				"	int sum;",
+				"	shapes = new Shape[4];",
+				"	shapes[0] = new Square();",
+				"	shapes[1] = new Square();",
+				"	shapes[2] = new Square();",
+				"	shapes[3] = new Circle();",
+				"	sum = 0;",
+				"	i = 0;",
+				"	while (i < 4) {",
+				"		sum = sum + shapes[i].area(i);",
+				"		i = i + 1;",
+				"	}",
+				"	printInt(sum);",
+				"	return 0;",
+				"}",
+				"class Shape {",
+				"	int area(int x) { return 0; }",
+				"}",
+				"class Square extends Shape {",
+				"	int area(int x) { return x * x; }",
+				"}",
+				"class Circle extends Shape {",
+				"	int area(int x) { return 3 * x * x; }",
+				"}"
+		};
+		File profile = File.createTempFile("profile", ".bin");
+		profile.deleteOnExit();
+		Proc main = findProc(testProgram(new CompilerOptions()
+				.setProfileGenerate(profile.getPath()), program), "main");
+		assertEquals(1, count(main, WriteFile.class));
+		assertEquals(1, countDirectCalls(main, "profile.classIndex"));
+
+		// Square receives 3 of the 4 calls
+		main = findProc(testProgram(new CompilerOptions()
+				.setProfileUse(profile.getPath()), program), "main");
+		assertEquals(1, countDirectCalls(main, "area"));
+		// Circle is still called through the Virtual Method Table
+		assertEquals(1, count(main, Call.class) - countDirectCalls(main, ""));
+	}
+
+	@Test
+	public void profilingHelpersOnlyWhenProfiling() throws Exception {
+		Prog prog = testProgram(new CompilerOptions(),
+				"int main() {",
+				"	printInt(fopen(1) + writeFile(2));",
+				"	return 0;",
+				"}",
+				"int fopen(int x) { return x; }",
+				"int writeFile(int x) { return x; }"
+		);
+		assertFalse(prog.toString().contains("@nqj.writeFile"));
+	}
+
+	static Prog testStatements(CompilerOptions options, String... inputLines) throws Exception {
+		String input = "int main() {\n"
+				+ String.join("\n", inputLines)
+				+ "\nreturn 0;\n}\n";
+		return TranslationTestHelper.testLLVMTranslation("Test.java", input, options);
+	}
+
+	static Prog testProgram(CompilerOptions options, String... inputLines) throws Exception {
+		return TranslationTestHelper.testLLVMTranslation("Test.java",
+				String.join("\n", inputLines) + "\n", options);
+	}
+
+	static Proc findProc(Prog prog, String name) {
+		for (Proc proc : prog.getProcedures()) {
+			if (proc.getName().equals(name)) {
+				return proc;
+			}
+		}
+		throw new AssertionError("No procedure " + name);
+	}
+
+	static TypeStruct findStruct(Prog prog, String name) {
+		for (TypeStruct struct : prog.getStructTypes()) {
+			if (struct.getName().equals(name)) {
+				return struct;
+			}
+		}
+		throw new AssertionError("No structure " + name);
+	}
+
+	static String fieldNames(TypeStruct struct) {
+		List<String> names = new ArrayList<>();
+		for (StructField field : struct.getFields()) {
+			names.add(field.getName());
+		}
+		return names.toString();
+	}
+
+	static int count(Proc proc, Class<? extends Instruction> kind) {
+		int result = 0;
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			for (Instruction instr : block) {
+				if (kind.isInstance(instr)) {
+					result++;
+				}
+			}
+		}
+		return result;
+	}
+
+	static int countHalts(Proc proc, String messagePrefix) {
+		int result = 0;
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			for (Instruction instr : block) {
+				if (instr instanceof HaltWithError
+						&& ((HaltWithError) instr).getMsg().startsWith(messagePrefix)) {
+					result++;
+				}
+			}
+		}
+		return result;
+	}
+
+	static int countInLoops(Proc proc, Class<? extends Instruction> kind) {
+		LoopNest loopNest = new LoopNest(new DominatorTree(new ControlFlowGraph(proc)));
+		int result = 0;
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			if (loopNest.getLoop(block) == null) {
+				continue;
+			}
+			for (Instruction instr : block) {
+				if (kind.isInstance(instr)) {
+					result++;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Counts the calls of procedures by name prefix, since printing the program
+	 * makes procedure names unique.
+	 */
+	static int countDirectCalls(Proc proc, String name) {
+		int result = 0;
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			for (Instruction instr : block) {
+				if (instr instanceof Call
+						&& ((Call) instr).getFunction() instanceof ProcedureRef
+						&& ((ProcedureRef) ((Call) instr).getFunction()).getProcedure()
+								.getName().startsWith(name)) {
+					result++;
+				}
+			}
+		}
+		return result;
+	}
+
+	@AfterClass
+	public static void writeLaunchConfig() throws Exception {
+		TranslationTestHelper.setupVscodeLaunch();
+	}
+}
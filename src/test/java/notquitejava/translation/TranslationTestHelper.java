@@ -1,5 +1,6 @@
 package notquitejava.translation;
 
+import main.CompilerOptions;
 import main.NotQuiteJavaCompiler;
 import nqjtooling.transpiler.main.NQJTranspiler;
 import notquitejava.ast.NQJProgram;
@@ -100,7 +101,11 @@ public class TranslationTestHelper {
 
 
 	public static void testLLVMTranslation(String inputName, String miniJavaProgram) throws Exception {
-		NotQuiteJavaCompiler compiler = new NotQuiteJavaCompiler();
+		testLLVMTranslation(inputName, miniJavaProgram, new CompilerOptions());
+	}
+
+	public static Prog testLLVMTranslation(String inputName, String miniJavaProgram, CompilerOptions options) throws Exception {
+		NotQuiteJavaCompiler compiler = new NotQuiteJavaCompiler(options);
 		compiler.compileString(inputName, miniJavaProgram);
 		assertEquals(Collections.emptyList(), compiler.getSyntaxErrors());
 		assertEquals(Collections.emptyList(), compiler.getTypeErrors());
@@ -146,7 +151,7 @@ public class TranslationTestHelper {
 				throw e;
 			}
 		}
-
+		return llvmProg;
 	}
 
     private static String randomInput() {
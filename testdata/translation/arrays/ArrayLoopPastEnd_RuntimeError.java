@@ -0,0 +1,11 @@
+int main() {
+	int[] a;
+	int i;
+	a = new int[5];
+	i = 0;
+	while (i < a.length) {
+		i = i + 1;
+		a[i] = 1;
+	}
+	return 0;
+}
@@ -0,0 +1,24 @@
+int main() {
+	int[] a;
+	int i;
+	int sum;
+	a = new int[10];
+	i = 0;
+	while (i < a.length) {
+		a[i] = i * i;
+		i = i + 1;
+	}
+	sum = 0;
+	i = a.length;
+	while (0 < i) {
+		i = i - 1;
+		sum = sum + a[i];
+	}
+	i = a.length - 1;
+	while (!(i < 0)) {
+		sum = sum + a[i] - a[i];
+		i = i - 1;
+	}
+	printInt(sum);
+	return 0;
+}
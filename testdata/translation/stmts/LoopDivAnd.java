@@ -0,0 +1,21 @@
+int main() {
+	int i;
+	int s;
+	boolean b;
+	i = 1;
+	s = 0;
+	b = true;
+	while (i < 100000) {
+		s = s + 1000 / i + (0 - 2147483647 - 1) / (0 - i);
+		b = b && i < 200000;
+		i = i + 1;
+	}
+	printInt(s);
+	if (b) {
+		printInt(1);
+	} else {
+		printInt(0);
+	}
+	printInt((0 - 2147483647 - 1) / (0 - 1));
+	return 0;
+}
@@ -0,0 +1,39 @@
+int main() {
+	int i;
+	int j;
+	boolean b;
+	boolean c;
+	i = 0;
+	j = 10;
+	b = true;
+	c = false;
+	while (i < j && !(i == 7) && b) {
+		if (!(i < 3) && !c) {
+			printInt(i);
+		} else {
+			printInt(0 - i);
+		}
+		if (i == 5 && (b && !c)) {
+			c = !c;
+		} else {}
+		i = i + 1;
+	}
+	if (true) { printInt(1); } else { printInt(2); }
+	if (false) { printInt(3); } else { printInt(4); }
+	if (!true && f(5)) { printInt(5); } else { printInt(6); }
+	if (f(1) && f(2)) { printInt(7); } else { printInt(8); }
+	if (f(3) && !f(4)) { printInt(9); } else { printInt(10); }
+	b = f(6) && f(7);
+	if (b) { printInt(11); } else { printInt(12); }
+	while (false) { printInt(99); }
+	if (new A().t() && new A().t()) { printInt(13); } else { printInt(14); }
+	if (new A().t() == c) { printInt(15); } else { printInt(16); }
+	return 0;
+}
+boolean f(int x) {
+	printInt(x * 100);
+	return x < 4;
+}
+class A {
+	boolean t() { return true; }
+}